@@ -0,0 +1,85 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of encoding request bodies and decoding response bodies with {@link SafetyJsonCodec}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonCodecBenchmark {
+
+    private static final int BATCH_SIZE = 32;
+
+    private SafetyJsonCodec codec;
+    private String text;
+    private List<String> texts;
+    private byte[] singleResponse;
+    private byte[] batchResponse;
+
+    @Setup
+    public void setup() {
+        codec = new SafetyJsonCodec();
+        text = sampleText(0);
+        texts = new ArrayList<>(BATCH_SIZE);
+        StringBuilder batch = new StringBuilder("{\"results\":[");
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            texts.add(sampleText(i));
+            batch.append(i > 0 ? "," : "").append(StubSafetyService.RESULT_JSON);
+        }
+        singleResponse = StubSafetyService.RESULT_JSON.getBytes(StandardCharsets.UTF_8);
+        batchResponse = batch.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** A short mixed Chinese / ASCII comment, the typical input of the step. */
+    static String sampleText(int i) {
+        return "用户评论 #" + i + "：这家店的服务很好，物流也快，下次还会再来。Great service, fast delivery!";
+    }
+
+    @Benchmark
+    public int encodeSingle() {
+        codec.encodeSingle(text, 0.5, false);
+        return codec.length();
+    }
+
+    @Benchmark
+    public int encodeBatch() {
+        codec.encodeBatch(texts, 0.5, false);
+        return codec.length();
+    }
+
+    @Benchmark
+    public SafetyResult decodeSingle() throws IOException {
+        return codec.decodeSingle(new ByteArrayInputStream(singleResponse), false);
+    }
+
+    @Benchmark
+    public SafetyResult decodeSingleWithDetails() throws IOException {
+        return codec.decodeSingle(new ByteArrayInputStream(singleResponse), true);
+    }
+
+    @Benchmark
+    public SafetyResult[] decodeBatch() throws IOException {
+        return codec.decodeBatch(new ByteArrayInputStream(batchResponse), BATCH_SIZE, false);
+    }
+}
@@ -0,0 +1,151 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.row.RowDataUtil;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepMeta;
+
+/**
+ * Rows per second through the whole {@code processRow} loop against {@link StubSafetyService}.
+ * <p>
+ * Modes: {@code sync} (one request per row), {@code batched} (batch endpoint),
+ * {@code async} (requests pipelined on the worker pool), {@code batched_async}
+ * (both), {@code batched_binary} (batch endpoint in the binary wire format) and
+ * {@code cached} (result cache in front of the service; after warm-up every row is a hit).
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ProcessRowBenchmark {
+
+    private static final int ROWS = 256;
+
+    @Param({"sync", "batched", "async", "batched_async", "batched_binary", "cached"})
+    public String mode;
+
+    /** Delay added by the stub to every response, standing in for inference time. */
+    @Param({"0", "5"})
+    public int latencyMs;
+
+    private StubSafetyService service;
+    private TextSafetyCheckStepMeta meta;
+    private TextSafetyCheckStepData data;
+    private BenchmarkStep step;
+    private Object[][] rows;
+
+    @Setup(Level.Trial)
+    public void setup() throws KettleException, IOException {
+        KettleEnvironment.init(false);
+        service = StubSafetyService.start(latencyMs);
+
+        meta = new TextSafetyCheckStepMeta();
+        meta.setDefault();
+        meta.setInputTextField("text");
+        meta.setServiceUrl(service.url());
+        if (mode.startsWith("batched")) {
+            meta.setBatchSize(32);
+        }
+        if (mode.endsWith("async")) {
+            meta.setMaxInFlightRequests(8);
+        }
+        if (mode.endsWith("binary")) {
+            meta.setBinaryProtocol(true);
+        }
+        if (mode.equals("cached")) {
+            meta.setCacheEnabled(true);
+        }
+
+        RowMetaInterface inputRowMeta = new RowMeta();
+        inputRowMeta.addValueMeta(new ValueMetaInteger("id"));
+        inputRowMeta.addValueMeta(new ValueMetaString("text"));
+        rows = new Object[ROWS][];
+        for (int i = 0; i < ROWS; i++) {
+            rows[i] = RowDataUtil.allocateRowData(inputRowMeta.size());
+            rows[i][0] = (long) i;
+            rows[i][1] = JsonCodecBenchmark.sampleText(i);
+        }
+
+        TransMeta transMeta = new TransMeta();
+        StepMeta stepMeta = new StepMeta("Text Safety Check", meta);
+        transMeta.addStep(stepMeta);
+        data = new TextSafetyCheckStepData();
+        step = new BenchmarkStep(stepMeta, data, transMeta, new Trans(transMeta));
+        step.setInputRowMeta(inputRowMeta);
+        if (!step.init(meta, data)) {
+            throw new IllegalStateException("Step initialisation failed");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        step.dispose(meta, data);
+        service.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long processRows() throws KettleException {
+        step.feed(rows);
+        while (step.processRow(meta, data)) {
+            // keep going until the input is exhausted and every request has been emitted
+        }
+        return step.written;
+    }
+
+    /**
+     * The step with its row sets replaced by an in-memory input array and a counting output.
+     */
+    static class BenchmarkStep extends TextSafetyCheckStep {
+        private Object[][] input;
+        private int next;
+        long written;
+
+        BenchmarkStep(StepMeta stepMeta, TextSafetyCheckStepData data, TransMeta transMeta, Trans trans) {
+            super(stepMeta, data, 0, transMeta, trans);
+        }
+
+        void feed(Object[][] rows) {
+            input = rows;
+            next = 0;
+            written = 0;
+        }
+
+        @Override
+        public Object[] getRow() {
+            return next < input.length ? input[next++] : null;
+        }
+
+        @Override
+        public void putRow(RowMetaInterface rowMeta, Object[] row) throws KettleStepException {
+            written++;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.row.RowDataUtil;
+
+/**
+ * Cost of appending the result fields to a row: one {@link RowDataUtil#addValueData} call per
+ * field with freshly boxed values (the step's former way), against a single
+ * {@link RowDataUtil#resizeArray} to the output length and shared boxes (its current way).
+ * Rows from upstream steps usually carry spare capacity ({@link RowDataUtil#allocateRowData});
+ * exact-length rows force a copy. {@code categoryFields} adds per-category score fields, which
+ * push the output past the spare capacity of a single widening.
+ * <p>
+ * Run with {@code -prof gc} to compare {@code gc.alloc.rate.norm}, the bytes allocated per row.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RowWideningBenchmark {
+
+    @Param({"4", "32", "200"})
+    public int inputFields;
+
+    @Param({"0", "12"})
+    public int categoryFields;
+
+    private SafetyResult result;
+    private int[] categoryIds;
+    private int outputRowSize;
+
+    @Setup
+    public void setUp() {
+        double[] details = new double[RiskCategories.count()];
+        for (int id = 0; id < details.length; id++) {
+            details[id] = id % 3 == 0 ? 0.0 : 0.001 * (id + 1);
+        }
+        result = new SafetyResult(true, SafetyResult.SAFE_CATEGORY, 0.0123, details);
+        categoryIds = new int[categoryFields];
+        for (int i = 0; i < categoryIds.length; i++) {
+            categoryIds[i] = i;
+        }
+        outputRowSize = inputFields + 3 + categoryFields;
+    }
+
+    @Benchmark
+    public Object[] widenPreallocatedRow() {
+        return widenPerField(RowDataUtil.allocateRowData(inputFields));
+    }
+
+    @Benchmark
+    public Object[] widenExactLengthRow() {
+        return widenPerField(new Object[inputFields]);
+    }
+
+    @Benchmark
+    public Object[] widenOncePreallocatedRow() {
+        return widenOnce(RowDataUtil.allocateRowData(inputFields));
+    }
+
+    @Benchmark
+    public Object[] widenOnceExactLengthRow() {
+        return widenOnce(new Object[inputFields]);
+    }
+
+    private Object[] widenPerField(Object[] row) {
+        int index = inputFields;
+        Object[] outputRow = RowDataUtil.addValueData(row, index++, Boolean.valueOf(result.isSafe()));
+        outputRow = RowDataUtil.addValueData(outputRow, index++, result.getRiskCategory());
+        outputRow = RowDataUtil.addValueData(outputRow, index++, Double.valueOf(result.getRiskScore()));
+        double[] details = result.getRiskDetails();
+        for (int id : categoryIds) {
+            outputRow = RowDataUtil.addValueData(outputRow, index++, Double.valueOf(details[id]));
+        }
+        return outputRow;
+    }
+
+    private Object[] widenOnce(Object[] row) {
+        Object[] outputRow = RowDataUtil.resizeArray(row, outputRowSize);
+        int index = inputFields;
+        outputRow[index++] = result.isSafe() ? Boolean.TRUE : Boolean.FALSE;
+        outputRow[index++] = result.getRiskCategory();
+        outputRow[index++] = result.getBoxedRiskScore();
+        double[] details = result.getRiskDetails();
+        for (int id : categoryIds) {
+            outputRow[index++] = SafetyResult.boxScore(details[id]);
+        }
+        return outputRow;
+    }
+}
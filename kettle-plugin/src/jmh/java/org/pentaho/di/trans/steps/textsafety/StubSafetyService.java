@@ -0,0 +1,192 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the Python safety service: answers /api/check and
+ * /api/check_batch with canned responses after a configurable delay, so the
+ * benchmarks measure the step and its transport rather than the model.
+ * <p>
+ * The batch size of a JSON request is taken from the number of quotes in the body,
+ * which is only correct because benchmark texts never contain quotes. Requests in
+ * the binary wire format, which the stub offers on /health, are answered in kind.
+ * </p>
+ */
+class StubSafetyService {
+
+    /** A typical response for safe text, including the risk_details map. */
+    static final String RESULT_JSON = "{\"is_safe\":true,\"risk_category\":null,\"risk_score\":0.0123,"
+        + "\"risk_details\":{\"sec\":0.9712,\"pp\":0.0123,\"ac\":0.0041}}";
+
+    static {
+        // Without TCP_NODELAY small responses wait out the client's delayed ACK (40 ms)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final int latencyMs;
+    private final Map<Integer, byte[]> batchResponses = new ConcurrentHashMap<>();
+    private final Map<Integer, byte[]> binaryResponses = new ConcurrentHashMap<>();
+    private final Map<Integer, byte[]> binaryDetailResponses = new ConcurrentHashMap<>();
+
+    private StubSafetyService(int latencyMs) throws IOException {
+        this.latencyMs = latencyMs;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/api/check", this::handleSingle);
+        server.createContext("/api/check_batch", this::handleBatch);
+        server.createContext("/health", this::handleHealth);
+    }
+
+    /** Starts a stub on a free loopback port; every response is delayed by {@code latencyMs}. */
+    static StubSafetyService start(int latencyMs) throws IOException {
+        StubSafetyService stub = new StubSafetyService(latencyMs);
+        stub.server.start();
+        return stub;
+    }
+
+    /** URL of the single-text endpoint, as configured on the step. */
+    String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/api/check";
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handleSingle(HttpExchange exchange) throws IOException {
+        if (isBinary(exchange)) {
+            handleBinary(exchange);
+            return;
+        }
+        drain(exchange.getRequestBody());
+        respond(exchange, RESULT_JSON.getBytes(StandardCharsets.UTF_8), "application/json");
+    }
+
+    private void handleBatch(HttpExchange exchange) throws IOException {
+        if (isBinary(exchange)) {
+            handleBinary(exchange);
+            return;
+        }
+        // {"texts":["a","b"],"threshold":0.5} has 2 quotes per text plus 4 for the keys
+        int texts = (drain(exchange.getRequestBody()) - 4) / 2;
+        respond(exchange, batchResponses.computeIfAbsent(texts, StubSafetyService::batchResponse),
+            "application/json");
+    }
+
+    private void handleBinary(HttpExchange exchange) throws IOException {
+        // Version, flags (bit 0: details), threshold, then the text count
+        DataInputStream in = new DataInputStream(exchange.getRequestBody());
+        in.readUnsignedByte();
+        boolean withDetails = (in.readUnsignedByte() & 1) != 0;
+        in.readDouble();
+        int texts = in.readInt();
+        drain(in);
+        byte[] body = withDetails
+            ? binaryDetailResponses.computeIfAbsent(texts, n -> binaryResponse(n, true))
+            : binaryResponses.computeIfAbsent(texts, n -> binaryResponse(n, false));
+        respond(exchange, body, SafetyBinaryCodec.MEDIA_TYPE);
+    }
+
+    private static boolean isBinary(HttpExchange exchange) {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        return contentType != null && contentType.startsWith(SafetyBinaryCodec.MEDIA_TYPE);
+    }
+
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("X-Wire-Formats", "application/json, " + SafetyBinaryCodec.MEDIA_TYPE);
+        byte[] body = "{\"status\":\"ok\"}".getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private void respond(HttpExchange exchange, byte[] body, String contentType) throws IOException {
+        if (latencyMs > 0) {
+            try {
+                Thread.sleep(latencyMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    /** Reads the request body and returns the number of quote characters in it. */
+    private static int drain(InputStream is) throws IOException {
+        byte[] buf = new byte[8192];
+        int quotes = 0;
+        int n;
+        while ((n = is.read(buf)) > 0) {
+            for (int i = 0; i < n; i++) {
+                if (buf[i] == '"') {
+                    quotes++;
+                }
+            }
+        }
+        return quotes;
+    }
+
+    private static byte[] batchResponse(int texts) {
+        StringBuilder sb = new StringBuilder("{\"results\":[");
+        for (int i = 0; i < texts; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(RESULT_JSON);
+        }
+        return sb.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** {@link #RESULT_JSON} in the binary wire format, {@code texts} times. */
+    static byte[] binaryResponse(int texts, boolean withDetails) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(1);
+            out.writeInt(texts);
+            for (int i = 0; i < texts; i++) {
+                out.writeByte(withDetails ? 0x03 : 0x01);
+                out.writeByte(0);
+                out.writeFloat(0.0123f);
+                if (withDetails) {
+                    out.writeByte(3);
+                    writeDetail(out, "sec", 0.9712f);
+                    writeDetail(out, "pp", 0.0123f);
+                    writeDetail(out, "ac", 0.0041f);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeDetail(DataOutputStream out, String category, float score) throws IOException {
+        out.writeByte(RiskCategories.idOf(category) + 1);
+        out.writeFloat(score);
+    }
+}
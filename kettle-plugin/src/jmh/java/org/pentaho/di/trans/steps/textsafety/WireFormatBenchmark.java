@@ -0,0 +1,86 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Client-side CPU time and bytes on the wire per row for a batch call in the JSON and
+ * the binary wire format: the request is encoded and a canned response decoded, as
+ * {@link SafetyServiceClient} does per call. Scores are ns per row; the request and
+ * response body sizes per row are printed at the end of each trial (HTTP headers are
+ * the same for both formats and not counted).
+ * <p>
+ * The JSON service always sends {@code risk_details}; the binary format only when
+ * {@code withDetails} is set.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WireFormatBenchmark {
+
+    private static final int BATCH_SIZE = 32;
+
+    @Param({"json", "binary"})
+    public String format;
+
+    @Param({"false", "true"})
+    public boolean withDetails;
+
+    private SafetyWireCodec codec;
+    private List<String> texts;
+    private byte[] response;
+
+    @Setup
+    public void setup() {
+        texts = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            texts.add(JsonCodecBenchmark.sampleText(i));
+        }
+        if (format.equals("binary")) {
+            codec = new SafetyBinaryCodec();
+            response = StubSafetyService.binaryResponse(BATCH_SIZE, withDetails);
+        } else {
+            codec = new SafetyJsonCodec();
+            StringBuilder batch = new StringBuilder("{\"results\":[");
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                batch.append(i > 0 ? "," : "").append(StubSafetyService.RESULT_JSON);
+            }
+            response = batch.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public SafetyResult[] batchCall() throws IOException {
+        codec.encodeBatch(texts, 0.5, withDetails);
+        return codec.decodeBatch(new ByteArrayInputStream(response), BATCH_SIZE, withDetails);
+    }
+
+    @TearDown
+    public void reportBytes() {
+        System.out.printf("%n%s, details %s: request %.1f bytes/row, response %.1f bytes/row%n", format,
+            withDetails, (double) codec.length() / BATCH_SIZE, (double) codec.received() / BATCH_SIZE);
+    }
+}
@@ -0,0 +1,157 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Byte-level BPE tokenizer, the GPT-2 scheme used by the Qwen family of models,
+ * reading the vocabulary and merge list written by {@code export_onnx.py}.
+ * <p>
+ * A text is normalized (NFC), split into words by the model's pre-tokenizer regex,
+ * each word's UTF-8 bytes are mapped to printable characters and merged pair by pair
+ * in merge-rank order. Special tokens are never produced: text that looks like one
+ * is tokenized as ordinary text. Thread-safe.
+ * </p>
+ */
+public class BpeTokenizer {
+
+    /** Pre-tokenizer of Qwen2/Qwen3, used when the export names none. */
+    public static final String DEFAULT_PATTERN = "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}"
+        + "| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+
+    /** Words whose token ids are remembered; the memo is dropped when it grows past this. */
+    private static final int WORD_CACHE_SIZE = 100_000;
+
+    private static final char[] BYTE_CHARS = byteChars();
+
+    private final Map<String, Integer> vocab;
+    private final Map<String, Integer> mergeRanks;
+    private final Pattern pattern;
+    private final boolean nfc;
+    private final Map<String, int[]> wordCache = new ConcurrentHashMap<>();
+
+    /**
+     * @param vocabFile  one {@code token<TAB>id} per line
+     * @param mergesFile one {@code left right} pair per line, highest priority first
+     * @param pattern    pre-tokenizer regex, or null for {@link #DEFAULT_PATTERN}
+     * @param nfc        whether texts are NFC-normalized first
+     */
+    public BpeTokenizer(File vocabFile, File mergesFile, String pattern, boolean nfc) throws IOException {
+        vocab = new HashMap<>();
+        for (String line : readLines(vocabFile)) {
+            int tab = line.lastIndexOf('\t');
+            if (tab > 0) {
+                vocab.put(line.substring(0, tab), Integer.parseInt(line.substring(tab + 1).trim()));
+            }
+        }
+        mergeRanks = new HashMap<>();
+        for (String line : readLines(mergesFile)) {
+            if (line.startsWith("#version") || line.indexOf(' ') <= 0) {
+                continue;
+            }
+            mergeRanks.putIfAbsent(line, mergeRanks.size());
+        }
+        // Unicode \s, as in the Rust regex engine the exported pattern was written for
+        this.pattern = Pattern.compile(pattern != null ? pattern : DEFAULT_PATTERN, Pattern.UNICODE_CHARACTER_CLASS);
+        this.nfc = nfc;
+    }
+
+    /** Appends the token ids of the text to {@code out}. */
+    public void encode(String text, List<Integer> out) {
+        String normalized = nfc ? Normalizer.normalize(text, Normalizer.Form.NFC) : text;
+        Matcher m = pattern.matcher(normalized);
+        while (m.find()) {
+            String word = m.group();
+            int[] ids = wordCache.get(word);
+            if (ids == null) {
+                ids = encodeWord(word);
+                if (wordCache.size() >= WORD_CACHE_SIZE) {
+                    wordCache.clear();
+                }
+                wordCache.put(word, ids);
+            }
+            for (int id : ids) {
+                out.add(id);
+            }
+        }
+    }
+
+    private int[] encodeWord(String word) {
+        byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+        List<String> symbols = new ArrayList<>(bytes.length);
+        for (byte b : bytes) {
+            symbols.add(String.valueOf(BYTE_CHARS[b & 0xff]));
+        }
+        while (symbols.size() > 1) {
+            int best = -1;
+            int bestRank = Integer.MAX_VALUE;
+            for (int i = 0; i + 1 < symbols.size(); i++) {
+                Integer rank = mergeRanks.get(symbols.get(i) + " " + symbols.get(i + 1));
+                if (rank != null && rank < bestRank) {
+                    best = i;
+                    bestRank = rank;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            symbols.set(best, symbols.get(best) + symbols.remove(best + 1));
+        }
+        List<Integer> ids = new ArrayList<>(symbols.size());
+        for (String symbol : symbols) {
+            Integer id = vocab.get(symbol);
+            if (id != null) {
+                ids.add(id);
+            } else {
+                // Not in the vocabulary (a damaged export): fall back to single bytes
+                for (int i = 0; i < symbol.length(); i++) {
+                    Integer byteId = vocab.get(String.valueOf(symbol.charAt(i)));
+                    if (byteId != null) {
+                        ids.add(byteId);
+                    }
+                }
+            }
+        }
+        int[] result = new int[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * GPT-2's reversible mapping of bytes to printable characters: printable Latin-1
+     * bytes map to themselves, the rest to code points from U+0100 on.
+     */
+    private static char[] byteChars() {
+        char[] chars = new char[256];
+        int next = 256;
+        for (int b = 0; b < 256; b++) {
+            boolean printable = (b >= '!' && b <= '~') || (b >= 0xA1 && b <= 0xAC) || (b >= 0xAE && b <= 0xFF);
+            chars[b] = (char) (printable ? b : next++);
+        }
+        return chars;
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,367 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command-line scorer for delimited text files, for backfills that need no
+ * transformation: reads a CSV or TSV file with a header row, checks one text
+ * column and writes the records out again with the verdict columns appended.
+ * <p>
+ * It uses the step's own parts, without Kettle on the class path: the shared
+ * {@link SafetyServiceClient} (or the embedded {@link OnnxSafetyEngine}), batches
+ * of texts per request, the {@link PreFilter} and the {@link ResultCache}. The
+ * input is streamed by {@link CsvReader}; at most {@code --parallelism} batches are
+ * in flight or waiting to be written, so memory use stays flat however large the
+ * file is. Records are written in input order. Progress and the final metrics
+ * summary go to standard error.
+ * </p>
+ * <pre>
+ * java -cp "TextSafetyCheck/*:TextSafetyCheck/lib/*" org.pentaho.di.trans.steps.textsafety.BulkScorer \
+ *     --input comments.csv --text-column content --output verdicts.csv --batch-size 32 --parallelism 4
+ * </pre>
+ */
+public final class BulkScorer {
+
+    private static final String DEFAULT_SERVICE_URL = "http://localhost:8001/api/check";
+
+    /** Caps the records of one batch when most of them are answered locally (see the step). */
+    private static final int MAX_BUFFERED_ROWS_FACTOR = 8;
+
+    private static final List<String> OPTIONS = Arrays.asList("--input", "--output", "--text-column", "--delimiter",
+        "--service-url", "--onnx-model", "--threshold", "--batch-size", "--parallelism", "--block-list",
+        "--allow-list", "--cache-capacity", "--cache-file", "--progress-seconds");
+    private static final List<String> FLAGS = Arrays.asList("--details", "--binary");
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+        "Usage: BulkScorer --input FILE --output FILE --text-column NAME [options]",
+        "  --delimiter C         field delimiter, or 'tab' (default: tab for .tsv files, comma otherwise)",
+        "  --service-url URL     safety service URL, or several replica URLs separated by commas",
+        "                        (default " + DEFAULT_SERVICE_URL + ")",
+        "  --onnx-model DIR      run the exported model in process instead of calling the service",
+        "  --threshold X         risk threshold (default 0.5)",
+        "  --batch-size N        texts per request (default 32)",
+        "  --parallelism N       requests in flight (default 4)",
+        "  --block-list FILE     pre-filter block list",
+        "  --allow-list FILE     pre-filter allow list",
+        "  --cache-capacity N    result cache entries, 0 for no cache (default 0)",
+        "  --cache-file FILE     memory-mapped file keeping cached results across runs",
+        "  --details             add a risk_details column with the per-category scores",
+        "  --binary              use the service's binary wire format when it offers it",
+        "  --progress-seconds N  time between progress lines, 0 for none (default 10)");
+
+    private final Path input;
+    private final Path output;
+    private final String textColumn;
+    private final char delimiter;
+    private final double threshold;
+    private final int batchSize;
+    private final int parallelism;
+    private final boolean withDetails;
+    private final long progressMs;
+    private final Map<String, String> options;
+
+    private SafetyServiceClient client;
+    private OnnxSafetyEngine engine;
+    private SafetyBackend backend;
+    private PreFilter preFilter;
+    private ResultCache cache;
+    private StepMetrics metrics;
+    private ExecutorService executor;
+
+    private BulkScorer(Map<String, String> options) {
+        this.options = options;
+        input = Paths.get(required(options, "--input"));
+        output = Paths.get(required(options, "--output"));
+        textColumn = required(options, "--text-column");
+        String defaultDelimiter = input.toString().toLowerCase(Locale.ROOT).endsWith(".tsv") ? "tab" : ",";
+        String delimiterOption = options.getOrDefault("--delimiter", defaultDelimiter);
+        if ("tab".equalsIgnoreCase(delimiterOption) || "\\t".equals(delimiterOption)) {
+            delimiter = '\t';
+        } else if (delimiterOption.length() == 1 && delimiterOption.charAt(0) != '"') {
+            delimiter = delimiterOption.charAt(0);
+        } else {
+            throw new IllegalArgumentException("Delimiter must be one character or 'tab': " + delimiterOption);
+        }
+        threshold = Double.parseDouble(options.getOrDefault("--threshold", "0.5"));
+        batchSize = positive(options, "--batch-size", 32);
+        parallelism = positive(options, "--parallelism", 4);
+        withDetails = options.containsKey("--details");
+        progressMs = Long.parseLong(options.getOrDefault("--progress-seconds", "10")) * 1000L;
+    }
+
+    public static void main(String[] args) {
+        BulkScorer scorer;
+        try {
+            scorer = new BulkScorer(parseOptions(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+        try {
+            scorer.run();
+        } catch (IOException e) {
+            System.err.println("Bulk scoring failed: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (FLAGS.contains(name)) {
+                options.put(name, "");
+            } else if (OPTIONS.contains(name) && i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                throw new IllegalArgumentException("Unknown option or missing value: " + name);
+            }
+        }
+        return options;
+    }
+
+    private static String required(Map<String, String> options, String name) {
+        String value = options.get(name);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Missing option " + name);
+        }
+        return value;
+    }
+
+    private static int positive(Map<String, String> options, String name, int defaultValue) {
+        int value = Integer.parseInt(options.getOrDefault(name, String.valueOf(defaultValue)));
+        if (value < 1) {
+            throw new IllegalArgumentException(name + " must be at least 1");
+        }
+        return value;
+    }
+
+    private void run() throws IOException {
+        metrics = new StepMetrics("bulk", input.getFileName().toString(), 0, batchSize);
+        try {
+            open();
+            score();
+        } finally {
+            close();
+        }
+        System.err.println(metrics.summary());
+    }
+
+    /** Acquires the backend, pre-filter and cache, as the step's init() does. */
+    private void open() throws IOException {
+        String backendId;
+        String modelDir = options.get("--onnx-model");
+        if (modelDir != null) {
+            backendId = "onnx:" + modelDir;
+            try {
+                engine = OnnxSafetyEngine.acquire(modelDir, 0);
+            } catch (LinkageError e) {
+                throw new IOException("The embedded model needs " + OnnxSafetyEngine.RUNTIME_JAR
+                    + " on the class path: " + e, e);
+            }
+            backend = engine;
+        } else {
+            backendId = options.getOrDefault("--service-url", DEFAULT_SERVICE_URL);
+            // Connection settings are the step's defaults
+            client = SafetyServiceClient.acquire(backendId, parallelism, 10_000, 30_000, 60_000, 10_000, 3, 30_000,
+                options.containsKey("--binary"));
+            backend = client;
+        }
+        String blockList = options.getOrDefault("--block-list", "");
+        String allowList = options.getOrDefault("--allow-list", "");
+        if (!blockList.isEmpty() || !allowList.isEmpty()) {
+            preFilter = PreFilter.acquire(blockList, allowList);
+        }
+        int cacheCapacity = Integer.parseInt(options.getOrDefault("--cache-capacity", "0"));
+        if (cacheCapacity > 0) {
+            cache = ResultCache.acquire(backendId, "", cacheCapacity, 0, options.getOrDefault("--cache-file", ""));
+        }
+        AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "BulkScorer-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private void close() throws IOException {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        try {
+            ResultCache.release(cache);
+        } finally {
+            PreFilter.release(preFilter);
+            if (engine != null) {
+                OnnxSafetyEngine.release(engine);
+            }
+            SafetyServiceClient.release(client);
+        }
+    }
+
+    private void score() throws IOException {
+        try (CsvReader reader = new CsvReader(input, delimiter); CsvWriter writer = new CsvWriter(output, delimiter)) {
+            List<String> header = reader.next();
+            if (header == null) {
+                throw new IOException("Input file " + input + " is empty");
+            }
+            int textIndex = header.indexOf(textColumn);
+            if (textIndex < 0) {
+                throw new IOException("Text column not found in the header: " + textColumn);
+            }
+            if (withDetails) {
+                writer.write(header, "is_safe", "risk_category", "risk_score", "risk_details");
+            } else {
+                writer.write(header, "is_safe", "risk_category", "risk_score");
+            }
+
+            Deque<Batch> inFlight = new ArrayDeque<>();
+            Batch batch = new Batch();
+            long nextProgress = System.currentTimeMillis() + progressMs;
+            for (List<String> record = reader.next(); record != null; record = reader.next()) {
+                while (record.size() < header.size()) {
+                    record.add("");
+                }
+                batch.add(record, record.get(textIndex));
+                if (batch.pendingTexts.size() >= batchSize
+                        || batch.records.size() >= batchSize * MAX_BUFFERED_ROWS_FACTOR) {
+                    submit(batch, inFlight);
+                    batch = new Batch();
+                    while (inFlight.size() > parallelism) {
+                        writeOldest(inFlight, writer);
+                    }
+                }
+                while (!inFlight.isEmpty() && inFlight.peekFirst().future.isDone()) {
+                    writeOldest(inFlight, writer);
+                }
+                if (progressMs > 0 && System.currentTimeMillis() >= nextProgress) {
+                    nextProgress = System.currentTimeMillis() + progressMs;
+                    System.err.println(String.format(Locale.ROOT, "%.1f%% of %s read, %s",
+                        reader.size() > 0 ? 100.0 * reader.bytesRead() / reader.size() : 100.0,
+                        input.getFileName(), metrics.statusLine()));
+                }
+            }
+            submit(batch, inFlight);
+            while (!inFlight.isEmpty()) {
+                writeOldest(inFlight, writer);
+            }
+        }
+    }
+
+    private void submit(Batch batch, Deque<Batch> inFlight) {
+        if (batch.records.isEmpty()) {
+            return;
+        }
+        batch.future = executor.submit(() -> check(batch));
+        inFlight.addLast(batch);
+    }
+
+    /** Sends a batch's pending texts in one request (runs on the worker pool). */
+    private void check(Batch batch) {
+        if (batch.pendingTexts.isEmpty()) {
+            return;
+        }
+        try {
+            SafetyResult[] results = batch.pendingTexts.size() == 1 && batchSize <= 1
+                ? new SafetyResult[] {
+                    backend.check(batch.pendingTexts.get(0), threshold, withDetails, false, metrics) }
+                : backend.checkBatch(batch.pendingTexts, threshold, withDetails, false, metrics);
+            for (int i = 0; i < results.length; i++) {
+                int index = batch.pending.get(i);
+                batch.results.set(index, results[i]);
+                ResultCache.Key key = batch.cacheKeys.get(index);
+                if (key != null) {
+                    cache.put(key, results[i]);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Safety API call failed for " + batch.pendingTexts.size() + " text(s): "
+                + e.getMessage());
+            SafetyResult error = SafetyResult.apiError(e.getMessage());
+            for (int index : batch.pending) {
+                batch.results.set(index, error);
+            }
+        }
+    }
+
+    private void writeOldest(Deque<Batch> inFlight, CsvWriter writer) throws IOException {
+        Batch batch = inFlight.pollFirst();
+        try {
+            batch.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the safety service", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Safety check failed: " + e.getCause().getMessage(), e.getCause());
+        }
+        for (int i = 0; i < batch.records.size(); i++) {
+            SafetyResult result = batch.results.get(i);
+            metrics.recordRow(RiskCategories.idOf(result.getRiskCategory()) < 0);
+            String safe = String.valueOf(result.isSafe());
+            String score = String.valueOf(result.getRiskScore());
+            if (withDetails) {
+                writer.write(batch.records.get(i), safe, result.getRiskCategory(), score, result.formatRiskDetails());
+            } else {
+                writer.write(batch.records.get(i), safe, result.getRiskCategory(), score);
+            }
+        }
+    }
+
+    /**
+     * Records sent as one request; those answered locally (empty text, pre-filter,
+     * cache) keep their place with their result already set.
+     */
+    private final class Batch {
+        final List<List<String>> records = new ArrayList<>();
+        final List<SafetyResult> results = new ArrayList<>();
+        final List<ResultCache.Key> cacheKeys = new ArrayList<>();
+        /** Index in {@link #records} of each text sent, and the text. */
+        final List<Integer> pending = new ArrayList<>();
+        final List<String> pendingTexts = new ArrayList<>();
+        Future<?> future;
+
+        void add(List<String> record, String text) {
+            SafetyResult known = null;
+            ResultCache.Key key = null;
+            if (text.isEmpty()) {
+                known = SafetyResult.safe();
+            } else {
+                if (preFilter != null) {
+                    known = preFilter.screen(text);
+                    if (known != null) {
+                        metrics.recordPreFilter(!known.isSafe());
+                    }
+                }
+                if (known == null && cache != null) {
+                    key = ResultCache.key(text, threshold);
+                    known = cache.get(key, withDetails);
+                    metrics.recordCacheLookup(known != null);
+                }
+            }
+            if (known == null) {
+                pending.add(records.size());
+                pendingTexts.add(text);
+            }
+            records.add(record);
+            results.add(known);
+            cacheKeys.add(known == null ? key : null);
+        }
+    }
+}
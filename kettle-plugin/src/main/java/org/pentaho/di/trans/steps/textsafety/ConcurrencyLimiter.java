@@ -0,0 +1,103 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+/**
+ * Adapts how many requests a step copy keeps in flight to the latency of the
+ * service, in the manner of TCP Vegas.
+ * <p>
+ * The shortest round trip seen stands for the service without a queue, so a
+ * slower call means part of the limit was waiting: about
+ * {@code limit * (1 - minRtt / rtt)} requests. While that estimate is below alpha
+ * the limit grows by one, above beta it shrinks by one; the service keeps a few
+ * requests queued, enough to stay busy, without the queue growing toward the read
+ * timeout. Backpressure (HTTP 429 or 503, timeouts) cuts the limit by a quarter at
+ * once. The limit stays between 1 and the configured maximum, and only grows while
+ * at least half of it is in use.
+ * </p>
+ * <p>
+ * Round trips are compared per text sent, so that small batches flushed by the
+ * timeout do not set a baseline full batches can never reach; a batch's time per
+ * text only falls as it fills, which errs toward a lower limit when load is light.
+ * The baseline is the shortest round trip of the last two windows of
+ * {@value #WINDOW_SAMPLES} calls rather than of the whole run, so that it follows
+ * the service when it slows down for good (another model, fewer replicas) instead
+ * of counting all of the new latency as queueing.
+ * Thread-safe: calls complete on the worker threads, the row thread reads the limit.
+ * </p>
+ */
+public class ConcurrencyLimiter {
+
+    private static final int INITIAL_LIMIT = 4;
+
+    /** Factor applied to the limit on backpressure. */
+    private static final double BACKOFF_RATIO = 0.75;
+
+    /** Calls after which the shortest round trip starts to age out. */
+    static final int WINDOW_SAMPLES = 500;
+
+    private final int maxLimit;
+    private volatile int limit;
+
+    // Guarded by this
+    private int inFlight;
+    private double windowMinRtt = Double.MAX_VALUE;
+    private double previousMinRtt = Double.MAX_VALUE;
+    private int windowSamples;
+
+    /**
+     * @param maxLimit upper bound of the limit, at least 1
+     */
+    public ConcurrencyLimiter(int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.min(this.maxLimit, INITIAL_LIMIT);
+    }
+
+    /** Requests currently allowed in flight. */
+    public int getLimit() {
+        return limit;
+    }
+
+    /** Records that a call is starting. */
+    public synchronized void onStart() {
+        inFlight++;
+    }
+
+    /**
+     * Records a call that completed and adapts the limit to its round trip.
+     *
+     * @param rttNanos round-trip time of the call
+     * @param texts    texts the call carried
+     */
+    public synchronized void onSuccess(long rttNanos, int texts) {
+        int used = inFlight--;
+        double rtt = Math.max(1.0, (double) rttNanos / Math.max(1, texts));
+        windowMinRtt = Math.min(windowMinRtt, rtt);
+        if (++windowSamples >= WINDOW_SAMPLES) {
+            previousMinRtt = windowMinRtt;
+            windowMinRtt = Double.MAX_VALUE;
+            windowSamples = 0;
+        }
+        double minRtt = Math.min(previousMinRtt, windowMinRtt);
+
+        int current = limit;
+        double queued = current * (1.0 - minRtt / rtt);
+        double log = Math.log10(current);
+        double alpha = Math.max(1.0, 3 * log);
+        double beta = Math.max(2.0, 6 * log);
+        if (queued > beta) {
+            limit = Math.max(1, current - 1);
+        } else if (queued < alpha && used * 2 >= current) {
+            limit = Math.min(maxLimit, current + 1);
+        }
+    }
+
+    /** Records a call the service pushed back on, and cuts the limit. */
+    public synchronized void onBackpressure() {
+        inFlight--;
+        limit = Math.max(1, (int) (limit * BACKOFF_RATIO));
+    }
+
+    /** Records a call that failed for a reason unrelated to load; the limit stays. */
+    public synchronized void onFailure() {
+        inFlight--;
+    }
+}
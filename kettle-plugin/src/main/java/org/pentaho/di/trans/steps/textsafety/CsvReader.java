@@ -0,0 +1,160 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming reader of UTF-8 delimited text (RFC 4180 CSV, or TSV with a tab
+ * delimiter) for {@link BulkScorer}.
+ * <p>
+ * The file is read through a {@link FileChannel} into one fixed direct buffer and
+ * decoded into one fixed char buffer, so memory use does not depend on the file
+ * size; only the current record is held. Quoted fields may contain delimiters,
+ * line breaks and doubled quotes. Lines end with LF, CRLF or CR; blank lines are
+ * skipped and a leading byte order mark is dropped. Malformed UTF-8 is replaced.
+ * </p>
+ * <p>
+ * Not thread-safe.
+ * </p>
+ */
+class CsvReader implements Closeable {
+
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private final FileChannel channel;
+    private final long size;
+    private final char delimiter;
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_BYTES);
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final StringBuilder field = new StringBuilder();
+    private long bytesRead;
+    private boolean endOfFile;
+    private boolean decoded;
+    private boolean first = true;
+
+    CsvReader(Path path, char delimiter) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.delimiter = delimiter;
+        chars.flip();
+    }
+
+    /** Size of the file in bytes. */
+    long size() {
+        return size;
+    }
+
+    /** Bytes read from the file so far, a little ahead of the records returned. */
+    long bytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Returns the fields of the next record, or null at the end of the file.
+     *
+     * @throws IOException if the file cannot be read or ends inside a quoted field
+     */
+    List<String> next() throws IOException {
+        int c = read();
+        if (first) {
+            first = false;
+            if (c == '\uFEFF') {
+                c = read();
+            }
+        }
+        while (c == '\n' || c == '\r') {
+            c = read();
+        }
+        if (c < 0) {
+            return null;
+        }
+        List<String> fields = new ArrayList<>();
+        field.setLength(0);
+        boolean fieldStart = true;
+        boolean quoted = false;
+        for (; ; c = read()) {
+            if (quoted) {
+                if (c < 0) {
+                    throw new IOException("File ends inside a quoted field");
+                }
+                if (c == '"') {
+                    if (peek() == '"') {
+                        read();
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"' && fieldStart) {
+                quoted = true;
+                fieldStart = false;
+            } else if (c == delimiter) {
+                fields.add(field.toString());
+                field.setLength(0);
+                fieldStart = true;
+            } else if (c < 0 || c == '\n' || c == '\r') {
+                if (c == '\r' && peek() == '\n') {
+                    read();
+                }
+                fields.add(field.toString());
+                return fields;
+            } else {
+                field.append((char) c);
+                fieldStart = false;
+            }
+        }
+    }
+
+    private int read() throws IOException {
+        return chars.hasRemaining() || fill() ? chars.get() : -1;
+    }
+
+    private int peek() throws IOException {
+        return chars.hasRemaining() || fill() ? chars.get(chars.position()) : -1;
+    }
+
+    /** Refills the char buffer; returns false at the end of the file. */
+    private boolean fill() throws IOException {
+        chars.clear();
+        while (chars.position() == 0 && !decoded) {
+            if (!endOfFile) {
+                int n = channel.read(bytes);
+                if (n < 0) {
+                    endOfFile = true;
+                } else {
+                    bytesRead += n;
+                }
+            }
+            bytes.flip();
+            CoderResult result = decoder.decode(bytes, chars, endOfFile);
+            bytes.compact();
+            if (endOfFile && result.isUnderflow()) {
+                decoder.flush(chars);
+                decoded = true;
+            }
+        }
+        chars.flip();
+        return chars.hasRemaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,80 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Writer of UTF-8 delimited text in the dialect {@link CsvReader} reads: fields
+ * holding the delimiter, a quote or a line break are quoted, quotes doubled, and
+ * records end with LF. Not thread-safe.
+ */
+class CsvWriter implements Closeable {
+
+    private static final int BUFFER_CHARS = 1 << 16;
+
+    private final BufferedWriter out;
+    private final char delimiter;
+
+    CsvWriter(Path path, char delimiter) throws IOException {
+        this.out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path), StandardCharsets.UTF_8),
+            BUFFER_CHARS);
+        this.delimiter = delimiter;
+    }
+
+    /** Writes one record: the given fields followed by the extra ones (null values are written empty). */
+    void write(List<String> fields, String... extra) throws IOException {
+        boolean firstField = true;
+        for (String value : fields) {
+            writeField(value, firstField);
+            firstField = false;
+        }
+        for (String value : extra) {
+            writeField(value, firstField);
+            firstField = false;
+        }
+        out.write('\n');
+    }
+
+    private void writeField(String value, boolean firstField) throws IOException {
+        if (!firstField) {
+            out.write(delimiter);
+        }
+        if (value == null) {
+            return;
+        }
+        if (!needsQuotes(value)) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                out.write('"');
+            }
+            out.write(c);
+        }
+        out.write('"');
+    }
+
+    private boolean needsQuotes(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == delimiter || c == '"' || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
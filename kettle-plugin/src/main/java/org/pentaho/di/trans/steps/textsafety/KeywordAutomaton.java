@@ -0,0 +1,158 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aho-Corasick automaton that finds any of a set of keywords in a text in a single
+ * pass, whatever the number of keywords. Matching ignores case.
+ * <p>
+ * States are numbered from 0 (the root); the transitions of each state are kept as a
+ * sorted character array searched by binary search, which stays compact for large
+ * CJK dictionaries. Immutable once built, so one instance serves any number of threads.
+ * </p>
+ */
+public class KeywordAutomaton {
+
+    private static final int NO_MATCH = -1;
+
+    /** Sorted transition characters of each state. */
+    private final char[][] labels;
+    /** Target state of each transition, parallel to {@link #labels}. */
+    private final int[][] targets;
+    /** State to continue from when no transition matches. */
+    private final int[] fail;
+    /** Keyword ending at each state (directly or through its fail chain), or {@link #NO_MATCH}. */
+    private final int[] match;
+
+    /**
+     * @param keywords keywords to find; empty entries are ignored. {@link #find} reports
+     *                 the index of the keyword in this list
+     */
+    public KeywordAutomaton(List<String> keywords) {
+        List<StringBuilder> labelList = new ArrayList<>();
+        List<List<Integer>> targetList = new ArrayList<>();
+        List<Integer> matchList = new ArrayList<>();
+        labelList.add(new StringBuilder());
+        targetList.add(new ArrayList<>());
+        matchList.add(NO_MATCH);
+        // (state << 16 | char) -> target state, for lookups while building
+        Map<Long, Integer> edges = new HashMap<>();
+
+        // Trie of the keywords
+        for (int k = 0; k < keywords.size(); k++) {
+            String keyword = keywords.get(k);
+            if (keyword == null || keyword.isEmpty()) {
+                continue;
+            }
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                char c = fold(keyword.charAt(i));
+                long edge = (long) state << 16 | c;
+                Integer existing = edges.get(edge);
+                if (existing != null) {
+                    state = existing;
+                } else {
+                    int next = labelList.size();
+                    labelList.add(new StringBuilder());
+                    targetList.add(new ArrayList<>());
+                    matchList.add(NO_MATCH);
+                    labelList.get(state).append(c);
+                    targetList.get(state).add(next);
+                    edges.put(edge, next);
+                    state = next;
+                }
+            }
+            if (matchList.get(state) == NO_MATCH) {
+                matchList.set(state, k);
+            }
+        }
+
+        int states = labelList.size();
+        labels = new char[states][];
+        targets = new int[states][];
+        match = new int[states];
+        for (int s = 0; s < states; s++) {
+            sortTransitions(s, labelList.get(s), targetList.get(s));
+            match[s] = matchList.get(s);
+        }
+
+        // Fail links, breadth first so a state's fail target is complete before it
+        fail = new int[states];
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        for (int target : targets[0]) {
+            queue[tail++] = target;
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            for (int t = 0; t < labels[state].length; t++) {
+                char c = labels[state][t];
+                int child = targets[state][t];
+                int f = fail[state];
+                int next;
+                while ((next = transition(f, c)) < 0 && f != 0) {
+                    f = fail[f];
+                }
+                fail[child] = next >= 0 ? next : 0;
+                if (match[child] == NO_MATCH) {
+                    match[child] = match[fail[child]];
+                }
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    /** True when the automaton holds no keyword. */
+    public boolean isEmpty() {
+        return labels[0].length == 0;
+    }
+
+    /**
+     * Returns the index of the first keyword found in the text, scanning left to
+     * right, or -1 when the text contains none of them.
+     */
+    public int find(CharSequence text) {
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = fold(text.charAt(i));
+            int next;
+            while ((next = transition(state, c)) < 0 && state != 0) {
+                state = fail[state];
+            }
+            state = next >= 0 ? next : 0;
+            if (match[state] != NO_MATCH) {
+                return match[state];
+            }
+        }
+        return NO_MATCH;
+    }
+
+    private int transition(int state, char c) {
+        int pos = Arrays.binarySearch(labels[state], c);
+        return pos >= 0 ? targets[state][pos] : -1;
+    }
+
+    private void sortTransitions(int state, StringBuilder chars, List<Integer> next) {
+        int n = chars.length();
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Character.compare(chars.charAt(a), chars.charAt(b)));
+        labels[state] = new char[n];
+        targets[state] = new int[n];
+        for (int i = 0; i < n; i++) {
+            labels[state][i] = chars.charAt(order[i]);
+            targets[state][i] = next.get(order[i]);
+        }
+    }
+
+    private static char fold(char c) {
+        return Character.toLowerCase(c);
+    }
+}
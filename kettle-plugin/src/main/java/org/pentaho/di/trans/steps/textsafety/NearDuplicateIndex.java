@@ -0,0 +1,247 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Index of the most recent texts a step copy has sent to the model, so that a text
+ * close enough to one of them reuses its verdict instead of being sent too.
+ * <p>
+ * Every text is keyed by a hash of its whole content, matching exact duplicates,
+ * and gets a MinHash signature of its character 3-grams: {@link #HASHES} minimum
+ * hash values whose rate of agreement between two texts estimates the Jaccard
+ * similarity of their 3-gram sets. The signature is cut into {@link #BANDS} bands
+ * indexed on their own (locality-sensitive hashing), so only texts sharing a whole
+ * band are compared; at a similarity of 0.8 a pair shares one with a probability
+ * above 99.9%. The index holds a fixed number of texts, about 1.5 KB each, and
+ * forgets the oldest first.
+ * </p>
+ * <p>
+ * Not thread-safe; used by the step's row thread only.
+ * </p>
+ */
+public class NearDuplicateIndex {
+
+    /** Number of MinHash values per text. */
+    public static final int HASHES = 64;
+
+    /** Number of LSH bands, each of {@code HASHES / BANDS} values. */
+    private static final int BANDS = 16;
+
+    private static final int ROWS = HASHES / BANDS;
+
+    private static final int SHINGLE = 3;
+
+    /** Multipliers (odd) and increments of the hash functions; fixed so runs behave the same. */
+    private static final long[] MULTIPLIERS = new long[HASHES];
+    private static final long[] INCREMENTS = new long[HASHES];
+
+    static {
+        Random random = new Random(0x9e3779b97f4a7c15L);
+        for (int i = 0; i < HASHES; i++) {
+            MULTIPLIERS[i] = random.nextLong() | 1L;
+            INCREMENTS[i] = random.nextLong();
+        }
+    }
+
+    /** Smallest number of agreeing hash values for a match. */
+    private final int minAgreeing;
+    private final Entry[] ring;
+    private int next;
+    private final Map<Long, Entry> exact = new HashMap<>();
+    /**
+     * First entry of each band bucket, keyed by a hash of the band's values and its
+     * number; the rest of a bucket is chained through {@link Entry#nextInBand}.
+     */
+    private final Map<Long, Entry> bands = new HashMap<>();
+
+    /**
+     * @param capacity   number of recent texts remembered
+     * @param similarity smallest estimated Jaccard similarity of two texts' 3-grams for
+     *                   a match, in (0, 1]; 1 matches texts with the same 3-grams only
+     */
+    public NearDuplicateIndex(int capacity, double similarity) {
+        if (capacity < 1 || !(similarity > 0.0 && similarity <= 1.0)) {
+            throw new IllegalArgumentException("Invalid near-duplicate index settings: capacity " + capacity
+                + ", similarity " + similarity);
+        }
+        this.minAgreeing = (int) Math.ceil(similarity * HASHES - 1e-9);
+        this.ring = new Entry[capacity];
+    }
+
+    /** Creates the (unregistered) entry of a text, to {@link #find} a match for it or {@link #add} it. */
+    public Entry entry(String text) {
+        return new Entry(contentHash(text), text.length() >= SHINGLE ? signature(text) : null);
+    }
+
+    /**
+     * Returns the most similar registered entry that matches the given one, or null.
+     * Entries whose verdict failed are skipped.
+     */
+    public Entry find(Entry probe) {
+        Entry same = exact.get(probe.hash);
+        if (same != null && !same.failed) {
+            return same;
+        }
+        if (probe.signature == null) {
+            return null;
+        }
+        Entry best = null;
+        int bestAgreeing = minAgreeing - 1;
+        for (int b = 0; b < BANDS; b++) {
+            for (Entry candidate = bands.get(probe.bandKeys[b]); candidate != null;
+                    candidate = candidate.nextInBand[b]) {
+                if (candidate.failed || candidate == best) {
+                    continue;
+                }
+                int agreeing = agreeing(candidate.signature, probe.signature);
+                if (agreeing > bestAgreeing) {
+                    best = candidate;
+                    bestAgreeing = agreeing;
+                }
+            }
+        }
+        return best;
+    }
+
+    /** Registers an entry, forgetting the oldest one when the index is full. */
+    public void add(Entry entry) {
+        Entry oldest = ring[next];
+        if (oldest != null) {
+            remove(oldest);
+        }
+        ring[next] = entry;
+        next = (next + 1) % ring.length;
+        exact.put(entry.hash, entry);
+        if (entry.signature != null) {
+            entry.nextInBand = new Entry[BANDS];
+            for (int b = 0; b < BANDS; b++) {
+                entry.nextInBand[b] = bands.put(entry.bandKeys[b], entry);
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        exact.remove(entry.hash, entry);
+        if (entry.signature != null) {
+            for (int b = 0; b < BANDS; b++) {
+                Long key = entry.bandKeys[b];
+                Entry head = bands.get(key);
+                if (head == entry) {
+                    if (entry.nextInBand[b] != null) {
+                        bands.put(key, entry.nextInBand[b]);
+                    } else {
+                        bands.remove(key);
+                    }
+                    continue;
+                }
+                // The oldest entry sits at the end of its chains
+                for (Entry e = head; e != null; e = e.nextInBand[b]) {
+                    if (e.nextInBand[b] == entry) {
+                        e.nextInBand[b] = entry.nextInBand[b];
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static long bandKey(int[] signature, int band) {
+        long h = band;
+        for (int i = band * ROWS; i < (band + 1) * ROWS; i++) {
+            h = h * 0x9e3779b97f4a7c15L + signature[i];
+        }
+        return fmix64(h);
+    }
+
+    private static int agreeing(int[] a, int[] b) {
+        int count = 0;
+        for (int i = 0; i < HASHES; i++) {
+            if (a[i] == b[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** MinHash signature of the text's character 3-grams (the high 32 bits of each hash). */
+    static int[] signature(String text) {
+        long[] mins = new long[HASHES];
+        Arrays.fill(mins, Long.MAX_VALUE);
+        for (int i = 0; i + SHINGLE <= text.length(); i++) {
+            long h = fmix64((long) text.charAt(i) << 32 | (long) text.charAt(i + 1) << 16 | text.charAt(i + 2));
+            for (int k = 0; k < HASHES; k++) {
+                long v = (h * MULTIPLIERS[k] + INCREMENTS[k]) >>> 1;
+                if (v < mins[k]) {
+                    mins[k] = v;
+                }
+            }
+        }
+        int[] signature = new int[HASHES];
+        for (int k = 0; k < HASHES; k++) {
+            signature[k] = (int) (mins[k] >>> 31);
+        }
+        return signature;
+    }
+
+    private static long contentHash(String text) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            h = (h ^ text.charAt(i)) * 0x100000001b3L;
+        }
+        return fmix64(h ^ text.length());
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /**
+     * A text in the index and the verdict its rows share, which stays null until the
+     * representative row's call completes.
+     */
+    public static final class Entry {
+        private final long hash;
+        /** MinHash values, or null for texts shorter than one 3-gram (exact matches only). */
+        private final int[] signature;
+        private final long[] bandKeys;
+        /** Next entry of the same bucket in each band, once registered. */
+        private Entry[] nextInBand;
+        private SafetyResult result;
+        private boolean failed;
+
+        private Entry(long hash, int[] signature) {
+            this.hash = hash;
+            this.signature = signature;
+            if (signature != null) {
+                bandKeys = new long[BANDS];
+                for (int b = 0; b < BANDS; b++) {
+                    bandKeys[b] = bandKey(signature, b);
+                }
+            } else {
+                bandKeys = null;
+            }
+        }
+
+        /** Verdict of the representative text, or null while its call is outstanding. */
+        public SafetyResult getResult() {
+            return result;
+        }
+
+        /**
+         * Records the representative's verdict. A failed call is handed to the rows
+         * already waiting on it, but later texts no longer match the entry.
+         */
+        public void resolve(SafetyResult result) {
+            this.result = result;
+            this.failed = RiskCategories.idOf(result.getRiskCategory()) < 0;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.LongBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+
+/**
+ * Runs the guard model inside the JVM with ONNX Runtime, in place of the HTTP service.
+ * <p>
+ * Reproduces {@code TextClassifier.classify_batch} in text_filter_service: the text
+ * is wrapped in the model's chat template, tokenized, and a single forward pass over
+ * the left-padded batch yields the logits of the first generated token. Their softmax
+ * gives each risk category the probability of its token, counted only when that token
+ * is among the {@code top_k} most likely ones, as the service does; the verdict then
+ * follows the service's rule.
+ * </p>
+ * <p>
+ * The model directory is written by {@code text_filter_service/export_onnx.py}:
+ * {@code model.onnx} (inputs {@code input_ids} and {@code attention_mask}, output the
+ * last position's {@code logits}), {@code vocab.txt}, {@code merges.txt} and
+ * {@code model.properties}. Engines are shared by every step copy in the JVM using the
+ * same directory; use {@link #acquire} in {@code init()} and {@link #release} in
+ * {@code dispose()}.
+ * </p>
+ * <p>
+ * ONNX Runtime ({@value #RUNTIME_JAR}, with its native libraries) is not bundled with
+ * the plugin, so this class is only loaded when embedded inference is switched on;
+ * callers must not touch it otherwise.
+ * </p>
+ */
+public class OnnxSafetyEngine implements SafetyBackend {
+
+    public static final String MODEL_FILE = "model.onnx";
+    public static final String VOCAB_FILE = "vocab.txt";
+    public static final String MERGES_FILE = "merges.txt";
+    public static final String PROPERTIES_FILE = "model.properties";
+
+    /** The ONNX Runtime jar to install next to the plugin for embedded inference. */
+    public static final String RUNTIME_JAR = "onnxruntime-1.18.0.jar";
+
+    private static final int DEFAULT_TOP_K = 20;
+
+    /** Most texts run through the model in one forward pass, as MAX_BATCH_SIZE in the service. */
+    private static final int MAX_FORWARD_BATCH = 32;
+
+    private static final Map<String, OnnxSafetyEngine> SHARED = new HashMap<>();
+
+    private final String key;
+    private int references;
+
+    private final OrtEnvironment environment;
+    private final OrtSession session;
+    private final BpeTokenizer tokenizer;
+
+    /** Template token ids before the text, up to and including the last special token. */
+    private final int[] prefixIds;
+    /** Template text right before the text, tokenized together with it. */
+    private final String prefixText;
+    /** Template text right after the text, tokenized together with it. */
+    private final String suffixText;
+    /** Template token ids after the text, from the first special token on. */
+    private final int[] suffixIds;
+    /** {@link #suffixText} tokenized on its own, kept whole when a long text is cut. */
+    private final int[] suffixTextIds;
+    private final long padId;
+    /** Longest prompt the model accepts; longer texts are cut at the end. */
+    private final int maxInputTokens;
+    private final int topK;
+    /** Token ids that decode to each category, by category id. */
+    private final int[][] categoryTokenIds;
+
+    private OnnxSafetyEngine(String key, File modelDir, int threads) throws IOException {
+        this.key = key;
+        Properties props = new Properties();
+        try (InputStream is = Files.newInputStream(new File(modelDir, PROPERTIES_FILE).toPath())) {
+            props.load(is);
+        }
+        prefixText = props.getProperty("prompt.prefix_text", "");
+        suffixText = props.getProperty("prompt.suffix_text", "");
+        categoryTokenIds = new int[RiskCategories.count()][];
+        try {
+            prefixIds = parseIds(props.getProperty("prompt.prefix_ids", ""));
+            suffixIds = parseIds(props.getProperty("prompt.suffix_ids", ""));
+            padId = Long.parseLong(props.getProperty("pad_id", "0").trim());
+            maxInputTokens = Integer.parseInt(props.getProperty("max_input_tokens", "32768").trim());
+            topK = Integer.parseInt(props.getProperty("top_k", String.valueOf(DEFAULT_TOP_K)).trim());
+            for (int id = 0; id < categoryTokenIds.length; id++) {
+                categoryTokenIds[id] = parseIds(props.getProperty("category." + RiskCategories.codeOf(id), ""));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid " + PROPERTIES_FILE + " in " + modelDir + ": " + e.getMessage(), e);
+        }
+        tokenizer = new BpeTokenizer(new File(modelDir, VOCAB_FILE), new File(modelDir, MERGES_FILE),
+            props.getProperty("pretokenizer.pattern"), "NFC".equalsIgnoreCase(props.getProperty("normalizer")));
+        List<Integer> suffixTokens = new ArrayList<>();
+        tokenizer.encode(suffixText, suffixTokens);
+        suffixTextIds = toArray(suffixTokens);
+
+        environment = OrtEnvironment.getEnvironment();
+        try (OrtSession.SessionOptions options = new OrtSession.SessionOptions()) {
+            options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
+            if (threads > 0) {
+                options.setIntraOpNumThreads(threads);
+            }
+            session = environment.createSession(new File(modelDir, MODEL_FILE).getPath(), options);
+        } catch (OrtException e) {
+            throw new IOException("Unable to load ONNX model from " + modelDir + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the shared engine for the model directory, loading it on first use.
+     *
+     * @param modelDir resolved path of the exported model directory
+     * @param threads  intra-op threads of the ONNX Runtime session; 0 for its default
+     * @throws IOException if the model or tokenizer files cannot be loaded
+     */
+    public static synchronized OnnxSafetyEngine acquire(String modelDir, int threads) throws IOException {
+        String key = new File(modelDir).getAbsolutePath() + "|" + threads;
+        OnnxSafetyEngine engine = SHARED.get(key);
+        if (engine == null) {
+            engine = new OnnxSafetyEngine(key, new File(modelDir), threads);
+            SHARED.put(key, engine);
+        }
+        engine.references++;
+        return engine;
+    }
+
+    /**
+     * Gives back an engine obtained from {@link #acquire}; the last release closes its session.
+     */
+    public static synchronized void release(OnnxSafetyEngine engine) {
+        if (engine == null || --engine.references > 0) {
+            return;
+        }
+        SHARED.remove(engine.key);
+        try {
+            engine.session.close();
+        } catch (OrtException e) {
+            // Nothing useful to do, the session is being dropped anyway
+        }
+    }
+
+    @Override
+    public SafetyResult check(String text, double threshold, boolean withDetails, boolean urgent,
+                              StepMetrics metrics) throws IOException {
+        return checkBatch(Collections.singletonList(text), threshold, withDetails, urgent, metrics)[0];
+    }
+
+    /**
+     * Runs the texts on the calling thread; calls are not queued here, so {@code urgent} has no effect.
+     */
+    @Override
+    public SafetyResult[] checkBatch(List<String> texts, double threshold, boolean withDetails, boolean urgent,
+                                     StepMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        try {
+            RiskEvaluator evaluator = new RiskEvaluator(threshold);
+            SafetyResult[] results = new SafetyResult[texts.size()];
+            for (int from = 0; from < texts.size(); from += MAX_FORWARD_BATCH) {
+                float[][] logits = run(texts.subList(from, Math.min(texts.size(), from + MAX_FORWARD_BATCH)));
+                for (int i = 0; i < logits.length; i++) {
+                    SafetyResult result = evaluator.evaluate(
+                        new SafetyResult(true, SafetyResult.SAFE_CATEGORY, 0.0, riskScores(logits[i])));
+                    results[from + i] = withDetails ? result
+                        : new SafetyResult(result.isSafe(), result.getRiskCategory(), result.getRiskScore());
+                }
+            }
+            if (metrics != null) {
+                metrics.recordCall(texts.size(), 0, 0, System.nanoTime() - start, -1);
+            }
+            return results;
+        } catch (IOException | RuntimeException e) {
+            if (metrics != null) {
+                metrics.recordFailedCall(texts.size(), System.nanoTime() - start);
+            }
+            throw e;
+        }
+    }
+
+    /** Tokenizes the texts, runs the left-padded batch and returns the last position's logits per text. */
+    private float[][] run(List<String> texts) throws IOException {
+        int batch = texts.size();
+        List<int[]> prompts = new ArrayList<>(batch);
+        int length = 0;
+        for (String text : texts) {
+            int[] prompt = prompt(text);
+            prompts.add(prompt);
+            length = Math.max(length, prompt.length);
+        }
+        long[] inputIds = new long[batch * length];
+        long[] attentionMask = new long[batch * length];
+        for (int b = 0; b < batch; b++) {
+            int[] prompt = prompts.get(b);
+            int offset = b * length;
+            int pad = length - prompt.length;
+            for (int i = 0; i < pad; i++) {
+                inputIds[offset + i] = padId;
+            }
+            for (int i = 0; i < prompt.length; i++) {
+                inputIds[offset + pad + i] = prompt[i];
+                attentionMask[offset + pad + i] = 1;
+            }
+        }
+        long[] shape = {batch, length};
+        try (OnnxTensor ids = OnnxTensor.createTensor(environment, LongBuffer.wrap(inputIds), shape);
+             OnnxTensor mask = OnnxTensor.createTensor(environment, LongBuffer.wrap(attentionMask), shape)) {
+            Map<String, OnnxTensor> inputs = new HashMap<>();
+            inputs.put("input_ids", ids);
+            inputs.put("attention_mask", mask);
+            try (OrtSession.Result result = session.run(inputs)) {
+                return (float[][]) result.get(0).getValue();
+            }
+        } catch (OrtException e) {
+            throw new IOException("ONNX inference failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Token ids of the chat prompt around the text, cut to {@link #maxInputTokens}. A
+     * text too long for it is cut at its end; the template after it is kept whole.
+     */
+    private int[] prompt(String text) {
+        List<Integer> body = new ArrayList<>(text.length() / 2 + 16);
+        tokenizer.encode(prefixText + text + suffixText, body);
+        int budget = Math.max(0, maxInputTokens - prefixIds.length - suffixIds.length);
+        if (body.size() > budget) {
+            // Rare: tokenize without the template text after it, which then follows the cut on its own
+            body.clear();
+            tokenizer.encode(prefixText + text, body);
+            int textLength = Math.max(0, Math.min(body.size(), budget - suffixTextIds.length));
+            body.subList(textLength, body.size()).clear();
+            for (int id : suffixTextIds) {
+                body.add(id);
+            }
+        }
+        int bodyLength = Math.min(body.size(), budget);
+        int[] prompt = new int[prefixIds.length + bodyLength + suffixIds.length];
+        System.arraycopy(prefixIds, 0, prompt, 0, prefixIds.length);
+        for (int i = 0; i < bodyLength; i++) {
+            prompt[prefixIds.length + i] = body.get(i);
+        }
+        System.arraycopy(suffixIds, 0, prompt, prefixIds.length + bodyLength, suffixIds.length);
+        return prompt;
+    }
+
+    /**
+     * Softmax of the logits, reduced to one probability per category: that of its most
+     * likely token, or 0 when none of its tokens is among the top {@link #topK}.
+     */
+    private double[] riskScores(float[] logits) {
+        float max = Float.NEGATIVE_INFINITY;
+        for (float l : logits) {
+            max = Math.max(max, l);
+        }
+        double sum = 0.0;
+        for (float l : logits) {
+            sum += Math.exp(l - max);
+        }
+        float cutoff = kthLargest(logits, topK);
+        double[] scores = new double[RiskCategories.count()];
+        for (int id = 0; id < scores.length; id++) {
+            for (int token : categoryTokenIds[id]) {
+                if (token < logits.length && logits[token] >= cutoff) {
+                    scores[id] = Math.max(scores[id], Math.exp(logits[token] - max) / sum);
+                }
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * The k-th largest value (the smallest when there are fewer): one pass that keeps the
+     * k largest seen so far in a primitive min-heap, so most of the vocabulary costs a
+     * single comparison with the heap's root.
+     */
+    private static float kthLargest(float[] values, int k) {
+        float[] heap = new float[k];
+        int size = 0;
+        for (float v : values) {
+            if (size < k) {
+                int i = size++;
+                while (i > 0 && v < heap[(i - 1) >>> 1]) {
+                    heap[i] = heap[(i - 1) >>> 1];
+                    i = (i - 1) >>> 1;
+                }
+                heap[i] = v;
+            } else if (v > heap[0]) {
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= k) {
+                        break;
+                    }
+                    if (child + 1 < k && heap[child + 1] < heap[child]) {
+                        child++;
+                    }
+                    if (heap[child] >= v) {
+                        break;
+                    }
+                    heap[i] = heap[child];
+                    i = child;
+                }
+                heap[i] = v;
+            }
+        }
+        return size == 0 ? Float.NEGATIVE_INFINITY : heap[0];
+    }
+
+    private static int[] parseIds(String list) {
+        List<Integer> ids = new ArrayList<>();
+        for (String part : list.split(",")) {
+            if (!part.trim().isEmpty()) {
+                ids.add(Integer.parseInt(part.trim()));
+            }
+        }
+        return toArray(ids);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
+}
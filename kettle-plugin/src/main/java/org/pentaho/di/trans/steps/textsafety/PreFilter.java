@@ -0,0 +1,195 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Local screening tier consulted before the model: decides rows that a dictionary
+ * settles on its own, so they never cost a model call.
+ * <p>
+ * The block list flags a text that contains any of its entries. Each line is a risk
+ * category code, whitespace, and a keyword or, prefixed with {@code re:}, a regular
+ * expression (e.g. {@code pp re:1[3-9]\d{9}} for mobile numbers). Keywords are matched
+ * together by one {@link KeywordAutomaton}, regexes by one combined pattern.
+ * </p>
+ * <p>
+ * The allow list marks a text safe when the whole text (trimmed) equals one of its
+ * keywords, ignoring case, or fully matches one of its {@code re:} regexes. Blocking
+ * wins over allowing. Empty lines and lines starting with {@code #} are ignored;
+ * regexes must not use numbered back references, since they are combined into one.
+ * </p>
+ * <p>
+ * Filters are compiled once and shared by every step copy in the JVM using the same
+ * files. Use {@link #acquire} in {@code init()} and {@link #release} in {@code dispose()}.
+ * </p>
+ */
+public class PreFilter {
+
+    /** Score reported for texts flagged by the block list. */
+    public static final double BLOCK_SCORE = 1.0;
+
+    private static final String REGEX_PREFIX = "re:";
+
+    private static final Map<String, PreFilter> SHARED = new HashMap<>();
+
+    private final String key;
+    private int references;
+
+    private final KeywordAutomaton blockKeywords;
+    /** Category of each block keyword, by keyword index. */
+    private final List<String> blockKeywordCategories = new ArrayList<>();
+    /** All block regexes as one alternation with a named group per regex; null when there are none. */
+    private final Pattern blockPattern;
+    private final List<String> blockPatternCategories = new ArrayList<>();
+
+    private final Set<String> allowTexts = new HashSet<>();
+    /** All allow regexes as one alternation; null when there are none. */
+    private final Pattern allowPattern;
+
+    private PreFilter(String key, String blockListFile, String allowListFile) throws IOException {
+        this.key = key;
+        List<String> keywords = new ArrayList<>();
+        StringBuilder blockRegex = new StringBuilder();
+        if (!blockListFile.isEmpty()) {
+            List<String> lines = readLines(blockListFile);
+            for (int i = 0; i < lines.size(); i++) {
+                String line = lines.get(i).trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+", 2);
+                if (parts.length < 2 || RiskCategories.idOf(parts[0]) < 0
+                        || SafetyResult.SAFE_CATEGORY.equals(parts[0])) {
+                    throw new IOException(blockListFile + ":" + (i + 1)
+                        + ": expected a risk category code, whitespace and a keyword or re:regex");
+                }
+                if (parts[1].startsWith(REGEX_PREFIX)) {
+                    String regex = parts[1].substring(REGEX_PREFIX.length());
+                    checkRegex(regex, blockListFile, i);
+                    if (blockRegex.length() > 0) {
+                        blockRegex.append('|');
+                    }
+                    blockRegex.append("(?<r").append(blockPatternCategories.size()).append(">").append(regex)
+                        .append(')');
+                    blockPatternCategories.add(RiskCategories.intern(parts[0]));
+                } else {
+                    keywords.add(parts[1]);
+                    blockKeywordCategories.add(RiskCategories.intern(parts[0]));
+                }
+            }
+        }
+        blockKeywords = new KeywordAutomaton(keywords);
+        blockPattern = blockRegex.length() > 0 ? Pattern.compile(blockRegex.toString()) : null;
+
+        StringBuilder allowRegex = new StringBuilder();
+        if (!allowListFile.isEmpty()) {
+            List<String> lines = readLines(allowListFile);
+            for (int i = 0; i < lines.size(); i++) {
+                String line = lines.get(i).trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (line.startsWith(REGEX_PREFIX)) {
+                    String regex = line.substring(REGEX_PREFIX.length());
+                    checkRegex(regex, allowListFile, i);
+                    if (allowRegex.length() > 0) {
+                        allowRegex.append('|');
+                    }
+                    allowRegex.append("(?:").append(regex).append(')');
+                } else {
+                    allowTexts.add(line.toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        allowPattern = allowRegex.length() > 0 ? Pattern.compile(allowRegex.toString()) : null;
+    }
+
+    /**
+     * Returns the shared filter compiled from the given files, compiling it on first use.
+     *
+     * @param blockListFile resolved path of the block list, or empty for none
+     * @param allowListFile resolved path of the allow list, or empty for none
+     * @throws IOException if a file cannot be read or holds an invalid entry
+     */
+    public static synchronized PreFilter acquire(String blockListFile, String allowListFile) throws IOException {
+        String key = blockListFile + "|" + allowListFile;
+        PreFilter filter = SHARED.get(key);
+        if (filter == null) {
+            filter = new PreFilter(key, blockListFile, allowListFile);
+            SHARED.put(key, filter);
+        }
+        filter.references++;
+        return filter;
+    }
+
+    /**
+     * Gives back a filter obtained from {@link #acquire}; the last release drops it,
+     * so the next run reads the files again.
+     */
+    public static synchronized void release(PreFilter filter) {
+        if (filter != null && --filter.references <= 0) {
+            SHARED.remove(filter.key);
+        }
+    }
+
+    /**
+     * Screens a non-empty text.
+     *
+     * @return an unsafe result with the block entry's category, a safe result for an
+     *         allowed text, or null when the text must go to the model
+     */
+    public SafetyResult screen(String text) {
+        int keyword = blockKeywords.find(text);
+        if (keyword >= 0) {
+            return new SafetyResult(false, blockKeywordCategories.get(keyword), BLOCK_SCORE);
+        }
+        if (blockPattern != null) {
+            Matcher m = blockPattern.matcher(text);
+            if (m.find()) {
+                for (int i = 0; i < blockPatternCategories.size(); i++) {
+                    if (m.start("r" + i) >= 0) {
+                        return new SafetyResult(false, blockPatternCategories.get(i), BLOCK_SCORE);
+                    }
+                }
+            }
+        }
+        String trimmed = text.trim();
+        if (allowTexts.contains(trimmed.toLowerCase(Locale.ROOT))
+                || allowPattern != null && allowPattern.matcher(trimmed).matches()) {
+            return SafetyResult.safe();
+        }
+        return null;
+    }
+
+    private static List<String> readLines(String path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(new File(path).toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static void checkRegex(String regex, String file, int line) throws IOException {
+        try {
+            Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            throw new IOException(file + ":" + (line + 1) + ": invalid regex: " + e.getDescription());
+        }
+    }
+}
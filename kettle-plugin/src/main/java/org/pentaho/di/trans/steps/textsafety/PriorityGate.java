@@ -0,0 +1,93 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+
+/**
+ * Admits calls to a shared {@link SafetyServiceClient}, at most as many at once as
+ * its pool has connections, urgent calls first.
+ * <p>
+ * Without it, calls wait for a pooled connection in arrival order, so an urgent row
+ * from a real-time transformation queues behind every batch a bulk transformation
+ * sharing the client has already started to send. Here a call that is not urgent
+ * only takes a free slot while no urgent call is waiting for one. Calls of the same
+ * kind go in roughly arrival order.
+ * </p>
+ */
+public class PriorityGate {
+
+    private final int slots;
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition urgentTurn = lock.newCondition();
+    private final Condition normalTurn = lock.newCondition();
+
+    // Guarded by lock
+    private int inUse;
+    private int urgentWaiting;
+
+    /**
+     * @param slots calls admitted at once, at least 1
+     */
+    public PriorityGate(int slots) {
+        this.slots = Math.max(1, slots);
+    }
+
+    /**
+     * Waits for a slot; every successful call must be followed by {@link #release()}.
+     *
+     * @param urgent    whether the call goes ahead of waiting calls that are not urgent
+     * @param timeoutMs longest wait for a slot
+     * @throws ConnectionPoolTimeoutException if no slot came free in time, like a pool lease
+     * @throws InterruptedIOException         if the thread was interrupted while waiting
+     */
+    public void acquire(boolean urgent, long timeoutMs) throws InterruptedIOException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        lock.lock();
+        try {
+            if (urgent) {
+                urgentWaiting++;
+            }
+            try {
+                while (inUse >= slots || (!urgent && urgentWaiting > 0)) {
+                    if (remaining <= 0) {
+                        throw new ConnectionPoolTimeoutException("Timeout waiting for a free connection slot");
+                    }
+                    remaining = (urgent ? urgentTurn : normalTurn).awaitNanos(remaining);
+                }
+                inUse++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a free connection slot");
+            } finally {
+                if (urgent) {
+                    urgentWaiting--;
+                }
+                if (inUse < slots) {
+                    // A release wakes a single waiter: pass any slot still free on to the next one
+                    signalNext();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Gives back the slot of a call admitted by {@link #acquire}. */
+    public void release() {
+        lock.lock();
+        try {
+            inUse--;
+            signalNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalNext() {
+        (urgentWaiting > 0 ? urgentTurn : normalTurn).signal();
+    }
+}
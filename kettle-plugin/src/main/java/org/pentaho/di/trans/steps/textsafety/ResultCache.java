@@ -0,0 +1,269 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded result cache placed in front of the safety service.
+ * <p>
+ * Entries are keyed by a 128-bit hash of the whitespace-normalized text plus the
+ * threshold, and hold the is_safe / risk_category / risk_score triple plus the
+ * per-category scores when the service returned them. The memory
+ * tier is an LRU split into independently locked segments so step copies and worker
+ * threads rarely contend. An optional memory-mapped file tier
+ * ({@link ResultCacheFile}) keeps results across transformation runs.
+ * </p>
+ * <p>
+ * Caches are shared per JVM like {@link SafetyServiceClient}: {@link #acquire} in
+ * {@code init()}, {@link #release} in {@code dispose()}. The first step copy to open
+ * a cache decides its capacity and TTL. A cache belongs to one backend and one text
+ * normalization: results of another model, or keyed on differently normalized text,
+ * are never served from it, and a cache file written under another backend or
+ * normalization is reset when opened.
+ * </p>
+ */
+public class ResultCache {
+
+    private static final int SEGMENTS = 16;
+
+    private static final Map<String, ResultCache> SHARED = new HashMap<>();
+
+    private final String sharedKey;
+    private final String filePath;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long ttlMs;
+    private final ResultCacheFile file;
+    private final AtomicLong evictions = new AtomicLong();
+    private int references;
+
+    private ResultCache(String sharedKey, String filePath, int capacity, long ttlMs, ResultCacheFile file) {
+        this.sharedKey = sharedKey;
+        this.filePath = filePath;
+        this.ttlMs = ttlMs;
+        this.file = file;
+        int perSegment = Math.max(1, capacity / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    /**
+     * Returns the shared cache for the given backend and normalization, creating it on first use.
+     *
+     * @param backendId     identifies the model the cached results came from: the resolved service URL,
+     *                      or the embedded model directory
+     * @param normalization identifies how texts are normalized before they are keyed, empty when they
+     *                      are keyed as they are
+     * @param capacity      maximum number of entries held in memory
+     * @param ttlMs         entry lifetime in milliseconds, 0 for no expiry
+     * @param filePath      memory-mapped file for the persistent tier, empty for memory only
+     * @throws IOException if the cache file cannot be opened, or is open for another backend or normalization
+     */
+    public static synchronized ResultCache acquire(String backendId, String normalization, int capacity,
+            long ttlMs, String filePath) throws IOException {
+        boolean persistent = filePath != null && !filePath.isEmpty();
+        String scope = backendId + "\n" + normalization;
+        String key = (persistent ? "file:" + filePath : "mem:") + "\n" + scope;
+        ResultCache cache = SHARED.get(key);
+        if (cache == null) {
+            ResultCacheFile file = null;
+            if (persistent) {
+                for (ResultCache open : SHARED.values()) {
+                    if (filePath.equals(open.filePath)) {
+                        throw new IOException("Cache file " + filePath
+                            + " is already in use for another backend or text normalization");
+                    }
+                }
+                Key scopeKey = key(scope, 0);
+                file = ResultCacheFile.open(filePath, capacity, scopeKey.hi, scopeKey.lo);
+            }
+            cache = new ResultCache(key, persistent ? filePath : null, capacity, ttlMs, file);
+            SHARED.put(key, cache);
+        }
+        cache.references++;
+        return cache;
+    }
+
+    /**
+     * Gives back a cache obtained from {@link #acquire}; the last release flushes and closes the file tier.
+     */
+    public static synchronized void release(ResultCache cache) throws IOException {
+        if (cache == null || --cache.references > 0) {
+            return;
+        }
+        SHARED.remove(cache.sharedKey);
+        if (cache.file != null) {
+            cache.file.close();
+        }
+    }
+
+    /**
+     * Computes the cache key for a text checked at the given threshold. Leading and
+     * trailing whitespace is ignored and inner whitespace runs count as one space.
+     */
+    public static Key key(String text, double threshold) {
+        long h1 = 0xcbf29ce484222325L;
+        long h2 = Double.doubleToLongBits(threshold);
+        int len = 0;
+        boolean pendingSpace = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = len > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                h1 = (h1 ^ ' ') * 0x100000001b3L;
+                h2 = Long.rotateLeft(h2 + ' ' * 0x9e3779b97f4a7c15L, 31) * 0xc2b2ae3d27d4eb4fL;
+                len++;
+                pendingSpace = false;
+            }
+            h1 = (h1 ^ c) * 0x100000001b3L;
+            h2 = Long.rotateLeft(h2 + c * 0x9e3779b97f4a7c15L, 31) * 0xc2b2ae3d27d4eb4fL;
+            len++;
+        }
+        return new Key(fmix64(h1 ^ len), fmix64(h2 ^ len));
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /**
+     * Looks a result up in memory, then in the file tier. Returns null on a miss;
+     * with {@code withDetails}, an entry cached without per-category scores is a miss too.
+     */
+    public SafetyResult get(Key key, boolean withDetails) {
+        long now = System.currentTimeMillis();
+        Segment segment = segmentFor(key);
+        CachedResult entry;
+        synchronized (segment) {
+            entry = segment.get(key);
+            if (entry != null && isExpired(entry.createdAt, now)) {
+                segment.remove(key);
+                entry = null;
+            }
+        }
+        if (entry != null && (!withDetails || entry.result.getRiskDetails() != null)) {
+            return entry.result;
+        }
+        if (file == null) {
+            return null;
+        }
+        long[] createdAt = new long[1];
+        SafetyResult result = file.get(key, createdAt, withDetails);
+        if (result == null || isExpired(createdAt[0], now)) {
+            return null;
+        }
+        synchronized (segment) {
+            segment.put(key, new CachedResult(result, createdAt[0]));
+        }
+        return result;
+    }
+
+    /**
+     * Stores a service result. Results whose category is not a known model code
+     * (for instance service-side errors) are never cached.
+     */
+    public void put(Key key, SafetyResult result) {
+        if (RiskCategories.idOf(result.getRiskCategory()) < 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, new CachedResult(result, now));
+        }
+        if (file != null) {
+            file.put(key, result, now);
+        }
+    }
+
+    /**
+     * Pages the persistent tier into memory ahead of the first lookups.
+     *
+     * @return bytes loaded, 0 when the cache is memory only
+     */
+    public long preload() {
+        return file != null ? file.preload() : 0;
+    }
+
+    /** Number of entries dropped from the memory tier to stay within capacity. */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private boolean isExpired(long createdAt, long now) {
+        return ttlMs > 0 && now - createdAt > ttlMs;
+    }
+
+    private Segment segmentFor(Key key) {
+        return segments[(int) (key.hi >>> 60) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * 128-bit cache key.
+     */
+    public static final class Key {
+        final long hi;
+        final long lo;
+
+        Key(long hi, long lo) {
+            this.hi = hi;
+            this.lo = lo;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hi == other.hi && lo == other.lo;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (lo ^ (lo >>> 32));
+        }
+    }
+
+    private static final class CachedResult {
+        final SafetyResult result;
+        final long createdAt;
+
+        CachedResult(SafetyResult result, long createdAt) {
+            this.result = result;
+            this.createdAt = createdAt;
+        }
+    }
+
+    /** One access-ordered LRU segment; callers synchronize on it. */
+    private final class Segment extends LinkedHashMap<Key, CachedResult> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, CachedResult> eldest) {
+            if (size() > capacity) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
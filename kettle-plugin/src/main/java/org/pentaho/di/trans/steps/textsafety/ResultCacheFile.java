@@ -0,0 +1,187 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Persistent tier of the {@link ResultCache}: a fixed-size open-addressing hash
+ * table in a memory-mapped file, so cached results survive transformation runs.
+ * <p>
+ * Each slot is 272 bytes: key hi (8), key lo (8), created-at millis (8), score (8),
+ * category id + 1 (1, 0 marks an empty slot), is_safe (1), has-details flag (1),
+ * padding (5), then one score per {@link RiskCategories} id (8 each).
+ * A lookup probes a short window of slots; when the window is full, an insert
+ * overwrites its oldest slot. The header records a hash of the backend and text
+ * normalization the results belong to. The file is not safe to share between JVMs.
+ * </p>
+ */
+class ResultCacheFile {
+
+    private static final int MAGIC = 0x54534343; // "TSCC"
+    private static final int VERSION = 3;
+    private static final int HEADER_BYTES = 64;
+    private static final int DETAILS_OFFSET = 40;
+    private static final int SLOT_BYTES = DETAILS_OFFSET + 8 * RiskCategories.count();
+    private static final int PROBE_WINDOW = 8;
+    /** Keeps the mapping below the 2 GB limit of a single MappedByteBuffer. */
+    private static final int MAX_SLOTS = 1 << 22;
+
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private final int mask;
+
+    private ResultCacheFile(RandomAccessFile raf, MappedByteBuffer buffer, int slots) {
+        this.raf = raf;
+        this.buffer = buffer;
+        this.mask = slots - 1;
+    }
+
+    /**
+     * Opens or creates the cache file. The table gets twice as many slots as the
+     * memory capacity (rounded up to a power of two); an existing file with a
+     * different layout, or written for a different scope, is reset.
+     *
+     * @param scopeHi high half of the hash of the backend and normalization
+     * @param scopeLo low half of that hash
+     */
+    static ResultCacheFile open(String path, int capacity, long scopeHi, long scopeLo) throws IOException {
+        int wanted = Math.max(PROBE_WINDOW, Math.min(MAX_SLOTS / 2, capacity) * 2);
+        int slots = Integer.highestOneBit(wanted - 1) << 1;
+        long size = HEADER_BYTES + (long) slots * SLOT_BYTES;
+
+        File file = new File(path);
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create cache directory " + parent);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            boolean reset = raf.length() != size;
+            raf.setLength(size);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (!reset) {
+                reset = buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != slots
+                    || buffer.getLong(16) != scopeHi || buffer.getLong(24) != scopeLo;
+            }
+            if (reset) {
+                for (long pos = HEADER_BYTES; pos < size; pos += SLOT_BYTES) {
+                    buffer.put((int) pos + 32, (byte) 0);
+                }
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, slots);
+                buffer.putLong(16, scopeHi);
+                buffer.putLong(24, scopeLo);
+            }
+            return new ResultCacheFile(raf, buffer, slots);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Looks up a key; on a hit returns the result and stores its creation time in {@code createdAt[0]}.
+     * With {@code withDetails}, an entry stored without per-category scores counts as a miss.
+     */
+    synchronized SafetyResult get(ResultCache.Key key, long[] createdAt, boolean withDetails) {
+        int slot = find(key);
+        if (slot < 0) {
+            return null;
+        }
+        int pos = offset(slot);
+        double[] details = null;
+        if (withDetails) {
+            if (buffer.get(pos + 34) == 0) {
+                return null;
+            }
+            details = new double[RiskCategories.count()];
+            for (int id = 0; id < details.length; id++) {
+                details[id] = buffer.getDouble(pos + DETAILS_OFFSET + id * 8);
+            }
+        }
+        createdAt[0] = buffer.getLong(pos + 16);
+        double score = buffer.getDouble(pos + 24);
+        String category = RiskCategories.codeOf((buffer.get(pos + 32) & 0xff) - 1);
+        boolean safe = buffer.get(pos + 33) != 0;
+        return new SafetyResult(safe, category, score, details);
+    }
+
+    synchronized void put(ResultCache.Key key, SafetyResult result, long createdAt) {
+        int slot = find(key);
+        if (slot < 0) {
+            slot = freeOrOldest(key);
+        }
+        int pos = offset(slot);
+        buffer.putLong(pos, key.hi);
+        buffer.putLong(pos + 8, key.lo);
+        buffer.putLong(pos + 16, createdAt);
+        buffer.putDouble(pos + 24, result.getRiskScore());
+        buffer.put(pos + 32, (byte) (RiskCategories.idOf(result.getRiskCategory()) + 1));
+        buffer.put(pos + 33, (byte) (result.isSafe() ? 1 : 0));
+        double[] details = result.getRiskDetails();
+        buffer.put(pos + 34, (byte) (details != null ? 1 : 0));
+        if (details != null) {
+            for (int id = 0; id < details.length; id++) {
+                buffer.putDouble(pos + DETAILS_OFFSET + id * 8, details[id]);
+            }
+        }
+    }
+
+    /**
+     * Reads the whole mapping into memory, so the first lookups of a run do not wait on
+     * page faults. Returns the size of the file in bytes.
+     */
+    synchronized long preload() {
+        buffer.load();
+        return buffer.capacity();
+    }
+
+    /** Writes dirty pages to disk and closes the file. */
+    synchronized void close() throws IOException {
+        buffer.force();
+        raf.close();
+    }
+
+    private int find(ResultCache.Key key) {
+        int start = (int) key.lo & mask;
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            int slot = (start + i) & mask;
+            int pos = offset(slot);
+            if (buffer.get(pos + 32) == 0) {
+                return -1;
+            }
+            if (buffer.getLong(pos) == key.hi && buffer.getLong(pos + 8) == key.lo) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int freeOrOldest(ResultCache.Key key) {
+        int start = (int) key.lo & mask;
+        int oldest = start;
+        long oldestTime = Long.MAX_VALUE;
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            int slot = (start + i) & mask;
+            int pos = offset(slot);
+            if (buffer.get(pos + 32) == 0) {
+                return slot;
+            }
+            long created = buffer.getLong(pos + 16);
+            if (created < oldestTime) {
+                oldestTime = created;
+                oldest = slot;
+            }
+        }
+        return oldest;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+}
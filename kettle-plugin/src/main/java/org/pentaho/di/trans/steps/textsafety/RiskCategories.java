@@ -0,0 +1,62 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The fixed set of risk category codes produced by the safety model
+ * (aligned with {@code VALID_CATEGORIES} in text_filter_service/text_classifier.py),
+ * each with a stable small integer id.
+ */
+public final class RiskCategories {
+
+    /** Category codes in id order. Never reorder: ids are persisted in cache files. */
+    private static final String[] CODES = {
+        "dw", "pc", "dc", "pi", "ec", "ac", "def", "ti", "cy",
+        "ph", "mh", "se", "sci", "pp", "cs", "acc", "mc", "ha",
+        "ps", "ter", "sd", "ext", "fin", "med", "law", "cm", "ma", "md", "sec",
+    };
+
+    /** Fail-closed category of the service: not a model category, but written to rows like one. */
+    public static final String MODEL_ERROR_CATEGORY = "model_error";
+
+    private static final Map<String, Integer> IDS = new HashMap<>();
+    private static final Map<String, String> INTERNED = new HashMap<>();
+
+    static {
+        for (int i = 0; i < CODES.length; i++) {
+            IDS.put(CODES[i], i);
+            INTERNED.put(CODES[i], CODES[i]);
+        }
+        INTERNED.put(SafetyResult.API_ERROR_CATEGORY, SafetyResult.API_ERROR_CATEGORY);
+        INTERNED.put(MODEL_ERROR_CATEGORY, MODEL_ERROR_CATEGORY);
+    }
+
+    private RiskCategories() {
+    }
+
+    /** Number of known categories. */
+    public static int count() {
+        return CODES.length;
+    }
+
+    /** Returns the id of a category code, or -1 if it is not one of the known codes. */
+    public static int idOf(String code) {
+        Integer id = code == null ? null : IDS.get(code);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the shared instance of a category code (a model code, api_error or model_error),
+     * or the code itself if it is none of these.
+     */
+    public static String intern(String code) {
+        String interned = code == null ? null : INTERNED.get(code);
+        return interned != null ? interned : code;
+    }
+
+    /** Returns the code for an id obtained from {@link #idOf}. */
+    public static String codeOf(int id) {
+        return CODES[id];
+    }
+}
@@ -0,0 +1,109 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.util.Arrays;
+
+/**
+ * Judges per-category scores locally, so thresholds can change without a new inference.
+ * <p>
+ * Without per-category thresholds this gives the same verdict as {@code evaluate_risk}
+ * in text_filter_service/app.py: the text is unsafe when its highest risk score is at
+ * least the safe ("sec") score and the global threshold. A category with its own
+ * threshold is judged on that threshold alone, whatever the "sec" score. When several
+ * categories trip, the highest-scoring one is reported.
+ * </p>
+ */
+public class RiskEvaluator {
+
+    private static final int SAFE_ID = RiskCategories.idOf(SafetyResult.SAFE_CATEGORY);
+
+    private final double threshold;
+    /** Threshold per category id; NaN where the global threshold applies. */
+    private final double[] categoryThresholds;
+
+    public RiskEvaluator(double threshold) {
+        this.threshold = threshold;
+        this.categoryThresholds = new double[RiskCategories.count()];
+        Arrays.fill(categoryThresholds, Double.NaN);
+    }
+
+    /** Gives a category its own threshold in place of the global one. */
+    public void setCategoryThreshold(String code, double categoryThreshold) {
+        int id = RiskCategories.idOf(code);
+        if (id < 0 || id == SAFE_ID) {
+            throw new IllegalArgumentException("Not a risk category: " + code);
+        }
+        categoryThresholds[id] = categoryThreshold;
+    }
+
+    /**
+     * Re-judges a service result from its per-category scores. Results without
+     * scores (empty text, service or model errors) are returned unchanged.
+     */
+    public SafetyResult evaluate(SafetyResult result) {
+        double[] details = result.getRiskDetails();
+        if (details == null || RiskCategories.idOf(result.getRiskCategory()) < 0) {
+            return result;
+        }
+        double safeScore = details[SAFE_ID];
+        double maxScore = 0.0;
+        int blocked = -1;
+        double blockedScore = 0.0;
+        for (int id = 0; id < details.length; id++) {
+            if (id == SAFE_ID) {
+                continue;
+            }
+            double score = details[id];
+            maxScore = Math.max(maxScore, score);
+            double own = categoryThresholds[id];
+            boolean tripped = Double.isNaN(own)
+                ? score >= safeScore && score >= threshold
+                : score >= own;
+            if (tripped && score > blockedScore) {
+                blocked = id;
+                blockedScore = score;
+            }
+        }
+        if (blocked >= 0) {
+            return new SafetyResult(false, RiskCategories.codeOf(blocked), blockedScore, details);
+        }
+        return new SafetyResult(true, SafetyResult.SAFE_CATEGORY, maxScore, details);
+    }
+
+    /**
+     * Combines the results of the windows of one chunked text into a single result.
+     * Each risk score is the maximum over the windows and the "sec" score the minimum,
+     * so the text is flagged whenever any of its windows would be; the verdict follows
+     * the service's rule under {@code threshold}. If any window failed, the first
+     * failure is returned, since part of the text went unchecked.
+     *
+     * @param windows results of the windows, from {@code from} inclusive to {@code to} exclusive
+     */
+    public static SafetyResult mergeWindows(SafetyResult[] windows, int from, int to, double threshold) {
+        double[] merged = new double[RiskCategories.count()];
+        merged[SAFE_ID] = Double.MAX_VALUE;
+        SafetyResult worst = null;
+        for (int i = from; i < to; i++) {
+            SafetyResult window = windows[i];
+            if (RiskCategories.idOf(window.getRiskCategory()) < 0) {
+                return window;
+            }
+            if (worst == null || !window.isSafe() && (worst.isSafe() || window.getRiskScore() > worst.getRiskScore())) {
+                worst = window;
+            }
+            double[] details = window.getRiskDetails();
+            if (details == null) {
+                merged = null;
+            } else if (merged != null) {
+                for (int id = 0; id < details.length; id++) {
+                    merged[id] = id == SAFE_ID ? Math.min(merged[id], details[id]) : Math.max(merged[id], details[id]);
+                }
+            }
+        }
+        if (merged == null) {
+            // Scores not reported, fall back to the service's verdict of the worst window
+            return worst;
+        }
+        return new RiskEvaluator(threshold).evaluate(
+            new SafetyResult(true, SafetyResult.SAFE_CATEGORY, 0.0, merged));
+    }
+}
@@ -0,0 +1,367 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntPredicate;
+
+/**
+ * Picks the texts that go to the model when a feed is sampled instead of checked in
+ * full, and estimates from the verdicts how often each category occurs over all
+ * texts, with a 95% confidence interval.
+ * <p>
+ * Only texts that would reach the model are sampled. Texts decided by a cheaper
+ * tier (pre-filter, journal, cache, near-duplicate) keep their verdict and are
+ * counted exactly; empty texts are not counted at all. Of the rest, a fixed rate
+ * picks each text on its own; a reservoir keeps a uniform sample of a fixed size of
+ * the texts seen so far (algorithm R): text i enters it with probability size / i, so the texts sent
+ * grow with the logarithm of the feed, about size * (1 + ln(texts / size)). Texts
+ * pushed out of the reservoir again were checked all the same; their verdicts are
+ * output but left out of the estimate. Stratified sampling keeps one reservoir per
+ * value of a field, so small strata are covered as well as large ones.
+ * </p>
+ * <p>
+ * An estimate adds the exact counts of the cheap tiers to, per stratum, the sample's
+ * share of a category scaled to the texts that reached the model. The interval is
+ * the Wilson score interval on the Kish effective sample size with the finite
+ * population correction: it stays meaningful for a category never seen in the
+ * sample and closes when every text was checked. Texts whose call failed drop out
+ * of the sample. Strata with no sample yet widen the interval to all or nothing.
+ * </p>
+ * <p>
+ * Used by the step thread only.
+ * </p>
+ */
+public class RiskSampler {
+
+    /** Field values past this many share one stratum, so a field with many values cannot exhaust memory. */
+    static final int MAX_STRATA = 1_000;
+
+    /** Stratum of the field values past {@link #MAX_STRATA}. */
+    static final String OTHER_STRATUM = "(other)";
+
+    /** Label of the estimate of all risk categories together. */
+    public static final String UNSAFE = "unsafe";
+
+    /** Strata listed separately in the summary, largest first. */
+    private static final int SUMMARY_STRATA = 20;
+
+    private static final double Z = 1.959964;
+    private static final byte MISSING = -1;
+    private static final int SAFE_ID = RiskCategories.idOf(SafetyResult.SAFE_CATEGORY);
+
+    private final double rate;
+    private final int reservoirSize;
+    private final Map<String, Stratum> strata = new LinkedHashMap<>();
+    private long picked;
+
+    private RiskSampler(double rate, int reservoirSize) {
+        this.rate = rate;
+        this.reservoirSize = reservoirSize;
+    }
+
+    /** Picks each text with the given probability. */
+    public static RiskSampler fixedRate(double rate) {
+        return new RiskSampler(rate, 0);
+    }
+
+    /** Keeps a uniform sample of {@code size} texts per stratum. */
+    public static RiskSampler reservoir(int size) {
+        return new RiskSampler(0, Math.max(1, size));
+    }
+
+    /**
+     * Returns the stratum of a field value, created on first use; pass the same value
+     * for every text when the feed is not stratified.
+     */
+    public Stratum stratum(String value) {
+        String name = String.valueOf(value);
+        Stratum stratum = strata.get(name);
+        if (stratum == null) {
+            if (strata.size() >= MAX_STRATA) {
+                name = OTHER_STRATUM;
+                stratum = strata.get(name);
+            }
+            if (stratum == null) {
+                stratum = new Stratum(name);
+                strata.put(name, stratum);
+            }
+        }
+        return stratum;
+    }
+
+    /** Texts sent to the model so far. */
+    public long getPicked() {
+        return picked;
+    }
+
+    /**
+     * Estimates over all texts so far: all risk categories together ({@link #UNSAFE})
+     * first, then every risk category seen, in id order.
+     */
+    public List<Estimate> estimate() {
+        return estimate(strata.values());
+    }
+
+    private List<Estimate> estimate(Collection<Stratum> of) {
+        List<Estimate> estimates = new ArrayList<>();
+        Estimate unsafe = estimate(UNSAFE, of, id -> id != SAFE_ID);
+        if (unsafe == null) {
+            return estimates;
+        }
+        estimates.add(unsafe);
+        for (int category = 0; category < RiskCategories.count(); category++) {
+            if (category == SAFE_ID) {
+                continue;
+            }
+            final int id = category;
+            Estimate estimate = estimate(RiskCategories.codeOf(id), of, i -> i == id);
+            if (estimate.getRate() > 0) {
+                estimates.add(estimate);
+            }
+        }
+        return estimates;
+    }
+
+    /** Estimate of the share of texts whose category matches, or null before the first text. */
+    private Estimate estimate(String label, Collection<Stratum> of, IntPredicate match) {
+        long texts = 0;
+        long known = 0;
+        // Strata with a sample: texts that reached the model, estimated matches, Kish denominator
+        double sampledTexts = 0;
+        double sampledMatches = 0;
+        double kish = 0;
+        long unsampledTexts = 0;
+        for (Stratum stratum : of) {
+            long[] sample = stratum.sampleCounts();
+            long n = 0;
+            long y = 0;
+            for (int id = 0; id < sample.length; id++) {
+                n += sample[id];
+                texts += stratum.known[id];
+                if (match.test(id)) {
+                    y += sample[id];
+                    known += stratum.known[id];
+                }
+            }
+            long m = stratum.modelTexts;
+            texts += m;
+            if (m == 0) {
+                continue;
+            }
+            if (n == 0) {
+                unsampledTexts += m;
+                continue;
+            }
+            double fpc = m > 1 ? Math.max(0, (double) (m - n) / (m - 1)) : 0;
+            sampledTexts += m;
+            sampledMatches += (double) m * y / n;
+            kish += (double) m * m * fpc / n;
+        }
+        if (texts == 0) {
+            return null;
+        }
+        double share = sampledTexts > 0 ? sampledMatches / sampledTexts : 0;
+        double lower = share;
+        double upper = share;
+        if (kish > 0) {
+            // Wilson score interval on the effective sample size
+            double n = sampledTexts * sampledTexts / kish;
+            double z2n = Z * Z / n;
+            double center = (share + z2n / 2) / (1 + z2n);
+            double half = Z / (1 + z2n) * Math.sqrt(share * (1 - share) / n + z2n / (4 * n));
+            lower = Math.max(0, center - half);
+            upper = Math.min(1, center + half);
+        }
+        return new Estimate(label,
+            (known + sampledMatches + unsampledTexts * share) / texts,
+            (known + sampledTexts * lower) / texts,
+            (known + sampledTexts * upper + unsampledTexts) / texts);
+    }
+
+    /**
+     * Multi-line summary logged when the step ends: text counts, then one line per
+     * estimate and, when stratified, the unsafe share of the largest strata.
+     */
+    public String summary() {
+        long texts = 0;
+        long modelTexts = 0;
+        for (Stratum stratum : strata.values()) {
+            modelTexts += stratum.modelTexts;
+            texts += stratum.modelTexts;
+            for (long count : stratum.known) {
+                texts += count;
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT,
+            "%d texts: %d decided before the model, %d reached it, %d of them checked (%.2f%%), %d not checked%n",
+            texts, texts - modelTexts, modelTexts, picked, modelTexts > 0 ? 100.0 * picked / modelTexts : 0.0,
+            modelTexts - picked));
+        for (Estimate estimate : estimate()) {
+            sb.append(estimate).append(String.format("%n"));
+        }
+        if (strata.size() > 1) {
+            List<Stratum> largest = new ArrayList<>(strata.values());
+            largest.sort((a, b) -> Long.compare(b.texts(), a.texts()));
+            for (Stratum stratum : largest.subList(0, Math.min(SUMMARY_STRATA, largest.size()))) {
+                Estimate unsafe = estimate(UNSAFE, Collections.singletonList(stratum), id -> id != SAFE_ID);
+                sb.append(String.format(Locale.ROOT, "Stratum %s (%d texts): %s%n", stratum.name, stratum.texts(),
+                    unsafe));
+            }
+            if (largest.size() > SUMMARY_STRATA) {
+                sb.append(largest.size() - SUMMARY_STRATA).append(" smaller strata not listed").append(
+                    String.format("%n"));
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    /** Texts of one field value: exact counts of the cheap tiers and the sample of the rest. */
+    public final class Stratum {
+        private final String name;
+        /** Texts decided before the model, per category id. */
+        private final long[] known = new long[RiskCategories.count()];
+        /** Texts that reached the model, checked or not. */
+        private long modelTexts;
+        /** Fixed rate: verdicts of the checked texts per category id. */
+        private final long[] sampled;
+        /** Reservoir: the text holding each slot and its category id, {@link #MISSING} until known. */
+        private long[] owners = new long[0];
+        private byte[] outcomes = new byte[0];
+
+        private Stratum(String name) {
+            this.name = name;
+            this.sampled = reservoirSize == 0 ? new long[RiskCategories.count()] : null;
+        }
+
+        /**
+         * Counts a text that would go to the model and decides whether it does.
+         *
+         * @return the text's place in the sample, to {@link Pick#record} its verdict;
+         * null when it is not checked
+         */
+        public Pick pick() {
+            long ordinal = ++modelTexts;
+            int slot = -1;
+            if (reservoirSize == 0) {
+                if (ThreadLocalRandom.current().nextDouble() >= rate) {
+                    return null;
+                }
+            } else if (ordinal <= reservoirSize) {
+                slot = (int) ordinal - 1;
+                if (slot == owners.length) {
+                    int capacity = (int) Math.min(reservoirSize, Math.max(16, owners.length * 2L));
+                    owners = Arrays.copyOf(owners, capacity);
+                    outcomes = Arrays.copyOf(outcomes, capacity);
+                }
+            } else {
+                long j = ThreadLocalRandom.current().nextLong(ordinal);
+                if (j >= reservoirSize) {
+                    return null;
+                }
+                slot = (int) j;
+            }
+            if (slot >= 0) {
+                owners[slot] = ordinal;
+                outcomes[slot] = MISSING;
+            }
+            picked++;
+            return new Pick(this, slot, ordinal);
+        }
+
+        /** Counts the verdict of a text decided before the model; failures are left out. */
+        public void recordKnown(SafetyResult result) {
+            int id = RiskCategories.idOf(result.getRiskCategory());
+            if (id >= 0) {
+                known[id]++;
+            }
+        }
+
+        private long[] sampleCounts() {
+            if (sampled != null) {
+                return sampled;
+            }
+            long[] counts = new long[RiskCategories.count()];
+            int filled = (int) Math.min(modelTexts, reservoirSize);
+            for (int slot = 0; slot < filled; slot++) {
+                if (outcomes[slot] != MISSING) {
+                    counts[outcomes[slot]]++;
+                }
+            }
+            return counts;
+        }
+
+        private long texts() {
+            long texts = modelTexts;
+            for (long count : known) {
+                texts += count;
+            }
+            return texts;
+        }
+    }
+
+    /** A text sent to the model, waiting for its verdict. */
+    public static final class Pick {
+        private final Stratum stratum;
+        private final int slot;
+        private final long ordinal;
+
+        private Pick(Stratum stratum, int slot, long ordinal) {
+            this.stratum = stratum;
+            this.slot = slot;
+            this.ordinal = ordinal;
+        }
+
+        /**
+         * Adds the text's verdict to the sample, unless the call failed or the text has
+         * since been pushed out of the reservoir.
+         */
+        public void record(SafetyResult result) {
+            int id = RiskCategories.idOf(result.getRiskCategory());
+            if (slot < 0) {
+                if (id >= 0) {
+                    stratum.sampled[id]++;
+                }
+            } else if (stratum.owners[slot] == ordinal) {
+                stratum.outcomes[slot] = (byte) id;
+            }
+        }
+    }
+
+    /** Estimated share of texts in a category, with its 95% confidence interval. */
+    public static final class Estimate {
+        private final String category;
+        private final double rate;
+        private final double lower;
+        private final double upper;
+
+        Estimate(String category, double rate, double lower, double upper) {
+            this.category = category;
+            this.rate = rate;
+            this.lower = Math.min(lower, rate);
+            this.upper = Math.max(upper, rate);
+        }
+
+        /** A risk category code, or {@link #UNSAFE}. */
+        public String getCategory() { return category; }
+
+        public double getRate() { return rate; }
+
+        public double getLower() { return lower; }
+
+        public double getUpper() { return upper; }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s %.4f%% (95%% CI %.4f%% - %.4f%%)", category, 100 * rate,
+                100 * lower, 100 * upper);
+        }
+    }
+}
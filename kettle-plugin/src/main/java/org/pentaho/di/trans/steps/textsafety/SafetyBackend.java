@@ -0,0 +1,36 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Something that classifies texts: the HTTP safety service ({@link SafetyServiceClient})
+ * or the model run inside the JVM ({@link OnnxSafetyEngine}).
+ * <p>
+ * Implementations are shared by step copies and called from several threads at once.
+ * </p>
+ */
+public interface SafetyBackend {
+
+    /**
+     * Checks one text.
+     *
+     * @param withDetails also return the per-category {@code risk_details} scores
+     * @param urgent      goes ahead of waiting calls that are not urgent, where the backend queues calls
+     * @param metrics     receives the call's latency and traffic, or null
+     * @throws IOException if the text could not be classified
+     */
+    SafetyResult check(String text, double threshold, boolean withDetails, boolean urgent, StepMetrics metrics)
+        throws IOException;
+
+    /**
+     * Checks several texts in one call.
+     *
+     * @param urgent  goes ahead of waiting calls that are not urgent, where the backend queues calls
+     * @param metrics receives the call's latency and traffic, or null
+     * @return one result per text, in the same order
+     * @throws IOException if the texts could not be classified
+     */
+    SafetyResult[] checkBatch(List<String> texts, double threshold, boolean withDetails, boolean urgent,
+                              StepMetrics metrics) throws IOException;
+}
@@ -0,0 +1,247 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Codec for the service's compact binary wire format ({@value #MEDIA_TYPE}), used
+ * instead of JSON when the service offers it.
+ * <p>
+ * Frames are big-endian. A request is a version byte, a flags byte (bit 0: send the
+ * per-category scores), the threshold as a double, the text count and each text as
+ * a length-prefixed UTF-8 string. A response is a version byte, the result count and
+ * per result a flags byte (bit 0: safe, bit 1: scores follow), a category byte
+ * (0 none, 1 + {@link RiskCategories} id, {@code 0xFE} model_error, or {@code 0xFF}
+ * followed by a length-prefixed code) and the score as a float, then, if flagged, a
+ * count byte and that many pairs of category byte and float score. The layout is
+ * documented with the service in {@code text_filter_service/wire_format.py}.
+ * </p>
+ * <p>
+ * Scores are float32 on the wire: the verdict itself is decided by the service at
+ * full precision, only the reported scores are rounded (to 7 decimals).
+ * </p>
+ */
+class SafetyBinaryCodec implements SafetyWireCodec {
+
+    static final String MEDIA_TYPE = "application/x-text-safety";
+
+    private static final int VERSION = 1;
+    private static final int FLAG_WITH_DETAILS = 0x01;
+    private static final int FLAG_SAFE = 0x01;
+    private static final int FLAG_HAS_DETAILS = 0x02;
+    private static final int MODEL_ERROR_ID = 0xFE;
+    private static final int OTHER_CATEGORY_ID = 0xFF;
+    private static final double SCORE_SCALE = 1e7;
+
+    private byte[] out = new byte[4096];
+    private int outLen;
+
+    private byte[] in = new byte[4096];
+    private int inLen;
+    private int pos;
+
+    @Override
+    public void encodeSingle(String text, double threshold, boolean withDetails) {
+        writeHeader(1, threshold, withDetails);
+        writeString(text);
+    }
+
+    @Override
+    public void encodeBatch(List<String> texts, double threshold, boolean withDetails) {
+        writeHeader(texts.size(), threshold, withDetails);
+        for (int i = 0; i < texts.size(); i++) {
+            writeString(texts.get(i));
+        }
+    }
+
+    @Override
+    public byte[] buffer() {
+        return out;
+    }
+
+    @Override
+    public int length() {
+        return outLen;
+    }
+
+    @Override
+    public int received() {
+        return inLen;
+    }
+
+    @Override
+    public SafetyResult decodeSingle(InputStream is, boolean withDetails) throws IOException {
+        return decodeBatch(is, 1, withDetails)[0];
+    }
+
+    @Override
+    public SafetyResult[] decodeBatch(InputStream is, int expected, boolean withDetails) throws IOException {
+        readFully(is);
+        pos = 0;
+        int version = readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary response version " + version);
+        }
+        int count = readInt();
+        if (count != expected) {
+            throw new IOException("Batch API returned " + count + " results for " + expected + " texts");
+        }
+        SafetyResult[] results = new SafetyResult[count];
+        for (int i = 0; i < count; i++) {
+            results[i] = readResult(withDetails);
+        }
+        if (pos != inLen) {
+            throw new IOException("Trailing data after the binary response");
+        }
+        return results;
+    }
+
+    // ------------------------------------------------------------------
+    // Encoding
+    // ------------------------------------------------------------------
+
+    private void writeHeader(int texts, double threshold, boolean withDetails) {
+        outLen = 0;
+        ensureOut(14);
+        out[outLen++] = VERSION;
+        out[outLen++] = (byte) (withDetails ? FLAG_WITH_DETAILS : 0);
+        writeLong(Double.doubleToLongBits(threshold));
+        writeInt(texts);
+    }
+
+    /** Writes a string as its UTF-8 length and bytes, encoding in place behind a reserved length. */
+    private void writeString(String s) {
+        ensureOut(4 + s.length() * 3);
+        byte[] b = out;
+        int start = outLen + 4;
+        int n = start;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                b[n++] = (byte) c;
+            } else if (c < 0x800) {
+                b[n++] = (byte) (0xc0 | (c >> 6));
+                b[n++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                // 4 bytes for 2 chars, within the 3 bytes per char reserved
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b[n++] = (byte) (0xf0 | (cp >> 18));
+                b[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                b[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                b[n++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate: same replacement String.getBytes(UTF_8) uses
+                b[n++] = '?';
+            } else {
+                b[n++] = (byte) (0xe0 | (c >> 12));
+                b[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                b[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        writeInt(n - start);
+        outLen = n;
+    }
+
+    private void writeInt(int v) {
+        out[outLen++] = (byte) (v >>> 24);
+        out[outLen++] = (byte) (v >>> 16);
+        out[outLen++] = (byte) (v >>> 8);
+        out[outLen++] = (byte) v;
+    }
+
+    private void writeLong(long v) {
+        writeInt((int) (v >>> 32));
+        writeInt((int) v);
+    }
+
+    private void ensureOut(int extra) {
+        if (outLen + extra > out.length) {
+            out = Arrays.copyOf(out, Math.max(out.length * 2, outLen + extra));
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Decoding
+    // ------------------------------------------------------------------
+
+    private void readFully(InputStream is) throws IOException {
+        inLen = 0;
+        int n;
+        while ((n = is.read(in, inLen, in.length - inLen)) != -1) {
+            inLen += n;
+            if (inLen == in.length) {
+                in = Arrays.copyOf(in, in.length * 2);
+            }
+        }
+    }
+
+    private SafetyResult readResult(boolean withDetails) throws IOException {
+        int flags = readUnsignedByte();
+        String category = readCategory();
+        double score = readScore();
+        double[] details = withDetails ? new double[RiskCategories.count()] : null;
+        if ((flags & FLAG_HAS_DETAILS) != 0) {
+            int count = readUnsignedByte();
+            for (int i = 0; i < count; i++) {
+                int id = readUnsignedByte() - 1;
+                double value = readScore();
+                if (details != null && id >= 0 && id < details.length) {
+                    details[id] = value;
+                }
+            }
+        }
+        return new SafetyResult((flags & FLAG_SAFE) != 0, category, score, details);
+    }
+
+    /** Reads a category byte (and the code that follows an unlisted one), as the constant strings. */
+    private String readCategory() throws IOException {
+        int id = readUnsignedByte();
+        if (id == 0) {
+            return SafetyResult.SAFE_CATEGORY;
+        }
+        if (id == MODEL_ERROR_ID) {
+            return RiskCategories.MODEL_ERROR_CATEGORY;
+        }
+        if (id == OTHER_CATEGORY_ID) {
+            int length = readUnsignedByte();
+            require(length);
+            String code = new String(in, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return RiskCategories.intern(code);
+        }
+        if (id - 1 >= RiskCategories.count()) {
+            throw new IOException("Unknown category id " + id + " in binary response");
+        }
+        return RiskCategories.codeOf(id - 1);
+    }
+
+    private int readUnsignedByte() throws IOException {
+        require(1);
+        return in[pos++] & 0xff;
+    }
+
+    private int readInt() throws IOException {
+        require(4);
+        int v = (in[pos] & 0xff) << 24 | (in[pos + 1] & 0xff) << 16 | (in[pos + 2] & 0xff) << 8 | (in[pos + 3] & 0xff);
+        pos += 4;
+        return v;
+    }
+
+    /**
+     * Reads a float score, rounded to 7 decimals: within float precision for scores
+     * up to 1, and it turns 0.0123f back into 0.0123 rather than 0.012299999594688416.
+     */
+    private double readScore() throws IOException {
+        return Math.round(Float.intBitsToFloat(readInt()) * SCORE_SCALE) / SCORE_SCALE;
+    }
+
+    private void require(int bytes) throws IOException {
+        if (pos + bytes > inLen) {
+            throw new IOException("Binary response ends after " + inLen + " bytes");
+        }
+    }
+}
@@ -0,0 +1,599 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streaming JSON codec for the safety service's request and response bodies.
+ * <p>
+ * Requests are written straight into a reusable byte buffer as UTF-8 with JSON
+ * string escaping; responses are read into a second reusable buffer and scanned
+ * in place. Field names and category codes are matched as bytes, and category
+ * codes resolve to the constant strings in {@link RiskCategories}, so decoding
+ * allocates only the {@link SafetyResult} (and its details array when requested).
+ * </p>
+ * <p>
+ * An instance holds mutable buffers and must only be used by one thread at a time;
+ * {@link SafetyServiceClient} keeps one per thread.
+ * </p>
+ */
+class SafetyJsonCodec implements SafetyWireCodec {
+
+    private static final byte[] KEY_IS_SAFE = ascii("is_safe");
+    private static final byte[] KEY_RISK_CATEGORY = ascii("risk_category");
+    private static final byte[] KEY_RISK_SCORE = ascii("risk_score");
+    private static final byte[] KEY_RISK_DETAILS = ascii("risk_details");
+    private static final byte[] KEY_RESULTS = ascii("results");
+
+    private static final byte[][] CATEGORY_BYTES = new byte[RiskCategories.count()][];
+    private static final double[] POW10 = new double[23];
+    private static final byte[] HEX = ascii("0123456789abcdef");
+
+    static {
+        for (int i = 0; i < CATEGORY_BYTES.length; i++) {
+            CATEGORY_BYTES[i] = ascii(RiskCategories.codeOf(i));
+        }
+        POW10[0] = 1.0;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10.0;
+        }
+    }
+
+    private byte[] out = new byte[4096];
+    private int outLen;
+
+    private byte[] in = new byte[4096];
+    private int inLen;
+    private int pos;
+
+    private double cachedThreshold = Double.NaN;
+    private byte[] cachedThresholdBytes;
+
+    /**
+     * Encodes {@code {"text": ..., "threshold": ...}} into the output buffer. The JSON
+     * service always sends the per-category scores, so {@code withDetails} is not used.
+     */
+    @Override
+    public void encodeSingle(String text, double threshold, boolean withDetails) {
+        outLen = 0;
+        writeAscii("{\"text\":");
+        writeString(text);
+        writeAscii(",\"threshold\":");
+        writeThreshold(threshold);
+        writeByte('}');
+    }
+
+    /** Encodes {@code {"texts": [...], "threshold": ...}} into the output buffer. */
+    @Override
+    public void encodeBatch(List<String> texts, double threshold, boolean withDetails) {
+        outLen = 0;
+        writeAscii("{\"texts\":[");
+        for (int i = 0; i < texts.size(); i++) {
+            if (i > 0) {
+                writeByte(',');
+            }
+            writeString(texts.get(i));
+        }
+        writeAscii("],\"threshold\":");
+        writeThreshold(threshold);
+        writeByte('}');
+    }
+
+    @Override
+    public byte[] buffer() {
+        return out;
+    }
+
+    @Override
+    public int length() {
+        return outLen;
+    }
+
+    @Override
+    public int received() {
+        return inLen;
+    }
+
+    /**
+     * Decodes a single-text response.
+     *
+     * @param withDetails also decode {@code risk_details} into the result
+     */
+    @Override
+    public SafetyResult decodeSingle(InputStream is, boolean withDetails) throws IOException {
+        readFully(is);
+        pos = 0;
+        SafetyResult result = readResult(withDetails);
+        skipWhitespace();
+        if (pos != inLen) {
+            throw error("Trailing data after response object");
+        }
+        return result;
+    }
+
+    /**
+     * Decodes a batch response, {@code {"results": [...]}}, into exactly {@code expected} results.
+     */
+    @Override
+    public SafetyResult[] decodeBatch(InputStream is, int expected, boolean withDetails) throws IOException {
+        readFully(is);
+        pos = 0;
+        SafetyResult[] results = null;
+        expect('{');
+        if (!tryConsume('}')) {
+            do {
+                int keyStart = readKeyStart();
+                int keyEnd = stringEnd(keyStart);
+                expect(':');
+                if (regionEquals(keyStart, keyEnd, KEY_RESULTS)) {
+                    results = readResultArray(expected, withDetails);
+                } else {
+                    skipValue();
+                }
+            } while (tryConsume(','));
+            expect('}');
+        }
+        if (results == null) {
+            throw error("Batch response has no results array");
+        }
+        return results;
+    }
+
+    // ------------------------------------------------------------------
+    // Encoding
+    // ------------------------------------------------------------------
+
+    private void writeThreshold(double threshold) {
+        // The threshold is the same for every request of a step; format it once
+        if (cachedThresholdBytes == null || Double.compare(threshold, cachedThreshold) != 0) {
+            cachedThreshold = threshold;
+            cachedThresholdBytes = ascii(Double.toString(threshold));
+        }
+        ensureOut(cachedThresholdBytes.length);
+        System.arraycopy(cachedThresholdBytes, 0, out, outLen, cachedThresholdBytes.length);
+        outLen += cachedThresholdBytes.length;
+    }
+
+    private void writeString(String s) {
+        // Worst case per char: 6 bytes for an escaped control char
+        ensureOut(s.length() * 6 + 2);
+        byte[] b = out;
+        int n = outLen;
+        b[n++] = '"';
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    b[n++] = '\\';
+                }
+                b[n++] = (byte) c;
+            } else if (c < 0x20) {
+                b[n++] = '\\';
+                switch (c) {
+                    case '\n': b[n++] = 'n'; break;
+                    case '\r': b[n++] = 'r'; break;
+                    case '\t': b[n++] = 't'; break;
+                    case '\b': b[n++] = 'b'; break;
+                    case '\f': b[n++] = 'f'; break;
+                    default:
+                        b[n++] = 'u';
+                        b[n++] = '0';
+                        b[n++] = '0';
+                        b[n++] = HEX[c >> 4];
+                        b[n++] = HEX[c & 0xf];
+                }
+            } else if (c < 0x800) {
+                b[n++] = (byte) (0xc0 | (c >> 6));
+                b[n++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b[n++] = (byte) (0xf0 | (cp >> 18));
+                b[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                b[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                b[n++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate: same replacement String.getBytes(UTF_8) uses
+                b[n++] = '?';
+            } else {
+                b[n++] = (byte) (0xe0 | (c >> 12));
+                b[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                b[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        b[n++] = '"';
+        outLen = n;
+    }
+
+    private void writeAscii(String s) {
+        ensureOut(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            out[outLen++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void writeByte(char c) {
+        ensureOut(1);
+        out[outLen++] = (byte) c;
+    }
+
+    private void ensureOut(int extra) {
+        if (outLen + extra > out.length) {
+            out = Arrays.copyOf(out, Math.max(out.length * 2, outLen + extra));
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Decoding
+    // ------------------------------------------------------------------
+
+    private void readFully(InputStream is) throws IOException {
+        inLen = 0;
+        int n;
+        while ((n = is.read(in, inLen, in.length - inLen)) != -1) {
+            inLen += n;
+            if (inLen == in.length) {
+                in = Arrays.copyOf(in, in.length * 2);
+            }
+        }
+    }
+
+    private SafetyResult[] readResultArray(int expected, boolean withDetails) throws IOException {
+        SafetyResult[] results = new SafetyResult[expected];
+        int count = 0;
+        expect('[');
+        if (!tryConsume(']')) {
+            do {
+                SafetyResult result = readResult(withDetails);
+                if (count < expected) {
+                    results[count] = result;
+                }
+                count++;
+            } while (tryConsume(','));
+            expect(']');
+        }
+        if (count != expected) {
+            throw new IOException("Batch API returned " + count + " results for " + expected + " texts");
+        }
+        return results;
+    }
+
+    private SafetyResult readResult(boolean withDetails) throws IOException {
+        boolean safe = false;
+        String category = SafetyResult.SAFE_CATEGORY;
+        double score = 0.0;
+        double[] details = withDetails ? new double[RiskCategories.count()] : null;
+        boolean seenSafe = false;
+        boolean seenScore = false;
+
+        expect('{');
+        if (!tryConsume('}')) {
+            do {
+                int keyStart = readKeyStart();
+                int keyEnd = stringEnd(keyStart);
+                expect(':');
+                if (regionEquals(keyStart, keyEnd, KEY_IS_SAFE)) {
+                    safe = readBoolean();
+                    seenSafe = true;
+                } else if (regionEquals(keyStart, keyEnd, KEY_RISK_SCORE)) {
+                    score = readNumber();
+                    seenScore = true;
+                } else if (regionEquals(keyStart, keyEnd, KEY_RISK_CATEGORY)) {
+                    category = readCategory();
+                } else if (regionEquals(keyStart, keyEnd, KEY_RISK_DETAILS) && withDetails) {
+                    readDetails(details);
+                } else {
+                    skipValue();
+                }
+            } while (tryConsume(','));
+            expect('}');
+        }
+        if (!seenSafe || !seenScore) {
+            throw error("Response object lacks is_safe or risk_score");
+        }
+        return new SafetyResult(safe, category, score, details);
+    }
+
+    private void readDetails(double[] details) throws IOException {
+        skipWhitespace();
+        if (peek() == 'n') {
+            expectLiteral("null");
+            return;
+        }
+        expect('{');
+        if (tryConsume('}')) {
+            return;
+        }
+        do {
+            int keyStart = readKeyStart();
+            int keyEnd = stringEnd(keyStart);
+            expect(':');
+            double value = readNumber();
+            int id = categoryId(keyStart, keyEnd);
+            if (id >= 0) {
+                details[id] = value;
+            }
+        } while (tryConsume(','));
+        expect('}');
+    }
+
+    /** Reads a category string (or null, meaning safe), mapping known codes to their constants. */
+    private String readCategory() throws IOException {
+        skipWhitespace();
+        if (peek() == 'n') {
+            expectLiteral("null");
+            return SafetyResult.SAFE_CATEGORY;
+        }
+        expect('"');
+        int start = pos;
+        int end = stringEnd(start);
+        int id = categoryId(start, end);
+        if (id >= 0) {
+            return RiskCategories.codeOf(id);
+        }
+        // Not a model category (e.g. model_error): rare, decode it properly
+        return RiskCategories.intern(decodeString(start, end));
+    }
+
+    private int categoryId(int start, int end) {
+        for (int i = 0; i < CATEGORY_BYTES.length; i++) {
+            if (regionEquals(start, end, CATEGORY_BYTES[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Consumes the opening quote of an object key and returns the index of its first byte. */
+    private int readKeyStart() throws IOException {
+        expect('"');
+        return pos;
+    }
+
+    /**
+     * Advances past the closing quote of a string starting at {@code start} and
+     * returns the index of that quote.
+     */
+    private int stringEnd(int start) throws IOException {
+        int i = start;
+        while (i < inLen) {
+            byte b = in[i];
+            if (b == '"') {
+                pos = i + 1;
+                return i;
+            }
+            i += (b == '\\') ? 2 : 1;
+        }
+        throw error("Unterminated string");
+    }
+
+    private String decodeString(int start, int end) throws IOException {
+        boolean escaped = false;
+        for (int i = start; i < end; i++) {
+            if (in[i] == '\\') {
+                escaped = true;
+                break;
+            }
+        }
+        if (!escaped) {
+            return new String(in, start, end - start, StandardCharsets.UTF_8);
+        }
+        StringBuilder sb = new StringBuilder(end - start);
+        int i = start;
+        while (i < end) {
+            int segStart = i;
+            while (i < end && in[i] != '\\') {
+                i++;
+            }
+            sb.append(new String(in, segStart, i - segStart, StandardCharsets.UTF_8));
+            if (i >= end) {
+                break;
+            }
+            char e = (char) in[i + 1];
+            switch (e) {
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'u':
+                    if (i + 6 > end) {
+                        throw error("Bad unicode escape");
+                    }
+                    sb.append((char) Integer.parseInt(new String(in, i + 2, 4, StandardCharsets.US_ASCII), 16));
+                    i += 4;
+                    break;
+                default: sb.append(e);
+            }
+            i += 2;
+        }
+        return sb.toString();
+    }
+
+    private boolean readBoolean() throws IOException {
+        skipWhitespace();
+        if (peek() == 't') {
+            expectLiteral("true");
+            return true;
+        }
+        expectLiteral("false");
+        return false;
+    }
+
+    /**
+     * Parses a JSON number in place. Up to 18 significant digits with a power-of-ten
+     * exponent within +-22 are computed directly (exact up to 15 digits, otherwise
+     * within one ulp); anything else falls back to {@link Double#parseDouble}.
+     */
+    private double readNumber() throws IOException {
+        skipWhitespace();
+        int start = pos;
+        boolean negative = tryConsumeRaw('-');
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        while (pos < inLen && isDigit(in[pos])) {
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (in[pos] - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+            }
+            pos++;
+        }
+        if (tryConsumeRaw('.')) {
+            while (pos < inLen && isDigit(in[pos])) {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (in[pos] - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    exponent--;
+                }
+                pos++;
+            }
+        }
+        if (pos < inLen && (in[pos] == 'e' || in[pos] == 'E')) {
+            pos++;
+            boolean negExp = tryConsumeRaw('-');
+            if (!negExp) {
+                tryConsumeRaw('+');
+            }
+            int e = 0;
+            while (pos < inLen && isDigit(in[pos])) {
+                e = Math.min(e * 10 + (in[pos] - '0'), 10_000);
+                pos++;
+            }
+            exponent += negExp ? -e : e;
+        }
+        if (pos == start || (negative && pos == start + 1)) {
+            throw error("Expected a number");
+        }
+
+        double value;
+        if (mantissa == 0) {
+            value = 0.0;
+        } else if (exponent >= 0 && exponent < POW10.length) {
+            value = mantissa * POW10[exponent];
+        } else if (exponent < 0 && -exponent < POW10.length) {
+            value = mantissa / POW10[-exponent];
+        } else {
+            return Double.parseDouble(new String(in, start, pos - start, StandardCharsets.US_ASCII));
+        }
+        return negative ? -value : value;
+    }
+
+    private void skipValue() throws IOException {
+        skipWhitespace();
+        byte b = peek();
+        if (b == '"') {
+            pos++;
+            stringEnd(pos);
+        } else if (b == '{' || b == '[') {
+            int depth = 0;
+            while (pos < inLen) {
+                byte c = in[pos];
+                if (c == '"') {
+                    pos++;
+                    stringEnd(pos);
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                    if (depth == 0) {
+                        pos++;
+                        return;
+                    }
+                }
+                pos++;
+            }
+            throw error("Unterminated value");
+        } else if (b == 't') {
+            expectLiteral("true");
+        } else if (b == 'f') {
+            expectLiteral("false");
+        } else if (b == 'n') {
+            expectLiteral("null");
+        } else {
+            readNumber();
+        }
+    }
+
+    private void expect(char c) throws IOException {
+        skipWhitespace();
+        if (pos >= inLen || in[pos] != c) {
+            throw error("Expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private boolean tryConsume(char c) {
+        skipWhitespace();
+        return tryConsumeRaw(c);
+    }
+
+    private boolean tryConsumeRaw(char c) {
+        if (pos < inLen && in[pos] == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expectLiteral(String literal) throws IOException {
+        for (int i = 0; i < literal.length(); i++) {
+            if (pos >= inLen || in[pos] != literal.charAt(i)) {
+                throw error("Expected " + literal);
+            }
+            pos++;
+        }
+    }
+
+    private byte peek() throws IOException {
+        if (pos >= inLen) {
+            throw error("Unexpected end of response");
+        }
+        return in[pos];
+    }
+
+    private void skipWhitespace() {
+        while (pos < inLen) {
+            byte b = in[pos];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private boolean regionEquals(int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (in[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private IOException error(String message) {
+        return new IOException("Malformed service response at byte " + pos + ": " + message);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
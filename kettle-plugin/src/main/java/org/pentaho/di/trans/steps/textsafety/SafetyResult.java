@@ -0,0 +1,128 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+/**
+ * Detection result for a single text: the three values appended to each output row,
+ * plus the per-category scores when they were requested.
+ */
+public class SafetyResult {
+
+    public static final String SAFE_CATEGORY = "sec";
+    public static final String API_ERROR_CATEGORY = "api_error";
+    public static final String NOT_CHECKED_CATEGORY = "not_checked";
+
+    private static final SafetyResult SAFE = new SafetyResult(true, SAFE_CATEGORY, 0.0);
+    private static final SafetyResult API_ERROR = new SafetyResult(false, API_ERROR_CATEGORY, 1.0);
+    private static final SafetyResult NOT_CHECKED = new SafetyResult(false, NOT_CHECKED_CATEGORY, 0.0);
+
+    private static final Double ZERO_SCORE = 0.0;
+    private static final Double ONE_SCORE = 1.0;
+
+    private final boolean safe;
+    private final String riskCategory;
+    private final double riskScore;
+    private final double[] riskDetails;
+    /** Why the check failed, for api_error results; null otherwise. */
+    private final String errorMessage;
+    /** {@link #riskScore} boxed on first use, shared by every output row of this result. */
+    private Double boxedRiskScore;
+
+    public SafetyResult(boolean safe, String riskCategory, double riskScore) {
+        this(safe, riskCategory, riskScore, null);
+    }
+
+    /**
+     * @param riskDetails score per category, indexed by {@link RiskCategories} id
+     *                    (0 for categories the service did not report), or null
+     */
+    public SafetyResult(boolean safe, String riskCategory, double riskScore, double[] riskDetails) {
+        this(safe, riskCategory, riskScore, riskDetails, null);
+    }
+
+    private SafetyResult(boolean safe, String riskCategory, double riskScore, double[] riskDetails,
+                         String errorMessage) {
+        this.safe = safe;
+        this.riskCategory = riskCategory;
+        this.riskScore = riskScore;
+        this.riskDetails = riskDetails;
+        this.errorMessage = errorMessage;
+    }
+
+    /** Result used for empty / null texts, which are never sent to the service. */
+    public static SafetyResult safe() {
+        return SAFE;
+    }
+
+    /** Fail-closed result used when the service call fails. */
+    public static SafetyResult apiError() {
+        return API_ERROR;
+    }
+
+    /** Fail-closed result of a failed service call, keeping the reason for the error hop. */
+    public static SafetyResult apiError(String message) {
+        return new SafetyResult(false, API_ERROR_CATEGORY, 1.0, null, message);
+    }
+
+    /**
+     * Result of a text left out when the feed is sampled: no verdict at all, so rows get
+     * not_checked with a null is_safe and risk_score.
+     */
+    public static SafetyResult notChecked() {
+        return NOT_CHECKED;
+    }
+
+    public boolean isSafe() { return safe; }
+
+    /** False for texts left out by sampling, see {@link #notChecked()}. */
+    public boolean isChecked() { return this != NOT_CHECKED; }
+
+    public String getRiskCategory() { return riskCategory; }
+
+    /**
+     * The risk score as an output row value. Cached and duplicate rows share their result,
+     * so the box is made once per result rather than once per row.
+     */
+    public Double getBoxedRiskScore() {
+        Double boxed = boxedRiskScore;
+        if (boxed == null) {
+            boxed = boxScore(riskScore);
+            boxedRiskScore = boxed;
+        }
+        return boxed;
+    }
+
+    /** Boxes a score, reusing one instance for the common 0 and 1 (empty, pre-filter, error, unreported). */
+    static Double boxScore(double score) {
+        if (score == 0.0) {
+            return ZERO_SCORE;
+        }
+        return score == 1.0 ? ONE_SCORE : Double.valueOf(score);
+    }
+
+    public double getRiskScore() { return riskScore; }
+
+    /** Per-category scores indexed by {@link RiskCategories} id, or null when not available. */
+    public double[] getRiskDetails() { return riskDetails; }
+
+    /** Why the check failed, or null when it did not or no reason is known. */
+    public String getErrorMessage() { return errorMessage; }
+
+    /**
+     * Formats the per-category scores as a compact JSON object of the reported categories,
+     * or returns null when the result carries no details (empty text, error).
+     */
+    public String formatRiskDetails() {
+        if (riskDetails == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(128).append('{');
+        for (int id = 0; id < riskDetails.length; id++) {
+            if (riskDetails[id] > 0.0) {
+                if (sb.length() > 1) {
+                    sb.append(',');
+                }
+                sb.append('"').append(RiskCategories.codeOf(id)).append("\":").append(riskDetails[id]);
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,579 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * HTTP transport to the safety service, backed by a bounded pool of persistent
+ * (HTTP/1.1 keep-alive) connections.
+ * <p>
+ * Clients are shared: every step copy in the JVM that talks to the same URL with
+ * the same pool settings gets the same instance, so 8 copies reuse one pool instead
+ * of opening a connection per row. Use {@link #acquire} in {@code init()} and
+ * {@link #release} in {@code dispose()}; the pool is closed when the last user releases it.
+ * </p>
+ * <p>
+ * The URL may list several replicas of the service. Each call goes to the less
+ * loaded of two randomly picked replicas ({@link ServiceReplica#cost}); a call that
+ * fails on the network or with HTTP 5xx is retried once on each other replica, and
+ * replicas that keep failing, or fail their {@code /health} check, are left out for
+ * a while by their circuit breaker.
+ * </p>
+ * <p>
+ * With the binary protocol enabled, each replica's {@code /health} response is read
+ * when the client is created (and at every health check) for the wire formats it
+ * accepts; replicas that list {@value SafetyBinaryCodec#MEDIA_TYPE} are called with
+ * {@link SafetyBinaryCodec}, the others with JSON. A replica that turns down a binary
+ * request (HTTP 415 or 422, e.g. after a downgrade) is switched back to JSON at once.
+ * </p>
+ * <p>
+ * Calls are admitted through a {@link PriorityGate} with one slot per pooled connection,
+ * so urgent calls from any step copy sharing the client go ahead of the waiting others.
+ * </p>
+ */
+public class SafetyServiceClient implements SafetyBackend {
+
+    /** Suffix appended to the single-text endpoint path to reach the batch endpoint. */
+    private static final String BATCH_PATH_SUFFIX = "_batch";
+
+    private static final Map<String, SafetyServiceClient> SHARED = new HashMap<>();
+
+    /** Separators accepted between the replica URLs of one service URL setting. */
+    private static final String URL_SEPARATORS = "[,;\\s]+";
+
+    /** Response header in which the service reports its own handling time. */
+    private static final String PROCESS_TIME_HEADER = "X-Process-Time-Ms";
+
+    /** Response header of {@code /health} listing the request formats the service accepts. */
+    private static final String WIRE_FORMATS_HEADER = "X-Wire-Formats";
+
+    private static final ContentType BINARY_CONTENT_TYPE = ContentType.create(SafetyBinaryCodec.MEDIA_TYPE);
+
+    /** Request/response buffers, reused by each thread that calls the service. */
+    private static final ThreadLocal<SafetyJsonCodec> JSON_CODECS = ThreadLocal.withInitial(SafetyJsonCodec::new);
+    private static final ThreadLocal<SafetyBinaryCodec> BINARY_CODECS =
+        ThreadLocal.withInitial(SafetyBinaryCodec::new);
+
+    private final String key;
+    private final List<ServiceReplica> replicas;
+    private final int breakerFailures;
+    private final long breakerOpenMs;
+    private final boolean binaryProtocol;
+    private final PriorityGate gate;
+    private final int slotTimeoutMs;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final RequestConfig healthRequestConfig;
+    private final ScheduledExecutorService healthChecker;
+    private final Object warmUpLock = new Object();
+    private boolean warm;
+    private int references;
+
+    private SafetyServiceClient(String key, List<String> urls, int poolSize, int connectTimeoutMs,
+                                int readTimeoutMs, int idleTimeoutMs, int healthCheckIntervalMs,
+                                int breakerFailures, int breakerOpenMs, boolean binaryProtocol) {
+        this.key = key;
+        List<ServiceReplica> list = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            list.add(new ServiceReplica(url));
+        }
+        this.replicas = Collections.unmodifiableList(list);
+        this.breakerFailures = Math.max(1, breakerFailures);
+        this.breakerOpenMs = breakerOpenMs;
+        this.binaryProtocol = binaryProtocol;
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(poolSize * replicas.size());
+        connectionManager.setDefaultMaxPerRoute(poolSize);
+        gate = new PriorityGate(poolSize * replicas.size());
+
+        // Waiting for a free pooled connection is bounded by the read timeout,
+        // since that is how long the connection's current request may take.
+        slotTimeoutMs = readTimeoutMs;
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeoutMs)
+            .setSocketTimeout(readTimeoutMs)
+            .setConnectionRequestTimeout(readTimeoutMs)
+            .build();
+
+        httpClient = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .evictExpiredConnections()
+            .evictIdleConnections(idleTimeoutMs, TimeUnit.MILLISECONDS)
+            .build();
+
+        // A replica that cannot answer /health within the connect timeout counts as down
+        healthRequestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeoutMs)
+            .setSocketTimeout(connectTimeoutMs)
+            .setConnectionRequestTimeout(connectTimeoutMs)
+            .build();
+        if (binaryProtocol) {
+            negotiateWireFormats();
+        }
+        if (replicas.size() > 1 && healthCheckIntervalMs > 0) {
+            healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "TextSafetyCheck-health-" + replicas.get(0).getUrl());
+                t.setDaemon(true);
+                return t;
+            });
+            healthChecker.scheduleWithFixedDelay(this::checkHealth, healthCheckIntervalMs, healthCheckIntervalMs,
+                TimeUnit.MILLISECONDS);
+        } else {
+            healthChecker = null;
+        }
+    }
+
+    /**
+     * Returns the shared client for the given URLs and settings, creating it on first use.
+     *
+     * @param serviceUrl            resolved URL of the single-text endpoint, or several replica
+     *                              URLs separated by commas, semicolons or whitespace
+     * @param poolSize              maximum number of connections kept open to each replica
+     * @param connectTimeoutMs      TCP connect timeout
+     * @param readTimeoutMs         socket read timeout for one request
+     * @param idleTimeoutMs         idle time after which a pooled connection is closed
+     * @param healthCheckIntervalMs time between {@code /health} checks of the replicas; 0 for none.
+     *                              Only used with more than one replica
+     * @param breakerFailures       consecutive failed calls that eject a replica
+     * @param breakerOpenMs         how long an ejected replica is left out
+     * @param binaryProtocol        use the binary wire format with replicas that offer it;
+     *                              negotiated here, so the first acquire may wait up to the
+     *                              connect timeout per replica
+     * @throws IllegalArgumentException if the setting contains no URL
+     */
+    public static synchronized SafetyServiceClient acquire(String serviceUrl, int poolSize, int connectTimeoutMs,
+                                                           int readTimeoutMs, int idleTimeoutMs,
+                                                           int healthCheckIntervalMs, int breakerFailures,
+                                                           int breakerOpenMs, boolean binaryProtocol) {
+        List<String> urls = parseUrls(serviceUrl);
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("No safety service URL given");
+        }
+        String key = String.join(",", urls) + "|" + poolSize + "|" + connectTimeoutMs + "|" + readTimeoutMs
+            + "|" + idleTimeoutMs + "|" + healthCheckIntervalMs + "|" + breakerFailures + "|" + breakerOpenMs
+            + "|" + binaryProtocol;
+        SafetyServiceClient client = SHARED.get(key);
+        if (client == null) {
+            client = new SafetyServiceClient(key, urls, Math.max(1, poolSize), connectTimeoutMs,
+                readTimeoutMs, idleTimeoutMs, healthCheckIntervalMs, breakerFailures, breakerOpenMs, binaryProtocol);
+            SHARED.put(key, client);
+        }
+        client.references++;
+        return client;
+    }
+
+    /** Splits a service URL setting into its replica URLs. */
+    public static List<String> parseUrls(String serviceUrl) {
+        List<String> urls = new ArrayList<>();
+        if (serviceUrl != null) {
+            for (String url : serviceUrl.trim().split(URL_SEPARATORS)) {
+                if (!url.isEmpty()) {
+                    urls.add(url);
+                }
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Gives back a client obtained from {@link #acquire}; the last release closes its pool.
+     */
+    public static synchronized void release(SafetyServiceClient client) {
+        if (client == null || --client.references > 0) {
+            return;
+        }
+        SHARED.remove(client.key);
+        if (client.healthChecker != null) {
+            client.healthChecker.shutdownNow();
+        }
+        try {
+            client.httpClient.close();
+        } catch (IOException e) {
+            // Nothing useful to do, the connections are being dropped anyway
+        }
+    }
+
+    /**
+     * Warms the client up before the first rows: checks every replica's {@code /health},
+     * then makes one call per pooled connection, all at once, so the connections are open
+     * and each replica has run its first forward passes. The texts go to the batch endpoint
+     * together, or to the single-text endpoint one call each, like the step's own calls.
+     * Only the first warm-up of a shared client does this: step copies warming up at the
+     * same time wait for it, later ones return at once. Calls are not recorded in any metrics.
+     *
+     * @param batch whether the texts go to the batch endpoint
+     * @return calls made, 0 when the client was already warm
+     * @throws IOException if a warm-up call failed
+     */
+    public int warmUp(List<String> texts, double threshold, boolean withDetails, boolean batch) throws IOException {
+        synchronized (warmUpLock) {
+            if (warm) {
+                return 0;
+            }
+            checkHealth();
+            int connections = connectionManager.getMaxTotal();
+            ExecutorService callers = Executors.newFixedThreadPool(connections, r -> {
+                Thread t = new Thread(r, "TextSafetyCheck-warm-up");
+                t.setDaemon(true);
+                return t;
+            });
+            try {
+                List<Future<Integer>> calls = new ArrayList<>(connections);
+                for (int i = 0; i < connections; i++) {
+                    calls.add(callers.submit(() -> {
+                        if (batch) {
+                            checkBatch(texts, threshold, withDetails, false, null);
+                            return 1;
+                        }
+                        for (String text : texts) {
+                            check(text, threshold, withDetails, false, null);
+                        }
+                        return texts.size();
+                    }));
+                }
+                int made = 0;
+                for (Future<Integer> call : calls) {
+                    made += call.get();
+                }
+                warm = true;
+                return made;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while warming up");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } finally {
+                callers.shutdownNow();
+            }
+        }
+    }
+
+    /** Pooled connections currently open, idle or in use. */
+    public int getOpenConnections() {
+        PoolStats stats = connectionManager.getTotalStats();
+        return stats.getAvailable() + stats.getLeased();
+    }
+
+    /** The replicas calls are spread over, in configuration order. */
+    public List<ServiceReplica> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Checks one text against the single-text endpoint.
+     *
+     * @param withDetails also decode the per-category {@code risk_details} scores
+     * @param urgent      admitted ahead of waiting calls that are not urgent
+     * @param metrics     receives the call's latency and traffic, or null
+     * @throws IOException if the call fails, the service does not answer HTTP 200
+     *                     or the response cannot be decoded
+     */
+    @Override
+    public SafetyResult check(String text, double threshold, boolean withDetails, boolean urgent,
+                              StepMetrics metrics) throws IOException {
+        return execute(false, 1, codec -> codec.encodeSingle(text, threshold, withDetails),
+            (codec, body) -> codec.decodeSingle(body, withDetails), urgent, metrics);
+    }
+
+    /**
+     * Checks several texts in one call to the batch endpoint.
+     *
+     * @param urgent  admitted ahead of waiting calls that are not urgent
+     * @param metrics receives the call's latency and traffic, or null
+     * @return one result per text, in the same order
+     * @throws IOException if the call fails, the service does not answer HTTP 200
+     *                     or the response does not match the request
+     */
+    @Override
+    public SafetyResult[] checkBatch(List<String> texts, double threshold, boolean withDetails, boolean urgent,
+                                     StepMetrics metrics) throws IOException {
+        return execute(true, texts.size(), codec -> codec.encodeBatch(texts, threshold, withDetails),
+            (codec, body) -> codec.decodeBatch(body, texts.size(), withDetails), urgent, metrics);
+    }
+
+    /**
+     * Makes the call once a slot of the {@link PriorityGate} is free, and holds the
+     * slot over all its attempts. The first attempt's latency includes the wait for it.
+     */
+    private <T> T execute(boolean batch, int texts, RequestEncoder encoder, ResponseDecoder<T> decoder,
+                          boolean urgent, StepMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        try {
+            gate.acquire(urgent, slotTimeoutMs);
+        } catch (InterruptedIOException e) {
+            recordFailedCall(metrics, texts, start);
+            throw e;
+        }
+        try {
+            return send(batch, texts, encoder, decoder, metrics, start);
+        } finally {
+            gate.release();
+        }
+    }
+
+    /**
+     * Sends the request to a replica, in the replica's wire format, retrying on the
+     * other replicas while the failure is the replica's (network error, HTTP 5xx).
+     * Rejected requests (HTTP 4xx) and undecodable responses are not retried, except
+     * a binary request the replica does not understand, which is resent as JSON.
+     */
+    private <T> T send(boolean batch, int texts, RequestEncoder encoder, ResponseDecoder<T> decoder,
+                       StepMetrics metrics, long start) throws IOException {
+        List<ServiceReplica> tried = new ArrayList<>(replicas.size());
+        SafetyWireCodec encoded = null;
+        while (true) {
+            ServiceReplica replica = choose(tried);
+            tried.add(replica);
+            boolean binary = replica.isBinaryProtocol();
+            SafetyWireCodec codec = binary ? BINARY_CODECS.get() : JSON_CODECS.get();
+            if (codec != encoded) {
+                encoder.encode(codec);
+                encoded = codec;
+            }
+            String url = batch ? replica.getUrl() + BATCH_PATH_SUFFIX : replica.getUrl();
+            long sent = System.nanoTime();
+            replica.begin();
+            try (CloseableHttpResponse response = httpClient.execute(post(url, codec, binary))) {
+                T result = decoder.decode(codec, successBody(response));
+                replica.succeeded(System.nanoTime() - sent);
+                recordCall(metrics, texts, codec, response, start);
+                return result;
+            } catch (IOException e) {
+                recordFailedCall(metrics, texts, start);
+                if (binary && isUnsupportedFormat(e)) {
+                    replica.setBinaryProtocol(false);
+                    tried.remove(replica);
+                    continue;
+                }
+                boolean rejected = e instanceof HttpStatusException && ((HttpStatusException) e).getStatus() < 500;
+                if (rejected || e instanceof InterruptedIOException || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                replica.failed(System.currentTimeMillis(), breakerFailures, breakerOpenMs);
+                if (tried.size() >= replicas.size()) {
+                    throw e;
+                }
+            } catch (RuntimeException e) {
+                recordFailedCall(metrics, texts, start);
+                throw e;
+            } finally {
+                replica.end();
+                // Later attempts are timed from their own start
+                start = System.nanoTime();
+            }
+        }
+    }
+
+    /** Whether a binary request failed because the replica does not accept the format. */
+    private static boolean isUnsupportedFormat(IOException e) {
+        if (!(e instanceof HttpStatusException)) {
+            return false;
+        }
+        // 415 from a service that knows the format but not on this path; 422 from one
+        // that predates it and tried to validate the body as JSON
+        int status = ((HttpStatusException) e).getStatus();
+        return status == 415 || status == 422;
+    }
+
+    /**
+     * Picks the replica for the next attempt by the power of two choices: of two
+     * random replicas not tried yet and not ejected, the one with the lower cost.
+     * When every untried replica is ejected they are all tried anyway, so a call
+     * is never refused without reaching the service.
+     */
+    private ServiceReplica choose(List<ServiceReplica> tried) {
+        if (replicas.size() == 1) {
+            return replicas.get(0);
+        }
+        long now = System.currentTimeMillis();
+        List<ServiceReplica> candidates = new ArrayList<>(replicas.size());
+        for (ServiceReplica replica : replicas) {
+            if (!tried.contains(replica) && replica.isAvailable(now)) {
+                candidates.add(replica);
+            }
+        }
+        if (candidates.isEmpty()) {
+            for (ServiceReplica replica : replicas) {
+                if (!tried.contains(replica)) {
+                    candidates.add(replica);
+                }
+            }
+        }
+        int n = candidates.size();
+        if (n == 1) {
+            return candidates.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = random.nextInt(n);
+        int b = random.nextInt(n - 1);
+        if (b >= a) {
+            b++;
+        }
+        ServiceReplica first = candidates.get(a);
+        ServiceReplica second = candidates.get(b);
+        return first.cost() <= second.cost() ? first : second;
+    }
+
+    /**
+     * Calls every replica's {@code /health} endpoint and updates its breaker, and its
+     * wire format when the binary protocol is enabled.
+     */
+    private void checkHealth() {
+        for (ServiceReplica replica : replicas) {
+            if (replica.getHealthUrl() == null) {
+                continue;
+            }
+            HttpGet get = new HttpGet(replica.getHealthUrl());
+            get.setConfig(healthRequestConfig);
+            boolean healthy;
+            try (CloseableHttpResponse response = httpClient.execute(get)) {
+                healthy = response.getStatusLine().getStatusCode() == 200;
+                if (healthy && binaryProtocol) {
+                    replica.setBinaryProtocol(offersBinary(response));
+                }
+                EntityUtils.consume(response.getEntity());
+            } catch (IOException | RuntimeException e) {
+                healthy = false;
+            }
+            replica.healthChecked(healthy, System.currentTimeMillis(), breakerOpenMs);
+        }
+    }
+
+    /**
+     * Picks each replica's wire format from its {@code /health} response. Replicas
+     * that cannot be reached keep JSON until a health check reaches them.
+     */
+    private void negotiateWireFormats() {
+        for (ServiceReplica replica : replicas) {
+            if (replica.getHealthUrl() == null) {
+                continue;
+            }
+            HttpGet get = new HttpGet(replica.getHealthUrl());
+            get.setConfig(healthRequestConfig);
+            try (CloseableHttpResponse response = httpClient.execute(get)) {
+                replica.setBinaryProtocol(response.getStatusLine().getStatusCode() == 200 && offersBinary(response));
+                EntityUtils.consume(response.getEntity());
+            } catch (IOException | RuntimeException e) {
+                // Unreachable for now: stay on JSON, which every service version accepts
+            }
+        }
+    }
+
+    private static boolean offersBinary(CloseableHttpResponse response) {
+        Header header = response.getFirstHeader(WIRE_FORMATS_HEADER);
+        if (header == null) {
+            return false;
+        }
+        for (String format : header.getValue().split(",")) {
+            if (format.trim().equalsIgnoreCase(SafetyBinaryCodec.MEDIA_TYPE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void recordCall(StepMetrics metrics, int texts, SafetyWireCodec codec,
+                                   CloseableHttpResponse response, long start) {
+        if (metrics == null) {
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        long serverMicros = -1;
+        Header header = response.getFirstHeader(PROCESS_TIME_HEADER);
+        if (header != null) {
+            try {
+                serverMicros = (long) (Double.parseDouble(header.getValue()) * 1000);
+            } catch (NumberFormatException e) {
+                // Not reported in a usable form; keep only the round trip
+            }
+        }
+        metrics.recordCall(texts, codec.length(), codec.received(), elapsed, serverMicros);
+    }
+
+    private static void recordFailedCall(StepMetrics metrics, int texts, long start) {
+        if (metrics != null) {
+            metrics.recordFailedCall(texts, System.nanoTime() - start);
+        }
+    }
+
+    private static HttpPost post(String url, SafetyWireCodec codec, boolean binary) {
+        HttpPost post = new HttpPost(url);
+        ContentType contentType = binary ? BINARY_CONTENT_TYPE : ContentType.APPLICATION_JSON;
+        post.setHeader("Accept", contentType.getMimeType());
+        post.setEntity(new ByteArrayEntity(codec.buffer(), 0, codec.length(), contentType));
+        return post;
+    }
+
+    /**
+     * Returns the body stream of a successful response. Reading it to the end
+     * returns the connection to the pool for reuse.
+     */
+    private static InputStream successBody(CloseableHttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        int status = response.getStatusLine().getStatusCode();
+        if (status != 200) {
+            String body = entity != null ? EntityUtils.toString(entity, StandardCharsets.UTF_8) : "";
+            throw new HttpStatusException(status, "API returned HTTP " + status + ": " + body);
+        }
+        if (entity == null) {
+            throw new IOException("API returned an empty response");
+        }
+        return entity.getContent();
+    }
+
+    /** Writes the request into a codec's buffer. */
+    private interface RequestEncoder {
+        void encode(SafetyWireCodec codec);
+    }
+
+    /** Reads the result out of a successful response body, with the codec that encoded the request. */
+    private interface ResponseDecoder<T> {
+        T decode(SafetyWireCodec codec, InputStream body) throws IOException;
+    }
+
+    /** The service answered with a status other than 200. */
+    static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        HttpStatusException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        int getStatus() {
+            return status;
+        }
+    }
+}
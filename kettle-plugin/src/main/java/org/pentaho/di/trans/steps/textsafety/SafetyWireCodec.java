@@ -0,0 +1,44 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Encoder of request bodies and decoder of response bodies in one of the service's
+ * wire formats: {@link SafetyJsonCodec} or {@link SafetyBinaryCodec}.
+ * <p>
+ * Implementations hold mutable buffers and must only be used by one thread at a time.
+ * </p>
+ */
+interface SafetyWireCodec {
+
+    /**
+     * Encodes a single-text request into the output buffer.
+     *
+     * @param withDetails whether the per-category scores will be decoded; formats that
+     *                    can leave them out of the response do so when false
+     */
+    void encodeSingle(String text, double threshold, boolean withDetails);
+
+    /** Encodes a batch request into the output buffer; see {@link #encodeSingle}. */
+    void encodeBatch(List<String> texts, double threshold, boolean withDetails);
+
+    /** The encoded request; valid until the next encode call. */
+    byte[] buffer();
+
+    int length();
+
+    /** Size in bytes of the last response body read by a decode method. */
+    int received();
+
+    /**
+     * Decodes a single-text response.
+     *
+     * @param withDetails also decode the per-category scores into the result
+     */
+    SafetyResult decodeSingle(InputStream is, boolean withDetails) throws IOException;
+
+    /** Decodes a batch response into exactly {@code expected} results. */
+    SafetyResult[] decodeBatch(InputStream is, int expected, boolean withDetails) throws IOException;
+}
@@ -0,0 +1,142 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One safety service replica behind a {@link SafetyServiceClient}: its endpoints,
+ * the load it currently carries and a circuit breaker.
+ * <p>
+ * The breaker opens after a number of consecutive failed calls or a failed health
+ * check, and keeps the replica out of rotation for the open period. After that
+ * calls are let through on trial: a success, or a passing health check, closes the
+ * breaker again, while a single failure reopens it at once.
+ * </p>
+ */
+public class ServiceReplica {
+
+    /** Weight of the newest call in the moving latency average. */
+    private static final double LATENCY_DECAY = 0.2;
+
+    /** Assumed latency before the first call completes, in microseconds. */
+    private static final double INITIAL_LATENCY_MICROS = 1_000;
+
+    private static final String HEALTH_PATH = "/health";
+
+    private final String url;
+    private final String healthUrl;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong ejections = new AtomicLong();
+
+    private volatile double latencyMicros = INITIAL_LATENCY_MICROS;
+    private volatile boolean binaryProtocol;
+    private int consecutiveFailures;
+    private volatile long openUntil;
+
+    /**
+     * @param url resolved URL of the replica's single-text endpoint
+     */
+    public ServiceReplica(String url) {
+        this.url = url;
+        String health;
+        try {
+            health = URI.create(url).resolve(HEALTH_PATH).toString();
+        } catch (IllegalArgumentException e) {
+            // Calls will fail and open the breaker; nothing to health-check
+            health = null;
+        }
+        this.healthUrl = health;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /** URL of the service's {@code /health} endpoint, or null when the URL cannot be parsed. */
+    public String getHealthUrl() {
+        return healthUrl;
+    }
+
+    /** Whether calls to this replica use the binary wire format rather than JSON. */
+    public boolean isBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    /** Switches the replica's wire format, as negotiated from its {@code /health} response. */
+    public void setBinaryProtocol(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+    }
+
+    /** True unless the breaker is open. */
+    public boolean isAvailable(long now) {
+        return now >= openUntil;
+    }
+
+    /**
+     * Load estimate used to pick between replicas: calls in flight weighted by the
+     * replica's recent latency, so a slow replica receives proportionally less traffic.
+     */
+    public double cost() {
+        return (outstanding.get() + 1) * latencyMicros;
+    }
+
+    /** Marks the start of a call to this replica. */
+    public void begin() {
+        outstanding.incrementAndGet();
+        calls.incrementAndGet();
+    }
+
+    /** Marks the end of a call started with {@link #begin}, successful or not. */
+    public void end() {
+        outstanding.decrementAndGet();
+    }
+
+    /** Records a successful call and closes the breaker. */
+    public synchronized void succeeded(long elapsedNanos) {
+        latencyMicros += LATENCY_DECAY * (elapsedNanos / 1000.0 - latencyMicros);
+        consecutiveFailures = 0;
+        openUntil = 0;
+    }
+
+    /**
+     * Records a failed call; opens the breaker once {@code failuresToOpen} calls
+     * in a row have failed.
+     */
+    public synchronized void failed(long now, int failuresToOpen, long openMs) {
+        failures.incrementAndGet();
+        if (++consecutiveFailures >= failuresToOpen) {
+            open(now, openMs);
+        }
+    }
+
+    /** Applies the outcome of a health check. */
+    public synchronized void healthChecked(boolean healthy, long now, long openMs) {
+        if (healthy) {
+            if (openUntil > now) {
+                consecutiveFailures = 0;
+                openUntil = 0;
+            }
+        } else {
+            open(now, openMs);
+        }
+    }
+
+    private void open(long now, long openMs) {
+        if (openUntil <= now) {
+            ejections.incrementAndGet();
+        }
+        openUntil = now + openMs;
+    }
+
+    /** One-line state of the replica for the step log. */
+    public String status() {
+        return url + ": " + calls.get() + " calls, " + failures.get() + " failed, ejected "
+            + ejections.get() + " time(s), avg latency " + Math.round(latencyMicros / 1000.0) + " ms"
+            + (binaryProtocol ? ", binary" : ", JSON")
+            + (isAvailable(System.currentTimeMillis()) ? "" : " (ejected)");
+    }
+}
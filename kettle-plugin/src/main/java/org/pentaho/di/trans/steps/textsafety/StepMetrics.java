@@ -0,0 +1,523 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Hot-path metrics of one step copy: service call latency, the time rows queue before
+ * their call, traffic, throughput, errors, cache use, batch fill and the time spent
+ * waiting on Kettle's row queues.
+ * <p>
+ * Counters are updated by the step thread and by the worker threads running
+ * service calls, and read at any time by JMX, the periodic status line and the
+ * Prometheus text file export.
+ * </p>
+ */
+public class StepMetrics implements StepMetricsMBean {
+
+    /** Prefix of every exported Prometheus metric name. */
+    private static final String METRIC_PREFIX = "text_safety_";
+
+    private static final double[] SUMMARY_QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final String transName;
+    private final String stepName;
+    private final int copy;
+    private final int batchSize;
+    private final long startNanos = System.nanoTime();
+
+    /** Round trip of one service call: connection wait, network, inference and decoding. */
+    private final LatencyHistogram callLatency = new LatencyHistogram();
+    /** Handling time reported by the service itself ({@code X-Process-Time-Ms}). */
+    private final LatencyHistogram serverTime = new LatencyHistogram();
+    /** Per row sent to the backend: from its arrival until its request was made. */
+    private final LatencyHistogram queueTime = new LatencyHistogram();
+
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong textsSent = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong errorRows = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong inputWaitNanos = new AtomicLong();
+    private final AtomicLong outputWaitNanos = new AtomicLong();
+    private final AtomicLong chunkedRows = new AtomicLong();
+    private final AtomicLong cappedRows = new AtomicLong();
+    private final AtomicLong preFilterBlocked = new AtomicLong();
+    private final AtomicLong preFilterAllowed = new AtomicLong();
+    private final AtomicLong duplicateRows = new AtomicLong();
+    private final AtomicLong journalHits = new AtomicLong();
+    private final AtomicLong backpressureSignals = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong urgentRows = new AtomicLong();
+    private final AtomicLong notCheckedTexts = new AtomicLong();
+    /** Latest category estimates of a sampled feed, empty when every text is checked. */
+    private volatile List<RiskSampler.Estimate> riskEstimates = Collections.emptyList();
+    /** Current in-flight limit when it adapts to the service, 0 when it is fixed. */
+    private volatile int concurrencyLimit;
+
+    private ObjectName objectName;
+
+    /**
+     * @param transName transformation name, used to label exported metrics
+     * @param stepName  step name, used to label exported metrics
+     * @param copy      step copy number, used to label exported metrics
+     * @param batchSize configured batch size, the denominator of the batch fill ratio
+     */
+    public StepMetrics(String transName, String stepName, int copy, int batchSize) {
+        this.transName = String.valueOf(transName);
+        this.stepName = stepName;
+        this.copy = copy;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    // --- Recording ---
+
+    /**
+     * Records a completed service call.
+     *
+     * @param texts        texts carried by the request
+     * @param sent         request body size in bytes
+     * @param received     response body size in bytes
+     * @param elapsedNanos round-trip time of the call
+     * @param serverMicros handling time reported by the service, or -1 if it reported none
+     */
+    public void recordCall(int texts, long sent, long received, long elapsedNanos, long serverMicros) {
+        requests.incrementAndGet();
+        textsSent.addAndGet(texts);
+        bytesSent.addAndGet(sent);
+        bytesReceived.addAndGet(received);
+        callLatency.record(elapsedNanos / 1000);
+        if (serverMicros >= 0) {
+            serverTime.record(serverMicros);
+        }
+    }
+
+    /** Records a service call that failed; its rows are reported as errors unless it is retried. */
+    public void recordFailedCall(int texts, long elapsedNanos) {
+        requests.incrementAndGet();
+        textsSent.addAndGet(texts);
+        failedRequests.incrementAndGet();
+        callLatency.record(elapsedNanos / 1000);
+    }
+
+    /**
+     * Records how long a row waited before the request carrying it was made: for its
+     * batch to be sent and for a worker to take it up.
+     */
+    public void recordQueueTime(long nanos) {
+        queueTime.record(nanos / 1000);
+    }
+
+    /** Records a row marked urgent by the priority field. */
+    public void recordUrgentRow() {
+        urgentRows.incrementAndGet();
+    }
+
+    /** Records one output row; {@code error} when its result is api_error or a service-side error. */
+    public void recordRow(boolean error) {
+        rows.incrementAndGet();
+        if (error) {
+            errorRows.incrementAndGet();
+        }
+    }
+
+    public void recordCacheLookup(boolean hit) {
+        (hit ? cacheHits : cacheMisses).incrementAndGet();
+    }
+
+    /**
+     * Records a row whose text was split into several windows; {@code capped} when
+     * it needed more windows than allowed, so parts of it were not checked.
+     */
+    public void recordChunkedRow(boolean capped) {
+        chunkedRows.incrementAndGet();
+        if (capped) {
+            cappedRows.incrementAndGet();
+        }
+    }
+
+    /** Records a row decided by the pre-filter, without calling the model. */
+    public void recordPreFilter(boolean blocked) {
+        (blocked ? preFilterBlocked : preFilterAllowed).incrementAndGet();
+    }
+
+    /** Records a row that reused the verdict of an earlier, near-identical text. */
+    public void recordDuplicate() {
+        duplicateRows.incrementAndGet();
+    }
+
+    /** Records a text whose verdict was replayed from the journal. */
+    public void recordJournalHit() {
+        journalHits.incrementAndGet();
+    }
+
+    /** Records a text left out by sampling. */
+    public void recordNotChecked() {
+        notCheckedTexts.incrementAndGet();
+    }
+
+    /** Replaces the category estimates of a sampled feed exported with the metrics. */
+    public void recordRiskEstimates(List<RiskSampler.Estimate> estimates) {
+        riskEstimates = estimates;
+    }
+
+    /** Records a call the service pushed back on (HTTP 429 / 503, timeout). */
+    public void recordBackpressure() {
+        backpressureSignals.incrementAndGet();
+    }
+
+    /** Records a failed call that is repeated after a backoff. */
+    public void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    /** Records the in-flight limit after it adapted. */
+    public void recordConcurrencyLimit(int limit) {
+        concurrencyLimit = limit;
+    }
+
+    /** Time spent in getRow() waiting for upstream steps. */
+    public void addInputWait(long nanos) {
+        inputWaitNanos.addAndGet(nanos);
+    }
+
+    /** Time spent in putRow() waiting for room in the output row set. */
+    public void addOutputWait(long nanos) {
+        outputWaitNanos.addAndGet(nanos);
+    }
+
+    // --- StepMetricsMBean ---
+
+    @Override
+    public long getRows() { return rows.get(); }
+
+    @Override
+    public double getRowsPerSecond() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return seconds > 0 ? rows.get() / seconds : 0.0;
+    }
+
+    @Override
+    public long getRequests() { return requests.get(); }
+
+    @Override
+    public long getFailedRequests() { return failedRequests.get(); }
+
+    @Override
+    public long getErrorRows() { return errorRows.get(); }
+
+    @Override
+    public long getCacheHits() { return cacheHits.get(); }
+
+    @Override
+    public long getCacheMisses() { return cacheMisses.get(); }
+
+    @Override
+    public long getChunkedRows() { return chunkedRows.get(); }
+
+    @Override
+    public long getCappedRows() { return cappedRows.get(); }
+
+    @Override
+    public long getPreFilterBlocked() { return preFilterBlocked.get(); }
+
+    @Override
+    public long getPreFilterAllowed() { return preFilterAllowed.get(); }
+
+    @Override
+    public long getDuplicateRows() { return duplicateRows.get(); }
+
+    @Override
+    public long getJournalHits() { return journalHits.get(); }
+
+    @Override
+    public long getNotCheckedTexts() { return notCheckedTexts.get(); }
+
+    @Override
+    public long getBackpressureSignals() { return backpressureSignals.get(); }
+
+    @Override
+    public int getConcurrencyLimit() { return concurrencyLimit; }
+
+    @Override
+    public long getRetries() { return retries.get(); }
+
+    @Override
+    public long getBytesSent() { return bytesSent.get(); }
+
+    @Override
+    public long getBytesReceived() { return bytesReceived.get(); }
+
+    /** Average share of the batch size filled by each request (1.0 when batching is off). */
+    @Override
+    public double getBatchFillRatio() {
+        long n = requests.get();
+        return n == 0 ? 0.0 : (double) textsSent.get() / n / batchSize;
+    }
+
+    @Override
+    public double getCallLatencyP50Ms() { return callLatency.getPercentile(50) / 1000.0; }
+
+    @Override
+    public double getCallLatencyP90Ms() { return callLatency.getPercentile(90) / 1000.0; }
+
+    @Override
+    public double getCallLatencyP99Ms() { return callLatency.getPercentile(99) / 1000.0; }
+
+    @Override
+    public double getCallLatencyP999Ms() { return callLatency.getPercentile(99.9) / 1000.0; }
+
+    @Override
+    public double getCallLatencyMaxMs() { return callLatency.getMax() / 1000.0; }
+
+    @Override
+    public double getServerTimeP50Ms() { return serverTime.getPercentile(50) / 1000.0; }
+
+    @Override
+    public double getServerTimeP99Ms() { return serverTime.getPercentile(99) / 1000.0; }
+
+    @Override
+    public double getQueueTimeP50Ms() { return queueTime.getPercentile(50) / 1000.0; }
+
+    @Override
+    public double getQueueTimeP99Ms() { return queueTime.getPercentile(99) / 1000.0; }
+
+    @Override
+    public double getQueueTimeMaxMs() { return queueTime.getMax() / 1000.0; }
+
+    @Override
+    public long getUrgentRows() { return urgentRows.get(); }
+
+    @Override
+    public double getInputWaitMs() { return inputWaitNanos.get() / 1e6; }
+
+    @Override
+    public double getOutputWaitMs() { return outputWaitNanos.get() / 1e6; }
+
+    // --- Reporting ---
+
+    /** One-line progress status, logged periodically while the step runs. */
+    public String statusLine() {
+        String line = String.format(Locale.ROOT,
+            "%d rows (%.1f rows/s), %d requests, %d failed, %d error rows, call p50/p99 %.1f/%.1f ms, "
+                + "queue p50/p99 %.1f/%.1f ms",
+            getRows(), getRowsPerSecond(), getRequests(), getFailedRequests(), getErrorRows(),
+            getCallLatencyP50Ms(), getCallLatencyP99Ms(), getQueueTimeP50Ms(), getQueueTimeP99Ms());
+        return concurrencyLimit > 0 ? line + ", in-flight limit " + concurrencyLimit : line;
+    }
+
+    /** Multi-line summary logged when the step ends. */
+    public String summary() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "%d rows in %.1f s (%.1f rows/s), %d error rows%n",
+            getRows(), seconds, getRowsPerSecond(), getErrorRows()));
+        sb.append(String.format(Locale.ROOT,
+            "Requests: %d (%d failed, %d retries), batch fill %.2f, sent %d bytes, received %d bytes%n",
+            getRequests(), getFailedRequests(), getRetries(), getBatchFillRatio(), getBytesSent(),
+            getBytesReceived()));
+        sb.append(String.format(Locale.ROOT,
+            "Call latency ms: p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f, mean %.2f%n",
+            getCallLatencyP50Ms(), getCallLatencyP90Ms(), getCallLatencyP99Ms(), getCallLatencyP999Ms(),
+            getCallLatencyMaxMs(), callLatency.getMean() / 1000.0));
+        if (serverTime.getCount() > 0) {
+            sb.append(String.format(Locale.ROOT, "Service time ms: p50 %.2f, p99 %.2f, max %.2f%n",
+                getServerTimeP50Ms(), getServerTimeP99Ms(), serverTime.getMax() / 1000.0));
+        }
+        if (queueTime.getCount() > 0) {
+            sb.append(String.format(Locale.ROOT,
+                "Queue time per row ms: p50 %.2f, p90 %.2f, p99 %.2f, max %.2f, mean %.2f (%d urgent rows)%n",
+                getQueueTimeP50Ms(), queueTime.getPercentile(90) / 1000.0, getQueueTimeP99Ms(),
+                getQueueTimeMaxMs(), queueTime.getMean() / 1000.0, getUrgentRows()));
+        }
+        if (getChunkedRows() > 0) {
+            sb.append(String.format(Locale.ROOT, "Chunked rows: %d (%d over the window cap)%n",
+                getChunkedRows(), getCappedRows()));
+        }
+        if (getPreFilterBlocked() + getPreFilterAllowed() > 0) {
+            sb.append(String.format(Locale.ROOT, "Pre-filter: %d blocked, %d allowed%n",
+                getPreFilterBlocked(), getPreFilterAllowed()));
+        }
+        if (getDuplicateRows() > 0) {
+            sb.append(String.format(Locale.ROOT, "Near-duplicates: %d rows reused an earlier verdict%n",
+                getDuplicateRows()));
+        }
+        if (getJournalHits() > 0) {
+            sb.append(String.format(Locale.ROOT, "Verdict journal: %d texts replayed%n", getJournalHits()));
+        }
+        if (getNotCheckedTexts() > 0) {
+            sb.append(String.format(Locale.ROOT, "Sampling: %d texts not checked%n", getNotCheckedTexts()));
+        }
+        if (concurrencyLimit > 0) {
+            sb.append(String.format(Locale.ROOT, "Adaptive concurrency: in-flight limit %d, %d backpressure signals%n",
+                concurrencyLimit, getBackpressureSignals()));
+        }
+        sb.append(String.format(Locale.ROOT, "Cache: %d hits, %d misses; waiting on input %.0f ms, on output %.0f ms",
+            getCacheHits(), getCacheMisses(), getInputWaitMs(), getOutputWaitMs()));
+        return sb.toString();
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text exposition format (as read by the
+     * node_exporter textfile collector). The file is replaced atomically where the
+     * file system allows it. Samples are labelled with the transformation, step and copy.
+     */
+    public void writePrometheusFile(String path) throws IOException {
+        String labels = "trans=\"" + escapeLabel(transName) + "\",step=\"" + escapeLabel(stepName)
+            + "\",copy=\"" + copy + "\"";
+        StringBuilder sb = new StringBuilder(4096);
+        counter(sb, "rows_total", "Rows written by the step.", labels, getRows());
+        counter(sb, "requests_total", "Requests sent to the safety service.", labels, getRequests());
+        counter(sb, "failed_requests_total", "Requests that failed.", labels, getFailedRequests());
+        counter(sb, "error_rows_total", "Rows whose result is api_error or a service-side error.", labels,
+            getErrorRows());
+        counter(sb, "cache_hits_total", "Result cache hits.", labels, getCacheHits());
+        counter(sb, "cache_misses_total", "Result cache misses.", labels, getCacheMisses());
+        counter(sb, "chunked_rows_total", "Rows whose text was split into several windows.", labels,
+            getChunkedRows());
+        counter(sb, "capped_rows_total", "Chunked rows that needed more windows than allowed.", labels,
+            getCappedRows());
+        counter(sb, "prefilter_blocked_total", "Rows flagged by the pre-filter block list.", labels,
+            getPreFilterBlocked());
+        counter(sb, "prefilter_allowed_total", "Rows passed by the pre-filter allow list.", labels,
+            getPreFilterAllowed());
+        counter(sb, "duplicate_rows_total", "Rows that reused the verdict of a near-duplicate text.", labels,
+            getDuplicateRows());
+        counter(sb, "journal_hits_total", "Texts whose verdict was replayed from the journal.", labels,
+            getJournalHits());
+        counter(sb, "not_checked_total", "Texts left out by sampling, never sent to the model.", labels,
+            getNotCheckedTexts());
+        counter(sb, "backpressure_total", "Calls the service pushed back on (HTTP 429 / 503, timeout).", labels,
+            getBackpressureSignals());
+        counter(sb, "retries_total", "Failed calls repeated after a backoff.", labels, getRetries());
+        counter(sb, "urgent_rows_total", "Rows marked urgent by the priority field.", labels, getUrgentRows());
+        counter(sb, "sent_bytes_total", "Request body bytes sent.", labels, getBytesSent());
+        counter(sb, "received_bytes_total", "Response body bytes received.", labels, getBytesReceived());
+        counter(sb, "input_wait_seconds_total", "Time spent waiting for input rows.", labels,
+            getInputWaitMs() / 1000.0);
+        counter(sb, "output_wait_seconds_total", "Time spent waiting for room in the output.", labels,
+            getOutputWaitMs() / 1000.0);
+        gauge(sb, "rows_per_second", "Average rows per second since the step started.", labels,
+            getRowsPerSecond());
+        gauge(sb, "batch_fill_ratio", "Average share of the batch size filled per request.", labels,
+            getBatchFillRatio());
+        if (concurrencyLimit > 0) {
+            gauge(sb, "concurrency_limit", "Requests currently allowed in flight by the adaptive limiter.", labels,
+                concurrencyLimit);
+        }
+        List<RiskSampler.Estimate> estimates = riskEstimates;
+        if (!estimates.isEmpty()) {
+            String name = METRIC_PREFIX + "estimated_rate";
+            metric(sb, name, "gauge", "Estimated share of texts in a category when the feed is sampled, "
+                + "with the bounds of its 95% confidence interval.");
+            for (RiskSampler.Estimate estimate : estimates) {
+                String category = labels + ",category=\"" + escapeLabel(estimate.getCategory()) + "\"";
+                sb.append(name).append('{').append(category).append(",bound=\"estimate\"} ")
+                    .append(estimate.getRate()).append('\n');
+                sb.append(name).append('{').append(category).append(",bound=\"lower\"} ")
+                    .append(estimate.getLower()).append('\n');
+                sb.append(name).append('{').append(category).append(",bound=\"upper\"} ")
+                    .append(estimate.getUpper()).append('\n');
+            }
+        }
+        summary(sb, "call_latency_seconds", "Round-trip time of safety service calls.", labels, callLatency);
+        summary(sb, "server_time_seconds", "Handling time reported by the safety service.", labels, serverTime);
+        summary(sb, "queue_time_seconds", "Time rows waited before the call carrying them was made.", labels,
+            queueTime);
+
+        File target = new File(path);
+        File parent = target.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create metrics directory " + parent);
+        }
+        Path tmp = new File(target.getAbsolutePath() + ".tmp").toPath();
+        try (OutputStream os = Files.newOutputStream(tmp)) {
+            os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        try {
+            Files.move(tmp, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void counter(StringBuilder sb, String metric, String help, String labels, double value) {
+        String name = METRIC_PREFIX + metric;
+        metric(sb, name, "counter", help).append(name).append('{').append(labels).append("} ")
+            .append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String metric, String help, String labels, double value) {
+        String name = METRIC_PREFIX + metric;
+        metric(sb, name, "gauge", help).append(name).append('{').append(labels).append("} ")
+            .append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String metric, String help, String labels,
+                                LatencyHistogram histogram) {
+        String name = METRIC_PREFIX + metric;
+        metric(sb, name, "summary", help);
+        for (double q : SUMMARY_QUANTILES) {
+            sb.append(name).append('{').append(labels).append(",quantile=\"").append(q).append("\"} ")
+                .append(histogram.getPercentile(q * 100) / 1e6).append('\n');
+        }
+        sb.append(name).append("_sum{").append(labels).append("} ").append(histogram.getSum() / 1e6).append('\n');
+        sb.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static StringBuilder metric(StringBuilder sb, String name, String type, String help) {
+        return sb.append("# HELP ").append(name).append(' ').append(help).append('\n')
+            .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    // --- JMX ---
+
+    /**
+     * Registers this object with the platform MBean server as
+     * {@code org.pentaho.di.trans.steps.textsafety:type=TextSafetyCheck,trans=..,step=..,copy=..}.
+     * A leftover registration under the same name (from a crashed run) is replaced.
+     */
+    public void registerMBean() throws JMException {
+        ObjectName name = new ObjectName("org.pentaho.di.trans.steps.textsafety:type=TextSafetyCheck"
+            + ",trans=" + ObjectName.quote(transName)
+            + ",step=" + ObjectName.quote(stepName)
+            + ",copy=" + copy);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+        objectName = name;
+    }
+
+    /** Removes the registration made by {@link #registerMBean}, if any. */
+    public void unregisterMBean() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+}
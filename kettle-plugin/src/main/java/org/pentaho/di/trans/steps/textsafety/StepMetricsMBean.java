@@ -0,0 +1,79 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+/**
+ * JMX view of {@link StepMetrics}, one MBean per running step copy.
+ * Times are in milliseconds.
+ */
+public interface StepMetricsMBean {
+
+    long getRows();
+
+    double getRowsPerSecond();
+
+    long getRequests();
+
+    long getFailedRequests();
+
+    long getErrorRows();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getChunkedRows();
+
+    long getCappedRows();
+
+    long getPreFilterBlocked();
+
+    long getPreFilterAllowed();
+
+    long getDuplicateRows();
+
+    long getJournalHits();
+
+    /** Texts left out by sampling, never sent to the model. */
+    long getNotCheckedTexts();
+
+    long getBackpressureSignals();
+
+    /** Requests allowed in flight by the adaptive limiter; 0 when the limit is fixed. */
+    int getConcurrencyLimit();
+
+    /** Failed calls repeated after a backoff. */
+    long getRetries();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    double getBatchFillRatio();
+
+    double getCallLatencyP50Ms();
+
+    double getCallLatencyP90Ms();
+
+    double getCallLatencyP99Ms();
+
+    double getCallLatencyP999Ms();
+
+    double getCallLatencyMaxMs();
+
+    double getServerTimeP50Ms();
+
+    double getServerTimeP99Ms();
+
+    /** Time rows waited before their request was made: for the batch to fill and for a worker. */
+    double getQueueTimeP50Ms();
+
+    double getQueueTimeP99Ms();
+
+    double getQueueTimeMaxMs();
+
+    /** Rows marked urgent by the priority field. */
+    long getUrgentRows();
+
+    double getInputWaitMs();
+
+    double getOutputWaitMs();
+}
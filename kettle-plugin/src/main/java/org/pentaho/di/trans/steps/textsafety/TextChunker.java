@@ -0,0 +1,88 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.util.List;
+
+/**
+ * Splits long texts into overlapping character windows so the service never sees
+ * more than {@code chunkSize} characters at once.
+ * <p>
+ * Consecutive windows overlap by {@code overlap} characters, so a phrase cut at one
+ * window boundary still appears whole in the next window. When a text would need more
+ * than {@code maxWindows} windows, that many windows are spread evenly over the text
+ * instead (first and last window included), which bounds the cost of any single row
+ * at the price of gaps between windows.
+ * </p>
+ */
+public class TextChunker {
+
+    private final int chunkSize;
+    private final int overlap;
+    private final int maxWindows;
+
+    /**
+     * @param chunkSize  window length in characters; 0 turns splitting off
+     * @param overlap    characters shared by consecutive windows, less than {@code chunkSize}
+     * @param maxWindows upper bound of windows per text, at least 1
+     */
+    public TextChunker(int chunkSize, int overlap, int maxWindows) {
+        this.chunkSize = chunkSize;
+        this.overlap = Math.max(0, Math.min(overlap, chunkSize - 1));
+        this.maxWindows = Math.max(1, maxWindows);
+    }
+
+    /** True when the text is longer than one window. */
+    public boolean needsSplit(String text) {
+        return chunkSize > 0 && text.length() > chunkSize;
+    }
+
+    /** Number of windows {@link #split} produces for the text. */
+    public int windowCount(String text) {
+        return needsSplit(text) ? Math.min(maxWindows, naturalWindowCount(text.length())) : 1;
+    }
+
+    /** True when the text needs more windows than allowed, so parts of it are not checked. */
+    public boolean isCapped(String text) {
+        return needsSplit(text) && naturalWindowCount(text.length()) > maxWindows;
+    }
+
+    /**
+     * Appends the windows of the text to {@code out}: the text itself when it fits
+     * in one window. Window edges never split a surrogate pair.
+     *
+     * @return the number of windows appended
+     */
+    public int split(String text, List<String> out) {
+        if (!needsSplit(text)) {
+            out.add(text);
+            return 1;
+        }
+        int length = text.length();
+        int count = windowCount(text);
+        boolean capped = isCapped(text);
+        int stride = chunkSize - overlap;
+        for (int i = 0; i < count; i++) {
+            int start;
+            if (!capped) {
+                start = Math.min(i * stride, length - chunkSize);
+            } else if (count == 1) {
+                start = 0;
+            } else {
+                start = (int) ((long) i * (length - chunkSize) / (count - 1));
+            }
+            int end = Math.min(length, start + chunkSize);
+            if (start > 0 && Character.isLowSurrogate(text.charAt(start))) {
+                start--;
+            }
+            if (end < length && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            out.add(text.substring(start, end));
+        }
+        return count;
+    }
+
+    private int naturalWindowCount(int length) {
+        int stride = chunkSize - overlap;
+        return 1 + (length - chunkSize + stride - 1) / stride;
+    }
+}
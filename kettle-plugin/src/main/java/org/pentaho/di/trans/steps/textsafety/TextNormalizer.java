@@ -0,0 +1,149 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.Normalizer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reduces texts that only differ in presentation to one canonical form, used to
+ * recognise duplicates (cache keys, {@link NearDuplicateIndex}); the model still
+ * sees the original text.
+ * <p>
+ * In order: Unicode NFKC (full-width letters, digits and punctuation become
+ * half-width), lower case, traditional to simplified Chinese characters, removal of
+ * invisible format characters (zero-width spaces and joiners), replacement of URLs,
+ * e-mail addresses, {@code @user} mentions and numbers by placeholders, and
+ * collapsing whitespace runs into one space. Immutable and thread-safe.
+ * </p>
+ */
+public class TextNormalizer {
+
+    /** Built-in traditional to simplified table, a classpath resource next to this class. */
+    private static final String BUILT_IN_VARIANTS = "t2s_chars.txt";
+
+    private static final Pattern PLACEHOLDERS = Pattern.compile(
+        "(?<url>(?:https?://|www\\.)\\S+)"
+            + "|(?<email>[\\w.+-]+@[\\w-]+(?:\\.[\\w-]+)+)"
+            + "|(?<user>@[\\w-]+)"
+            + "|(?<num>\\d+(?:[.,:]\\d+)*)",
+        Pattern.UNICODE_CHARACTER_CLASS);
+
+    private static volatile Map<Character, Character> builtInVariants;
+
+    private final Map<Character, Character> variants;
+
+    private TextNormalizer(Map<Character, Character> variants) {
+        this.variants = variants;
+    }
+
+    /**
+     * Creates a normalizer with the built-in character table, extended by the given file.
+     *
+     * @param variantFile resolved path of an extra {@code traditional<TAB>simplified} table
+     *                    (such as OpenCC's TSCharacters.txt), or empty for the built-in one only
+     * @throws IOException if a table cannot be read
+     */
+    public static TextNormalizer create(String variantFile) throws IOException {
+        Map<Character, Character> variants = new HashMap<>(builtInVariants());
+        if (variantFile != null && !variantFile.isEmpty()) {
+            try (Reader reader = Files.newBufferedReader(new File(variantFile).toPath(), StandardCharsets.UTF_8)) {
+                readVariants(reader, variants);
+            }
+        }
+        return new TextNormalizer(variants);
+    }
+
+    /** Returns the canonical form of the text. */
+    public String normalize(String text) {
+        String folded = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        StringBuilder sb = new StringBuilder(folded.length());
+        for (int i = 0; i < folded.length(); i++) {
+            char c = folded.charAt(i);
+            if (Character.getType(c) == Character.FORMAT) {
+                continue;
+            }
+            Character simplified = variants.get(c);
+            sb.append(simplified != null ? simplified.charValue() : c);
+        }
+
+        Matcher m = PLACEHOLDERS.matcher(sb);
+        StringBuilder out = new StringBuilder(sb.length());
+        int last = 0;
+        boolean pendingSpace = false;
+        while (true) {
+            boolean found = m.find();
+            int end = found ? m.start() : sb.length();
+            for (int i = last; i < end; i++) {
+                char c = sb.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    pendingSpace = out.length() > 0;
+                    continue;
+                }
+                if (pendingSpace) {
+                    out.append(' ');
+                    pendingSpace = false;
+                }
+                out.append(c);
+            }
+            if (!found) {
+                break;
+            }
+            if (pendingSpace) {
+                out.append(' ');
+                pendingSpace = false;
+            }
+            out.append(m.start("url") >= 0 ? "<url>"
+                : m.start("email") >= 0 ? "<email>"
+                : m.start("user") >= 0 ? "<user>"
+                : "<num>");
+            last = m.end();
+        }
+        return out.toString();
+    }
+
+    private static Map<Character, Character> builtInVariants() throws IOException {
+        Map<Character, Character> variants = builtInVariants;
+        if (variants == null) {
+            variants = new HashMap<>();
+            InputStream is = TextNormalizer.class.getResourceAsStream(BUILT_IN_VARIANTS);
+            if (is == null) {
+                throw new IOException("Missing resource " + BUILT_IN_VARIANTS);
+            }
+            try (Reader reader = new InputStreamReader(is, StandardCharsets.UTF_8)) {
+                readVariants(reader, variants);
+            }
+            builtInVariants = variants;
+        }
+        return variants;
+    }
+
+    /**
+     * Reads {@code traditional<TAB>simplified [more variants]} lines; only single
+     * characters of the basic plane are used, and the first variant wins.
+     */
+    private static void readVariants(Reader source, Map<Character, Character> variants) throws IOException {
+        BufferedReader reader = new BufferedReader(source);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            if (parts.length >= 2 && parts[0].length() == 1 && parts[1].length() == 1
+                    && parts[0].charAt(0) != parts[1].charAt(0)) {
+                variants.put(parts[0].charAt(0), parts[1].charAt(0));
+            }
+        }
+    }
+}
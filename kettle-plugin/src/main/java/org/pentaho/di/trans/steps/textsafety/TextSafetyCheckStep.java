@@ -1,18 +1,29 @@
 package org.pentaho.di.trans.steps.textsafety;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.InterruptedIOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import javax.management.JMException;
 
 import org.pentaho.di.core.Const;
+import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.row.RowDataUtil;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransMeta;
@@ -29,11 +40,122 @@ import org.pentaho.di.trans.step.StepMetaInterface;
  * via HTTP POST, and appends the detection result fields (is_safe, risk_category,
  * risk_score) to the output row.
  * </p>
+ * <p>
+ * Per-category scores can be appended as extra fields, and categories with their
+ * own threshold are judged here from those scores, so cached results can be
+ * re-judged under new thresholds without calling the model again.
+ * </p>
+ * <p>
+ * When the configured batch size is greater than 1, rows are buffered and sent
+ * to the service's batch endpoint together. When more than one request may be
+ * in flight, requests run on a worker pool while the step keeps reading rows;
+ * in every mode rows are emitted in their original order. The number in flight
+ * can adapt to the service's latency and backpressure ({@link ConcurrencyLimiter}).
+ * </p>
+ * <p>
+ * By default a batch waits up to the flush timeout to fill, which suits bulk loads. With
+ * a latency SLA, a partial batch is sent as soon as its oldest row could otherwise not
+ * get its result in time, allowing for the backend's recent call latency, and completed
+ * requests are emitted while the step waits for input. Rows marked urgent by the priority
+ * field are sent at once, and go ahead of other calls waiting on the shared client
+ * ({@link PriorityGate}). The time each row queued before its call is measured
+ * alongside the call latency.
+ * </p>
+ * <p>
+ * Instead of calling the service, the model can run inside the JVM on ONNX Runtime
+ * ({@link OnnxSafetyEngine}); both sit behind {@link SafetyBackend}.
+ * </p>
+ * <p>
+ * An optional keyword/regex {@link PreFilter} decides rows before the cache and the
+ * model; the tier that decided each row can be written to an output field.
+ * </p>
+ * <p>
+ * Texts can be normalized ({@link TextNormalizer}) before the cache lookup, and a
+ * {@link NearDuplicateIndex} of recent texts lets near-identical rows reuse the
+ * verdict of the first one sent instead of calling the model again.
+ * </p>
+ * <p>
+ * Texts longer than the chunk size are split into overlapping windows that travel
+ * in the same request; their scores are merged back into one verdict per row.
+ * </p>
+ * <p>
+ * Several text fields of a row can be checked at once: each goes through the same
+ * tiers and travels in the same request as the others, and gets its own prefixed
+ * set of output fields, or all of them are merged into one verdict like windows.
+ * </p>
+ * <p>
+ * An optional {@link VerdictJournal} records every verdict obtained, so that a
+ * restarted run replays them instead of checking the same rows again.
+ * </p>
+ * <p>
+ * Failed calls can be retried with a jittered exponential backoff. Rows that still
+ * fail go to the step's error hop when error handling is defined, and are marked
+ * api_error otherwise.
+ * </p>
+ * <p>
+ * Huge low-risk feeds can be sampled ({@link RiskSampler}): every text still goes
+ * through the cheap tiers, but only a sample of the texts that need the model is
+ * sent, the rest are marked not_checked, and the step ends with estimated category
+ * rates and their confidence intervals.
+ * </p>
+ * <p>
+ * An opt-in warm-up in init() pages in the cache file and sends a set of texts through
+ * the whole call path on every pooled connection, so a short run starts at steady speed.
+ * </p>
+ * <p>
+ * Each step copy keeps {@link StepMetrics}: logged periodically and as a summary
+ * at the end, and optionally exported through JMX or a Prometheus text file.
+ * </p>
  */
 public class TextSafetyCheckStep extends BaseStep implements StepInterface {
 
-    private static final int CONNECT_TIMEOUT_MS = 10_000;
-    private static final int READ_TIMEOUT_MS = 30_000;
+    /** How long dispose() waits for cancelled worker calls to return. */
+    private static final long SHUTDOWN_WAIT_MS = 5_000;
+
+    /**
+     * Rows answered locally (cache hits, empty texts) don't count toward the batch
+     * size; this caps how many rows one request may carry in total.
+     */
+    private static final int MAX_BUFFERED_ROWS_FACTOR = 8;
+
+    /**
+     * How often the step looks for input while rows wait on the latency SLA: Kettle has
+     * no way to wait for a row and a deadline at once.
+     */
+    private static final long INPUT_POLL_MS = 1;
+
+    /** Weight of the newest call in the moving call latency average. */
+    private static final double LATENCY_DECAY = 0.2;
+
+    /** Texts sent at warm-up when no file is configured: everyday texts of varied length. */
+    private static final List<String> WARM_UP_TEXTS = Arrays.asList(
+        "你好",
+        "今天天气不错，下午一起去公园散步吧。",
+        "请帮我把这份季度报告总结成三条要点，重点说明销售额的变化和原因。",
+        "How do I reset my password if I no longer have access to my email account?",
+        "这款手机的电池续航怎么样？连续看视频大概能用多久，充电的时候会不会明显发热？",
+        "Thanks for the quick delivery, the package arrived in good condition.",
+        "会议改到周四上午十点，地点不变，请各位提前准备好项目进度汇报的材料，并在会前把幻灯片发到群里。",
+        "The museum is open from nine to five on weekdays, and tickets can be booked online in advance.");
+
+    /** Upper bound of the wait before a retry, however many retries came before. */
+    private static final long MAX_RETRY_BACKOFF_MS = 30_000;
+
+    /** Error code of rows sent to the error hop because their check failed. */
+    static final String ERROR_CODE = "TSC001";
+
+    /** Decision tiers reported in the tier output field. */
+    static final String TIER_EMPTY = "empty";
+    static final String TIER_PREFILTER = "prefilter";
+    static final String TIER_JOURNAL = "journal";
+    static final String TIER_CACHE = "cache";
+    static final String TIER_DUPLICATE = "duplicate";
+    static final String TIER_NOT_CHECKED = SafetyResult.NOT_CHECKED_CATEGORY;
+    static final String TIER_MODEL = "model";
+
+    /** Tiers from the cheapest to the most expensive, which names the tier of merged fields. */
+    private static final List<String> TIERS = Arrays.asList(TIER_EMPTY, TIER_PREFILTER, TIER_JOURNAL, TIER_CACHE,
+        TIER_DUPLICATE, TIER_NOT_CHECKED, TIER_MODEL);
 
     private TextSafetyCheckStepMeta meta;
     private TextSafetyCheckStepData data;
@@ -47,7 +169,235 @@ public class TextSafetyCheckStep extends BaseStep implements StepInterface {
     public boolean init(StepMetaInterface smi, StepDataInterface sdi) {
         meta = (TextSafetyCheckStepMeta) smi;
         data = (TextSafetyCheckStepData) sdi;
-        return super.init(smi, sdi);
+        if (!super.init(smi, sdi)) {
+            return false;
+        }
+        data.withDetails = meta.needsRiskDetails();
+        data.chunker = meta.getChunkSize() > 0
+            ? new TextChunker(meta.getChunkSize(), meta.getChunkOverlap(), meta.getMaxChunksPerRow())
+            : null;
+        String[] codes = meta.getCategoryCodes();
+        String[] fields = meta.getCategoryOutputFields();
+        double[] thresholds = meta.getCategoryThresholds();
+        List<Integer> scoreIds = new ArrayList<>();
+        data.evaluator = meta.hasCategoryThresholds() ? new RiskEvaluator(meta.getThreshold()) : null;
+        for (int i = 0; i < codes.length; i++) {
+            int id = RiskCategories.idOf(codes[i]);
+            if (id < 0 || SafetyResult.SAFE_CATEGORY.equals(codes[i])) {
+                logError("Unknown risk category: " + codes[i]);
+                return false;
+            }
+            if (!Const.isEmpty(fields[i])) {
+                scoreIds.add(id);
+            }
+            if (thresholds[i] >= 0) {
+                data.evaluator.setCategoryThreshold(codes[i], thresholds[i]);
+            }
+        }
+        data.categoryScoreIds = new int[scoreIds.size()];
+        for (int i = 0; i < data.categoryScoreIds.length; i++) {
+            data.categoryScoreIds[i] = scoreIds.get(i);
+        }
+        data.resultFieldCount = 3 + data.categoryScoreIds.length
+            + (Const.isEmpty(meta.getOutputDetailsField()) ? 0 : 1)
+            + (Const.isEmpty(meta.getOutputTierField()) ? 0 : 1);
+        data.errorHandling = getStepMeta().isDoingErrorHandling();
+
+        data.metrics = new StepMetrics(getTransMeta().getName(), getStepname(), getCopy(), meta.getBatchSize());
+        data.nextMetricsReport = System.currentTimeMillis() + meta.getMetricsIntervalSeconds() * 1000L;
+        if (meta.isMetricsJmxEnabled()) {
+            try {
+                data.metrics.registerMBean();
+            } catch (JMException e) {
+                logError("Unable to register metrics MBean: " + e.getMessage(), e);
+            }
+        }
+
+        // Identifies the model behind the results, so cached results are never mixed between backends
+        String backendId;
+        if (meta.isEmbeddedInference()) {
+            String modelDir = environmentSubstitute(meta.getOnnxModelDir());
+            backendId = "onnx:" + modelDir;
+            try {
+                data.engine = OnnxSafetyEngine.acquire(modelDir, meta.getOnnxThreads());
+            } catch (IOException e) {
+                logError("Unable to load ONNX model: " + e.getMessage(), e);
+                return false;
+            } catch (LinkageError e) {
+                // onnxruntime is not bundled with the plugin
+                logError("Embedded inference needs " + OnnxSafetyEngine.RUNTIME_JAR
+                    + " in the plugin's lib folder: " + e, e);
+                return false;
+            }
+            data.backend = data.engine;
+        } else {
+            backendId = environmentSubstitute(meta.getServiceUrl());
+            try {
+                data.client = SafetyServiceClient.acquire(backendId,
+                    meta.getConnectionPoolSize(), meta.getConnectTimeoutMs(), meta.getReadTimeoutMs(),
+                    meta.getIdleConnectionTimeoutMs(), meta.getHealthCheckIntervalSeconds() * 1000,
+                    meta.getCircuitBreakerFailures(), meta.getCircuitBreakerOpenSeconds() * 1000,
+                    meta.isBinaryProtocol());
+            } catch (IllegalArgumentException e) {
+                logError(e.getMessage());
+                return false;
+            }
+            data.backend = data.client;
+            if (meta.isBinaryProtocol()) {
+                int binary = 0;
+                for (ServiceReplica replica : data.client.getReplicas()) {
+                    binary += replica.isBinaryProtocol() ? 1 : 0;
+                }
+                logBasic("Binary wire protocol offered by " + binary + " of " + data.client.getReplicas().size()
+                    + " replica(s); the others are called with JSON");
+            }
+        }
+        if (!Const.isEmpty(meta.getPreFilterBlockListFile()) || !Const.isEmpty(meta.getPreFilterAllowListFile())) {
+            try {
+                data.preFilter = PreFilter.acquire(environmentSubstitute(meta.getPreFilterBlockListFile()),
+                    environmentSubstitute(meta.getPreFilterAllowListFile()));
+            } catch (IOException e) {
+                logError("Unable to load pre-filter lists: " + e.getMessage(), e);
+                releaseShared();
+                return false;
+            }
+        }
+        if (meta.isCacheEnabled()) {
+            // Normalized and raw texts make different keys, as do different variant tables
+            String normalization = meta.isNormalizeText()
+                ? "normalized:" + environmentSubstitute(Const.NVL(meta.getVariantTableFile(), "")) : "";
+            try {
+                data.cache = ResultCache.acquire(backendId, normalization, meta.getCacheCapacity(),
+                    meta.getCacheTtlSeconds() * 1000L, environmentSubstitute(meta.getCacheFile()));
+            } catch (IOException e) {
+                logError("Unable to open result cache file " + meta.getCacheFile() + ": " + e.getMessage(), e);
+                releaseShared();
+                return false;
+            }
+        }
+        if (!Const.isEmpty(meta.getJournalFile())) {
+            String journalFile = environmentSubstitute(meta.getJournalFile());
+            try {
+                data.journal = VerdictJournal.acquire(journalFile, meta.getJournalSyncIntervalSeconds() * 1000L);
+            } catch (IOException e) {
+                logError("Unable to open verdict journal " + journalFile + ": " + e.getMessage(), e);
+                releaseShared();
+                return false;
+            }
+            logBasic("Verdict journal " + journalFile + ": " + data.journal.getVerdictCount() + " verdicts to replay"
+                + (data.journal.getCompactedRecords() > 0
+                    ? ", " + data.journal.getCompactedRecords() + " superseded records compacted" : ""));
+        }
+        if (meta.isNormalizeText()) {
+            try {
+                data.normalizer = TextNormalizer.create(environmentSubstitute(meta.getVariantTableFile()));
+            } catch (IOException e) {
+                logError("Unable to load Chinese variant table: " + e.getMessage(), e);
+                releaseShared();
+                return false;
+            }
+        }
+        if (meta.getDuplicateWindow() > 0) {
+            try {
+                data.duplicates = new NearDuplicateIndex(meta.getDuplicateWindow(), meta.getDuplicateSimilarity());
+            } catch (IllegalArgumentException e) {
+                logError(e.getMessage());
+                releaseShared();
+                return false;
+            }
+        }
+        if (TextSafetyCheckStepMeta.SAMPLING_RATE.equals(meta.getSamplingMode())) {
+            data.sampler = RiskSampler.fixedRate(meta.getSampleRate());
+        } else if (TextSafetyCheckStepMeta.SAMPLING_RESERVOIR.equals(meta.getSamplingMode())
+                || TextSafetyCheckStepMeta.SAMPLING_STRATIFIED.equals(meta.getSamplingMode())) {
+            data.sampler = RiskSampler.reservoir(meta.getSampleSize());
+        }
+        if (meta.getMaxInFlightRequests() > 1) {
+            data.executor = Executors.newFixedThreadPool(meta.getMaxInFlightRequests(),
+                new WorkerThreadFactory(getStepname() + "." + getCopy()));
+            if (meta.isAdaptiveConcurrency()) {
+                data.limiter = new ConcurrencyLimiter(meta.getMaxInFlightRequests());
+                data.metrics.recordConcurrencyLimit(data.limiter.getLimit());
+            }
+        }
+        if (meta.isWarmUp() && !warmUp()) {
+            releaseShared();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Opt-in warm-up before the first row: pages the cache file into memory, runs the
+     * warm-up texts through the pre-filter and the normalizer, and through the backend,
+     * as a full batch on every pooled connection of the service client
+     * ({@link SafetyServiceClient#warmUp}), then logs how long it took. Results are not
+     * cached, journaled or counted in the metrics. A failed call is logged and the step
+     * starts cold; only an unreadable texts file fails init().
+     */
+    private boolean warmUp() {
+        long start = System.nanoTime();
+        List<String> texts = WARM_UP_TEXTS;
+        if (!Const.isEmpty(meta.getWarmUpFile())) {
+            String path = environmentSubstitute(meta.getWarmUpFile());
+            try {
+                texts = readWarmUpTexts(path);
+            } catch (IOException e) {
+                logError("Unable to read warm-up texts " + path + ": " + e.getMessage(), e);
+                return false;
+            }
+        }
+        StringBuilder report = new StringBuilder();
+        if (data.cache != null) {
+            long bytes = data.cache.preload();
+            if (bytes > 0) {
+                report.append(", cache file ").append(bytes >> 20).append(" MB loaded");
+            }
+        }
+        for (String text : texts) {
+            if (data.preFilter != null) {
+                data.preFilter.screen(text);
+            }
+            if (data.normalizer != null) {
+                data.normalizer.normalize(text);
+            }
+        }
+        // A full batch, so the model runs the batch shape it will see
+        List<String> batch = new ArrayList<>(texts);
+        while (batch.size() < meta.getBatchSize()) {
+            batch.add(texts.get(batch.size() % texts.size()));
+        }
+        try {
+            if (data.client != null) {
+                int calls = data.client.warmUp(batch, meta.getThreshold(), data.withDetails, meta.getBatchSize() > 1);
+                report.append(calls > 0 ? ", " + calls + " calls" : ", client already warm")
+                    .append(", ").append(data.client.getOpenConnections()).append(" connections open");
+            } else {
+                data.backend.checkBatch(batch, meta.getThreshold(), data.withDetails, false, null);
+                report.append(", ").append(batch.size()).append(" texts run");
+            }
+        } catch (IOException | RuntimeException e) {
+            logBasic("Warm-up call failed, starting cold: " + e.getMessage());
+        }
+        logBasic("Warm-up took " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms" + report);
+        return true;
+    }
+
+    /** Non-empty lines of a UTF-8 file. */
+    private static List<String> readWarmUpTexts(String path) throws IOException {
+        List<String> texts = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(new File(path).toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    texts.add(line);
+                }
+            }
+        }
+        if (texts.isEmpty()) {
+            throw new IOException("The file contains no texts");
+        }
+        return texts;
     }
 
     @Override
@@ -55,119 +405,735 @@ public class TextSafetyCheckStep extends BaseStep implements StepInterface {
         meta = (TextSafetyCheckStepMeta) smi;
         data = (TextSafetyCheckStepData) sdi;
 
+        // Backpressure: don't read more input while the in-flight window is full
+        int maxInFlight = data.limiter != null ? data.limiter.getLimit() : meta.getMaxInFlightRequests();
+        while (!data.inFlight.isEmpty() && data.inFlight.size() >= maxInFlight) {
+            emitOldest();
+        }
+
+        if (meta.getLatencySlaMs() > 0) {
+            awaitInput();
+        }
+
+        long waitStart = System.nanoTime();
         Object[] row = getRow();
+        data.metrics.addInputWait(System.nanoTime() - waitStart);
         if (row == null) {
+            // End of input: send whatever is still buffered and wait for every outstanding call
+            submitBatch();
+            while (!data.inFlight.isEmpty()) {
+                emitOldest();
+            }
             setOutputDone();
             return false;
         }
 
-        // First row: resolve field index and build output row metadata
+        // First row: resolve field indexes and build output row metadata
         if (first) {
             first = false;
             data.outputRowMeta = getInputRowMeta().clone();
             meta.getFields(data.outputRowMeta, getStepname(), null, null, this, repository, metaStore);
-            data.inputTextFieldIndex = getInputRowMeta().indexOfValue(meta.getInputTextField());
-            if (data.inputTextFieldIndex < 0) {
-                throw new KettleException("Input text field not found: " + meta.getInputTextField());
+            data.outputRowSize = data.outputRowMeta.size();
+            String[] extraFields = meta.getExtraInputFields();
+            data.textFieldIndexes = new int[extraFields.length + 1];
+            for (int f = 0; f < data.textFieldIndexes.length; f++) {
+                String field = f == 0 ? meta.getInputTextField() : extraFields[f - 1];
+                data.textFieldIndexes[f] = getInputRowMeta().indexOfValue(field);
+                if (data.textFieldIndexes[f] < 0) {
+                    throw new KettleException("Input text field not found: " + field);
+                }
+            }
+            if (data.journal != null && !Const.isEmpty(meta.getJournalKeyField())) {
+                data.journalKeyFieldIndex = getInputRowMeta().indexOfValue(meta.getJournalKeyField());
+                if (data.journalKeyFieldIndex < 0) {
+                    throw new KettleException("Journal key field not found: " + meta.getJournalKeyField());
+                }
+            }
+            if (!Const.isEmpty(meta.getPriorityField())) {
+                data.priorityFieldIndex = getInputRowMeta().indexOfValue(meta.getPriorityField());
+                if (data.priorityFieldIndex < 0) {
+                    throw new KettleException("Priority field not found: " + meta.getPriorityField());
+                }
+            }
+            if (TextSafetyCheckStepMeta.SAMPLING_STRATIFIED.equals(meta.getSamplingMode())) {
+                data.stratumFieldIndex = getInputRowMeta().indexOfValue(meta.getSampleStratumField());
+                if (data.stratumFieldIndex < 0) {
+                    throw new KettleException("Stratum field not found: " + meta.getSampleStratumField());
+                }
             }
         }
 
-        // Extract the text value from the current row
-        String textValue = getInputRowMeta().getString(row, data.inputTextFieldIndex);
+        // Every checked field of the row goes into the same request
+        TextSafetyCheckStepData.PendingBatch batch = data.batch;
+        RiskSampler.Stratum stratum = null;
+        if (data.sampler != null) {
+            stratum = data.sampler.stratum(data.stratumFieldIndex >= 0
+                ? getInputRowMeta().getString(row, data.stratumFieldIndex) : "");
+        }
+        batch.addRow(row, stratum);
+        if (data.priorityFieldIndex >= 0
+                && Boolean.TRUE.equals(getInputRowMeta().getBoolean(row, data.priorityFieldIndex))) {
+            batch.urgent = true;
+            data.metrics.recordUrgentRow();
+        }
+        String rowId = data.journalKeyFieldIndex >= 0
+            ? getInputRowMeta().getString(row, data.journalKeyFieldIndex) : null;
+        for (int f = 0; f < data.textFieldIndexes.length; f++) {
+            addText(batch, getInputRowMeta().getString(row, data.textFieldIndexes[f]), data.textFieldIndexes[f],
+                rowId, f, stratum);
+        }
+        // Per-row mode sends every row at once, also rows answered without the model
+        boolean perRow = meta.getBatchSize() <= 1 && meta.getLatencySlaMs() <= 0;
+        if (perRow || batch.urgent || batch.pendingTexts >= meta.getBatchSize()
+                || batch.rows.size() >= meta.getBatchSize() * MAX_BUFFERED_ROWS_FACTOR
+                || System.currentTimeMillis() >= flushDeadline(batch)) {
+            submitBatch();
+        }
 
-        boolean isSafe = true;
-        String riskCategory = "sec";
-        double riskScore = 0.0;
+        // Emit whatever has already completed at the head of the window
+        while (!data.inFlight.isEmpty() && data.inFlight.peekFirst().future.isDone()) {
+            emitOldest();
+        }
 
+        if (meta.getMetricsIntervalSeconds() > 0 && System.currentTimeMillis() >= data.nextMetricsReport) {
+            data.nextMetricsReport = System.currentTimeMillis() + meta.getMetricsIntervalSeconds() * 1000L;
+            logBasic("Metrics: " + data.metrics.statusLine());
+            writeMetricsFile();
+        }
+        return true;
+    }
+
+    /**
+     * Time at which the buffered rows are sent even though the batch is not full: the
+     * flush timeout after the oldest row arrived or, with a latency SLA, when that row's
+     * result is due less the recent call latency, whichever comes first.
+     */
+    private long flushDeadline(TextSafetyCheckStepData.PendingBatch batch) {
+        long deadline = batch.startTime + meta.getBatchFlushTimeoutMs();
+        if (meta.getLatencySlaMs() > 0) {
+            deadline = Math.min(deadline, batch.startTime + meta.getLatencySlaMs() - (long) data.callLatencyMillis);
+        }
+        return deadline;
+    }
+
+    /**
+     * Latency SLA mode: while no input row is ready, emits requests as they complete and
+     * sends the buffered rows once they are due, instead of holding them back while
+     * getRow() blocks. Returns at once when nothing is buffered or in flight.
+     */
+    private void awaitInput() throws KettleStepException {
+        while (!isStopped() && !isInputReady()) {
+            while (!data.inFlight.isEmpty() && data.inFlight.peekFirst().future.isDone()) {
+                emitOldest();
+            }
+            long wait = INPUT_POLL_MS;
+            if (!data.batch.rows.isEmpty()) {
+                long due = flushDeadline(data.batch) - System.currentTimeMillis();
+                if (due <= 0) {
+                    submitBatch();
+                    continue;
+                }
+                wait = Math.min(wait, due);
+            } else if (data.inFlight.isEmpty()) {
+                return;
+            }
+            try {
+                if (!data.inFlight.isEmpty()) {
+                    data.inFlight.peekFirst().future.get(wait, TimeUnit.MILLISECONDS);
+                } else {
+                    Thread.sleep(wait);
+                }
+            } catch (TimeoutException | ExecutionException e) {
+                // Emitted, with its failure if any, in the next round
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new KettleStepException("Interrupted while waiting for input", e);
+            }
+        }
+    }
+
+    /** Whether getRow() would return at once: a row is queued or an input has finished. */
+    private boolean isInputReady() {
+        List<RowSet> rowSets = getInputRowSets();
+        if (rowSets.isEmpty()) {
+            return true;
+        }
+        for (RowSet rowSet : rowSets) {
+            if (rowSet.size() > 0 || rowSet.isDone()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Buffers one text of the current row, answering it locally when a tier before
+     * the model can: empty, pre-filter, journal, cache or near-duplicate.
+     *
+     * @param rowId value of the journal key field, null to key the journal by text
+     * @param field position of the text among the row's checked fields
+     */
+    private void addText(TextSafetyCheckStepData.PendingBatch batch, String textValue, int fieldIndex,
+                         String rowId, int field, RiskSampler.Stratum stratum) {
+        SafetyResult knownResult = null;
+        ResultCache.Key cacheKey = null;
+        ResultCache.Key journalKey = null;
+        NearDuplicateIndex.Entry duplicateEntry = null;
+        RiskSampler.Pick pick = null;
+        String tier = TIER_MODEL;
         if (Const.isEmpty(textValue)) {
             // Treat empty / null text as safe, skip API call
-            logBasic("Skipping empty text value at row " + getLinesRead());
+            logBasic("Skipping empty " + getInputRowMeta().getValueMeta(fieldIndex).getName()
+                + " value at row " + getLinesRead());
+            knownResult = SafetyResult.safe();
+            tier = TIER_EMPTY;
         } else {
+            if (data.preFilter != null) {
+                knownResult = data.preFilter.screen(textValue);
+                if (knownResult != null) {
+                    tier = TIER_PREFILTER;
+                    data.metrics.recordPreFilter(!knownResult.isSafe());
+                }
+            }
+            if (knownResult == null && data.journal != null && (rowId != null || data.journalKeyFieldIndex < 0)) {
+                journalKey = rowId != null
+                    ? VerdictJournal.rowKey(rowId, field, meta.getThreshold())
+                    : VerdictJournal.textKey(textValue, meta.getThreshold());
+                knownResult = data.journal.get(journalKey, data.withDetails);
+                if (knownResult != null) {
+                    tier = TIER_JOURNAL;
+                    data.metrics.recordJournalHit();
+                }
+            }
+            String canonical = data.normalizer != null && knownResult == null
+                ? data.normalizer.normalize(textValue) : textValue;
+            if (knownResult == null && data.cache != null) {
+                cacheKey = ResultCache.key(canonical, meta.getThreshold());
+                knownResult = data.cache.get(cacheKey, data.withDetails);
+                data.metrics.recordCacheLookup(knownResult != null);
+                if (knownResult != null) {
+                    tier = TIER_CACHE;
+                }
+            }
+            if (knownResult == null && data.duplicates != null) {
+                duplicateEntry = data.duplicates.entry(canonical);
+                NearDuplicateIndex.Entry match = data.duplicates.find(duplicateEntry);
+                if (match != null) {
+                    // Null while the matching text is still in flight; the text then waits for it
+                    duplicateEntry = match;
+                    knownResult = match.getResult();
+                    cacheKey = null;
+                    tier = TIER_DUPLICATE;
+                    data.metrics.recordDuplicate();
+                }
+            }
+            if (stratum != null && TIER_MODEL.equals(tier)) {
+                pick = stratum.pick();
+                if (pick == null) {
+                    // Not sampled: no verdict to cache, journal or share with near-duplicates
+                    knownResult = SafetyResult.notChecked();
+                    cacheKey = null;
+                    journalKey = null;
+                    duplicateEntry = null;
+                    tier = TIER_NOT_CHECKED;
+                    data.metrics.recordNotChecked();
+                }
+            }
+            if (duplicateEntry != null && TIER_MODEL.equals(tier)) {
+                data.duplicates.add(duplicateEntry);
+            }
+        }
+        int windows = knownResult == null && data.chunker != null ? data.chunker.windowCount(textValue) : 1;
+        batch.addText(textValue, knownResult, cacheKey, journalKey, windows, tier, duplicateEntry, pick);
+    }
+
+    @Override
+    public void dispose(StepMetaInterface smi, StepDataInterface sdi) {
+        data = (TextSafetyCheckStepData) sdi;
+        if (data.executor != null) {
+            // Only reached with calls outstanding when the transformation was stopped or failed
+            for (TextSafetyCheckStepData.PendingBatch pending : data.inFlight) {
+                pending.future.cancel(true);
+            }
+            data.inFlight.clear();
+            data.executor.shutdownNow();
             try {
-                String response = callSafetyApi(textValue);
-                logDebug("API response: " + response);
-                JsonObject json = JsonParser.parseString(response).getAsJsonObject();
+                if (!data.executor.awaitTermination(SHUTDOWN_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                    logBasic("Safety service calls still running after dispose, abandoning them");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            data.executor = null;
+        }
+        if (data.metrics != null) {
+            logBasic("Metrics summary:" + Const.CR + data.metrics.summary());
+            if (data.sampler != null) {
+                logBasic("Sampling estimate:" + Const.CR + data.sampler.summary());
+            }
+            writeMetricsFile();
+            try {
+                data.metrics.unregisterMBean();
+            } catch (JMException e) {
+                logError("Unable to unregister metrics MBean: " + e.getMessage(), e);
+            }
+        }
+        if (data.cache != null) {
+            logBasic("Result cache: " + data.metrics.getCacheHits() + " hits, " + data.metrics.getCacheMisses()
+                + " misses, " + data.cache.getEvictions() + " evictions (shared cache total)");
+        }
+        if (data.client != null && data.client.getReplicas().size() > 1) {
+            for (ServiceReplica replica : data.client.getReplicas()) {
+                logBasic("Replica " + replica.status() + " (shared client total)");
+            }
+        }
+        releaseShared();
+        super.dispose(smi, sdi);
+    }
+
+    /**
+     * Gives back the shared journal, cache, pre-filter and backend acquired in init().
+     */
+    private void releaseShared() {
+        if (data.journal != null) {
+            try {
+                VerdictJournal.release(data.journal);
+            } catch (IOException e) {
+                logError("Unable to close verdict journal: " + e.getMessage(), e);
+            }
+            data.journal = null;
+        }
+        if (data.cache != null) {
+            try {
+                ResultCache.release(data.cache);
+            } catch (IOException e) {
+                logError("Unable to close result cache file: " + e.getMessage(), e);
+            }
+            data.cache = null;
+        }
+        PreFilter.release(data.preFilter);
+        data.preFilter = null;
+        if (data.engine != null) {
+            OnnxSafetyEngine.release(data.engine);
+            data.engine = null;
+        }
+        SafetyServiceClient.release(data.client);
+        data.client = null;
+        data.backend = null;
+    }
+
+    /**
+     * Hands the buffered rows over as one request. Without a worker pool the
+     * request runs right away and its rows are emitted; otherwise it is queued
+     * at the tail of the in-flight window. A group answered entirely locally
+     * still queues behind earlier requests so output order is kept.
+     */
+    private void submitBatch() throws KettleStepException {
+        final TextSafetyCheckStepData.PendingBatch batch = data.batch;
+        if (batch.rows.isEmpty()) {
+            return;
+        }
+        data.batch = new TextSafetyCheckStepData.PendingBatch();
 
-                isSafe = json.get("is_safe").getAsBoolean();
-                riskScore = json.get("risk_score").getAsDouble();
+        if (data.executor == null) {
+            emit(batch, checkTexts(batch));
+        } else if (batch.pendingCount == 0) {
+            batch.future = CompletableFuture.completedFuture(checkTexts(batch));
+            data.inFlight.addLast(batch);
+        } else {
+            batch.future = data.executor.submit(() -> checkTexts(batch));
+            data.inFlight.addLast(batch);
+        }
+    }
 
-                if (json.has("risk_category") && !json.get("risk_category").isJsonNull()) {
-                    riskCategory = json.get("risk_category").getAsString();
+    /**
+     * Waits for the oldest in-flight request and emits its rows.
+     */
+    private void emitOldest() throws KettleStepException {
+        TextSafetyCheckStepData.PendingBatch batch = data.inFlight.pollFirst();
+        SafetyResult[] results;
+        try {
+            results = batch.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KettleStepException("Interrupted while waiting for the safety service", e);
+        } catch (ExecutionException e) {
+            logError("Safety API call failed: " + e.getCause().getMessage(), e.getCause());
+            results = new SafetyResult[batch.texts.size()];
+            Arrays.fill(results, SafetyResult.apiError(describeFailure(
+                e.getCause() instanceof Exception ? (Exception) e.getCause() : e, 0)));
+        }
+        emit(batch, results);
+    }
+
+    /**
+     * Emits a completed request's rows in order, caches the results that came from the service,
+     * journals every verdict not replayed from the journal and counts verdicts in the sample.
+     * The cache keeps the service's own verdict; local thresholds are applied on the way out.
+     * Near-duplicates take the verdict of their representative, which precedes them in
+     * the output order and so is always resolved by then.
+     */
+    private void emit(TextSafetyCheckStepData.PendingBatch batch, SafetyResult[] results)
+            throws KettleStepException {
+        int fields = data.textFieldIndexes.length;
+        for (int i = 0; i < results.length; i++) {
+            NearDuplicateIndex.Entry duplicateEntry = batch.duplicateEntries.get(i);
+            if (batch.isDuplicate(i)) {
+                results[i] = duplicateEntry.getResult();
+            } else if (duplicateEntry != null && batch.knownResults.get(i) == null) {
+                duplicateEntry.resolve(results[i]);
+            }
+            ResultCache.Key cacheKey = batch.cacheKeys.get(i);
+            if (cacheKey != null && batch.knownResults.get(i) == null) {
+                data.cache.put(cacheKey, results[i]);
+            }
+            String tier = batch.tiers.get(i);
+            ResultCache.Key journalKey = batch.journalKeys.get(i);
+            if (journalKey != null && !TIER_JOURNAL.equals(tier)) {
+                try {
+                    data.journal.put(journalKey, results[i]);
+                } catch (IOException e) {
+                    throw new KettleStepException("Unable to write to the verdict journal: " + e.getMessage(), e);
+                }
+            }
+            if (data.sampler != null && !TIER_EMPTY.equals(tier) && !TIER_NOT_CHECKED.equals(tier)) {
+                RiskSampler.Pick pick = batch.samplePicks.get(i);
+                if (pick != null) {
+                    pick.record(evaluate(results[i]));
                 } else {
-                    riskCategory = "sec";
+                    batch.strata.get(i / fields).recordKnown(evaluate(results[i]));
                 }
-            } catch (Exception e) {
-                logError("Safety API call failed: " + e.getMessage(), e);
-                isSafe = false;
-                riskCategory = "api_error";
-                riskScore = 1.0;
             }
         }
+        for (int r = 0; r < batch.rows.size(); r++) {
+            int from = r * fields;
+            // Widen once to the full output layout; rows with spare capacity are reused as they are
+            Object[] outputRow = RowDataUtil.resizeArray(batch.rows.get(r), data.outputRowSize);
+            int index = getInputRowMeta().size();
+            boolean error = false;
+            if (meta.isMergeFieldVerdicts() && fields > 1) {
+                SafetyResult result = mergeFields(batch, results, from, from + fields);
+                error = isFailed(result);
+                appendResult(outputRow, index, result, mergedTier(batch, from, from + fields));
+            } else {
+                for (int i = from; i < from + fields; i++) {
+                    SafetyResult result = evaluate(results[i]);
+                    error |= isFailed(result);
+                    appendResult(outputRow, index, result, batch.tiers.get(i));
+                    index += data.resultFieldCount;
+                }
+            }
+            data.metrics.recordRow(error);
+            long waitStart = System.nanoTime();
+            if (error && data.errorHandling) {
+                putFailedRow(batch, results, r);
+            } else {
+                putRow(data.outputRowMeta, outputRow);
+            }
+            data.metrics.addOutputWait(System.nanoTime() - waitStart);
+        }
+    }
 
-        // Append the 3 output fields to the row
-        Object[] outputRow = RowDataUtil.addValueData(row, getInputRowMeta().size(), isSafe);
-        outputRow = RowDataUtil.addValueData(outputRow, getInputRowMeta().size() + 1, riskCategory);
-        outputRow = RowDataUtil.addValueData(outputRow, getInputRowMeta().size() + 2, riskScore);
+    /**
+     * Sends a row whose check failed to the error hop, as it came in, with the failure
+     * reason and the fields that failed, so it can be checked again later.
+     */
+    private void putFailedRow(TextSafetyCheckStepData.PendingBatch batch, SafetyResult[] results, int r)
+            throws KettleStepException {
+        int fields = data.textFieldIndexes.length;
+        String reason = null;
+        StringBuilder failedFields = new StringBuilder();
+        for (int f = 0; f < fields; f++) {
+            SafetyResult result = results[r * fields + f];
+            if (!isFailed(result)) {
+                continue;
+            }
+            if (reason == null) {
+                reason = result.getErrorMessage() != null
+                    ? result.getErrorMessage()
+                    : "Safety service returned " + result.getRiskCategory();
+            }
+            if (failedFields.length() > 0) {
+                failedFields.append(',');
+            }
+            failedFields.append(getInputRowMeta().getValueMeta(data.textFieldIndexes[f]).getName());
+        }
+        putError(getInputRowMeta(), batch.rows.get(r), 1, reason, failedFields.toString(), ERROR_CODE);
+    }
 
-        putRow(data.outputRowMeta, outputRow);
-        return true;
+    private SafetyResult evaluate(SafetyResult result) {
+        return data.evaluator != null ? data.evaluator.evaluate(result) : result;
+    }
+
+    /** Whether a text's check failed: api_error or an error reported by the service, not a text left out. */
+    private static boolean isFailed(SafetyResult result) {
+        return RiskCategories.idOf(result.getRiskCategory()) < 0 && result.isChecked();
     }
 
     /**
-     * Calls the Python text_filter_service via HTTP POST.
-     *
-     * @param text the text content to check
-     * @return the raw JSON response body
-     * @throws IOException if the HTTP call fails
-     */
-    private String callSafetyApi(String text) throws IOException {
-        String serviceUrl = environmentSubstitute(meta.getServiceUrl());
-        URL url = new URL(serviceUrl);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        try {
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-            conn.setRequestProperty("Accept", "application/json");
-            conn.setDoOutput(true);
-            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
-            conn.setReadTimeout(READ_TIMEOUT_MS);
+     * Combines the evaluated results of a row's fields like the windows of a chunked text
+     * (see {@link RiskEvaluator#mergeWindows}). Empty fields are left out, so a row is only
+     * safe by default when all of its fields are empty. Fields left out by sampling make
+     * the row not_checked unless another field is flagged.
+     */
+    private SafetyResult mergeFields(TextSafetyCheckStepData.PendingBatch batch, SafetyResult[] results,
+                                     int from, int to) {
+        List<SafetyResult> checked = new ArrayList<>(to - from);
+        boolean unchecked = false;
+        for (int i = from; i < to; i++) {
+            if (!results[i].isChecked()) {
+                unchecked = true;
+            } else if (!TIER_EMPTY.equals(batch.tiers.get(i))) {
+                checked.add(results[i]);
+            }
+        }
+        SafetyResult merged;
+        if (checked.size() <= 1) {
+            merged = evaluate(checked.isEmpty() ? results[from] : checked.get(0));
+        } else {
+            merged = evaluate(RiskEvaluator.mergeWindows(checked.toArray(new SafetyResult[0]), 0, checked.size(),
+                meta.getThreshold()));
+        }
+        return unchecked && merged.isSafe() ? SafetyResult.notChecked() : merged;
+    }
 
-            JsonObject reqBody = new JsonObject();
-            reqBody.addProperty("text", text);
-            reqBody.addProperty("threshold", meta.getThreshold());
-            byte[] payload = reqBody.toString().getBytes(StandardCharsets.UTF_8);
+    /** Tier of a merged row: the most expensive one any of its fields needed. */
+    private static String mergedTier(TextSafetyCheckStepData.PendingBatch batch, int from, int to) {
+        int tier = 0;
+        for (int i = from; i < to; i++) {
+            tier = Math.max(tier, TIERS.indexOf(batch.tiers.get(i)));
+        }
+        return TIERS.get(tier);
+    }
 
-            try (OutputStream os = conn.getOutputStream()) {
-                os.write(payload);
+    /**
+     * Resolves a request and returns one result per text, in order. Texts with a
+     * known result and near-duplicates of a text in flight are not sent (their
+     * result stays null), and long texts are sent as their windows. A single text
+     * without batching goes to the single-text endpoint; anything else goes to
+     * the batch endpoint in one request. Failures that may pass are retried after a
+     * backoff, while retries remain and the oldest row's time budget allows; the
+     * rest are reported as api_error, with the reason.
+     * <p>
+     * Runs on the worker pool when requests are pipelined, so it only reads
+     * state that is fixed after the first row.
+     * </p>
+     */
+    private SafetyResult[] checkTexts(TextSafetyCheckStepData.PendingBatch batch) {
+        int size = batch.texts.size();
+        SafetyResult[] results = new SafetyResult[size];
+        List<String> texts = new ArrayList<>(batch.pendingTexts);
+        List<Integer> positions = new ArrayList<>(batch.pendingCount);
+        // Index in texts of each sent text's first window, plus an end marker
+        int[] firstWindow = new int[batch.pendingCount + 1];
+        for (int i = 0; i < size; i++) {
+            SafetyResult known = batch.knownResults.get(i);
+            if (known != null || batch.isDuplicate(i)) {
+                results[i] = known;
+                continue;
             }
-
-            int status = conn.getResponseCode();
-            if (status != 200) {
-                String errorBody = readStream(conn.getErrorStream());
-                throw new IOException("API returned HTTP " + status + ": " + errorBody);
+            firstWindow[positions.size()] = texts.size();
+            positions.add(i);
+            String text = batch.texts.get(i);
+            if (data.chunker != null && data.chunker.needsSplit(text)) {
+                data.chunker.split(text, texts);
+                data.metrics.recordChunkedRow(data.chunker.isCapped(text));
+            } else {
+                texts.add(text);
             }
+        }
+        firstWindow[positions.size()] = texts.size();
+        if (texts.isEmpty()) {
+            return results;
+        }
+        // Rows queue from their arrival until the first attempt; retries are not counted
+        long now = System.nanoTime();
+        int fields = data.textFieldIndexes.length;
+        int lastRow = -1;
+        for (int pos : positions) {
+            if (pos / fields != lastRow) {
+                lastRow = pos / fields;
+                data.metrics.recordQueueTime(now - batch.arrivalNanos[lastRow]);
+            }
+        }
 
-            return readStream(conn.getInputStream());
-        } finally {
-            conn.disconnect();
+        long deadline = meta.getRetryBudgetMs() > 0 ? batch.startTime + meta.getRetryBudgetMs() : Long.MAX_VALUE;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                SafetyResult[] batchResults = callBackend(texts, batch.urgent);
+                for (int i = 0; i < positions.size(); i++) {
+                    int from = firstWindow[i];
+                    int to = firstWindow[i + 1];
+                    results[positions.get(i)] = to - from == 1
+                        ? batchResults[from]
+                        : RiskEvaluator.mergeWindows(batchResults, from, to, meta.getThreshold());
+                }
+                break;
+            } catch (Exception e) {
+                long backoff = attempt < meta.getRetryCount() && isRetryable(e) ? retryBackoff(attempt) : -1;
+                if (backoff >= 0 && System.currentTimeMillis() + backoff < deadline && !isStopped()) {
+                    logDetailed("Safety API call failed for " + texts.size() + " text(s), retry " + (attempt + 1)
+                        + " of " + meta.getRetryCount() + " in " + backoff + " ms: " + e.getMessage());
+                    data.metrics.recordRetry();
+                    try {
+                        Thread.sleep(backoff);
+                        continue;
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                logError("Safety API call failed for " + texts.size() + " text(s)"
+                    + (attempt > 0 ? " after " + attempt + " retries" : "") + ": " + e.getMessage(), e);
+                String reason = describeFailure(e, attempt);
+                for (Integer pos : positions) {
+                    results[pos] = SafetyResult.apiError(reason);
+                }
+                break;
+            }
         }
+        if (data.limiter != null) {
+            data.metrics.recordConcurrencyLimit(data.limiter.getLimit());
+        }
+        return results;
     }
 
     /**
-     * Reads an InputStream fully into a String.
+     * Makes one call for the texts, one result per text, and reports it to the
+     * concurrency limiter and the moving call latency. A single text without batching
+     * goes to the single-text endpoint.
      */
-    private String readStream(java.io.InputStream is) throws IOException {
-        if (is == null) {
-            return "";
+    private SafetyResult[] callBackend(List<String> texts, boolean urgent) throws IOException {
+        long callStart = System.nanoTime();
+        if (data.limiter != null) {
+            data.limiter.onStart();
         }
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null) {
-                sb.append(line);
+        try {
+            SafetyResult[] results = texts.size() == 1 && meta.getBatchSize() <= 1
+                ? new SafetyResult[] {
+                    data.backend.check(texts.get(0), meta.getThreshold(), data.withDetails, urgent, data.metrics) }
+                : data.backend.checkBatch(texts, meta.getThreshold(), data.withDetails, urgent, data.metrics);
+            long elapsed = System.nanoTime() - callStart;
+            if (data.limiter != null) {
+                data.limiter.onSuccess(elapsed, texts.size());
+            }
+            // Concurrent updates may lose one another; the average only has to be close
+            data.callLatencyMillis += LATENCY_DECAY * (elapsed / 1e6 - data.callLatencyMillis);
+            return results;
+        } catch (IOException | RuntimeException e) {
+            if (data.limiter != null) {
+                if (isBackpressure(e)) {
+                    data.limiter.onBackpressure();
+                    data.metrics.recordBackpressure();
+                } else {
+                    data.limiter.onFailure();
+                }
             }
-            return sb.toString();
+            throw e;
         }
     }
-}
 
+    /**
+     * Whether a failed call may succeed when repeated: network failures, timeouts,
+     * HTTP 5xx and 429. Other HTTP errors (a malformed request, authentication) and
+     * interruptions fail at once.
+     */
+    private static boolean isRetryable(Exception e) {
+        if (Thread.currentThread().isInterrupted() || !(e instanceof IOException)) {
+            return false;
+        }
+        if (e instanceof SafetyServiceClient.HttpStatusException) {
+            int status = ((SafetyServiceClient.HttpStatusException) e).getStatus();
+            return status >= 500 || status == 429;
+        }
+        return true;
+    }
+
+    /**
+     * Wait before the given retry (0-based): "full jitter" exponential backoff, a random
+     * time up to the initial backoff doubled per retry, so copies that failed together
+     * do not retry together.
+     */
+    private long retryBackoff(int attempt) {
+        long cap = Math.min(MAX_RETRY_BACKOFF_MS, (long) meta.getRetryBackoffMs() << Math.min(attempt, 20));
+        return cap > 0 ? ThreadLocalRandom.current().nextLong(cap + 1) : 0;
+    }
+
+    /** Failure reason handed to the error hop. */
+    private static String describeFailure(Exception e, int retries) {
+        String reason = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        return retries > 0 ? reason + " (after " + retries + " retries)" : reason;
+    }
+
+    /**
+     * Whether a failed call means the service is overloaded: HTTP 429 or 503, or a
+     * timeout (connect, read, or waiting for a pooled connection).
+     */
+    private static boolean isBackpressure(Exception e) {
+        if (e instanceof SafetyServiceClient.HttpStatusException) {
+            int status = ((SafetyServiceClient.HttpStatusException) e).getStatus();
+            return status == 429 || status == 503;
+        }
+        return e instanceof InterruptedIOException && !Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Writes the 3 output fields into the row from {@code index} on, plus the risk details
+     * field, the per-category score fields and the tier field when configured. The row is
+     * already {@link TextSafetyCheckStepData#outputRowSize} long. Category scores are null
+     * when the result carries no details (empty text, pre-filter, error, not checked), and
+     * so are is_safe and the risk score of a text left out by sampling.
+     */
+    private void appendResult(Object[] row, int index, SafetyResult result, String tier) {
+        boolean checked = result.isChecked();
+        row[index++] = checked ? (result.isSafe() ? Boolean.TRUE : Boolean.FALSE) : null;
+        row[index++] = result.getRiskCategory();
+        row[index++] = checked ? result.getBoxedRiskScore() : null;
+        if (!Const.isEmpty(meta.getOutputDetailsField())) {
+            row[index++] = result.formatRiskDetails();
+        }
+        double[] details = result.getRiskDetails();
+        for (int id : data.categoryScoreIds) {
+            row[index++] = details != null ? SafetyResult.boxScore(details[id]) : null;
+        }
+        if (!Const.isEmpty(meta.getOutputTierField())) {
+            row[index] = tier;
+        }
+    }
+
+    /**
+     * Rewrites the Prometheus metrics file, when one is configured.
+     */
+    private void writeMetricsFile() {
+        if (Const.isEmpty(meta.getMetricsFile())) {
+            return;
+        }
+        String path = environmentSubstitute(meta.getMetricsFile());
+        if (data.sampler != null) {
+            data.metrics.recordRiskEstimates(data.sampler.estimate());
+        }
+        try {
+            data.metrics.writePrometheusFile(path);
+        } catch (IOException e) {
+            logError("Unable to write metrics file " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Names the worker threads after the step copy and keeps them from holding the JVM open.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        WorkerThreadFactory(String stepCopyName) {
+            this.prefix = "TextSafetyCheck-" + stepCopyName + "-";
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -1,5 +1,13 @@
 package org.pentaho.di.trans.steps.textsafety;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
@@ -13,11 +21,178 @@ public class TextSafetyCheckStepData extends BaseStepData implements StepDataInt
     /** Output row metadata structure (input fields + appended result fields). */
     public RowMetaInterface outputRowMeta;
 
-    /** Index of the input text field within the incoming row. */
-    public int inputTextFieldIndex = -1;
+    /** Indexes of the checked fields within the incoming row: the input text field, then the additional ones. */
+    public int[] textFieldIndexes;
+
+    /** Number of output fields appended per result (one result per checked field, or one when merged). */
+    public int resultFieldCount;
+
+    /** Length of the output rows: input fields plus every appended result field. */
+    public int outputRowSize;
+
+    /** Whether rows whose check failed go to the error hop instead of the output. */
+    public boolean errorHandling;
+
+    /** Whether requests ask the service for per-category scores. */
+    public boolean withDetails;
+
+    /** Local verdict evaluation when categories have their own thresholds; null otherwise. */
+    public RiskEvaluator evaluator;
+
+    /** Splits long texts into windows; null when chunking is off. */
+    public TextChunker chunker;
+
+    /** Category id of each per-category score output field, in output order. */
+    public int[] categoryScoreIds = new int[0];
+
+    /** Shared pooled transport to the service, acquired in init() and released in dispose(); null when embedded. */
+    public SafetyServiceClient client;
+
+    /** Shared in-JVM model when inference is embedded; null otherwise. */
+    public OnnxSafetyEngine engine;
+
+    /** Where texts are classified: {@link #client} or {@link #engine}. */
+    public SafetyBackend backend;
+
+    /** Shared keyword/regex pre-filter, or null when no list is configured. */
+    public PreFilter preFilter;
+
+    /** Shared result cache, or null when caching is off. */
+    public ResultCache cache;
+
+    /** Shared verdict journal, or null when none is configured. */
+    public VerdictJournal journal;
+
+    /** Index of the field identifying a row in the journal, or -1 to key verdicts by text. */
+    public int journalKeyFieldIndex = -1;
+
+    /** Index of the field marking urgent rows, or -1 when no row is urgent. */
+    public int priorityFieldIndex = -1;
+
+    /**
+     * Moving average of the backend's call latency in milliseconds, which the latency SLA
+     * leaves to the call; updated by the threads making the calls.
+     */
+    public volatile double callLatencyMillis;
+
+    /** Canonicalizes texts before duplicates are matched; null when normalization is off. */
+    public TextNormalizer normalizer;
+
+    /** Recent texts whose verdicts near-duplicates reuse; null when reuse is off. */
+    public NearDuplicateIndex duplicates;
+
+    /** Picks the texts sent to the model when the feed is sampled; null when every text is checked. */
+    public RiskSampler sampler;
+
+    /** Index of the field whose values are the sampling strata, or -1 when sampling is not stratified. */
+    public int stratumFieldIndex = -1;
+
+    /** Hot-path metrics of this step copy. */
+    public StepMetrics metrics;
+
+    /** Time of the next periodic metrics report, in milliseconds. */
+    public long nextMetricsReport;
+
+    /** Rows buffered for the next request, in input order. */
+    public PendingBatch batch = new PendingBatch();
+
+    /** Worker pool running service calls when more than one request may be in flight; null otherwise. */
+    public ExecutorService executor;
+
+    /** Adapts the in-flight window to the service's latency; null when the window is fixed. */
+    public ConcurrencyLimiter limiter;
+
+    /** Submitted requests in input order; the head is always the next one to emit. */
+    public Deque<PendingBatch> inFlight = new ArrayDeque<>();
 
     public TextSafetyCheckStepData() {
         super();
     }
+
+    /**
+     * A group of rows sent to the service as one request (a single row when
+     * batching is off), together with the pending result of that request.
+     * Each row holds one text per checked field, so {@link #texts} and the lists
+     * after it run row by row, field by field. Texts already answered locally
+     * (empty text, journal or cache hit) keep their place in the group so output order is
+     * preserved. Near-duplicates of a text still being checked are not sent
+     * either; they take its verdict when emitted.
+     */
+    public static class PendingBatch {
+        public final List<Object[]> rows = new ArrayList<>();
+        /** Sampling stratum of each row, or null when the feed is not sampled. */
+        public final List<RiskSampler.Stratum> strata = new ArrayList<>();
+        public final List<String> texts = new ArrayList<>();
+        /** Result known before the call, or null when the text must be sent to the service. */
+        public final List<SafetyResult> knownResults = new ArrayList<>();
+        /** Cache key of each text, or null when the text is not cached. */
+        public final List<ResultCache.Key> cacheKeys = new ArrayList<>();
+        /** Journal key of each text, or null when its verdict is not journaled. */
+        public final List<ResultCache.Key> journalKeys = new ArrayList<>();
+        /** Tier that decides each text, see {@link TextSafetyCheckStep#TIER_MODEL}. */
+        public final List<String> tiers = new ArrayList<>();
+        /**
+         * Near-duplicate index entry of each text, or null: the entry the text's verdict
+         * resolves when it is sent, the entry whose verdict it takes when it is a duplicate.
+         */
+        public final List<NearDuplicateIndex.Entry> duplicateEntries = new ArrayList<>();
+        /** Place in the sample of each text sent to the model, or null when the feed is not sampled. */
+        public final List<RiskSampler.Pick> samplePicks = new ArrayList<>();
+        /** Number of texts that still need the service. */
+        public int pendingCount;
+        /** Number of texts sent for them, counting each window of a chunked text. */
+        public int pendingTexts;
+        /** Time the oldest row was buffered, in milliseconds. */
+        public long startTime;
+        /** {@link System#nanoTime()} at which each row was buffered, in row order. */
+        public long[] arrivalNanos = new long[16];
+        /** Whether a row is urgent, so the request goes out at once and ahead of the others. */
+        public boolean urgent;
+        public Future<SafetyResult[]> future;
+
+        /**
+         * Starts a row; its texts follow through {@link #addText}.
+         *
+         * @param stratum sampling stratum of the row, or null
+         */
+        public void addRow(Object[] row, RiskSampler.Stratum stratum) {
+            if (rows.isEmpty()) {
+                startTime = System.currentTimeMillis();
+            }
+            if (rows.size() == arrivalNanos.length) {
+                arrivalNanos = Arrays.copyOf(arrivalNanos, rows.size() * 2);
+            }
+            arrivalNanos[rows.size()] = System.nanoTime();
+            rows.add(row);
+            strata.add(stratum);
+        }
+
+        /**
+         * @param windows number of texts sent to the service for it (1 unless it is chunked)
+         * @param tier    tier that decides the text
+         * @param entry   near-duplicate index entry of the text, or null
+         * @param pick    place of the text in the sample, or null
+         */
+        public void addText(String text, SafetyResult knownResult, ResultCache.Key cacheKey,
+                            ResultCache.Key journalKey, int windows, String tier, NearDuplicateIndex.Entry entry,
+                            RiskSampler.Pick pick) {
+            texts.add(text);
+            knownResults.add(knownResult);
+            cacheKeys.add(cacheKey);
+            journalKeys.add(journalKey);
+            tiers.add(tier);
+            duplicateEntries.add(entry);
+            samplePicks.add(pick);
+            if (knownResult == null && !isDuplicate(texts.size() - 1)) {
+                pendingCount++;
+                pendingTexts += windows;
+            }
+        }
+
+        /** Whether the text waits for the verdict of a near-duplicate sent before it. */
+        public boolean isDuplicate(int index) {
+            return knownResults.get(index) == null && TextSafetyCheckStep.TIER_DUPLICATE.equals(tiers.get(index));
+        }
+    }
 }
 
@@ -1,5 +1,6 @@
 package org.pentaho.di.trans.steps.textsafety;
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.pentaho.di.core.CheckResult;
@@ -32,8 +33,8 @@ import org.w3c.dom.Node;
 /**
  * Metadata (configuration) class for the Text Safety Check step.
  * <p>
- * Stores user-configurable properties such as the input text field name,
- * the safety service URL, risk threshold, and output field names.
+ * Stores the step settings: input fields, backend, output fields, and the batching,
+ * caching, journal, sampling and metrics options.
  * </p>
  */
 @Step(
@@ -47,14 +48,178 @@ public class TextSafetyCheckStepMeta extends BaseStepMeta implements StepMetaInt
 
     private static final String DEFAULT_SERVICE_URL = "http://localhost:8001/api/check";
     private static final double DEFAULT_THRESHOLD = 0.5;
+    private static final int DEFAULT_BATCH_SIZE = 1;
+    private static final int DEFAULT_BATCH_FLUSH_TIMEOUT_MS = 200;
+    private static final int DEFAULT_LATENCY_SLA_MS = 0;
+    private static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 1;
+    private static final int DEFAULT_CONNECTION_POOL_SIZE = 8;
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 10_000;
+    private static final int DEFAULT_READ_TIMEOUT_MS = 30_000;
+    private static final int DEFAULT_IDLE_CONNECTION_TIMEOUT_MS = 60_000;
+    private static final int DEFAULT_RETRY_COUNT = 0;
+    private static final int DEFAULT_RETRY_BACKOFF_MS = 500;
+    private static final int DEFAULT_RETRY_BUDGET_MS = 60_000;
+    private static final int DEFAULT_CACHE_CAPACITY = 100_000;
+    private static final int DEFAULT_CACHE_TTL_SECONDS = 86_400;
+    private static final int DEFAULT_JOURNAL_SYNC_INTERVAL_SECONDS = 10;
+    private static final int DEFAULT_METRICS_INTERVAL_SECONDS = 60;
+    private static final int DEFAULT_HEALTH_CHECK_INTERVAL_SECONDS = 10;
+    private static final int DEFAULT_CIRCUIT_BREAKER_FAILURES = 3;
+    private static final int DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS = 30;
+    private static final int DEFAULT_CHUNK_SIZE = 0;
+    private static final int DEFAULT_CHUNK_OVERLAP = 200;
+    private static final int DEFAULT_MAX_CHUNKS_PER_ROW = 16;
+    private static final int DEFAULT_ONNX_THREADS = 0;
+    private static final int DEFAULT_DUPLICATE_WINDOW = 0;
+    private static final double DEFAULT_DUPLICATE_SIMILARITY = 0.8;
+    private static final double DEFAULT_SAMPLE_RATE = 0.01;
+    private static final int DEFAULT_SAMPLE_SIZE = 10_000;
+
+    /** Sampling modes: every text checked, a fixed rate, one reservoir, a reservoir per field value. */
+    public static final String SAMPLING_NONE = "none";
+    public static final String SAMPLING_RATE = "rate";
+    public static final String SAMPLING_RESERVOIR = "reservoir";
+    public static final String SAMPLING_STRATIFIED = "stratified";
+    public static final String[] SAMPLING_MODES = {
+        SAMPLING_NONE, SAMPLING_RATE, SAMPLING_RESERVOIR, SAMPLING_STRATIFIED,
+    };
 
     // User-configurable fields
     private String inputTextField = "";
+    /**
+     * Further text fields checked in the same pass, each with the prefix of its own set of
+     * output fields (prefix + the output field names below). The input text field keeps the
+     * unprefixed names.
+     */
+    private String[] extraInputFields = new String[0];
+    private String[] extraOutputPrefixes = new String[0];
+    /** Merges the verdicts of all input fields into one per row, written to the unprefixed fields. */
+    private boolean mergeFieldVerdicts = false;
+    /** URL of the single-text endpoint; several replicas may be listed, separated by commas. */
     private String serviceUrl = DEFAULT_SERVICE_URL;
     private double threshold = DEFAULT_THRESHOLD;
     private String outputSafeField = "is_safe";
     private String outputCategoryField = "risk_category";
     private String outputScoreField = "risk_score";
+    /** Runs the model in the JVM on ONNX Runtime instead of calling the service. */
+    private boolean embeddedInference = false;
+    /** Directory written by text_filter_service/export_onnx.py. */
+    private String onnxModelDir = "";
+    /** Intra-op threads of the ONNX Runtime session; 0 for its default (all cores). */
+    private int onnxThreads = DEFAULT_ONNX_THREADS;
+
+    /** Optional field receiving the per-category scores as JSON; empty to leave it out. */
+    private String outputDetailsField = "";
+    /** Optional field receiving the tier that decided the row (empty, prefilter, journal, cache, duplicate, model). */
+    private String outputTierField = "";
+
+    /** Keyword/regex lists screened before the model; empty for none. See {@link PreFilter}. */
+    private String preFilterBlockListFile = "";
+    private String preFilterAllowListFile = "";
+
+    /** Rows per request to the batch endpoint; 1 keeps the one-request-per-row behaviour. */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    /** Maximum time a buffered row may wait for its batch to fill before the batch is sent. */
+    private int batchFlushTimeoutMs = DEFAULT_BATCH_FLUSH_TIMEOUT_MS;
+    /**
+     * Target time from a row's arrival to its result, in milliseconds; partial batches are sent
+     * once the oldest row nears it, also while no input arrives. 0 waits to fill batches instead.
+     */
+    private int latencySlaMs = DEFAULT_LATENCY_SLA_MS;
+    /** Optional input field marking urgent rows (true or non-zero), sent at once and ahead of the others. */
+    private String priorityField = "";
+    /** Requests (single rows or batches) allowed in flight at once; 1 calls the service synchronously. */
+    private int maxInFlightRequests = DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+    /** Adapts the in-flight limit to the service's latency, with max in-flight requests as its upper bound. */
+    private boolean adaptiveConcurrency = false;
+
+    /** Persistent connections to the service, shared by all step copies in the JVM. */
+    private int connectionPoolSize = DEFAULT_CONNECTION_POOL_SIZE;
+    private int connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    private int readTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+    /** Pooled connections idle for longer than this are closed. */
+    private int idleConnectionTimeoutMs = DEFAULT_IDLE_CONNECTION_TIMEOUT_MS;
+
+    /** Times a call failing with a network error, a timeout, HTTP 5xx or 429 is repeated; 0 for none. */
+    private int retryCount = DEFAULT_RETRY_COUNT;
+    /** Initial wait before a retry, doubled per retry; each wait is random up to it. */
+    private int retryBackoffMs = DEFAULT_RETRY_BACKOFF_MS;
+    /** Time from when a row is buffered after which its call is no longer retried; 0 for no limit. */
+    private int retryBudgetMs = DEFAULT_RETRY_BUDGET_MS;
+
+    /** Time between /health checks of the replicas when several are listed; 0 for none. */
+    private int healthCheckIntervalSeconds = DEFAULT_HEALTH_CHECK_INTERVAL_SECONDS;
+    /** Consecutive failed calls after which a replica is ejected. */
+    private int circuitBreakerFailures = DEFAULT_CIRCUIT_BREAKER_FAILURES;
+    /** How long an ejected replica is left out before it is tried again. */
+    private int circuitBreakerOpenSeconds = DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS;
+
+    /** Use the compact binary wire format with replicas that offer it (negotiated at init), JSON otherwise. */
+    private boolean binaryProtocol = false;
+
+    /** Opens connections, loads the cache file and sends warm-up texts in init(), before the first row. */
+    private boolean warmUp = false;
+    /** Optional UTF-8 file of warm-up texts, one per line; built-in samples when empty. */
+    private String warmUpFile = "";
+
+    /**
+     * Texts longer than this many characters are split into overlapping windows that are
+     * checked together and merged into one verdict; 0 sends every text whole.
+     */
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    /** Characters shared by consecutive windows. */
+    private int chunkOverlap = DEFAULT_CHUNK_OVERLAP;
+    /** Upper bound of windows per row; longer texts get this many windows spread over the text. */
+    private int maxChunksPerRow = DEFAULT_MAX_CHUNKS_PER_ROW;
+
+    /** Result cache keyed by normalized text + threshold, shared by step copies in the JVM. */
+    private boolean cacheEnabled = false;
+    private int cacheCapacity = DEFAULT_CACHE_CAPACITY;
+    /** Cached results older than this are ignored; 0 keeps them forever. */
+    private int cacheTtlSeconds = DEFAULT_CACHE_TTL_SECONDS;
+    /** Memory-mapped file that keeps cached results across runs; empty for memory only. */
+    private String cacheFile = "";
+
+    /** Append-only file of the verdicts produced, replayed when the run is restarted; empty for none. */
+    private String journalFile = "";
+    /** Field identifying a row in the journal; empty to key verdicts by the text instead. */
+    private String journalKeyField = "";
+    /** Time between forcing the journal to disk; 0 forces it when the step ends only. */
+    private int journalSyncIntervalSeconds = DEFAULT_JOURNAL_SYNC_INTERVAL_SECONDS;
+
+    /** Canonicalizes texts (NFKC, case, Chinese variants, URL/number placeholders) before duplicates are matched. */
+    private boolean normalizeText = false;
+    /** Extra traditional-to-simplified character table; empty for the built-in one only. */
+    private String variantTableFile = "";
+    /** Number of recent texts whose verdicts near-duplicates reuse; 0 turns reuse off. */
+    private int duplicateWindow = DEFAULT_DUPLICATE_WINDOW;
+    /** Smallest estimated Jaccard similarity of two texts' 3-grams for one to reuse the other's verdict. */
+    private double duplicateSimilarity = DEFAULT_DUPLICATE_SIMILARITY;
+
+    /** Which of the texts needing the model are sent to it, one of the SAMPLING_ modes; the rest are not_checked. */
+    private String samplingMode = SAMPLING_NONE;
+    /** Share of those texts sent at a fixed sampling rate. */
+    private double sampleRate = DEFAULT_SAMPLE_RATE;
+    /** Texts kept in the reservoir, per stratum when stratified. */
+    private int sampleSize = DEFAULT_SAMPLE_SIZE;
+    /** Field whose values are the strata of stratified sampling. */
+    private String sampleStratumField = "";
+
+    /**
+     * Per-category settings, one entry per selected category: the category code, the
+     * field receiving its score (empty for none) and its own threshold (negative to
+     * use the global one). Thresholds are evaluated in the step, not by the service.
+     */
+    private String[] categoryCodes = new String[0];
+    private String[] categoryOutputFields = new String[0];
+    private double[] categoryThresholds = new double[0];
+
+    /** How often a metrics status line is logged (and the metrics file rewritten); 0 only at the end. */
+    private int metricsIntervalSeconds = DEFAULT_METRICS_INTERVAL_SECONDS;
+    /** Registers each step copy's metrics as a JMX MBean while it runs. */
+    private boolean metricsJmxEnabled = false;
+    /** Prometheus text format file the metrics are written to; empty for none. */
+    private String metricsFile = "";
 
     public TextSafetyCheckStepMeta() {
         super();
@@ -65,6 +230,15 @@ public class TextSafetyCheckStepMeta extends BaseStepMeta implements StepMetaInt
     public String getInputTextField() { return inputTextField; }
     public void setInputTextField(String v) { this.inputTextField = v; }
 
+    public String[] getExtraInputFields() { return extraInputFields; }
+    public void setExtraInputFields(String[] v) { this.extraInputFields = v; }
+
+    public String[] getExtraOutputPrefixes() { return extraOutputPrefixes; }
+    public void setExtraOutputPrefixes(String[] v) { this.extraOutputPrefixes = v; }
+
+    public boolean isMergeFieldVerdicts() { return mergeFieldVerdicts; }
+    public void setMergeFieldVerdicts(boolean v) { this.mergeFieldVerdicts = v; }
+
     public String getServiceUrl() { return serviceUrl; }
     public void setServiceUrl(String v) { this.serviceUrl = v; }
 
@@ -80,66 +254,592 @@ public class TextSafetyCheckStepMeta extends BaseStepMeta implements StepMetaInt
     public String getOutputScoreField() { return outputScoreField; }
     public void setOutputScoreField(String v) { this.outputScoreField = v; }
 
+    public String getOutputDetailsField() { return outputDetailsField; }
+    public void setOutputDetailsField(String v) { this.outputDetailsField = v; }
+
+    public boolean isEmbeddedInference() { return embeddedInference; }
+    public void setEmbeddedInference(boolean v) { this.embeddedInference = v; }
+
+    public String getOnnxModelDir() { return onnxModelDir; }
+    public void setOnnxModelDir(String v) { this.onnxModelDir = v; }
+
+    public int getOnnxThreads() { return onnxThreads; }
+    public void setOnnxThreads(int v) { this.onnxThreads = v; }
+
+    public String getOutputTierField() { return outputTierField; }
+    public void setOutputTierField(String v) { this.outputTierField = v; }
+
+    public String getPreFilterBlockListFile() { return preFilterBlockListFile; }
+    public void setPreFilterBlockListFile(String v) { this.preFilterBlockListFile = v; }
+
+    public String getPreFilterAllowListFile() { return preFilterAllowListFile; }
+    public void setPreFilterAllowListFile(String v) { this.preFilterAllowListFile = v; }
+
+    public int getBatchSize() { return batchSize; }
+    public void setBatchSize(int v) { this.batchSize = v; }
+
+    public int getBatchFlushTimeoutMs() { return batchFlushTimeoutMs; }
+    public void setBatchFlushTimeoutMs(int v) { this.batchFlushTimeoutMs = v; }
+
+    public int getLatencySlaMs() { return latencySlaMs; }
+    public void setLatencySlaMs(int v) { this.latencySlaMs = v; }
+
+    public String getPriorityField() { return priorityField; }
+    public void setPriorityField(String v) { this.priorityField = v; }
+
+    public int getMaxInFlightRequests() { return maxInFlightRequests; }
+    public void setMaxInFlightRequests(int v) { this.maxInFlightRequests = v; }
+
+    public boolean isAdaptiveConcurrency() { return adaptiveConcurrency; }
+    public void setAdaptiveConcurrency(boolean v) { this.adaptiveConcurrency = v; }
+
+    public int getConnectionPoolSize() { return connectionPoolSize; }
+    public void setConnectionPoolSize(int v) { this.connectionPoolSize = v; }
+
+    public int getConnectTimeoutMs() { return connectTimeoutMs; }
+    public void setConnectTimeoutMs(int v) { this.connectTimeoutMs = v; }
+
+    public int getReadTimeoutMs() { return readTimeoutMs; }
+    public void setReadTimeoutMs(int v) { this.readTimeoutMs = v; }
+
+    public int getIdleConnectionTimeoutMs() { return idleConnectionTimeoutMs; }
+    public void setIdleConnectionTimeoutMs(int v) { this.idleConnectionTimeoutMs = v; }
+
+    public int getRetryCount() { return retryCount; }
+    public void setRetryCount(int v) { this.retryCount = v; }
+
+    public int getRetryBackoffMs() { return retryBackoffMs; }
+    public void setRetryBackoffMs(int v) { this.retryBackoffMs = v; }
+
+    public int getRetryBudgetMs() { return retryBudgetMs; }
+    public void setRetryBudgetMs(int v) { this.retryBudgetMs = v; }
+
+    public int getHealthCheckIntervalSeconds() { return healthCheckIntervalSeconds; }
+    public void setHealthCheckIntervalSeconds(int v) { this.healthCheckIntervalSeconds = v; }
+
+    public int getCircuitBreakerFailures() { return circuitBreakerFailures; }
+    public void setCircuitBreakerFailures(int v) { this.circuitBreakerFailures = v; }
+
+    public int getCircuitBreakerOpenSeconds() { return circuitBreakerOpenSeconds; }
+    public void setCircuitBreakerOpenSeconds(int v) { this.circuitBreakerOpenSeconds = v; }
+
+    public boolean isBinaryProtocol() { return binaryProtocol; }
+    public void setBinaryProtocol(boolean v) { this.binaryProtocol = v; }
+
+    public boolean isWarmUp() { return warmUp; }
+    public void setWarmUp(boolean v) { this.warmUp = v; }
+
+    public String getWarmUpFile() { return warmUpFile; }
+    public void setWarmUpFile(String v) { this.warmUpFile = v; }
+
+    public int getChunkSize() { return chunkSize; }
+    public void setChunkSize(int v) { this.chunkSize = v; }
+
+    public int getChunkOverlap() { return chunkOverlap; }
+    public void setChunkOverlap(int v) { this.chunkOverlap = v; }
+
+    public int getMaxChunksPerRow() { return maxChunksPerRow; }
+    public void setMaxChunksPerRow(int v) { this.maxChunksPerRow = v; }
+
+    public boolean isCacheEnabled() { return cacheEnabled; }
+    public void setCacheEnabled(boolean v) { this.cacheEnabled = v; }
+
+    public int getCacheCapacity() { return cacheCapacity; }
+    public void setCacheCapacity(int v) { this.cacheCapacity = v; }
+
+    public int getCacheTtlSeconds() { return cacheTtlSeconds; }
+    public void setCacheTtlSeconds(int v) { this.cacheTtlSeconds = v; }
+
+    public String getCacheFile() { return cacheFile; }
+    public void setCacheFile(String v) { this.cacheFile = v; }
+
+    public String getJournalFile() { return journalFile; }
+    public void setJournalFile(String v) { this.journalFile = v; }
+
+    public String getJournalKeyField() { return journalKeyField; }
+    public void setJournalKeyField(String v) { this.journalKeyField = v; }
+
+    public int getJournalSyncIntervalSeconds() { return journalSyncIntervalSeconds; }
+    public void setJournalSyncIntervalSeconds(int v) { this.journalSyncIntervalSeconds = v; }
+
+    public boolean isNormalizeText() { return normalizeText; }
+    public void setNormalizeText(boolean v) { this.normalizeText = v; }
+
+    public String getVariantTableFile() { return variantTableFile; }
+    public void setVariantTableFile(String v) { this.variantTableFile = v; }
+
+    public int getDuplicateWindow() { return duplicateWindow; }
+    public void setDuplicateWindow(int v) { this.duplicateWindow = v; }
+
+    public double getDuplicateSimilarity() { return duplicateSimilarity; }
+    public void setDuplicateSimilarity(double v) { this.duplicateSimilarity = v; }
+
+    public String getSamplingMode() { return samplingMode; }
+    public void setSamplingMode(String v) { this.samplingMode = v; }
+
+    public double getSampleRate() { return sampleRate; }
+    public void setSampleRate(double v) { this.sampleRate = v; }
+
+    public int getSampleSize() { return sampleSize; }
+    public void setSampleSize(int v) { this.sampleSize = v; }
+
+    public String getSampleStratumField() { return sampleStratumField; }
+    public void setSampleStratumField(String v) { this.sampleStratumField = v; }
+
+    public String[] getCategoryCodes() { return categoryCodes; }
+    public void setCategoryCodes(String[] v) { this.categoryCodes = v; }
+
+    public String[] getCategoryOutputFields() { return categoryOutputFields; }
+    public void setCategoryOutputFields(String[] v) { this.categoryOutputFields = v; }
+
+    public double[] getCategoryThresholds() { return categoryThresholds; }
+    public void setCategoryThresholds(double[] v) { this.categoryThresholds = v; }
+
+    public int getMetricsIntervalSeconds() { return metricsIntervalSeconds; }
+    public void setMetricsIntervalSeconds(int v) { this.metricsIntervalSeconds = v; }
+
+    public boolean isMetricsJmxEnabled() { return metricsJmxEnabled; }
+    public void setMetricsJmxEnabled(boolean v) { this.metricsJmxEnabled = v; }
+
+    public String getMetricsFile() { return metricsFile; }
+    public void setMetricsFile(String v) { this.metricsFile = v; }
+
+    /** Resizes the per-category settings to {@code count} empty entries. */
+    public void allocateCategories(int count) {
+        categoryCodes = new String[count];
+        categoryOutputFields = new String[count];
+        categoryThresholds = new double[count];
+    }
+
+    /** Resizes the additional input fields to {@code count} empty entries. */
+    public void allocateExtraInputs(int count) {
+        extraInputFields = new String[count];
+        extraOutputPrefixes = new String[count];
+    }
+
+    /** Output prefix of every checked field's result, in output order: "" for the input text field. */
+    public String[] getOutputPrefixes() {
+        if (mergeFieldVerdicts) {
+            return new String[] {""};
+        }
+        String[] prefixes = new String[extraOutputPrefixes.length + 1];
+        prefixes[0] = "";
+        System.arraycopy(extraOutputPrefixes, 0, prefixes, 1, extraOutputPrefixes.length);
+        return prefixes;
+    }
+
+    /** True when any category has its own threshold, so verdicts are evaluated locally. */
+    public boolean hasCategoryThresholds() {
+        for (double t : categoryThresholds) {
+            if (t >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** True when the service must return per-category scores, which merging chunks or fields also needs. */
+    public boolean needsRiskDetails() {
+        return !Const.isEmpty(outputDetailsField) || categoryCodes.length > 0 || chunkSize > 0
+            || mergeFieldVerdicts && extraInputFields.length > 0;
+    }
+
     @Override
     public Object clone() {
         TextSafetyCheckStepMeta copy = (TextSafetyCheckStepMeta) super.clone();
+        copy.extraInputFields = extraInputFields.clone();
+        copy.extraOutputPrefixes = extraOutputPrefixes.clone();
+        copy.categoryCodes = categoryCodes.clone();
+        copy.categoryOutputFields = categoryOutputFields.clone();
+        copy.categoryThresholds = categoryThresholds.clone();
         return copy;
     }
 
     @Override
     public void setDefault() {
         inputTextField = "";
+        allocateExtraInputs(0);
+        mergeFieldVerdicts = false;
         serviceUrl = DEFAULT_SERVICE_URL;
         threshold = DEFAULT_THRESHOLD;
         outputSafeField = "is_safe";
         outputCategoryField = "risk_category";
         outputScoreField = "risk_score";
+        outputDetailsField = "";
+        embeddedInference = false;
+        onnxModelDir = "";
+        onnxThreads = DEFAULT_ONNX_THREADS;
+        outputTierField = "";
+        preFilterBlockListFile = "";
+        preFilterAllowListFile = "";
+        batchSize = DEFAULT_BATCH_SIZE;
+        batchFlushTimeoutMs = DEFAULT_BATCH_FLUSH_TIMEOUT_MS;
+        latencySlaMs = DEFAULT_LATENCY_SLA_MS;
+        priorityField = "";
+        maxInFlightRequests = DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+        adaptiveConcurrency = false;
+        connectionPoolSize = DEFAULT_CONNECTION_POOL_SIZE;
+        connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+        readTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+        idleConnectionTimeoutMs = DEFAULT_IDLE_CONNECTION_TIMEOUT_MS;
+        retryCount = DEFAULT_RETRY_COUNT;
+        retryBackoffMs = DEFAULT_RETRY_BACKOFF_MS;
+        retryBudgetMs = DEFAULT_RETRY_BUDGET_MS;
+        healthCheckIntervalSeconds = DEFAULT_HEALTH_CHECK_INTERVAL_SECONDS;
+        circuitBreakerFailures = DEFAULT_CIRCUIT_BREAKER_FAILURES;
+        circuitBreakerOpenSeconds = DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS;
+        binaryProtocol = false;
+        warmUp = false;
+        warmUpFile = "";
+        chunkSize = DEFAULT_CHUNK_SIZE;
+        chunkOverlap = DEFAULT_CHUNK_OVERLAP;
+        maxChunksPerRow = DEFAULT_MAX_CHUNKS_PER_ROW;
+        cacheEnabled = false;
+        cacheCapacity = DEFAULT_CACHE_CAPACITY;
+        cacheTtlSeconds = DEFAULT_CACHE_TTL_SECONDS;
+        cacheFile = "";
+        journalFile = "";
+        journalKeyField = "";
+        journalSyncIntervalSeconds = DEFAULT_JOURNAL_SYNC_INTERVAL_SECONDS;
+        normalizeText = false;
+        variantTableFile = "";
+        duplicateWindow = DEFAULT_DUPLICATE_WINDOW;
+        duplicateSimilarity = DEFAULT_DUPLICATE_SIMILARITY;
+        samplingMode = SAMPLING_NONE;
+        sampleRate = DEFAULT_SAMPLE_RATE;
+        sampleSize = DEFAULT_SAMPLE_SIZE;
+        sampleStratumField = "";
+        allocateCategories(0);
+        metricsIntervalSeconds = DEFAULT_METRICS_INTERVAL_SECONDS;
+        metricsJmxEnabled = false;
+        metricsFile = "";
     }
 
     @Override
     public String getXML() {
         StringBuilder xml = new StringBuilder();
         xml.append("    ").append(XMLHandler.addTagValue("input_text_field", inputTextField));
+        xml.append("    ").append(XMLHandler.addTagValue("merge_field_verdicts", mergeFieldVerdicts));
         xml.append("    ").append(XMLHandler.addTagValue("service_url", serviceUrl));
         xml.append("    ").append(XMLHandler.addTagValue("threshold", threshold));
         xml.append("    ").append(XMLHandler.addTagValue("output_safe_field", outputSafeField));
         xml.append("    ").append(XMLHandler.addTagValue("output_category_field", outputCategoryField));
         xml.append("    ").append(XMLHandler.addTagValue("output_score_field", outputScoreField));
+        xml.append("    ").append(XMLHandler.addTagValue("output_details_field", outputDetailsField));
+        xml.append("    ").append(XMLHandler.addTagValue("embedded_inference", embeddedInference));
+        xml.append("    ").append(XMLHandler.addTagValue("onnx_model_dir", onnxModelDir));
+        xml.append("    ").append(XMLHandler.addTagValue("onnx_threads", onnxThreads));
+        xml.append("    ").append(XMLHandler.addTagValue("output_tier_field", outputTierField));
+        xml.append("    ").append(XMLHandler.addTagValue("prefilter_block_list_file", preFilterBlockListFile));
+        xml.append("    ").append(XMLHandler.addTagValue("prefilter_allow_list_file", preFilterAllowListFile));
+        xml.append("    ").append(XMLHandler.addTagValue("batch_size", batchSize));
+        xml.append("    ").append(XMLHandler.addTagValue("batch_flush_timeout_ms", batchFlushTimeoutMs));
+        xml.append("    ").append(XMLHandler.addTagValue("latency_sla_ms", latencySlaMs));
+        xml.append("    ").append(XMLHandler.addTagValue("priority_field", priorityField));
+        xml.append("    ").append(XMLHandler.addTagValue("max_in_flight_requests", maxInFlightRequests));
+        xml.append("    ").append(XMLHandler.addTagValue("adaptive_concurrency", adaptiveConcurrency));
+        xml.append("    ").append(XMLHandler.addTagValue("connection_pool_size", connectionPoolSize));
+        xml.append("    ").append(XMLHandler.addTagValue("connect_timeout_ms", connectTimeoutMs));
+        xml.append("    ").append(XMLHandler.addTagValue("read_timeout_ms", readTimeoutMs));
+        xml.append("    ").append(XMLHandler.addTagValue("idle_connection_timeout_ms", idleConnectionTimeoutMs));
+        xml.append("    ").append(XMLHandler.addTagValue("retry_count", retryCount));
+        xml.append("    ").append(XMLHandler.addTagValue("retry_backoff_ms", retryBackoffMs));
+        xml.append("    ").append(XMLHandler.addTagValue("retry_budget_ms", retryBudgetMs));
+        xml.append("    ").append(XMLHandler.addTagValue("health_check_interval_seconds", healthCheckIntervalSeconds));
+        xml.append("    ").append(XMLHandler.addTagValue("circuit_breaker_failures", circuitBreakerFailures));
+        xml.append("    ").append(XMLHandler.addTagValue("circuit_breaker_open_seconds", circuitBreakerOpenSeconds));
+        xml.append("    ").append(XMLHandler.addTagValue("binary_protocol", binaryProtocol));
+        xml.append("    ").append(XMLHandler.addTagValue("warm_up", warmUp));
+        xml.append("    ").append(XMLHandler.addTagValue("warm_up_file", warmUpFile));
+        xml.append("    ").append(XMLHandler.addTagValue("chunk_size", chunkSize));
+        xml.append("    ").append(XMLHandler.addTagValue("chunk_overlap", chunkOverlap));
+        xml.append("    ").append(XMLHandler.addTagValue("max_chunks_per_row", maxChunksPerRow));
+        xml.append("    ").append(XMLHandler.addTagValue("cache_enabled", cacheEnabled));
+        xml.append("    ").append(XMLHandler.addTagValue("cache_capacity", cacheCapacity));
+        xml.append("    ").append(XMLHandler.addTagValue("cache_ttl_seconds", cacheTtlSeconds));
+        xml.append("    ").append(XMLHandler.addTagValue("cache_file", cacheFile));
+        xml.append("    ").append(XMLHandler.addTagValue("journal_file", journalFile));
+        xml.append("    ").append(XMLHandler.addTagValue("journal_key_field", journalKeyField));
+        xml.append("    ").append(XMLHandler.addTagValue("journal_sync_interval_seconds", journalSyncIntervalSeconds));
+        xml.append("    ").append(XMLHandler.addTagValue("normalize_text", normalizeText));
+        xml.append("    ").append(XMLHandler.addTagValue("variant_table_file", variantTableFile));
+        xml.append("    ").append(XMLHandler.addTagValue("duplicate_window", duplicateWindow));
+        xml.append("    ").append(XMLHandler.addTagValue("duplicate_similarity", duplicateSimilarity));
+        xml.append("    ").append(XMLHandler.addTagValue("sampling_mode", samplingMode));
+        xml.append("    ").append(XMLHandler.addTagValue("sample_rate", sampleRate));
+        xml.append("    ").append(XMLHandler.addTagValue("sample_size", sampleSize));
+        xml.append("    ").append(XMLHandler.addTagValue("sample_stratum_field", sampleStratumField));
+        xml.append("    ").append(XMLHandler.addTagValue("metrics_interval_seconds", metricsIntervalSeconds));
+        xml.append("    ").append(XMLHandler.addTagValue("metrics_jmx_enabled", metricsJmxEnabled));
+        xml.append("    ").append(XMLHandler.addTagValue("metrics_file", metricsFile));
+        xml.append("    ").append(XMLHandler.openTag("categories")).append(Const.CR);
+        for (int i = 0; i < categoryCodes.length; i++) {
+            xml.append("      ").append(XMLHandler.openTag("category"));
+            xml.append(XMLHandler.addTagValue("code", categoryCodes[i], false));
+            xml.append(XMLHandler.addTagValue("output_field", categoryOutputFields[i], false));
+            xml.append(XMLHandler.addTagValue("threshold",
+                categoryThresholds[i] < 0 ? "" : String.valueOf(categoryThresholds[i]), false));
+            xml.append(XMLHandler.closeTag("category")).append(Const.CR);
+        }
+        xml.append("    ").append(XMLHandler.closeTag("categories")).append(Const.CR);
+        xml.append("    ").append(XMLHandler.openTag("extra_inputs")).append(Const.CR);
+        for (int i = 0; i < extraInputFields.length; i++) {
+            xml.append("      ").append(XMLHandler.openTag("extra_input"));
+            xml.append(XMLHandler.addTagValue("field", extraInputFields[i], false));
+            xml.append(XMLHandler.addTagValue("output_prefix", extraOutputPrefixes[i], false));
+            xml.append(XMLHandler.closeTag("extra_input")).append(Const.CR);
+        }
+        xml.append("    ").append(XMLHandler.closeTag("extra_inputs")).append(Const.CR);
         return xml.toString();
     }
 
     @Override
     public void loadXML(Node stepnode, List<DatabaseMeta> databases, IMetaStore metaStore) throws KettleXMLException {
         inputTextField = Const.NVL(XMLHandler.getTagValue(stepnode, "input_text_field"), "");
+        mergeFieldVerdicts = "Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, "merge_field_verdicts"));
         serviceUrl = Const.NVL(XMLHandler.getTagValue(stepnode, "service_url"), DEFAULT_SERVICE_URL);
         String th = XMLHandler.getTagValue(stepnode, "threshold");
         threshold = (th != null) ? Double.parseDouble(th) : DEFAULT_THRESHOLD;
         outputSafeField = Const.NVL(XMLHandler.getTagValue(stepnode, "output_safe_field"), "is_safe");
         outputCategoryField = Const.NVL(XMLHandler.getTagValue(stepnode, "output_category_field"), "risk_category");
         outputScoreField = Const.NVL(XMLHandler.getTagValue(stepnode, "output_score_field"), "risk_score");
+        outputDetailsField = Const.NVL(XMLHandler.getTagValue(stepnode, "output_details_field"), "");
+        embeddedInference = "Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, "embedded_inference"));
+        onnxModelDir = Const.NVL(XMLHandler.getTagValue(stepnode, "onnx_model_dir"), "");
+        onnxThreads = Const.toInt(XMLHandler.getTagValue(stepnode, "onnx_threads"), DEFAULT_ONNX_THREADS);
+        outputTierField = Const.NVL(XMLHandler.getTagValue(stepnode, "output_tier_field"), "");
+        preFilterBlockListFile = Const.NVL(XMLHandler.getTagValue(stepnode, "prefilter_block_list_file"), "");
+        preFilterAllowListFile = Const.NVL(XMLHandler.getTagValue(stepnode, "prefilter_allow_list_file"), "");
+        batchSize = Const.toInt(XMLHandler.getTagValue(stepnode, "batch_size"), DEFAULT_BATCH_SIZE);
+        batchFlushTimeoutMs = Const.toInt(XMLHandler.getTagValue(stepnode, "batch_flush_timeout_ms"),
+            DEFAULT_BATCH_FLUSH_TIMEOUT_MS);
+        latencySlaMs = Const.toInt(XMLHandler.getTagValue(stepnode, "latency_sla_ms"), DEFAULT_LATENCY_SLA_MS);
+        priorityField = Const.NVL(XMLHandler.getTagValue(stepnode, "priority_field"), "");
+        maxInFlightRequests = Const.toInt(XMLHandler.getTagValue(stepnode, "max_in_flight_requests"),
+            DEFAULT_MAX_IN_FLIGHT_REQUESTS);
+        adaptiveConcurrency = "Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, "adaptive_concurrency"));
+        connectionPoolSize = Const.toInt(XMLHandler.getTagValue(stepnode, "connection_pool_size"),
+            DEFAULT_CONNECTION_POOL_SIZE);
+        connectTimeoutMs = Const.toInt(XMLHandler.getTagValue(stepnode, "connect_timeout_ms"),
+            DEFAULT_CONNECT_TIMEOUT_MS);
+        readTimeoutMs = Const.toInt(XMLHandler.getTagValue(stepnode, "read_timeout_ms"), DEFAULT_READ_TIMEOUT_MS);
+        idleConnectionTimeoutMs = Const.toInt(XMLHandler.getTagValue(stepnode, "idle_connection_timeout_ms"),
+            DEFAULT_IDLE_CONNECTION_TIMEOUT_MS);
+        retryCount = Const.toInt(XMLHandler.getTagValue(stepnode, "retry_count"), DEFAULT_RETRY_COUNT);
+        retryBackoffMs = Const.toInt(XMLHandler.getTagValue(stepnode, "retry_backoff_ms"), DEFAULT_RETRY_BACKOFF_MS);
+        retryBudgetMs = Const.toInt(XMLHandler.getTagValue(stepnode, "retry_budget_ms"), DEFAULT_RETRY_BUDGET_MS);
+        healthCheckIntervalSeconds = Const.toInt(XMLHandler.getTagValue(stepnode, "health_check_interval_seconds"),
+            DEFAULT_HEALTH_CHECK_INTERVAL_SECONDS);
+        circuitBreakerFailures = Const.toInt(XMLHandler.getTagValue(stepnode, "circuit_breaker_failures"),
+            DEFAULT_CIRCUIT_BREAKER_FAILURES);
+        circuitBreakerOpenSeconds = Const.toInt(XMLHandler.getTagValue(stepnode, "circuit_breaker_open_seconds"),
+            DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS);
+        binaryProtocol = "Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, "binary_protocol"));
+        warmUp = "Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, "warm_up"));
+        warmUpFile = Const.NVL(XMLHandler.getTagValue(stepnode, "warm_up_file"), "");
+        chunkSize = Const.toInt(XMLHandler.getTagValue(stepnode, "chunk_size"), DEFAULT_CHUNK_SIZE);
+        chunkOverlap = Const.toInt(XMLHandler.getTagValue(stepnode, "chunk_overlap"), DEFAULT_CHUNK_OVERLAP);
+        maxChunksPerRow = Const.toInt(XMLHandler.getTagValue(stepnode, "max_chunks_per_row"),
+            DEFAULT_MAX_CHUNKS_PER_ROW);
+        cacheEnabled = "Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, "cache_enabled"));
+        cacheCapacity = Const.toInt(XMLHandler.getTagValue(stepnode, "cache_capacity"), DEFAULT_CACHE_CAPACITY);
+        cacheTtlSeconds = Const.toInt(XMLHandler.getTagValue(stepnode, "cache_ttl_seconds"),
+            DEFAULT_CACHE_TTL_SECONDS);
+        cacheFile = Const.NVL(XMLHandler.getTagValue(stepnode, "cache_file"), "");
+        journalFile = Const.NVL(XMLHandler.getTagValue(stepnode, "journal_file"), "");
+        journalKeyField = Const.NVL(XMLHandler.getTagValue(stepnode, "journal_key_field"), "");
+        journalSyncIntervalSeconds = Const.toInt(XMLHandler.getTagValue(stepnode, "journal_sync_interval_seconds"),
+            DEFAULT_JOURNAL_SYNC_INTERVAL_SECONDS);
+        normalizeText = "Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, "normalize_text"));
+        variantTableFile = Const.NVL(XMLHandler.getTagValue(stepnode, "variant_table_file"), "");
+        duplicateWindow = Const.toInt(XMLHandler.getTagValue(stepnode, "duplicate_window"), DEFAULT_DUPLICATE_WINDOW);
+        duplicateSimilarity = Const.toDouble(XMLHandler.getTagValue(stepnode, "duplicate_similarity"),
+            DEFAULT_DUPLICATE_SIMILARITY);
+        samplingMode = Const.NVL(XMLHandler.getTagValue(stepnode, "sampling_mode"), SAMPLING_NONE);
+        sampleRate = Const.toDouble(XMLHandler.getTagValue(stepnode, "sample_rate"), DEFAULT_SAMPLE_RATE);
+        sampleSize = Const.toInt(XMLHandler.getTagValue(stepnode, "sample_size"), DEFAULT_SAMPLE_SIZE);
+        sampleStratumField = Const.NVL(XMLHandler.getTagValue(stepnode, "sample_stratum_field"), "");
+        metricsIntervalSeconds = Const.toInt(XMLHandler.getTagValue(stepnode, "metrics_interval_seconds"),
+            DEFAULT_METRICS_INTERVAL_SECONDS);
+        metricsJmxEnabled = "Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, "metrics_jmx_enabled"));
+        metricsFile = Const.NVL(XMLHandler.getTagValue(stepnode, "metrics_file"), "");
+        Node categories = XMLHandler.getSubNode(stepnode, "categories");
+        int count = XMLHandler.countNodes(categories, "category");
+        allocateCategories(count);
+        for (int i = 0; i < count; i++) {
+            Node category = XMLHandler.getSubNodeByNr(categories, "category", i);
+            categoryCodes[i] = XMLHandler.getTagValue(category, "code");
+            categoryOutputFields[i] = Const.NVL(XMLHandler.getTagValue(category, "output_field"), "");
+            categoryThresholds[i] = Const.toDouble(XMLHandler.getTagValue(category, "threshold"), -1);
+        }
+        Node extraInputs = XMLHandler.getSubNode(stepnode, "extra_inputs");
+        int extraCount = XMLHandler.countNodes(extraInputs, "extra_input");
+        allocateExtraInputs(extraCount);
+        for (int i = 0; i < extraCount; i++) {
+            Node extraInput = XMLHandler.getSubNodeByNr(extraInputs, "extra_input", i);
+            extraInputFields[i] = Const.NVL(XMLHandler.getTagValue(extraInput, "field"), "");
+            extraOutputPrefixes[i] = Const.NVL(XMLHandler.getTagValue(extraInput, "output_prefix"), "");
+        }
     }
 
     @Override
     public void saveRep(Repository rep, IMetaStore metaStore, ObjectId idTransformation, ObjectId idStep)
             throws KettleException {
         rep.saveStepAttribute(idTransformation, idStep, "input_text_field", inputTextField);
+        rep.saveStepAttribute(idTransformation, idStep, "merge_field_verdicts", mergeFieldVerdicts);
         rep.saveStepAttribute(idTransformation, idStep, "service_url", serviceUrl);
         rep.saveStepAttribute(idTransformation, idStep, "threshold", threshold);
         rep.saveStepAttribute(idTransformation, idStep, "output_safe_field", outputSafeField);
         rep.saveStepAttribute(idTransformation, idStep, "output_category_field", outputCategoryField);
         rep.saveStepAttribute(idTransformation, idStep, "output_score_field", outputScoreField);
+        rep.saveStepAttribute(idTransformation, idStep, "output_details_field", outputDetailsField);
+        rep.saveStepAttribute(idTransformation, idStep, "embedded_inference", embeddedInference);
+        rep.saveStepAttribute(idTransformation, idStep, "onnx_model_dir", onnxModelDir);
+        rep.saveStepAttribute(idTransformation, idStep, "onnx_threads", onnxThreads);
+        rep.saveStepAttribute(idTransformation, idStep, "output_tier_field", outputTierField);
+        rep.saveStepAttribute(idTransformation, idStep, "prefilter_block_list_file", preFilterBlockListFile);
+        rep.saveStepAttribute(idTransformation, idStep, "prefilter_allow_list_file", preFilterAllowListFile);
+        rep.saveStepAttribute(idTransformation, idStep, "batch_size", batchSize);
+        rep.saveStepAttribute(idTransformation, idStep, "batch_flush_timeout_ms", batchFlushTimeoutMs);
+        rep.saveStepAttribute(idTransformation, idStep, "latency_sla_ms", latencySlaMs);
+        rep.saveStepAttribute(idTransformation, idStep, "priority_field", priorityField);
+        rep.saveStepAttribute(idTransformation, idStep, "max_in_flight_requests", maxInFlightRequests);
+        rep.saveStepAttribute(idTransformation, idStep, "adaptive_concurrency", adaptiveConcurrency);
+        rep.saveStepAttribute(idTransformation, idStep, "connection_pool_size", connectionPoolSize);
+        rep.saveStepAttribute(idTransformation, idStep, "connect_timeout_ms", connectTimeoutMs);
+        rep.saveStepAttribute(idTransformation, idStep, "read_timeout_ms", readTimeoutMs);
+        rep.saveStepAttribute(idTransformation, idStep, "idle_connection_timeout_ms", idleConnectionTimeoutMs);
+        rep.saveStepAttribute(idTransformation, idStep, "retry_count", retryCount);
+        rep.saveStepAttribute(idTransformation, idStep, "retry_backoff_ms", retryBackoffMs);
+        rep.saveStepAttribute(idTransformation, idStep, "retry_budget_ms", retryBudgetMs);
+        rep.saveStepAttribute(idTransformation, idStep, "health_check_interval_seconds", healthCheckIntervalSeconds);
+        rep.saveStepAttribute(idTransformation, idStep, "circuit_breaker_failures", circuitBreakerFailures);
+        rep.saveStepAttribute(idTransformation, idStep, "circuit_breaker_open_seconds", circuitBreakerOpenSeconds);
+        rep.saveStepAttribute(idTransformation, idStep, "binary_protocol", binaryProtocol);
+        rep.saveStepAttribute(idTransformation, idStep, "warm_up", warmUp);
+        rep.saveStepAttribute(idTransformation, idStep, "warm_up_file", warmUpFile);
+        rep.saveStepAttribute(idTransformation, idStep, "chunk_size", chunkSize);
+        rep.saveStepAttribute(idTransformation, idStep, "chunk_overlap", chunkOverlap);
+        rep.saveStepAttribute(idTransformation, idStep, "max_chunks_per_row", maxChunksPerRow);
+        rep.saveStepAttribute(idTransformation, idStep, "cache_enabled", cacheEnabled);
+        rep.saveStepAttribute(idTransformation, idStep, "cache_capacity", cacheCapacity);
+        rep.saveStepAttribute(idTransformation, idStep, "cache_ttl_seconds", cacheTtlSeconds);
+        rep.saveStepAttribute(idTransformation, idStep, "cache_file", cacheFile);
+        rep.saveStepAttribute(idTransformation, idStep, "journal_file", journalFile);
+        rep.saveStepAttribute(idTransformation, idStep, "journal_key_field", journalKeyField);
+        rep.saveStepAttribute(idTransformation, idStep, "journal_sync_interval_seconds", journalSyncIntervalSeconds);
+        rep.saveStepAttribute(idTransformation, idStep, "normalize_text", normalizeText);
+        rep.saveStepAttribute(idTransformation, idStep, "variant_table_file", variantTableFile);
+        rep.saveStepAttribute(idTransformation, idStep, "duplicate_window", duplicateWindow);
+        rep.saveStepAttribute(idTransformation, idStep, "duplicate_similarity", duplicateSimilarity);
+        rep.saveStepAttribute(idTransformation, idStep, "sampling_mode", samplingMode);
+        rep.saveStepAttribute(idTransformation, idStep, "sample_rate", sampleRate);
+        rep.saveStepAttribute(idTransformation, idStep, "sample_size", sampleSize);
+        rep.saveStepAttribute(idTransformation, idStep, "sample_stratum_field", sampleStratumField);
+        rep.saveStepAttribute(idTransformation, idStep, "metrics_interval_seconds", metricsIntervalSeconds);
+        rep.saveStepAttribute(idTransformation, idStep, "metrics_jmx_enabled", metricsJmxEnabled);
+        rep.saveStepAttribute(idTransformation, idStep, "metrics_file", metricsFile);
+        for (int i = 0; i < categoryCodes.length; i++) {
+            rep.saveStepAttribute(idTransformation, idStep, i, "category_code", categoryCodes[i]);
+            rep.saveStepAttribute(idTransformation, idStep, i, "category_output_field", categoryOutputFields[i]);
+            rep.saveStepAttribute(idTransformation, idStep, i, "category_threshold", categoryThresholds[i]);
+        }
+        for (int i = 0; i < extraInputFields.length; i++) {
+            rep.saveStepAttribute(idTransformation, idStep, i, "extra_input_field", extraInputFields[i]);
+            rep.saveStepAttribute(idTransformation, idStep, i, "extra_output_prefix", extraOutputPrefixes[i]);
+        }
     }
 
     @Override
     public void readRep(Repository rep, IMetaStore metaStore, ObjectId idStep, List<DatabaseMeta> databases)
             throws KettleException {
         inputTextField = Const.NVL(rep.getStepAttributeString(idStep, "input_text_field"), "");
+        mergeFieldVerdicts = rep.getStepAttributeBoolean(idStep, "merge_field_verdicts");
         serviceUrl = Const.NVL(rep.getStepAttributeString(idStep, "service_url"), DEFAULT_SERVICE_URL);
-        String th = rep.getStepAttributeString(idStep, "threshold");
-        threshold = (th != null && !th.isEmpty()) ? Double.parseDouble(th) : DEFAULT_THRESHOLD;
+        threshold = readNumber(rep, idStep, "threshold", DEFAULT_THRESHOLD);
         outputSafeField = Const.NVL(rep.getStepAttributeString(idStep, "output_safe_field"), "is_safe");
         outputCategoryField = Const.NVL(rep.getStepAttributeString(idStep, "output_category_field"), "risk_category");
         outputScoreField = Const.NVL(rep.getStepAttributeString(idStep, "output_score_field"), "risk_score");
+        outputDetailsField = Const.NVL(rep.getStepAttributeString(idStep, "output_details_field"), "");
+        embeddedInference = rep.getStepAttributeBoolean(idStep, "embedded_inference");
+        onnxModelDir = Const.NVL(rep.getStepAttributeString(idStep, "onnx_model_dir"), "");
+        onnxThreads = readInt(rep, idStep, "onnx_threads", DEFAULT_ONNX_THREADS);
+        outputTierField = Const.NVL(rep.getStepAttributeString(idStep, "output_tier_field"), "");
+        preFilterBlockListFile = Const.NVL(rep.getStepAttributeString(idStep, "prefilter_block_list_file"), "");
+        preFilterAllowListFile = Const.NVL(rep.getStepAttributeString(idStep, "prefilter_allow_list_file"), "");
+        batchSize = readInt(rep, idStep, "batch_size", DEFAULT_BATCH_SIZE);
+        batchFlushTimeoutMs = readInt(rep, idStep, "batch_flush_timeout_ms", DEFAULT_BATCH_FLUSH_TIMEOUT_MS);
+        latencySlaMs = readInt(rep, idStep, "latency_sla_ms", DEFAULT_LATENCY_SLA_MS);
+        priorityField = Const.NVL(rep.getStepAttributeString(idStep, "priority_field"), "");
+        maxInFlightRequests = readInt(rep, idStep, "max_in_flight_requests", DEFAULT_MAX_IN_FLIGHT_REQUESTS);
+        adaptiveConcurrency = rep.getStepAttributeBoolean(idStep, "adaptive_concurrency");
+        connectionPoolSize = readInt(rep, idStep, "connection_pool_size", DEFAULT_CONNECTION_POOL_SIZE);
+        connectTimeoutMs = readInt(rep, idStep, "connect_timeout_ms", DEFAULT_CONNECT_TIMEOUT_MS);
+        readTimeoutMs = readInt(rep, idStep, "read_timeout_ms", DEFAULT_READ_TIMEOUT_MS);
+        idleConnectionTimeoutMs = readInt(rep, idStep, "idle_connection_timeout_ms", DEFAULT_IDLE_CONNECTION_TIMEOUT_MS);
+        retryCount = readInt(rep, idStep, "retry_count", DEFAULT_RETRY_COUNT);
+        retryBackoffMs = readInt(rep, idStep, "retry_backoff_ms", DEFAULT_RETRY_BACKOFF_MS);
+        retryBudgetMs = readInt(rep, idStep, "retry_budget_ms", DEFAULT_RETRY_BUDGET_MS);
+        healthCheckIntervalSeconds = readInt(rep, idStep, "health_check_interval_seconds", DEFAULT_HEALTH_CHECK_INTERVAL_SECONDS);
+        circuitBreakerFailures = readInt(rep, idStep, "circuit_breaker_failures", DEFAULT_CIRCUIT_BREAKER_FAILURES);
+        circuitBreakerOpenSeconds = readInt(rep, idStep, "circuit_breaker_open_seconds", DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS);
+        binaryProtocol = rep.getStepAttributeBoolean(idStep, "binary_protocol");
+        warmUp = rep.getStepAttributeBoolean(idStep, "warm_up");
+        warmUpFile = Const.NVL(rep.getStepAttributeString(idStep, "warm_up_file"), "");
+        chunkSize = readInt(rep, idStep, "chunk_size", DEFAULT_CHUNK_SIZE);
+        chunkOverlap = readInt(rep, idStep, "chunk_overlap", DEFAULT_CHUNK_OVERLAP);
+        maxChunksPerRow = readInt(rep, idStep, "max_chunks_per_row", DEFAULT_MAX_CHUNKS_PER_ROW);
+        cacheEnabled = rep.getStepAttributeBoolean(idStep, "cache_enabled");
+        cacheCapacity = readInt(rep, idStep, "cache_capacity", DEFAULT_CACHE_CAPACITY);
+        cacheTtlSeconds = readInt(rep, idStep, "cache_ttl_seconds", DEFAULT_CACHE_TTL_SECONDS);
+        cacheFile = Const.NVL(rep.getStepAttributeString(idStep, "cache_file"), "");
+        journalFile = Const.NVL(rep.getStepAttributeString(idStep, "journal_file"), "");
+        journalKeyField = Const.NVL(rep.getStepAttributeString(idStep, "journal_key_field"), "");
+        journalSyncIntervalSeconds = readInt(rep, idStep, "journal_sync_interval_seconds", DEFAULT_JOURNAL_SYNC_INTERVAL_SECONDS);
+        normalizeText = rep.getStepAttributeBoolean(idStep, "normalize_text");
+        variantTableFile = Const.NVL(rep.getStepAttributeString(idStep, "variant_table_file"), "");
+        duplicateWindow = readInt(rep, idStep, "duplicate_window", DEFAULT_DUPLICATE_WINDOW);
+        duplicateSimilarity = readNumber(rep, idStep, "duplicate_similarity", DEFAULT_DUPLICATE_SIMILARITY);
+        samplingMode = Const.NVL(rep.getStepAttributeString(idStep, "sampling_mode"), SAMPLING_NONE);
+        sampleRate = readNumber(rep, idStep, "sample_rate", DEFAULT_SAMPLE_RATE);
+        sampleSize = readInt(rep, idStep, "sample_size", DEFAULT_SAMPLE_SIZE);
+        sampleStratumField = Const.NVL(rep.getStepAttributeString(idStep, "sample_stratum_field"), "");
+        metricsIntervalSeconds = readInt(rep, idStep, "metrics_interval_seconds", DEFAULT_METRICS_INTERVAL_SECONDS);
+        metricsJmxEnabled = rep.getStepAttributeBoolean(idStep, "metrics_jmx_enabled");
+        metricsFile = Const.NVL(rep.getStepAttributeString(idStep, "metrics_file"), "");
+        int count = rep.countNrStepAttributes(idStep, "category_code");
+        allocateCategories(count);
+        for (int i = 0; i < count; i++) {
+            categoryCodes[i] = rep.getStepAttributeString(idStep, i, "category_code");
+            categoryOutputFields[i] = Const.NVL(rep.getStepAttributeString(idStep, i, "category_output_field"), "");
+            // Saved as text by earlier versions, as a number (negative for none) since
+            String savedThreshold = rep.getStepAttributeString(idStep, i, "category_threshold");
+            categoryThresholds[i] = savedThreshold != null
+                ? Const.toDouble(savedThreshold, -1) : rep.getStepAttributeNumber(idStep, i, "category_threshold");
+        }
+        int extraCount = rep.countNrStepAttributes(idStep, "extra_input_field");
+        allocateExtraInputs(extraCount);
+        for (int i = 0; i < extraCount; i++) {
+            extraInputFields[i] = Const.NVL(rep.getStepAttributeString(idStep, i, "extra_input_field"), "");
+            extraOutputPrefixes[i] = Const.NVL(rep.getStepAttributeString(idStep, i, "extra_output_prefix"), "");
+        }
+    }
+
+    /**
+     * Reads a setting saved as an integer. A database repository keeps numbers apart from
+     * strings, so they must be read back as numbers; a setting missing from an older
+     * transformation gets its default.
+     */
+    private static int readInt(Repository rep, ObjectId idStep, String code, int defaultValue)
+            throws KettleException {
+        return rep.countNrStepAttributes(idStep, code) > 0 ? (int) rep.getStepAttributeInteger(idStep, code)
+            : defaultValue;
+    }
+
+    /** Reads a setting saved as a number, see {@link #readInt}. */
+    private static double readNumber(Repository rep, ObjectId idStep, String code, double defaultValue)
+            throws KettleException {
+        return rep.countNrStepAttributes(idStep, code) > 0 ? rep.getStepAttributeNumber(idStep, code) : defaultValue;
     }
 
 
@@ -147,18 +847,44 @@ public class TextSafetyCheckStepMeta extends BaseStepMeta implements StepMetaInt
     public void getFields(RowMetaInterface inputRowMeta, String stepName, RowMetaInterface[] info,
                           StepMeta nextStep, VariableSpace space, Repository repository, IMetaStore metaStore)
             throws KettleStepException {
-        // Append output fields to the row metadata
-        ValueMetaInterface safeMeta = new ValueMetaBoolean(outputSafeField);
+        // Append one set of output fields per checked field (a single set when verdicts are merged)
+        for (String prefix : getOutputPrefixes()) {
+            addResultFields(inputRowMeta, prefix, stepName);
+        }
+    }
+
+    private void addResultFields(RowMetaInterface inputRowMeta, String prefix, String stepName) {
+        ValueMetaInterface safeMeta = new ValueMetaBoolean(prefix + outputSafeField);
         safeMeta.setOrigin(stepName);
         inputRowMeta.addValueMeta(safeMeta);
 
-        ValueMetaInterface catMeta = new ValueMetaString(outputCategoryField);
+        ValueMetaInterface catMeta = new ValueMetaString(prefix + outputCategoryField);
         catMeta.setOrigin(stepName);
         inputRowMeta.addValueMeta(catMeta);
 
-        ValueMetaInterface scoreMeta = new ValueMetaNumber(outputScoreField);
+        ValueMetaInterface scoreMeta = new ValueMetaNumber(prefix + outputScoreField);
         scoreMeta.setOrigin(stepName);
         inputRowMeta.addValueMeta(scoreMeta);
+
+        if (!Const.isEmpty(outputDetailsField)) {
+            ValueMetaInterface detailsMeta = new ValueMetaString(prefix + outputDetailsField);
+            detailsMeta.setOrigin(stepName);
+            inputRowMeta.addValueMeta(detailsMeta);
+        }
+
+        for (String field : categoryOutputFields) {
+            if (!Const.isEmpty(field)) {
+                ValueMetaInterface categoryScoreMeta = new ValueMetaNumber(prefix + field);
+                categoryScoreMeta.setOrigin(stepName);
+                inputRowMeta.addValueMeta(categoryScoreMeta);
+            }
+        }
+
+        if (!Const.isEmpty(outputTierField)) {
+            ValueMetaInterface tierMeta = new ValueMetaString(prefix + outputTierField);
+            tierMeta.setOrigin(stepName);
+            inputRowMeta.addValueMeta(tierMeta);
+        }
     }
 
     @Override
@@ -172,6 +898,12 @@ public class TextSafetyCheckStepMeta extends BaseStepMeta implements StepMetaInt
         return new TextSafetyCheckStepData();
     }
 
+    /** Rows whose check fails can be sent to an error hop instead of being marked api_error. */
+    @Override
+    public boolean supportsErrorHandling() {
+        return true;
+    }
+
     @Override
     public void check(List<CheckResultInterface> remarks, TransMeta transMeta, StepMeta stepMeta,
                       RowMetaInterface prev, String[] input, String[] output, RowMetaInterface info,
@@ -180,9 +912,183 @@ public class TextSafetyCheckStepMeta extends BaseStepMeta implements StepMetaInt
             remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
                 "Input text field must be specified", stepMeta));
         }
-        if (Const.isEmpty(serviceUrl)) {
+        for (int i = 0; i < extraInputFields.length; i++) {
+            if (Const.isEmpty(extraInputFields[i])) {
+                remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                    "Additional input field " + (i + 1) + " must name a field", stepMeta));
+            } else if (!mergeFieldVerdicts && Const.isEmpty(extraOutputPrefixes[i])) {
+                remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                    "Output prefix must be specified for additional input field " + extraInputFields[i], stepMeta));
+            } else if (!mergeFieldVerdicts && Arrays.asList(extraOutputPrefixes).indexOf(extraOutputPrefixes[i]) != i) {
+                remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                    "Output prefix used more than once: " + extraOutputPrefixes[i], stepMeta));
+            }
+        }
+        if (mergeFieldVerdicts && extraInputFields.length == 0) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_WARNING,
+                "Merging field verdicts has no effect without additional input fields", stepMeta));
+        }
+        if (embeddedInference) {
+            if (Const.isEmpty(onnxModelDir)) {
+                remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                    "ONNX model directory must be specified for embedded inference", stepMeta));
+            }
+            if (onnxThreads < 0) {
+                remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                    "ONNX threads must not be negative", stepMeta));
+            }
+            try {
+                Class.forName("ai.onnxruntime.OrtEnvironment", false, getClass().getClassLoader());
+            } catch (ClassNotFoundException e) {
+                remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                    "Embedded inference needs " + OnnxSafetyEngine.RUNTIME_JAR + " in the plugin's lib folder",
+                    stepMeta));
+            }
+        } else if (Const.isEmpty(serviceUrl)) {
             remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
                 "Safety service URL must be specified", stepMeta));
         }
+        if (batchSize < 1) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                "Batch size must be at least 1", stepMeta));
+        }
+        if (batchFlushTimeoutMs < 0) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                "Batch flush timeout must not be negative", stepMeta));
+        }
+        if (latencySlaMs < 0) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                "Latency SLA must not be negative", stepMeta));
+        } else if (latencySlaMs > 0 && batchSize > 1 && batchFlushTimeoutMs < latencySlaMs) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_WARNING,
+                "Batch flush timeout is shorter than the latency SLA and sends batches first", stepMeta));
+        }
+        if (!Const.isEmpty(priorityField) && prev != null && prev.indexOfValue(priorityField) < 0) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                "Priority field not found in input: " + priorityField, stepMeta));
+        }
+        if (maxInFlightRequests < 1) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                "Max in-flight requests must be at least 1", stepMeta));
+        } else if (adaptiveConcurrency && maxInFlightRequests == 1) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_WARNING,
+                "Adaptive concurrency has no effect while max in-flight requests, its upper bound, is 1", stepMeta));
+        }
+        if (connectionPoolSize < 1) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                "Connection pool size must be at least 1", stepMeta));
+        } else if (connectionPoolSize < maxInFlightRequests) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_WARNING,
+                "Connection pool size is smaller than max in-flight requests; "
+                    + "requests will wait for a free connection", stepMeta));
+        }
+        if (connectTimeoutMs < 0 || readTimeoutMs < 0 || idleConnectionTimeoutMs < 0) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                "Timeouts must not be negative", stepMeta));
+        }
+        if (retryCount < 0 || retryBackoffMs < 0 || retryBudgetMs < 0) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                "Retry count, backoff and time budget must not be negative", stepMeta));
+        }
+        if (healthCheckIntervalSeconds < 0 || circuitBreakerOpenSeconds < 0) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                "Health check interval and circuit breaker open time must not be negative", stepMeta));
+        }
+        if (circuitBreakerFailures < 1) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                "Circuit breaker failures must be at least 1", stepMeta));
+        }
+        if (chunkSize < 0) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                "Chunk size must not be negative", stepMeta));
+        } else if (chunkSize > 0) {
+            if (chunkOverlap < 0 || chunkOverlap >= chunkSize) {
+                remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                    "Chunk overlap must be at least 0 and smaller than the chunk size", stepMeta));
+            }
+            if (maxChunksPerRow < 1) {
+                remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                    "Max chunks per row must be at least 1", stepMeta));
+            }
+        }
+        if (cacheEnabled && cacheCapacity < 1) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                "Result cache capacity must be at least 1", stepMeta));
+        }
+        if (!warmUp && !Const.isEmpty(warmUpFile)) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_WARNING,
+                "Warm-up texts file is only used when warm-up is on", stepMeta));
+        }
+        if (cacheEnabled && cacheTtlSeconds < 0) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                "Result cache TTL must not be negative", stepMeta));
+        }
+        if (!Const.isEmpty(journalFile)) {
+            if (journalSyncIntervalSeconds < 0) {
+                remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                    "Journal sync interval must not be negative", stepMeta));
+            }
+            if (!Const.isEmpty(journalKeyField) && prev != null && prev.indexOfValue(journalKeyField) < 0) {
+                remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                    "Journal key field not found in input: " + journalKeyField, stepMeta));
+            }
+        } else if (!Const.isEmpty(journalKeyField)) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_WARNING,
+                "Journal key field is only used when a journal file is set", stepMeta));
+        }
+        if (duplicateWindow < 0) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                "Near-duplicate window must not be negative", stepMeta));
+        }
+        if (duplicateWindow > 0 && !(duplicateSimilarity > 0.0 && duplicateSimilarity <= 1.0)) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                "Near-duplicate similarity must be greater than 0 and at most 1", stepMeta));
+        }
+        if (!normalizeText && !Const.isEmpty(variantTableFile)) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_WARNING,
+                "Chinese variant table is only used when text normalization is on", stepMeta));
+        }
+        if (!Arrays.asList(SAMPLING_MODES).contains(samplingMode)) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                "Unknown sampling mode: " + samplingMode, stepMeta));
+        } else if (SAMPLING_RATE.equals(samplingMode) && !(sampleRate > 0.0 && sampleRate <= 1.0)) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                "Sample rate must be greater than 0 and at most 1", stepMeta));
+        } else if ((SAMPLING_RESERVOIR.equals(samplingMode) || SAMPLING_STRATIFIED.equals(samplingMode))
+                && sampleSize < 1) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                "Sample size must be at least 1", stepMeta));
+        }
+        if (SAMPLING_STRATIFIED.equals(samplingMode)) {
+            if (Const.isEmpty(sampleStratumField)) {
+                remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                    "Stratified sampling needs a stratum field", stepMeta));
+            } else if (prev != null && prev.indexOfValue(sampleStratumField) < 0) {
+                remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                    "Stratum field not found in input: " + sampleStratumField, stepMeta));
+            }
+        } else if (!Const.isEmpty(sampleStratumField)) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_WARNING,
+                "Stratum field is only used by stratified sampling", stepMeta));
+        }
+        if (metricsIntervalSeconds < 0) {
+            remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                "Metrics interval must not be negative", stepMeta));
+        }
+        for (int i = 0; i < categoryCodes.length; i++) {
+            String code = categoryCodes[i];
+            int id = RiskCategories.idOf(code);
+            if (id < 0 || SafetyResult.SAFE_CATEGORY.equals(code)) {
+                remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                    "Unknown risk category: " + code, stepMeta));
+            } else if (Arrays.asList(categoryCodes).indexOf(code) != i) {
+                remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                    "Risk category listed more than once: " + code, stepMeta));
+            }
+            if (categoryThresholds[i] > 1) {
+                remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+                    "Threshold for risk category " + code + " must be between 0 and 1", stepMeta));
+            }
+        }
     }
 }
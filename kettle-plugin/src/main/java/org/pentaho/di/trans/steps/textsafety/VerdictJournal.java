@@ -0,0 +1,415 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only journal of the verdicts a step has produced, kept in a memory-mapped
+ * file, so that a run that died part way can be restarted without checking the
+ * rows it already got through again.
+ * <p>
+ * Each record holds a 128-bit key (of a row identity value or of the text), the
+ * is_safe / risk_category / risk_score triple and, when the step outputs them, the
+ * per-category scores as floats, followed by a checksum: 32 bytes, or 148 with
+ * scores. The file grows in 64 MB mapped chunks; a record torn by a crash fails its
+ * checksum and ends the journal when it is reopened. An in-memory open-addressing
+ * table of 8 bytes per slot maps each key to its latest record, so a later record
+ * of a key supersedes the earlier ones.
+ * </p>
+ * <p>
+ * Dirty pages are forced to disk at a fixed interval (a checkpoint), which bounds
+ * what a machine crash can lose; records written before the JVM itself dies are
+ * kept by the operating system. When superseded records make up more than half
+ * of the journal it is compacted on open: the live records are copied to a new
+ * file that replaces it.
+ * </p>
+ * <p>
+ * Journals are shared per JVM like {@link ResultCache}: {@link #acquire} in
+ * {@code init()}, {@link #release} in {@code dispose()}; step copies and worker
+ * threads append under one lock. The file is locked against other processes.
+ * </p>
+ */
+public class VerdictJournal {
+
+    private static final int MAGIC = 0x54534a4c; // "TSJL"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    /** Record without per-category scores: key hi, key lo, score, category id + 1, is_safe, score count, checksum. */
+    private static final int RECORD_BYTES = 32;
+    private static final int DETAILS_OFFSET = 28;
+    private static final int MAX_RECORD_BYTES = RECORD_BYTES + 4 * RiskCategories.count();
+    private static final long CHUNK_BYTES = 64L << 20;
+    /** Compaction is not worth it below this many superseded records. */
+    private static final long MIN_COMPACT_RECORDS = 100_000;
+    private static final int INITIAL_SLOTS = 1 << 16;
+    /** Table slots hold a record offset in 4-byte units (plus one, 0 marks a free slot) under a tag of the key. */
+    private static final int OFFSET_BITS = 36;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private static final Map<String, VerdictJournal> SHARED = new HashMap<>();
+
+    private final String path;
+    private final RandomAccessFile raf;
+    private final FileLock lock;
+    private final long syncIntervalMs;
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+    private long[] table = new long[INITIAL_SLOTS];
+    private int verdicts;
+    private long records;
+    private long end;
+    private long syncedEnd;
+    private long nextSync;
+    private long compactedRecords;
+    private int references;
+
+    private VerdictJournal(String path, long syncIntervalMs) throws IOException {
+        this.path = path;
+        this.syncIntervalMs = syncIntervalMs;
+        File file = new File(path);
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + parent);
+        }
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            lock = raf.getChannel().tryLock();
+            if (lock == null) {
+                throw new IOException("Verdict journal " + path + " is in use by another process");
+            }
+            long length = raf.length();
+            if (length == 0) {
+                chunk(0).putInt(0, MAGIC).putInt(4, VERSION);
+            } else {
+                if (length % CHUNK_BYTES != 0) {
+                    throw new IOException(path + " is not a verdict journal");
+                }
+                for (long offset = 0; offset < length; offset += CHUNK_BYTES) {
+                    chunks.add(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, offset, CHUNK_BYTES));
+                }
+                if (chunks.get(0).getInt(0) != MAGIC || chunks.get(0).getInt(4) != VERSION) {
+                    throw new IOException(path + " is not a verdict journal of this version");
+                }
+            }
+            replay();
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+        syncedEnd = end;
+        nextSync = System.currentTimeMillis() + syncIntervalMs;
+    }
+
+    /**
+     * Returns the shared journal kept in the given file, opening (and if worthwhile
+     * compacting) it on first use.
+     *
+     * @param path           journal file, created when missing
+     * @param syncIntervalMs time between checkpoints, 0 to force the file to disk on close only
+     * @throws IOException if the file cannot be opened, is locked by another process or is not a journal
+     */
+    public static synchronized VerdictJournal acquire(String path, long syncIntervalMs) throws IOException {
+        String key = new File(path).getAbsolutePath();
+        VerdictJournal journal = SHARED.get(key);
+        if (journal == null) {
+            journal = open(key, syncIntervalMs);
+            SHARED.put(key, journal);
+        }
+        journal.references++;
+        return journal;
+    }
+
+    /**
+     * Gives back a journal obtained from {@link #acquire}; the last release checkpoints and closes it.
+     */
+    public static synchronized void release(VerdictJournal journal) throws IOException {
+        if (journal == null || --journal.references > 0) {
+            return;
+        }
+        SHARED.remove(journal.path);
+        journal.close();
+    }
+
+    private static VerdictJournal open(String path, long syncIntervalMs) throws IOException {
+        VerdictJournal journal = new VerdictJournal(path, syncIntervalMs);
+        long superseded = journal.records - journal.verdicts;
+        if (superseded < MIN_COMPACT_RECORDS || superseded <= journal.verdicts) {
+            return journal;
+        }
+        File compact = new File(path + ".compact");
+        Files.deleteIfExists(compact.toPath());
+        VerdictJournal copy = new VerdictJournal(compact.getPath(), 0);
+        try {
+            for (long p = VerdictJournal.recordStart(HEADER_BYTES); journal.recordLength(p) > 0;
+                    p = VerdictJournal.recordStart(p + journal.recordLength(p))) {
+                MappedByteBuffer buffer = journal.chunks.get((int) (p / CHUNK_BYTES));
+                int pos = (int) (p % CHUNK_BYTES);
+                long hi = buffer.getLong(pos);
+                long lo = buffer.getLong(pos + 8);
+                if (VerdictJournal.offsetOf(journal.table[journal.slotOf(hi, lo)]) == p) {
+                    copy.append(hi, lo, journal.read(buffer, pos, true));
+                }
+            }
+        } finally {
+            copy.close();
+            journal.close();
+        }
+        try {
+            Files.move(compact.toPath(), new File(path).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Typically a platform that cannot replace a mapped file; keep the journal as it is
+            Files.deleteIfExists(compact.toPath());
+            return new VerdictJournal(path, syncIntervalMs);
+        }
+        VerdictJournal compacted = new VerdictJournal(path, syncIntervalMs);
+        compacted.compactedRecords = superseded;
+        return compacted;
+    }
+
+    /**
+     * Key of a row by the value of its identity field, for the checked field with the
+     * given position, at the given threshold.
+     */
+    public static ResultCache.Key rowKey(String id, int field, double threshold) {
+        return ResultCache.key("\u0001" + field + "\u0001" + id, threshold);
+    }
+
+    /** Key of a text by its content, at the given threshold (as cached, see {@link ResultCache#key}). */
+    public static ResultCache.Key textKey(String text, double threshold) {
+        return ResultCache.key(text, threshold);
+    }
+
+    /**
+     * Returns the latest verdict recorded for the key, or null. With {@code withDetails},
+     * a verdict recorded without per-category scores counts as missing.
+     */
+    public synchronized SafetyResult get(ResultCache.Key key, boolean withDetails) {
+        long offset = offsetOf(table[slotOf(key.hi, key.lo)]);
+        if (offset < 0) {
+            return null;
+        }
+        MappedByteBuffer buffer = chunks.get((int) (offset / CHUNK_BYTES));
+        int pos = (int) (offset % CHUNK_BYTES);
+        if (withDetails && buffer.get(pos + 26) == 0) {
+            return null;
+        }
+        return read(buffer, pos, withDetails);
+    }
+
+    /**
+     * Appends a verdict, superseding any earlier one of the key, and checkpoints when
+     * one is due. Results whose category is not a known model code are not recorded.
+     */
+    public synchronized void put(ResultCache.Key key, SafetyResult result) throws IOException {
+        if (RiskCategories.idOf(result.getRiskCategory()) < 0) {
+            return;
+        }
+        append(key.hi, key.lo, result);
+        if (syncIntervalMs > 0 && System.currentTimeMillis() >= nextSync) {
+            checkpoint();
+        }
+    }
+
+    /** Number of keys with a verdict. */
+    public synchronized int getVerdictCount() {
+        return verdicts;
+    }
+
+    /** Number of superseded records dropped when the journal was compacted on open. */
+    public long getCompactedRecords() {
+        return compactedRecords;
+    }
+
+    private void append(long hi, long lo, SafetyResult result) throws IOException {
+        double[] details = result.getRiskDetails();
+        int count = details != null ? details.length : 0;
+        int length = RECORD_BYTES + 4 * count;
+        long offset = recordStart(end);
+        MappedByteBuffer buffer = chunk((int) (offset / CHUNK_BYTES));
+        int pos = (int) (offset % CHUNK_BYTES);
+        buffer.putLong(pos, hi);
+        buffer.putLong(pos + 8, lo);
+        buffer.putDouble(pos + 16, result.getRiskScore());
+        buffer.put(pos + 24, (byte) (RiskCategories.idOf(result.getRiskCategory()) + 1));
+        buffer.put(pos + 25, (byte) (result.isSafe() ? 1 : 0));
+        buffer.put(pos + 26, (byte) count);
+        buffer.put(pos + 27, (byte) 0);
+        for (int id = 0; id < count; id++) {
+            buffer.putFloat(pos + DETAILS_OFFSET + id * 4, (float) details[id]);
+        }
+        buffer.putInt(pos + length - 4, checksum(buffer, pos, length - 4));
+        end = offset + length;
+        records++;
+        index(hi, lo, offset);
+    }
+
+    private SafetyResult read(MappedByteBuffer buffer, int pos, boolean withDetails) {
+        int count = buffer.get(pos + 26) & 0xff;
+        double[] details = null;
+        if (withDetails && count > 0) {
+            details = new double[count];
+            for (int id = 0; id < count; id++) {
+                details[id] = buffer.getFloat(pos + DETAILS_OFFSET + id * 4);
+            }
+        }
+        String category = RiskCategories.codeOf((buffer.get(pos + 24) & 0xff) - 1);
+        return new SafetyResult(buffer.get(pos + 25) != 0, category, buffer.getDouble(pos + 16), details);
+    }
+
+    /**
+     * Indexes the records of an existing file, up to the first that is missing or torn.
+     * Whatever follows is cleared, so that records appended from there on are never
+     * followed by older ones on the next replay.
+     */
+    private void replay() throws IOException {
+        long p = recordStart(HEADER_BYTES);
+        for (int length = recordLength(p); length > 0; length = recordLength(p)) {
+            MappedByteBuffer buffer = chunks.get((int) (p / CHUNK_BYTES));
+            int pos = (int) (p % CHUNK_BYTES);
+            index(buffer.getLong(pos), buffer.getLong(pos + 8), p);
+            records++;
+            p = recordStart(p + length);
+        }
+        end = p;
+        int last = (int) (p / CHUNK_BYTES);
+        if (last < chunks.size()) {
+            MappedByteBuffer buffer = chunks.get(last);
+            for (int pos = (int) (p % CHUNK_BYTES); pos < CHUNK_BYTES; pos += 4) {
+                if (buffer.getInt(pos) != 0) {
+                    buffer.putInt(pos, 0);
+                }
+            }
+        }
+        if (chunks.size() > last + 1) {
+            chunks.subList(last + 1, chunks.size()).clear();
+            raf.setLength((last + 1) * CHUNK_BYTES);
+        }
+    }
+
+    /** Length of the valid record at the offset, or 0 when there is none. */
+    private int recordLength(long offset) {
+        int chunk = (int) (offset / CHUNK_BYTES);
+        if (chunk >= chunks.size()) {
+            return 0;
+        }
+        MappedByteBuffer buffer = chunks.get(chunk);
+        int pos = (int) (offset % CHUNK_BYTES);
+        int category = buffer.get(pos + 24) & 0xff;
+        int count = buffer.get(pos + 26) & 0xff;
+        if (category == 0 || category > RiskCategories.count()
+                || count != 0 && count != RiskCategories.count()) {
+            return 0;
+        }
+        int length = RECORD_BYTES + 4 * count;
+        return buffer.getInt(pos + length - 4) == checksum(buffer, pos, length - 4) ? length : 0;
+    }
+
+    /** Records never straddle chunks: one that might not fit starts the next chunk. */
+    private static long recordStart(long offset) {
+        return offset % CHUNK_BYTES + MAX_RECORD_BYTES > CHUNK_BYTES
+            ? (offset / CHUNK_BYTES + 1) * CHUNK_BYTES
+            : offset;
+    }
+
+    private MappedByteBuffer chunk(int index) throws IOException {
+        while (chunks.size() <= index) {
+            long offset = chunks.size() * CHUNK_BYTES;
+            raf.setLength(offset + CHUNK_BYTES);
+            chunks.add(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, offset, CHUNK_BYTES));
+        }
+        return chunks.get(index);
+    }
+
+    private void index(long hi, long lo, long offset) {
+        int slot = slotOf(hi, lo);
+        if (table[slot] == 0) {
+            if ((verdicts + 1) * 4L > table.length * 3L) {
+                resize();
+                slot = slotOf(hi, lo);
+            }
+            verdicts++;
+        }
+        table[slot] = (hi >>> OFFSET_BITS) << OFFSET_BITS | ((offset >>> 2) + 1);
+    }
+
+    /** Slot holding the key, or the free slot where it belongs. */
+    private int slotOf(long hi, long lo) {
+        int mask = table.length - 1;
+        long tag = hi >>> OFFSET_BITS;
+        for (int slot = (int) lo & mask; ; slot = (slot + 1) & mask) {
+            long entry = table[slot];
+            if (entry == 0) {
+                return slot;
+            }
+            if (entry >>> OFFSET_BITS == tag) {
+                long offset = offsetOf(entry);
+                MappedByteBuffer buffer = chunks.get((int) (offset / CHUNK_BYTES));
+                int pos = (int) (offset % CHUNK_BYTES);
+                if (buffer.getLong(pos) == hi && buffer.getLong(pos + 8) == lo) {
+                    return slot;
+                }
+            }
+        }
+    }
+
+    private void resize() {
+        long[] old = table;
+        table = new long[old.length * 2];
+        int mask = table.length - 1;
+        for (long entry : old) {
+            if (entry != 0) {
+                long offset = offsetOf(entry);
+                int slot = (int) chunks.get((int) (offset / CHUNK_BYTES)).getLong((int) (offset % CHUNK_BYTES) + 8)
+                    & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = entry;
+            }
+        }
+    }
+
+    /** Record offset of a table entry, or -1 for a free slot. */
+    private static long offsetOf(long entry) {
+        return entry == 0 ? -1 : ((entry & OFFSET_MASK) - 1) << 2;
+    }
+
+    private static int checksum(MappedByteBuffer buffer, int pos, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i += 4) {
+            h = (h ^ buffer.getInt(pos + i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /** Forces the chunks written since the last checkpoint to disk. */
+    private void checkpoint() {
+        for (int c = (int) (syncedEnd / CHUNK_BYTES); c < chunks.size(); c++) {
+            chunks.get(c).force();
+        }
+        syncedEnd = end;
+        nextSync = System.currentTimeMillis() + syncIntervalMs;
+    }
+
+    private synchronized void close() throws IOException {
+        try {
+            checkpoint();
+            lock.release();
+        } finally {
+            raf.close();
+        }
+    }
+}
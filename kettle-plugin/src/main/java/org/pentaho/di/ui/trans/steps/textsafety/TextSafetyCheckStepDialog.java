@@ -1,24 +1,33 @@
 package org.pentaho.di.ui.trans.steps.textsafety;
 
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.custom.CTabFolder;
+import org.eclipse.swt.custom.CTabItem;
 import org.eclipse.swt.events.ModifyListener;
 import org.eclipse.swt.layout.FormAttachment;
 import org.eclipse.swt.layout.FormData;
 import org.eclipse.swt.layout.FormLayout;
 import org.eclipse.swt.widgets.Button;
 import org.eclipse.swt.widgets.Combo;
+import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Label;
 import org.eclipse.swt.widgets.Shell;
+import org.eclipse.swt.widgets.TableItem;
 import org.eclipse.swt.widgets.Text;
 import org.pentaho.di.core.Const;
+import org.pentaho.di.core.Props;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.BaseStepMeta;
 import org.pentaho.di.trans.step.StepDialogInterface;
+import org.pentaho.di.trans.steps.textsafety.RiskCategories;
+import org.pentaho.di.trans.steps.textsafety.SafetyResult;
 import org.pentaho.di.trans.steps.textsafety.TextSafetyCheckStepMeta;
+import org.pentaho.di.ui.core.widget.ColumnInfo;
+import org.pentaho.di.ui.core.widget.TableView;
 import org.pentaho.di.ui.trans.step.BaseStepDialog;
 
 /**
@@ -29,11 +38,61 @@ public class TextSafetyCheckStepDialog extends BaseStepDialog implements StepDia
     private TextSafetyCheckStepMeta meta;
 
     private Combo wInputField;
+    private Button wMergeFields;
+    private TableView wExtraInputs;
     private Text wServiceUrl;
+    private Button wEmbedded;
+    private Text wOnnxModelDir;
+    private Text wOnnxThreads;
     private Text wThreshold;
     private Text wOutputSafe;
     private Text wOutputCategory;
     private Text wOutputScore;
+    private Text wOutputDetails;
+    private Text wOutputTier;
+    private Text wBlockList;
+    private Text wAllowList;
+    private Text wBatchSize;
+    private Text wBatchFlushTimeout;
+    private Text wLatencySla;
+    private Combo wPriorityField;
+    private Text wMaxInFlight;
+    private Button wAdaptiveConcurrency;
+    private Text wPoolSize;
+    private Text wConnectTimeout;
+    private Text wReadTimeout;
+    private Text wIdleTimeout;
+    private Text wRetryCount;
+    private Text wRetryBackoff;
+    private Text wRetryBudget;
+    private Text wHealthInterval;
+    private Text wBreakerFailures;
+    private Text wBreakerOpen;
+    private Button wBinaryProtocol;
+    private Button wWarmUp;
+    private Text wWarmUpFile;
+    private Text wChunkSize;
+    private Text wChunkOverlap;
+    private Text wMaxChunks;
+    private Button wCacheEnabled;
+    private Text wCacheCapacity;
+    private Text wCacheTtl;
+    private Text wCacheFile;
+    private Text wJournalFile;
+    private Combo wJournalKeyField;
+    private Text wJournalSync;
+    private Button wNormalize;
+    private Text wVariantTable;
+    private Text wDuplicateWindow;
+    private Text wDuplicateSimilarity;
+    private Combo wSamplingMode;
+    private Text wSampleRate;
+    private Text wSampleSize;
+    private Combo wStratumField;
+    private Text wMetricsInterval;
+    private Button wMetricsJmx;
+    private Text wMetricsFile;
+    private TableView wCategories;
 
     public TextSafetyCheckStepDialog(Shell parent, Object baseStepMeta, TransMeta transMeta, String stepname) {
         super(parent, (BaseStepMeta) baseStepMeta, transMeta, stepname);
@@ -80,68 +139,207 @@ public class TextSafetyCheckStepDialog extends BaseStepDialog implements StepDia
         fdStepname.right = new FormAttachment(100, 0);
         wStepname.setLayoutData(fdStepname);
 
-        // Input text field (dropdown)
-        Label wlInput = new Label(shell, SWT.RIGHT);
-        wlInput.setText("Input Text Field");
-        props.setLook(wlInput);
-        FormData fdlInput = new FormData();
-        fdlInput.left = new FormAttachment(0, 0);
-        fdlInput.right = new FormAttachment(middle, -margin);
-        fdlInput.top = new FormAttachment(wStepname, margin);
-        wlInput.setLayoutData(fdlInput);
-
-        wInputField = new Combo(shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
-        props.setLook(wInputField);
-        wInputField.addModifyListener(lsMod);
-        FormData fdInput = new FormData();
-        fdInput.left = new FormAttachment(middle, 0);
-        fdInput.top = new FormAttachment(wStepname, margin);
-        fdInput.right = new FormAttachment(100, 0);
-        wInputField.setLayoutData(fdInput);
+        // OK / Cancel buttons below the tab folder
+        wOK = new Button(shell, SWT.PUSH);
+        wOK.setText("OK");
+        wCancel = new Button(shell, SWT.PUSH);
+        wCancel.setText("Cancel");
+        setButtonPositions(new Button[]{wOK, wCancel}, margin, null);
+
+        // Settings grouped into tabs, as stock steps do
+        CTabFolder wTabFolder = new CTabFolder(shell, SWT.BORDER);
+        props.setLook(wTabFolder, Props.WIDGET_STYLE_TAB);
+        FormData fdTabFolder = new FormData();
+        fdTabFolder.left = new FormAttachment(0, 0);
+        fdTabFolder.top = new FormAttachment(wStepname, margin);
+        fdTabFolder.right = new FormAttachment(100, 0);
+        fdTabFolder.bottom = new FormAttachment(wOK, -2 * margin);
+        wTabFolder.setLayoutData(fdTabFolder);
 
         // Populate upstream field names
+        String[] fieldNames = new String[0];
         try {
             RowMetaInterface prevFields = transMeta.getPrevStepFields(stepname);
             if (prevFields != null) {
-                for (String fn : prevFields.getFieldNames()) {
-                    wInputField.add(fn);
-                }
+                fieldNames = prevFields.getFieldNames();
             }
         } catch (KettleException e) {
             logDebug("Unable to get previous step fields", e);
         }
 
-        // Service URL
-        Label wlUrl = new Label(shell, SWT.RIGHT);
-        wlUrl.setText("Service URL");
-        props.setLook(wlUrl);
-        FormData fdlUrl = new FormData();
-        fdlUrl.left = new FormAttachment(0, 0);
-        fdlUrl.right = new FormAttachment(middle, -margin);
-        fdlUrl.top = new FormAttachment(wInputField, margin);
-        wlUrl.setLayoutData(fdlUrl);
-
-        wServiceUrl = new Text(shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
-        props.setLook(wServiceUrl);
-        wServiceUrl.addModifyListener(lsMod);
-        FormData fdUrl = new FormData();
-        fdUrl.left = new FormAttachment(middle, 0);
-        fdUrl.top = new FormAttachment(wInputField, margin);
-        fdUrl.right = new FormAttachment(100, 0);
-        wServiceUrl.setLayoutData(fdUrl);
+        // General: input fields, threshold, output fields and long-text chunking
+        Composite wGeneralComp = addTab(wTabFolder, "General");
+        wInputField = addLabeledCombo(wGeneralComp, "Input Text Field", null, fieldNames, false,
+            middle, margin, lsMod);
+
+        // Additional text fields checked in the same request, each with its own output prefix
+        wMergeFields = addLabeledCheckbox(wGeneralComp, "Merge Field Verdicts into One", wInputField, middle, margin);
+        Label wlExtraInputs = new Label(wGeneralComp, SWT.RIGHT);
+        wlExtraInputs.setText("Additional Input Fields");
+        props.setLook(wlExtraInputs);
+        FormData fdlExtraInputs = new FormData();
+        fdlExtraInputs.left = new FormAttachment(0, 0);
+        fdlExtraInputs.right = new FormAttachment(middle, -margin);
+        fdlExtraInputs.top = new FormAttachment(wMergeFields, margin);
+        wlExtraInputs.setLayoutData(fdlExtraInputs);
+
+        ColumnInfo[] extraInputColumns = new ColumnInfo[] {
+            new ColumnInfo("Input Field", ColumnInfo.COLUMN_TYPE_CCOMBO, fieldNames, false),
+            new ColumnInfo("Output Prefix", ColumnInfo.COLUMN_TYPE_TEXT, false),
+        };
+        wExtraInputs = new TableView(transMeta, wGeneralComp, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI,
+            extraInputColumns, meta.getExtraInputFields().length, lsMod, props);
+        FormData fdExtraInputs = new FormData();
+        fdExtraInputs.left = new FormAttachment(middle, 0);
+        fdExtraInputs.top = new FormAttachment(wMergeFields, margin);
+        fdExtraInputs.right = new FormAttachment(100, 0);
+        fdExtraInputs.height = 80;
+        wExtraInputs.setLayoutData(fdExtraInputs);
 
         // Threshold & output field names
-        wThreshold = addLabeledText(shell, "Risk Threshold (0-1)", wServiceUrl, middle, margin, lsMod);
-        wOutputSafe = addLabeledText(shell, "Output: Is Safe", wThreshold, middle, margin, lsMod);
-        wOutputCategory = addLabeledText(shell, "Output: Risk Category", wOutputSafe, middle, margin, lsMod);
-        wOutputScore = addLabeledText(shell, "Output: Risk Score", wOutputCategory, middle, margin, lsMod);
+        wThreshold = addLabeledText(wGeneralComp, "Risk Threshold (0-1)", wExtraInputs, middle, margin, lsMod);
+        wOutputSafe = addLabeledText(wGeneralComp, "Output: Is Safe", wThreshold, middle, margin, lsMod);
+        wOutputCategory = addLabeledText(wGeneralComp, "Output: Risk Category", wOutputSafe, middle, margin, lsMod);
+        wOutputScore = addLabeledText(wGeneralComp, "Output: Risk Score", wOutputCategory, middle, margin, lsMod);
+        wOutputDetails = addLabeledText(wGeneralComp, "Output: Risk Details (optional)", wOutputScore,
+            middle, margin, lsMod);
+        wOutputTier = addLabeledText(wGeneralComp, "Output: Decided By (optional)", wOutputDetails,
+            middle, margin, lsMod);
 
-        // OK / Cancel buttons
-        wOK = new Button(shell, SWT.PUSH);
-        wOK.setText("OK");
-        wCancel = new Button(shell, SWT.PUSH);
-        wCancel.setText("Cancel");
-        setButtonPositions(new Button[]{wOK, wCancel}, margin, wOutputScore);
+        // Long texts: split into overlapping windows
+        wChunkSize = addLabeledText(wGeneralComp, "Chunk Size (chars, 0 = off)", wOutputTier, middle, margin, lsMod);
+        wChunkOverlap = addLabeledText(wGeneralComp, "Chunk Overlap (chars)", wChunkSize, middle, margin, lsMod);
+        wMaxChunks = addLabeledText(wGeneralComp, "Max Chunks per Row", wChunkOverlap, middle, margin, lsMod);
+
+        // Service: the model backend, connection pool, retries and replicas
+        Composite wServiceComp = addTab(wTabFolder, "Service");
+        wServiceUrl = addLabeledText(wServiceComp, "Service URL(s), comma-separated", null, middle, margin, lsMod);
+
+        // Embedded inference: run the exported model in the JVM instead of calling the service
+        wEmbedded = addLabeledCheckbox(wServiceComp, "Embedded ONNX Inference (no service)", wServiceUrl,
+            middle, margin);
+        wOnnxModelDir = addLabeledText(wServiceComp, "ONNX Model Directory", wEmbedded, middle, margin, lsMod);
+        wOnnxThreads = addLabeledText(wServiceComp, "ONNX Threads (0 = default)", wOnnxModelDir,
+            middle, margin, lsMod);
+
+        // Connection pool (shared by all step copies using the same service URL)
+        wPoolSize = addLabeledText(wServiceComp, "Connection Pool Size", wOnnxThreads, middle, margin, lsMod);
+        wConnectTimeout = addLabeledText(wServiceComp, "Connect Timeout (ms)", wPoolSize, middle, margin, lsMod);
+        wReadTimeout = addLabeledText(wServiceComp, "Read Timeout (ms)", wConnectTimeout, middle, margin, lsMod);
+        wIdleTimeout = addLabeledText(wServiceComp, "Idle Connection Timeout (ms)", wReadTimeout,
+            middle, margin, lsMod);
+
+        // Retries of failed calls; rows still failing go to the error hop when one is defined
+        wRetryCount = addLabeledText(wServiceComp, "Retries of a Failed Call", wIdleTimeout, middle, margin, lsMod);
+        wRetryBackoff = addLabeledText(wServiceComp, "Initial Retry Backoff (ms)", wRetryCount,
+            middle, margin, lsMod);
+        wRetryBudget = addLabeledText(wServiceComp, "Retry Time Budget per Row (ms, 0 = none)", wRetryBackoff,
+            middle, margin, lsMod);
+
+        // Replicas: health checks and circuit breaker (used when several URLs are listed)
+        wHealthInterval = addLabeledText(wServiceComp, "Health Check Interval (s, 0 = off)", wRetryBudget,
+            middle, margin, lsMod);
+        wBreakerFailures = addLabeledText(wServiceComp, "Eject Replica After Failures", wHealthInterval,
+            middle, margin, lsMod);
+        wBreakerOpen = addLabeledText(wServiceComp, "Replica Ejection Time (s)", wBreakerFailures,
+            middle, margin, lsMod);
+        wBinaryProtocol = addLabeledCheckbox(wServiceComp, "Binary Wire Protocol (if offered)", wBreakerOpen,
+            middle, margin);
+
+        // Warm-up before the first row
+        wWarmUp = addLabeledCheckbox(wServiceComp, "Warm Up Before First Row", wBinaryProtocol, middle, margin);
+        wWarmUpFile = addLabeledText(wServiceComp, "Warm-up Texts File (optional)", wWarmUp, middle, margin, lsMod);
+
+        // Batching & scheduling
+        Composite wBatchingComp = addTab(wTabFolder, "Batching");
+        wBatchSize = addLabeledText(wBatchingComp, "Batch Size (1 = per row)", null, middle, margin, lsMod);
+        wBatchFlushTimeout = addLabeledText(wBatchingComp, "Batch Flush Timeout (ms)", wBatchSize,
+            middle, margin, lsMod);
+
+        // Scheduling: latency SLA instead of filling batches, urgent rows first
+        wLatencySla = addLabeledText(wBatchingComp, "Latency SLA per Row (ms, 0 = fill batches)", wBatchFlushTimeout,
+            middle, margin, lsMod);
+        wPriorityField = addLabeledCombo(wBatchingComp, "Priority Field (optional)", wLatencySla, fieldNames, false,
+            middle, margin, lsMod);
+
+        // Pipelining
+        wMaxInFlight = addLabeledText(wBatchingComp, "Max In-Flight Requests (1 = sync)", wPriorityField,
+            middle, margin, lsMod);
+        wAdaptiveConcurrency = addLabeledCheckbox(wBatchingComp, "Adapt In-Flight Limit to Latency", wMaxInFlight,
+            middle, margin);
+
+        // Cheap tiers in front of the model: pre-filter, cache, journal and near-duplicates
+        Composite wCacheComp = addTab(wTabFolder, "Cache & Dedup");
+        wBlockList = addLabeledText(wCacheComp, "Pre-filter Block List File", null, middle, margin, lsMod);
+        wAllowList = addLabeledText(wCacheComp, "Pre-filter Allow List File", wBlockList, middle, margin, lsMod);
+
+        // Result cache
+        wCacheEnabled = addLabeledCheckbox(wCacheComp, "Enable Result Cache", wAllowList, middle, margin);
+        wCacheCapacity = addLabeledText(wCacheComp, "Cache Capacity (entries)", wCacheEnabled, middle, margin, lsMod);
+        wCacheTtl = addLabeledText(wCacheComp, "Cache TTL (s, 0 = forever)", wCacheCapacity, middle, margin, lsMod);
+        wCacheFile = addLabeledText(wCacheComp, "Cache File (optional)", wCacheTtl, middle, margin, lsMod);
+
+        // Verdict journal, replayed when a run is restarted
+        wJournalFile = addLabeledText(wCacheComp, "Verdict Journal File (optional)", wCacheFile,
+            middle, margin, lsMod);
+        wJournalKeyField = addLabeledCombo(wCacheComp, "Journal Key Field (empty = text)", wJournalFile, fieldNames,
+            false, middle, margin, lsMod);
+        wJournalSync = addLabeledText(wCacheComp, "Journal Sync Interval (s, 0 = at end)", wJournalKeyField,
+            middle, margin, lsMod);
+
+        // Normalization and near-duplicate reuse
+        wNormalize = addLabeledCheckbox(wCacheComp, "Normalize Text for Matching", wJournalSync, middle, margin);
+        wVariantTable = addLabeledText(wCacheComp, "Chinese Variant Table (optional)", wNormalize,
+            middle, margin, lsMod);
+        wDuplicateWindow = addLabeledText(wCacheComp, "Near-Duplicate Window (texts, 0 = off)", wVariantTable,
+            middle, margin, lsMod);
+        wDuplicateSimilarity = addLabeledText(wCacheComp, "Near-Duplicate Similarity (0-1)", wDuplicateWindow,
+            middle, margin, lsMod);
+
+        // Sampling: only part of the texts needing the model are sent, the rest are not_checked
+        Composite wSamplingComp = addTab(wTabFolder, "Sampling");
+        wSamplingMode = addLabeledCombo(wSamplingComp, "Sampling Mode", null, TextSafetyCheckStepMeta.SAMPLING_MODES,
+            true, middle, margin, lsMod);
+        wSampleRate = addLabeledText(wSamplingComp, "Sample Rate (0-1, rate mode)", wSamplingMode,
+            middle, margin, lsMod);
+        wSampleSize = addLabeledText(wSamplingComp, "Sample Size (texts, per stratum)", wSampleRate,
+            middle, margin, lsMod);
+        wStratumField = addLabeledCombo(wSamplingComp, "Stratum Field (stratified mode)", wSampleSize, fieldNames,
+            false, middle, margin, lsMod);
+
+        // Metrics
+        Composite wMetricsComp = addTab(wTabFolder, "Metrics");
+        wMetricsInterval = addLabeledText(wMetricsComp, "Metrics Log Interval (s, 0 = end only)", null,
+            middle, margin, lsMod);
+        wMetricsJmx = addLabeledCheckbox(wMetricsComp, "Export Metrics via JMX", wMetricsInterval, middle, margin);
+        wMetricsFile = addLabeledText(wMetricsComp, "Metrics File (Prometheus, optional)", wMetricsJmx,
+            middle, margin, lsMod);
+
+        // Per-category score fields and thresholds, filling their own tab
+        Composite wCategoriesComp = addTab(wTabFolder, "Categories");
+        Label wlCategories = new Label(wCategoriesComp, SWT.LEFT);
+        wlCategories.setText("Per-Category Scores (threshold empty = global threshold)");
+        props.setLook(wlCategories);
+        FormData fdlCategories = new FormData();
+        fdlCategories.left = new FormAttachment(0, 0);
+        fdlCategories.top = new FormAttachment(0, margin);
+        wlCategories.setLayoutData(fdlCategories);
+
+        ColumnInfo[] categoryColumns = new ColumnInfo[] {
+            new ColumnInfo("Category", ColumnInfo.COLUMN_TYPE_CCOMBO, riskCategoryCodes(), true),
+            new ColumnInfo("Output Field", ColumnInfo.COLUMN_TYPE_TEXT, false),
+            new ColumnInfo("Threshold", ColumnInfo.COLUMN_TYPE_TEXT, false),
+        };
+        wCategories = new TableView(transMeta, wCategoriesComp, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI,
+            categoryColumns, meta.getCategoryCodes().length, lsMod, props);
+        FormData fdCategories = new FormData();
+        fdCategories.left = new FormAttachment(0, 0);
+        fdCategories.top = new FormAttachment(wlCategories, margin);
+        fdCategories.right = new FormAttachment(100, 0);
+        fdCategories.bottom = new FormAttachment(100, 0);
+        wCategories.setLayoutData(fdCategories);
+
+        wTabFolder.setSelection(0);
 
         wOK.addListener(SWT.Selection, e -> ok());
         wCancel.addListener(SWT.Selection, e -> cancel());
@@ -162,28 +360,91 @@ public class TextSafetyCheckStepDialog extends BaseStepDialog implements StepDia
     }
 
     /**
-     * Helper: creates a Label + Text pair with FormLayout positioning.
+     * Helper: adds a tab to the folder and returns its form-laid-out content.
+     */
+    private Composite addTab(CTabFolder folder, String title) {
+        CTabItem tab = new CTabItem(folder, SWT.NONE);
+        tab.setText(title);
+        Composite comp = new Composite(folder, SWT.NONE);
+        props.setLook(comp);
+        FormLayout layout = new FormLayout();
+        layout.marginWidth = Const.FORM_MARGIN;
+        layout.marginHeight = Const.FORM_MARGIN;
+        comp.setLayout(layout);
+        tab.setControl(comp);
+        return comp;
+    }
+
+    /**
+     * Helper: creates a Label + Text pair with FormLayout positioning, below {@code above}
+     * or at the top of the parent when it is null.
      */
-    private Text addLabeledText(Shell parent, String labelText, Control above,
+    private Text addLabeledText(Composite parent, String labelText, Control above,
                                 int middle, int margin, ModifyListener lsMod) {
+        addLabel(parent, labelText, above, middle, margin);
+        Text txt = new Text(parent, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+        props.setLook(txt);
+        txt.addModifyListener(lsMod);
+        txt.setLayoutData(valueData(above, middle, margin));
+        return txt;
+    }
+
+    /**
+     * Helper: creates a Label + Combo pair with FormLayout positioning.
+     */
+    private Combo addLabeledCombo(Composite parent, String labelText, Control above, String[] items,
+                                  boolean readOnly, int middle, int margin, ModifyListener lsMod) {
+        addLabel(parent, labelText, above, middle, margin);
+        Combo combo = new Combo(parent, SWT.SINGLE | SWT.LEFT | SWT.BORDER | (readOnly ? SWT.READ_ONLY : 0));
+        props.setLook(combo);
+        combo.addModifyListener(lsMod);
+        combo.setItems(items);
+        combo.setLayoutData(valueData(above, middle, margin));
+        return combo;
+    }
+
+    /**
+     * Helper: creates a Label + check box pair with FormLayout positioning.
+     */
+    private Button addLabeledCheckbox(Composite parent, String labelText, Control above, int middle, int margin) {
+        addLabel(parent, labelText, above, middle, margin);
+        Button btn = new Button(parent, SWT.CHECK);
+        props.setLook(btn);
+        btn.addListener(SWT.Selection, e -> meta.setChanged());
+        btn.setLayoutData(valueData(above, middle, margin));
+        return btn;
+    }
+
+    private void addLabel(Composite parent, String labelText, Control above, int middle, int margin) {
         Label lbl = new Label(parent, SWT.RIGHT);
         lbl.setText(labelText);
         props.setLook(lbl);
         FormData fdl = new FormData();
         fdl.left = new FormAttachment(0, 0);
         fdl.right = new FormAttachment(middle, -margin);
-        fdl.top = new FormAttachment(above, margin);
+        fdl.top = above != null ? new FormAttachment(above, margin) : new FormAttachment(0, margin);
         lbl.setLayoutData(fdl);
+    }
 
-        Text txt = new Text(parent, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
-        props.setLook(txt);
-        txt.addModifyListener(lsMod);
-        FormData fdt = new FormData();
-        fdt.left = new FormAttachment(middle, 0);
-        fdt.top = new FormAttachment(above, margin);
-        fdt.right = new FormAttachment(100, 0);
-        txt.setLayoutData(fdt);
-        return txt;
+    private static FormData valueData(Control above, int middle, int margin) {
+        FormData fd = new FormData();
+        fd.left = new FormAttachment(middle, 0);
+        fd.top = above != null ? new FormAttachment(above, margin) : new FormAttachment(0, margin);
+        fd.right = new FormAttachment(100, 0);
+        return fd;
+    }
+
+    /** Risk category codes offered in the category table ("sec" is the safe verdict, not a risk). */
+    private static String[] riskCategoryCodes() {
+        String[] codes = new String[RiskCategories.count() - 1];
+        int n = 0;
+        for (int id = 0; id < RiskCategories.count(); id++) {
+            String code = RiskCategories.codeOf(id);
+            if (!SafetyResult.SAFE_CATEGORY.equals(code)) {
+                codes[n++] = code;
+            }
+        }
+        return codes;
     }
 
     /** Loads saved configuration from Meta into the UI controls. */
@@ -192,9 +453,23 @@ public class TextSafetyCheckStepDialog extends BaseStepDialog implements StepDia
         if (meta.getInputTextField() != null) {
             wInputField.setText(meta.getInputTextField());
         }
+        wMergeFields.setSelection(meta.isMergeFieldVerdicts());
+        String[] extraFields = meta.getExtraInputFields();
+        for (int i = 0; i < extraFields.length; i++) {
+            TableItem item = wExtraInputs.table.getItem(i);
+            item.setText(1, Const.NVL(extraFields[i], ""));
+            item.setText(2, Const.NVL(meta.getExtraOutputPrefixes()[i], ""));
+        }
+        wExtraInputs.setRowNums();
+        wExtraInputs.optWidth(true);
         if (meta.getServiceUrl() != null) {
             wServiceUrl.setText(meta.getServiceUrl());
         }
+        wEmbedded.setSelection(meta.isEmbeddedInference());
+        if (meta.getOnnxModelDir() != null) {
+            wOnnxModelDir.setText(meta.getOnnxModelDir());
+        }
+        wOnnxThreads.setText(String.valueOf(meta.getOnnxThreads()));
         wThreshold.setText(String.valueOf(meta.getThreshold()));
         if (meta.getOutputSafeField() != null) {
             wOutputSafe.setText(meta.getOutputSafeField());
@@ -205,6 +480,86 @@ public class TextSafetyCheckStepDialog extends BaseStepDialog implements StepDia
         if (meta.getOutputScoreField() != null) {
             wOutputScore.setText(meta.getOutputScoreField());
         }
+        if (meta.getOutputDetailsField() != null) {
+            wOutputDetails.setText(meta.getOutputDetailsField());
+        }
+        if (meta.getOutputTierField() != null) {
+            wOutputTier.setText(meta.getOutputTierField());
+        }
+        if (meta.getPreFilterBlockListFile() != null) {
+            wBlockList.setText(meta.getPreFilterBlockListFile());
+        }
+        if (meta.getPreFilterAllowListFile() != null) {
+            wAllowList.setText(meta.getPreFilterAllowListFile());
+        }
+        wBatchSize.setText(String.valueOf(meta.getBatchSize()));
+        wBatchFlushTimeout.setText(String.valueOf(meta.getBatchFlushTimeoutMs()));
+        wLatencySla.setText(String.valueOf(meta.getLatencySlaMs()));
+        if (meta.getPriorityField() != null) {
+            wPriorityField.setText(meta.getPriorityField());
+        }
+        wMaxInFlight.setText(String.valueOf(meta.getMaxInFlightRequests()));
+        wAdaptiveConcurrency.setSelection(meta.isAdaptiveConcurrency());
+        wPoolSize.setText(String.valueOf(meta.getConnectionPoolSize()));
+        wConnectTimeout.setText(String.valueOf(meta.getConnectTimeoutMs()));
+        wReadTimeout.setText(String.valueOf(meta.getReadTimeoutMs()));
+        wIdleTimeout.setText(String.valueOf(meta.getIdleConnectionTimeoutMs()));
+        wRetryCount.setText(String.valueOf(meta.getRetryCount()));
+        wRetryBackoff.setText(String.valueOf(meta.getRetryBackoffMs()));
+        wRetryBudget.setText(String.valueOf(meta.getRetryBudgetMs()));
+        wHealthInterval.setText(String.valueOf(meta.getHealthCheckIntervalSeconds()));
+        wBreakerFailures.setText(String.valueOf(meta.getCircuitBreakerFailures()));
+        wBreakerOpen.setText(String.valueOf(meta.getCircuitBreakerOpenSeconds()));
+        wBinaryProtocol.setSelection(meta.isBinaryProtocol());
+        wWarmUp.setSelection(meta.isWarmUp());
+        if (meta.getWarmUpFile() != null) {
+            wWarmUpFile.setText(meta.getWarmUpFile());
+        }
+        wChunkSize.setText(String.valueOf(meta.getChunkSize()));
+        wChunkOverlap.setText(String.valueOf(meta.getChunkOverlap()));
+        wMaxChunks.setText(String.valueOf(meta.getMaxChunksPerRow()));
+        wCacheEnabled.setSelection(meta.isCacheEnabled());
+        wCacheCapacity.setText(String.valueOf(meta.getCacheCapacity()));
+        wCacheTtl.setText(String.valueOf(meta.getCacheTtlSeconds()));
+        if (meta.getCacheFile() != null) {
+            wCacheFile.setText(meta.getCacheFile());
+        }
+        if (meta.getJournalFile() != null) {
+            wJournalFile.setText(meta.getJournalFile());
+        }
+        if (meta.getJournalKeyField() != null) {
+            wJournalKeyField.setText(meta.getJournalKeyField());
+        }
+        wJournalSync.setText(String.valueOf(meta.getJournalSyncIntervalSeconds()));
+        wNormalize.setSelection(meta.isNormalizeText());
+        if (meta.getVariantTableFile() != null) {
+            wVariantTable.setText(meta.getVariantTableFile());
+        }
+        wDuplicateWindow.setText(String.valueOf(meta.getDuplicateWindow()));
+        wDuplicateSimilarity.setText(String.valueOf(meta.getDuplicateSimilarity()));
+        if (meta.getSamplingMode() != null) {
+            wSamplingMode.setText(meta.getSamplingMode());
+        }
+        wSampleRate.setText(String.valueOf(meta.getSampleRate()));
+        wSampleSize.setText(String.valueOf(meta.getSampleSize()));
+        if (meta.getSampleStratumField() != null) {
+            wStratumField.setText(meta.getSampleStratumField());
+        }
+        wMetricsInterval.setText(String.valueOf(meta.getMetricsIntervalSeconds()));
+        wMetricsJmx.setSelection(meta.isMetricsJmxEnabled());
+        if (meta.getMetricsFile() != null) {
+            wMetricsFile.setText(meta.getMetricsFile());
+        }
+        String[] codes = meta.getCategoryCodes();
+        for (int i = 0; i < codes.length; i++) {
+            TableItem item = wCategories.table.getItem(i);
+            item.setText(1, Const.NVL(codes[i], ""));
+            item.setText(2, Const.NVL(meta.getCategoryOutputFields()[i], ""));
+            double categoryThreshold = meta.getCategoryThresholds()[i];
+            item.setText(3, categoryThreshold < 0 ? "" : String.valueOf(categoryThreshold));
+        }
+        wCategories.setRowNums();
+        wCategories.optWidth(true);
     }
 
     /** OK button — writes UI values back to Meta. */
@@ -214,7 +569,18 @@ public class TextSafetyCheckStepDialog extends BaseStepDialog implements StepDia
         }
         stepname = wStepname.getText();
         meta.setInputTextField(wInputField.getText());
+        meta.setMergeFieldVerdicts(wMergeFields.getSelection());
+        int extraCount = wExtraInputs.nrNonEmpty();
+        meta.allocateExtraInputs(extraCount);
+        for (int i = 0; i < extraCount; i++) {
+            TableItem item = wExtraInputs.getNonEmpty(i);
+            meta.getExtraInputFields()[i] = item.getText(1);
+            meta.getExtraOutputPrefixes()[i] = item.getText(2);
+        }
         meta.setServiceUrl(wServiceUrl.getText());
+        meta.setEmbeddedInference(wEmbedded.getSelection());
+        meta.setOnnxModelDir(wOnnxModelDir.getText());
+        meta.setOnnxThreads(Const.toInt(wOnnxThreads.getText(), 0));
         try {
             meta.setThreshold(Double.parseDouble(wThreshold.getText()));
         } catch (NumberFormatException e) {
@@ -223,6 +589,59 @@ public class TextSafetyCheckStepDialog extends BaseStepDialog implements StepDia
         meta.setOutputSafeField(wOutputSafe.getText());
         meta.setOutputCategoryField(wOutputCategory.getText());
         meta.setOutputScoreField(wOutputScore.getText());
+        meta.setOutputDetailsField(wOutputDetails.getText());
+        meta.setOutputTierField(wOutputTier.getText());
+        meta.setPreFilterBlockListFile(wBlockList.getText());
+        meta.setPreFilterAllowListFile(wAllowList.getText());
+        meta.setBatchSize(Const.toInt(wBatchSize.getText(), 1));
+        meta.setBatchFlushTimeoutMs(Const.toInt(wBatchFlushTimeout.getText(), 200));
+        meta.setLatencySlaMs(Const.toInt(wLatencySla.getText(), 0));
+        meta.setPriorityField(wPriorityField.getText());
+        meta.setMaxInFlightRequests(Const.toInt(wMaxInFlight.getText(), 1));
+        meta.setAdaptiveConcurrency(wAdaptiveConcurrency.getSelection());
+        meta.setConnectionPoolSize(Const.toInt(wPoolSize.getText(), 8));
+        meta.setConnectTimeoutMs(Const.toInt(wConnectTimeout.getText(), 10_000));
+        meta.setReadTimeoutMs(Const.toInt(wReadTimeout.getText(), 30_000));
+        meta.setIdleConnectionTimeoutMs(Const.toInt(wIdleTimeout.getText(), 60_000));
+        meta.setRetryCount(Const.toInt(wRetryCount.getText(), 0));
+        meta.setRetryBackoffMs(Const.toInt(wRetryBackoff.getText(), 500));
+        meta.setRetryBudgetMs(Const.toInt(wRetryBudget.getText(), 60_000));
+        meta.setHealthCheckIntervalSeconds(Const.toInt(wHealthInterval.getText(), 10));
+        meta.setCircuitBreakerFailures(Const.toInt(wBreakerFailures.getText(), 3));
+        meta.setCircuitBreakerOpenSeconds(Const.toInt(wBreakerOpen.getText(), 30));
+        meta.setBinaryProtocol(wBinaryProtocol.getSelection());
+        meta.setWarmUp(wWarmUp.getSelection());
+        meta.setWarmUpFile(wWarmUpFile.getText());
+        meta.setChunkSize(Const.toInt(wChunkSize.getText(), 0));
+        meta.setChunkOverlap(Const.toInt(wChunkOverlap.getText(), 200));
+        meta.setMaxChunksPerRow(Const.toInt(wMaxChunks.getText(), 16));
+        meta.setCacheEnabled(wCacheEnabled.getSelection());
+        meta.setCacheCapacity(Const.toInt(wCacheCapacity.getText(), 100_000));
+        meta.setCacheTtlSeconds(Const.toInt(wCacheTtl.getText(), 86_400));
+        meta.setCacheFile(wCacheFile.getText());
+        meta.setJournalFile(wJournalFile.getText());
+        meta.setJournalKeyField(wJournalKeyField.getText());
+        meta.setJournalSyncIntervalSeconds(Const.toInt(wJournalSync.getText(), 10));
+        meta.setNormalizeText(wNormalize.getSelection());
+        meta.setVariantTableFile(wVariantTable.getText());
+        meta.setDuplicateWindow(Const.toInt(wDuplicateWindow.getText(), 0));
+        meta.setDuplicateSimilarity(Const.toDouble(wDuplicateSimilarity.getText(), 0.8));
+        meta.setSamplingMode(Const.isEmpty(wSamplingMode.getText())
+            ? TextSafetyCheckStepMeta.SAMPLING_NONE : wSamplingMode.getText());
+        meta.setSampleRate(Const.toDouble(wSampleRate.getText(), 0.01));
+        meta.setSampleSize(Const.toInt(wSampleSize.getText(), 10_000));
+        meta.setSampleStratumField(wStratumField.getText());
+        meta.setMetricsIntervalSeconds(Const.toInt(wMetricsInterval.getText(), 60));
+        meta.setMetricsJmxEnabled(wMetricsJmx.getSelection());
+        meta.setMetricsFile(wMetricsFile.getText());
+        int categoryCount = wCategories.nrNonEmpty();
+        meta.allocateCategories(categoryCount);
+        for (int i = 0; i < categoryCount; i++) {
+            TableItem item = wCategories.getNonEmpty(i);
+            meta.getCategoryCodes()[i] = item.getText(1);
+            meta.getCategoryOutputFields()[i] = item.getText(2);
+            meta.getCategoryThresholds()[i] = Const.toDouble(item.getText(3), -1);
+        }
         meta.setChanged();
         dispose();
     }
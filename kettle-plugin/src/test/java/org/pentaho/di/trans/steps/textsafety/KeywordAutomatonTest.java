@@ -0,0 +1,67 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class KeywordAutomatonTest {
+
+    @Test
+    public void findsOverlappingKeywords() {
+        KeywordAutomaton automaton = new KeywordAutomaton(Arrays.asList("he", "she", "his", "hers"));
+        // "she" and "he" both end at the same character; the longer one is reached directly
+        assertEquals(1, automaton.find("ushers"));
+        assertEquals(0, automaton.find("hers"));
+        assertEquals(2, automaton.find("this"));
+        assertEquals(-1, automaton.find("hsi sh h"));
+        assertEquals(0, automaton.find("HE"));
+    }
+
+    @Test
+    public void followsFailLinks() {
+        KeywordAutomaton automaton = new KeywordAutomaton(Arrays.asList("abcd", "bce", "cx"));
+        // "abc" fails over to "bc", which goes on to "bce"
+        assertEquals(1, automaton.find("abce"));
+        // and from "bc" to "c"
+        assertEquals(2, automaton.find("abcx"));
+        assertEquals(0, automaton.find("ababcd"));
+        assertEquals(-1, automaton.find("abcabc"));
+    }
+
+    @Test
+    public void reportsKeywordsInheritedThroughFailLinks() {
+        KeywordAutomaton automaton = new KeywordAutomaton(Arrays.asList("abcd", "bc"));
+        assertEquals(1, automaton.find("abcz"));
+    }
+
+    @Test
+    public void matchesCjkKeywords() {
+        KeywordAutomaton automaton = new KeywordAutomaton(Arrays.asList("中华人民", "人民币", "华人"));
+        assertEquals(2, automaton.find("他是中华人民共和国公民"));
+        assertEquals(1, automaton.find("人民币汇率"));
+        assertEquals(-1, automaton.find("中华民国"));
+        assertEquals(-1, automaton.find(""));
+    }
+
+    @Test
+    public void ignoresCase() {
+        KeywordAutomaton automaton = new KeywordAutomaton(Arrays.asList("Casino", "ÄRGER"));
+        assertEquals(0, automaton.find("ONLINE CASINO"));
+        assertEquals(1, automaton.find("viel ärger"));
+    }
+
+    @Test
+    public void skipsEmptyKeywordsButKeepsIndexes() {
+        KeywordAutomaton empty = new KeywordAutomaton(Arrays.asList("", null));
+        assertTrue(empty.isEmpty());
+        assertEquals(-1, empty.find("anything"));
+
+        KeywordAutomaton automaton = new KeywordAutomaton(Arrays.asList("", "b", "b"));
+        assertFalse(automaton.isEmpty());
+        assertEquals(1, automaton.find("abc"));
+    }
+}
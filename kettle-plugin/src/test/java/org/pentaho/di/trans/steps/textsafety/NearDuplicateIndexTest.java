@@ -0,0 +1,181 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class NearDuplicateIndexTest {
+
+    private static final String TEXT = "the quick brown fox jumps over the lazy dog near the river bank";
+    private static final String NEAR = "the quick brown fox jumps over the lazy dog near the river bend";
+    private static final String OTHER = "an entirely different sentence about stock prices and interest rates";
+
+    private static final SafetyResult SAFE = new SafetyResult(true, SafetyResult.SAFE_CATEGORY, 0.0);
+
+    @Test
+    public void matchesExactDuplicates() {
+        NearDuplicateIndex index = new NearDuplicateIndex(8, 1.0);
+        NearDuplicateIndex.Entry entry = index.entry(TEXT);
+        index.add(entry);
+        assertSame(entry, index.find(index.entry(TEXT)));
+        assertNull(index.find(index.entry(OTHER)));
+    }
+
+    @Test
+    public void matchesNearDuplicatesFromTheThreshold() {
+        int agreeing = agreeing(TEXT, NEAR);
+        assertTrue("agreeing " + agreeing, agreeing >= NearDuplicateIndex.HASHES * 3 / 4
+            && agreeing < NearDuplicateIndex.HASHES);
+
+        NearDuplicateIndex atThreshold = new NearDuplicateIndex(8, agreeing / (double) NearDuplicateIndex.HASHES);
+        NearDuplicateIndex.Entry entry = atThreshold.entry(TEXT);
+        atThreshold.add(entry);
+        assertSame(entry, atThreshold.find(atThreshold.entry(NEAR)));
+
+        NearDuplicateIndex aboveThreshold =
+            new NearDuplicateIndex(8, (agreeing + 1) / (double) NearDuplicateIndex.HASHES);
+        aboveThreshold.add(aboveThreshold.entry(TEXT));
+        assertNull(aboveThreshold.find(aboveThreshold.entry(NEAR)));
+    }
+
+    @Test
+    public void similarityOneMatchesTheSameThreeGramsOnly() {
+        NearDuplicateIndex index = new NearDuplicateIndex(8, 1.0);
+        NearDuplicateIndex.Entry entry = index.entry("abcabc");
+        index.add(entry);
+        // {abc, bca, cab} either way, though the texts differ
+        assertSame(entry, index.find(index.entry("abcabcabc")));
+        assertNull(index.find(index.entry(NEAR)));
+    }
+
+    @Test
+    public void prefersTheMostSimilarEntry() {
+        NearDuplicateIndex index = new NearDuplicateIndex(8, 0.5);
+        NearDuplicateIndex.Entry far = index.entry("the quick brown fox jumps over the lazy cat in the garden");
+        NearDuplicateIndex.Entry near = index.entry(NEAR);
+        index.add(near);
+        index.add(far);
+        assertSame(near, index.find(index.entry(TEXT)));
+    }
+
+    @Test
+    public void shortTextsMatchExactlyOnly() {
+        NearDuplicateIndex index = new NearDuplicateIndex(8, 0.1);
+        NearDuplicateIndex.Entry entry = index.entry("ok");
+        index.add(entry);
+        index.add(index.entry(""));
+        assertSame(entry, index.find(index.entry("ok")));
+        assertNull(index.find(index.entry("ok!")));
+        assertNull(index.find(index.entry("no")));
+        assertNotNull(index.find(index.entry("")));
+    }
+
+    @Test
+    public void forgetsTheOldestEntries() {
+        NearDuplicateIndex index = new NearDuplicateIndex(2, 0.8);
+        index.add(index.entry(OTHER));
+        NearDuplicateIndex.Entry text = index.entry(TEXT);
+        index.add(text);
+        index.add(index.entry("ok"));
+        assertNull(index.find(index.entry(OTHER)));
+        assertSame(text, index.find(index.entry(NEAR)));
+
+        index.add(index.entry("no"));
+        assertNull(index.find(index.entry(TEXT)));
+        assertNull(index.find(index.entry(NEAR)));
+        assertNotNull(index.find(index.entry("ok")));
+    }
+
+    @Test
+    public void forgetsEntriesInTheMiddleOfBandChains() {
+        // Texts sharing bands chain in the same buckets, newest first
+        String[] texts = new String[6];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = TEXT + " " + (char) ('a' + i);
+        }
+        NearDuplicateIndex index = new NearDuplicateIndex(3, 0.5);
+        NearDuplicateIndex.Entry[] entries = new NearDuplicateIndex.Entry[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            entries[i] = index.entry(texts[i]);
+            index.add(entries[i]);
+            for (int j = 0; j <= i; j++) {
+                NearDuplicateIndex.Entry found = index.find(index.entry(texts[j]));
+                if (j > i - 3) {
+                    assertSame(entries[j], found);
+                } else {
+                    assertNotNull(found);
+                    for (int k = 0; k <= i - 3; k++) {
+                        assertNotSame("forgotten entry " + k, entries[k], found);
+                    }
+                }
+            }
+        }
+        index.add(index.entry("x"));
+        index.add(index.entry("y"));
+        index.add(index.entry("z"));
+        assertNull(index.find(index.entry(TEXT)));
+    }
+
+    @Test
+    public void keepsTheNewerOfTwoEqualTexts() {
+        NearDuplicateIndex index = new NearDuplicateIndex(2, 0.8);
+        index.add(index.entry(TEXT));
+        NearDuplicateIndex.Entry newer = index.entry(TEXT);
+        index.add(newer);
+        index.add(index.entry(OTHER));
+        assertSame(newer, index.find(index.entry(TEXT)));
+        assertSame(newer, index.find(index.entry(NEAR)));
+    }
+
+    @Test
+    public void skipsFailedEntries() {
+        NearDuplicateIndex index = new NearDuplicateIndex(8, 0.8);
+        NearDuplicateIndex.Entry pending = index.entry(TEXT);
+        index.add(pending);
+        assertSame(pending, index.find(index.entry(NEAR)));
+        assertNull(pending.getResult());
+
+        pending.resolve(SafetyResult.apiError());
+        assertSame(SafetyResult.apiError(), pending.getResult());
+        assertNull(index.find(index.entry(TEXT)));
+        assertNull(index.find(index.entry(NEAR)));
+
+        NearDuplicateIndex.Entry retry = index.entry(TEXT);
+        index.add(retry);
+        retry.resolve(SAFE);
+        assertSame(retry, index.find(index.entry(TEXT)));
+
+        retry.resolve(new SafetyResult(false, RiskCategories.MODEL_ERROR_CATEGORY, 1.0));
+        assertNull(index.find(index.entry(NEAR)));
+    }
+
+    @Test
+    public void rejectsInvalidSettings() {
+        double[][] settings = {{0, 0.8}, {8, 0.0}, {8, 1.5}, {8, Double.NaN}};
+        for (double[] s : settings) {
+            try {
+                new NearDuplicateIndex((int) s[0], s[1]);
+                fail("Accepted capacity " + s[0] + ", similarity " + s[1]);
+            } catch (IllegalArgumentException expected) {
+                // invalid
+            }
+        }
+    }
+
+    private static int agreeing(String a, String b) {
+        int[] x = NearDuplicateIndex.signature(a);
+        int[] y = NearDuplicateIndex.signature(b);
+        int count = 0;
+        for (int i = 0; i < NearDuplicateIndex.HASHES; i++) {
+            if (x[i] == y[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
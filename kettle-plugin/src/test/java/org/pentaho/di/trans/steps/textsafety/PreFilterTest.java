@@ -0,0 +1,151 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PreFilterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void blocksKeywordsWithTheirCategory() throws IOException {
+        PreFilter filter = PreFilter.acquire(file("# block\n\npi 身份证号\n  ha   Idiot  \n"), "");
+        try {
+            assertBlocked("pi", filter.screen("请提供身份证号码"));
+            assertBlocked("ha", filter.screen("you IDIOT"));
+            assertNull(filter.screen("hello"));
+        } finally {
+            PreFilter.release(filter);
+        }
+    }
+
+    @Test
+    public void findsTheCategoryOfTheMatchingRegex() throws IOException {
+        PreFilter filter = PreFilter.acquire(
+            file("pp re:1[3-9]\\d{9}\nter re:(bomb|attack)(s|ing)?\nfin re:(?<card>\\d{4}( \\d{4}){3})\n"), "");
+        try {
+            assertBlocked("pp", filter.screen("call 13812345678"));
+            assertBlocked("ter", filter.screen("attacks"));
+            assertBlocked("fin", filter.screen("card 1234 5678 9012 3456"));
+            assertNull(filter.screen("12345678"));
+        } finally {
+            PreFilter.release(filter);
+        }
+    }
+
+    @Test
+    public void allowsWholeTextsOnly() throws IOException {
+        PreFilter filter = PreFilter.acquire("", file("OK\n好的\nre:\\d+\n"));
+        try {
+            assertSame(SafetyResult.safe(), filter.screen("  ok "));
+            assertSame(SafetyResult.safe(), filter.screen("好的"));
+            assertSame(SafetyResult.safe(), filter.screen("12345"));
+            assertNull(filter.screen("ok then"));
+            assertNull(filter.screen("123a"));
+        } finally {
+            PreFilter.release(filter);
+        }
+    }
+
+    @Test
+    public void blockingWinsOverAllowing() throws IOException {
+        PreFilter filter = PreFilter.acquire(file("cy 黑客\npp re:1[3-9]\\d{9}\n"), file("黑客帝国\nre:\\d+\n"));
+        try {
+            assertBlocked("cy", filter.screen("黑客帝国"));
+            assertBlocked("pp", filter.screen("13812345678"));
+            assertSame(SafetyResult.safe(), filter.screen("12345"));
+        } finally {
+            PreFilter.release(filter);
+        }
+    }
+
+    @Test
+    public void sharesFiltersUntilTheLastRelease() throws IOException {
+        String block = file("pi secret\n");
+        PreFilter first = PreFilter.acquire(block, "");
+        PreFilter second = PreFilter.acquire(block, "");
+        assertSame(first, second);
+        PreFilter.release(first);
+        PreFilter.release(second);
+        PreFilter third = PreFilter.acquire(block, "");
+        try {
+            assertNotSame(first, third);
+        } finally {
+            PreFilter.release(third);
+        }
+    }
+
+    @Test
+    public void rejectsInvalidLines() throws IOException {
+        String[] blockLists = {
+            "# first\nkeyword-only\n",
+            "xx keyword\n",
+            "sec keyword\n",
+            "pi re:(unclosed\n",
+        };
+        for (String content : blockLists) {
+            String path = file(content);
+            try {
+                PreFilter.release(PreFilter.acquire(path, ""));
+                fail("Accepted " + content);
+            } catch (IOException expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().startsWith(path + ":"));
+            }
+        }
+        try {
+            PreFilter.release(PreFilter.acquire("", file("ok\n\nre:[a-\n")));
+            fail("Accepted an invalid allow regex");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains(":3: invalid regex"));
+        }
+    }
+
+    @Test
+    public void reportsLineNumbers() throws IOException {
+        String path = file("# comment\n\npi fine\nbad\n");
+        try {
+            PreFilter.release(PreFilter.acquire(path, ""));
+            fail("Accepted " + path);
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().startsWith(path + ":4: "));
+        }
+    }
+
+    @Test
+    public void failsOnMissingFile() {
+        String path = new File(folder.getRoot(), "missing.txt").getPath();
+        try {
+            PreFilter.release(PreFilter.acquire(path, ""));
+            fail("Read " + path);
+        } catch (IOException expected) {
+            // missing
+        }
+    }
+
+    private String file(String content) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file.getPath();
+    }
+
+    private static void assertBlocked(String category, SafetyResult result) {
+        assertFalse(result.isSafe());
+        assertSame(category, result.getRiskCategory());
+        assertEquals(PreFilter.BLOCK_SCORE, result.getRiskScore(), 0.0);
+    }
+}
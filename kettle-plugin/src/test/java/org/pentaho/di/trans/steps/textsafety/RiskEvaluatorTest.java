@@ -0,0 +1,105 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RiskEvaluatorTest {
+
+    private static final int SEC = RiskCategories.idOf(SafetyResult.SAFE_CATEGORY);
+    private static final int PI = RiskCategories.idOf("pi");
+    private static final int CY = RiskCategories.idOf("cy");
+
+    @Test
+    public void mergesMaxRiskAndMinSafeScore() {
+        SafetyResult[] windows = {
+            scored(0.9, "pi", 0.4),
+            scored(0.3, "pi", 0.2, "cy", 0.6),
+            scored(0.7, "cy", 0.1),
+        };
+        SafetyResult merged = RiskEvaluator.mergeWindows(windows, 0, windows.length, 0.5);
+        assertFalse(merged.isSafe());
+        assertSame("cy", merged.getRiskCategory());
+        assertEquals(0.6, merged.getRiskScore(), 0.0);
+        double[] details = merged.getRiskDetails();
+        assertEquals(0.3, details[SEC], 0.0);
+        assertEquals(0.4, details[PI], 0.0);
+        assertEquals(0.6, details[CY], 0.0);
+
+        merged = RiskEvaluator.mergeWindows(windows, 0, windows.length, 0.65);
+        assertTrue(merged.isSafe());
+        assertSame(SafetyResult.SAFE_CATEGORY, merged.getRiskCategory());
+        assertEquals(0.6, merged.getRiskScore(), 0.0);
+    }
+
+    @Test
+    public void mergesOnlyTheGivenRange() {
+        SafetyResult[] windows = {
+            SafetyResult.apiError(),
+            scored(0.9, "pi", 0.4),
+            scored(0.8, "pi", 0.45),
+            scored(0.1, "cy", 0.9),
+        };
+        SafetyResult merged = RiskEvaluator.mergeWindows(windows, 1, 3, 0.5);
+        assertTrue(merged.isSafe());
+        assertEquals(0.45, merged.getRiskScore(), 0.0);
+        assertEquals(0.8, merged.getRiskDetails()[SEC], 0.0);
+        assertEquals(0.0, merged.getRiskDetails()[CY], 0.0);
+    }
+
+    @Test
+    public void failedWindowTakesOver() {
+        SafetyResult modelError = new SafetyResult(false, RiskCategories.MODEL_ERROR_CATEGORY, 1.0);
+        SafetyResult[] windows = {
+            scored(0.1, "pi", 0.95),
+            new SafetyResult(true, SafetyResult.SAFE_CATEGORY, 0.0),
+            modelError,
+            SafetyResult.apiError(),
+        };
+        assertSame(modelError, RiskEvaluator.mergeWindows(windows, 0, windows.length, 0.5));
+        assertSame(SafetyResult.apiError(), RiskEvaluator.mergeWindows(windows, 3, 4, 0.5));
+    }
+
+    @Test
+    public void fallsBackToWorstWindowWithoutDetails() {
+        SafetyResult worst = new SafetyResult(false, "cy", 0.9);
+        SafetyResult[] windows = {
+            new SafetyResult(true, SafetyResult.SAFE_CATEGORY, 0.1),
+            scored(0.0, "pi", 1.0),
+            worst,
+            new SafetyResult(false, "pi", 0.7),
+        };
+        // The highest-scoring unsafe window, scored or not
+        assertSame(windows[1], RiskEvaluator.mergeWindows(windows, 0, windows.length, 0.5));
+        assertSame(worst, RiskEvaluator.mergeWindows(windows, 2, windows.length, 0.5));
+        assertSame(worst, RiskEvaluator.mergeWindows(new SafetyResult[] {windows[0], worst, windows[3]}, 0, 3, 0.5));
+
+        SafetyResult[] safe = {windows[0], new SafetyResult(true, SafetyResult.SAFE_CATEGORY, 0.2)};
+        assertSame(safe[0], RiskEvaluator.mergeWindows(safe, 0, safe.length, 0.5));
+    }
+
+    @Test
+    public void categoryThresholdOverridesSafeScore() {
+        RiskEvaluator evaluator = new RiskEvaluator(0.5);
+        SafetyResult result = scored(0.9, "pi", 0.6, "cy", 0.3);
+        assertTrue(evaluator.evaluate(result).isSafe());
+        evaluator.setCategoryThreshold("cy", 0.25);
+        SafetyResult judged = evaluator.evaluate(result);
+        assertFalse(judged.isSafe());
+        assertSame("cy", judged.getRiskCategory());
+        assertEquals(0.3, judged.getRiskScore(), 0.0);
+    }
+
+    /** A scored window: the "sec" score, then category and score pairs. */
+    private static SafetyResult scored(double sec, Object... scores) {
+        double[] details = new double[RiskCategories.count()];
+        details[SEC] = sec;
+        for (int i = 0; i < scores.length; i += 2) {
+            details[RiskCategories.idOf((String) scores[i])] = (Double) scores[i + 1];
+        }
+        return new RiskEvaluator(0.5).evaluate(new SafetyResult(true, SafetyResult.SAFE_CATEGORY, 0.0, details));
+    }
+}
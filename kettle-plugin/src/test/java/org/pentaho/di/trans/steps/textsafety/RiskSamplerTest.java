@@ -0,0 +1,164 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class RiskSamplerTest {
+
+    private static final SafetyResult SAFE = new SafetyResult(true, SafetyResult.SAFE_CATEGORY, 0.0);
+    private static final SafetyResult PI = new SafetyResult(false, "pi", 0.9);
+    private static final SafetyResult CY = new SafetyResult(false, "cy", 0.9);
+
+    @Test
+    public void censusIsExact() {
+        RiskSampler sampler = RiskSampler.fixedRate(1.0);
+        RiskSampler.Stratum stratum = sampler.stratum("");
+        for (int i = 0; i < 1000; i++) {
+            stratum.pick().record(i < 100 ? PI : i < 130 ? CY : SAFE);
+        }
+        List<RiskSampler.Estimate> estimates = sampler.estimate();
+        assertEquals(3, estimates.size());
+        assertEstimate(estimates.get(0), RiskSampler.UNSAFE, 0.13, 0.13, 0.13);
+        assertEstimate(estimates.get(1), "pi", 0.1, 0.1, 0.1);
+        assertEstimate(estimates.get(2), "cy", 0.03, 0.03, 0.03);
+        assertEquals(1000, sampler.getPicked());
+    }
+
+    @Test
+    public void knownVerdictsAreCountedExactly() {
+        RiskSampler sampler = RiskSampler.reservoir(100);
+        RiskSampler.Stratum stratum = sampler.stratum("");
+        for (int i = 0; i < 400; i++) {
+            stratum.recordKnown(i < 100 ? PI : SAFE);
+        }
+        stratum.recordKnown(SafetyResult.apiError());
+        // 100 texts reach the model and all fit the reservoir: a census of them
+        for (int i = 0; i < 100; i++) {
+            stratum.pick().record(i < 50 ? CY : SAFE);
+        }
+        List<RiskSampler.Estimate> estimates = sampler.estimate();
+        assertEstimate(estimates.get(0), RiskSampler.UNSAFE, 0.3, 0.3, 0.3);
+        assertEstimate(estimates.get(1), "pi", 0.2, 0.2, 0.2);
+        assertEstimate(estimates.get(2), "cy", 0.1, 0.1, 0.1);
+    }
+
+    @Test
+    public void noTextsNoEstimates() {
+        RiskSampler sampler = RiskSampler.fixedRate(0.5);
+        sampler.stratum("");
+        assertTrue(sampler.estimate().isEmpty());
+    }
+
+    @Test
+    public void categoryNeverSeenStillHasUpperBound() {
+        RiskSampler sampler = RiskSampler.reservoir(1000);
+        RiskSampler.Stratum stratum = sampler.stratum("");
+        for (int i = 0; i < 100_000; i++) {
+            RiskSampler.Pick pick = stratum.pick();
+            if (pick != null) {
+                pick.record(SAFE);
+            }
+        }
+        RiskSampler.Estimate unsafe = sampler.estimate().get(0);
+        assertEquals(0.0, unsafe.getRate(), 0.0);
+        assertEquals(0.0, unsafe.getLower(), 0.0);
+        // Wilson upper bound for 0 of 1000: z^2 / (n + z^2)
+        assertEquals(3.8415 / 1003.8415, unsafe.getUpper(), 1e-4);
+    }
+
+    @Test
+    public void unsampledTextsWidenTheInterval() {
+        RiskSampler sampler = RiskSampler.fixedRate(0.0);
+        RiskSampler.Stratum stratum = sampler.stratum("");
+        for (int i = 0; i < 300; i++) {
+            stratum.recordKnown(i < 100 ? PI : SAFE);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertNull(stratum.pick());
+        }
+        assertEstimate(sampler.estimate().get(0), RiskSampler.UNSAFE, 0.25, 0.25, 0.5);
+    }
+
+    @Test
+    public void fixedRateIntervalCoversTrueRate() {
+        double trueRate = 0.1;
+        int covered = 0;
+        int trials = 200;
+        for (int trial = 0; trial < trials; trial++) {
+            RiskSampler sampler = RiskSampler.fixedRate(0.05);
+            RiskSampler.Stratum stratum = sampler.stratum("");
+            for (int i = 0; i < 20_000; i++) {
+                RiskSampler.Pick pick = stratum.pick();
+                if (pick != null) {
+                    pick.record(i % 10 == 0 ? PI : SAFE);
+                }
+            }
+            covered += covers(sampler.estimate().get(0), trueRate) ? 1 : 0;
+        }
+        // 95% intervals: P(coverage < 90% of 200) is about 0.1%
+        assertTrue("covered " + covered + " of " + trials, covered >= 180);
+    }
+
+    @Test
+    public void stratifiedReservoirIntervalCoversTrueRate() {
+        // Stratum a: 20000 texts, 2% unsafe; stratum b: 2000 texts, 20% unsafe
+        double trueRate = (400 + 400) / 22_000.0;
+        int covered = 0;
+        int trials = 200;
+        long picked = 0;
+        for (int trial = 0; trial < trials; trial++) {
+            RiskSampler sampler = RiskSampler.reservoir(200);
+            RiskSampler.Stratum a = sampler.stratum("a");
+            RiskSampler.Stratum b = sampler.stratum("b");
+            for (int i = 0; i < 20_000; i++) {
+                record(a.pick(), i % 50 == 0 ? PI : SAFE);
+                if (i % 10 == 0) {
+                    record(b.pick(), i % 25 == 0 ? CY : SAFE);
+                }
+            }
+            covered += covers(sampler.estimate().get(0), trueRate) ? 1 : 0;
+            picked += sampler.getPicked();
+        }
+        assertTrue("covered " + covered + " of " + trials, covered >= 180);
+        // size * (1 + ln(texts / size)) per stratum
+        double expected = 200 * (1 + Math.log(100)) + 200 * (1 + Math.log(10));
+        assertEquals(expected, picked / (double) trials, expected * 0.05);
+    }
+
+    @Test
+    public void valuesPastTheLimitShareOneStratum() {
+        RiskSampler sampler = RiskSampler.fixedRate(1.0);
+        for (int i = 0; i < RiskSampler.MAX_STRATA; i++) {
+            sampler.stratum("v" + i);
+        }
+        RiskSampler.Stratum other = sampler.stratum("one more");
+        assertSame(other, sampler.stratum("and another"));
+        assertSame(sampler.stratum("v0"), sampler.stratum("v0"));
+        other.pick().record(PI);
+        assertTrue(sampler.summary().contains("Stratum " + RiskSampler.OTHER_STRATUM + " (1 texts)"));
+    }
+
+    private static void record(RiskSampler.Pick pick, SafetyResult result) {
+        if (pick != null) {
+            pick.record(result);
+        }
+    }
+
+    private static boolean covers(RiskSampler.Estimate estimate, double rate) {
+        return estimate.getLower() <= rate && rate <= estimate.getUpper();
+    }
+
+    private static void assertEstimate(RiskSampler.Estimate estimate, String category, double rate, double lower,
+            double upper) {
+        assertEquals(category, estimate.getCategory());
+        assertEquals(rate, estimate.getRate(), 1e-12);
+        assertEquals(lower, estimate.getLower(), 1e-12);
+        assertEquals(upper, estimate.getUpper(), 1e-12);
+    }
+}
@@ -0,0 +1,126 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SafetyBinaryCodecTest {
+
+    /**
+     * Golden vectors shared with text_filter_service/tests/test_wire_format.py: the
+     * request the plugin sends for two texts, and the response the service sends for
+     * four verdicts. Change both sides together.
+     */
+    static final String GOLDEN_REQUEST =
+        "01013fe0000000000000000000020000000568656c6c6f0000000be4bda0e5a5bd20f09f9982";
+    static final String GOLDEN_RESPONSE =
+        "010000000401003c4985f002043f60000002043f600000013e80000000fe3f80000000ff06637573746f6d3f000000";
+
+    private final SafetyBinaryCodec codec = new SafetyBinaryCodec();
+
+    @Test
+    public void encodesGoldenRequest() {
+        codec.encodeBatch(Arrays.asList("hello", "你好 🙂"), 0.5, true);
+        assertEquals(GOLDEN_REQUEST, hex(Arrays.copyOf(codec.buffer(), codec.length())));
+    }
+
+    @Test
+    public void decodesGoldenResponse() throws IOException {
+        SafetyResult[] results = codec.decodeBatch(body(GOLDEN_RESPONSE), 4, true);
+
+        assertTrue(results[0].isSafe());
+        assertSame(SafetyResult.SAFE_CATEGORY, results[0].getRiskCategory());
+        assertEquals(0.0123, results[0].getRiskScore(), 0.0);
+        assertArrayEquals(new double[RiskCategories.count()], results[0].getRiskDetails(), 0.0);
+
+        assertFalse(results[1].isSafe());
+        assertSame("pi", results[1].getRiskCategory());
+        assertEquals(0.875, results[1].getRiskScore(), 0.0);
+        assertEquals(0.875, results[1].getRiskDetails()[RiskCategories.idOf("pi")], 0.0);
+        assertEquals(0.25, results[1].getRiskDetails()[RiskCategories.idOf("dw")], 0.0);
+
+        assertSame(RiskCategories.MODEL_ERROR_CATEGORY, results[2].getRiskCategory());
+        assertEquals(1.0, results[2].getRiskScore(), 0.0);
+        assertEquals("custom", results[3].getRiskCategory());
+        assertEquals(0.5, results[3].getRiskScore(), 0.0);
+    }
+
+    @Test
+    public void skipsDetailsUnlessAsked() throws IOException {
+        SafetyResult[] results = codec.decodeBatch(body(GOLDEN_RESPONSE), 4, false);
+        assertNull(results[1].getRiskDetails());
+        assertSame("pi", results[1].getRiskCategory());
+    }
+
+    @Test
+    public void encodesSingleRequestAsBatchOfOne() {
+        codec.encodeSingle("", 0.5, false);
+        assertEquals("01003fe00000000000000000000100000000", hex(Arrays.copyOf(codec.buffer(), codec.length())));
+    }
+
+    @Test
+    public void encodesLongTextsBeyondInitialBuffer() {
+        char[] chars = new char[10_000];
+        Arrays.fill(chars, '字');
+        codec.encodeSingle(new String(chars), 0.5, false);
+        assertEquals(14 + 4 + 30_000, codec.length());
+    }
+
+    @Test
+    public void rejectsMalformedResponses() {
+        String[] bodies = {
+            "",
+            "02000000010100000000000000",
+            "0100000002010000000000",
+            "010000000101000000",
+            "01000000010100000000000000ff",
+            "01000000010120000000000000",
+            "01000000010302000000000003",
+            "0100000001010000000000ff05616263",
+        };
+        for (String body : bodies) {
+            try {
+                codec.decodeBatch(body(body), 1, true);
+                fail("Accepted " + body);
+            } catch (IOException expected) {
+                // malformed
+            }
+        }
+    }
+
+    @Test
+    public void rejectsWrongResultCount() {
+        try {
+            codec.decodeBatch(body(GOLDEN_RESPONSE), 3, false);
+            fail("Accepted 4 results for 3 texts");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("4 results for 3 texts"));
+        }
+    }
+
+    private static ByteArrayInputStream body(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return new ByteArrayInputStream(bytes);
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+}
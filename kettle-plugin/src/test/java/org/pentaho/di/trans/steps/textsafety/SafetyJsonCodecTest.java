@@ -0,0 +1,167 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class SafetyJsonCodecTest {
+
+    private final SafetyJsonCodec codec = new SafetyJsonCodec();
+
+    @Test
+    public void encodesSingleRequest() {
+        codec.encodeSingle("hello", 0.5, false);
+        assertEquals("{\"text\":\"hello\",\"threshold\":0.5}", encoded());
+    }
+
+    @Test
+    public void encodesBatchRequestWithEscapes() {
+        codec.encodeBatch(Arrays.asList("a\"b\\c", "line\nbreak\t\u0001", "你好 🙂"), 0.25, true);
+        assertEquals("{\"texts\":[\"a\\\"b\\\\c\",\"line\\nbreak\\t\\u0001\",\"你好 🙂\"],\"threshold\":0.25}",
+            encoded());
+    }
+
+    @Test
+    public void encodesUnpairedSurrogateLikeStringGetBytes() {
+        codec.encodeSingle("x\ud800y", 0.5, false);
+        assertEquals("{\"text\":\"" + new String("x\ud800y".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8)
+            + "\",\"threshold\":0.5}", encoded());
+    }
+
+    @Test
+    public void encodesEmptyBatch() {
+        codec.encodeBatch(Collections.<String>emptyList(), 0.5, false);
+        assertEquals("{\"texts\":[],\"threshold\":0.5}", encoded());
+    }
+
+    @Test
+    public void decodesSingleResponse() throws IOException {
+        SafetyResult result = codec.decodeSingle(body(
+            "{\"is_safe\": false, \"risk_category\": \"pi\", \"risk_score\": 0.875,"
+                + " \"risk_details\": {\"pi\": 0.875, \"dw\": 2.5e-1, \"unknown\": 1},"
+                + " \"extra\": [1, {\"a\": \"]\"}]}"),
+            true);
+        assertFalse(result.isSafe());
+        assertSame("pi", result.getRiskCategory());
+        assertEquals(0.875, result.getRiskScore(), 0.0);
+        double[] details = result.getRiskDetails();
+        assertEquals(RiskCategories.count(), details.length);
+        assertEquals(0.875, details[RiskCategories.idOf("pi")], 0.0);
+        assertEquals(0.25, details[RiskCategories.idOf("dw")], 0.0);
+    }
+
+    @Test
+    public void leavesDetailsOutUnlessAsked() throws IOException {
+        SafetyResult result = codec.decodeSingle(body(
+            "{\"is_safe\":true,\"risk_category\":null,\"risk_score\":0,\"risk_details\":{\"pi\":0.1}}"), false);
+        assertTrue(result.isSafe());
+        assertSame(SafetyResult.SAFE_CATEGORY, result.getRiskCategory());
+        assertNull(result.getRiskDetails());
+    }
+
+    @Test
+    public void decodesUnknownCategoryWithEscapes() throws IOException {
+        SafetyResult result = codec.decodeSingle(body(
+            "{\"is_safe\":false,\"risk_category\":\"model_error\",\"risk_score\":1.0}"), false);
+        assertSame(RiskCategories.MODEL_ERROR_CATEGORY, result.getRiskCategory());
+        result = codec.decodeSingle(body(
+            "{\"is_safe\":false,\"risk_category\":\"a\\u0062c\\n\",\"risk_score\":1.0}"), false);
+        assertEquals("abc\n", result.getRiskCategory());
+    }
+
+    @Test
+    public void decodesNumbersLikeParseDouble() throws IOException {
+        String[] numbers = {"0", "-0.5", "0.0123", "1e-7", "9.999999999999999e-1", "123456789012345678901234",
+            "4.9e-324", "1.7976931348623157E308", "0.30000000000000004"};
+        for (String number : numbers) {
+            SafetyResult result = codec.decodeSingle(body(
+                "{\"is_safe\":true,\"risk_score\":" + number + "}"), false);
+            double expected = Double.parseDouble(number);
+            assertEquals(number, expected, result.getRiskScore(), Math.ulp(expected));
+        }
+    }
+
+    @Test
+    public void decodesBatchResponse() throws IOException {
+        SafetyResult[] results = codec.decodeBatch(body(
+            "{\"model\":\"x\",\"results\":[{\"is_safe\":true,\"risk_score\":0.01},"
+                + "{\"is_safe\":false,\"risk_category\":\"cy\",\"risk_score\":0.9,\"risk_details\":null}]}"),
+            2, true);
+        assertEquals(2, results.length);
+        assertTrue(results[0].isSafe());
+        assertEquals(0.01, results[0].getRiskScore(), 0.0);
+        assertSame("cy", results[1].getRiskCategory());
+        assertArrayEquals(new double[RiskCategories.count()], results[1].getRiskDetails(), 0.0);
+    }
+
+    @Test
+    public void decodesLargeResponse() throws IOException {
+        StringBuilder sb = new StringBuilder("{\"results\":[");
+        int count = 500;
+        for (int i = 0; i < count; i++) {
+            sb.append(i > 0 ? "," : "").append("{\"is_safe\":true,\"risk_score\":0.").append(i).append('}');
+        }
+        SafetyResult[] results = codec.decodeBatch(body(sb.append("]}").toString()), count, false);
+        assertEquals(0.499, results[count - 1].getRiskScore(), 1e-15);
+        assertTrue(codec.received() > 4096);
+    }
+
+    @Test
+    public void rejectsMalformedResponses() {
+        String[] bodies = {
+            "",
+            "{",
+            "[]",
+            "{\"is_safe\":true}",
+            "{\"risk_score\":0.1}",
+            "{\"is_safe\":yes,\"risk_score\":0.1}",
+            "{\"is_safe\":true,\"risk_score\":-}",
+            "{\"is_safe\":true,\"risk_score\":0.1,}",
+            "{\"is_safe\":true,\"risk_score\":0.1} x",
+            "{\"is_safe\":true,\"risk_score\":0.1,\"risk_category\":\"pi",
+            "{\"is_safe\":true,\"risk_score\":0.1,\"extra\":[1,2}",
+        };
+        for (String body : bodies) {
+            assertRejected(body, false);
+        }
+    }
+
+    @Test
+    public void rejectsBatchWithWrongResultCount() {
+        assertRejected("{\"results\":[{\"is_safe\":true,\"risk_score\":0}]}", true);
+        assertRejected("{\"other\":[]}", true);
+    }
+
+    private void assertRejected(String body, boolean batch) {
+        try {
+            if (batch) {
+                codec.decodeBatch(body(body), 2, false);
+            } else {
+                codec.decodeSingle(body(body), false);
+            }
+            fail("Accepted " + body);
+        } catch (IOException expected) {
+            // malformed
+        }
+    }
+
+    private String encoded() {
+        return new String(codec.buffer(), 0, codec.length(), StandardCharsets.UTF_8);
+    }
+
+    private static ByteArrayInputStream body(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
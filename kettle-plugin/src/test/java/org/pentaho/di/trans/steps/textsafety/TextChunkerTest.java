@@ -0,0 +1,85 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TextChunkerTest {
+
+    private static final String DIGITS = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    @Test
+    public void keepsShortTextsWhole() {
+        TextChunker chunker = new TextChunker(10, 3, 4);
+        assertEquals(Arrays.asList("0123456789"), split(chunker, "0123456789"));
+        assertFalse(chunker.needsSplit("0123456789"));
+        assertEquals(1, chunker.windowCount(""));
+
+        TextChunker off = new TextChunker(0, 3, 4);
+        assertEquals(Arrays.asList(DIGITS), split(off, DIGITS));
+        assertFalse(off.isCapped(DIGITS));
+    }
+
+    @Test
+    public void overlapsConsecutiveWindows() {
+        TextChunker chunker = new TextChunker(10, 3, 8);
+        // Stride 7: the windows end exactly at the end of the text
+        assertEquals(Arrays.asList("0123456789", "789abcdefg", "efghijklmn"),
+            split(chunker, DIGITS.substring(0, 24)));
+        // One more character: the last window is pulled back to end with the text
+        assertEquals(Arrays.asList("0123456789", "789abcdefg", "efghijklmn", "fghijklmno"),
+            split(chunker, DIGITS.substring(0, 25)));
+        assertEquals(4, chunker.windowCount(DIGITS.substring(0, 25)));
+        assertFalse(chunker.isCapped(DIGITS.substring(0, 25)));
+    }
+
+    @Test
+    public void clampsOverlapBelowWindowLength() {
+        TextChunker chunker = new TextChunker(4, 10, 8);
+        assertEquals(Arrays.asList("0123", "1234", "2345"), split(chunker, "012345"));
+    }
+
+    @Test
+    public void spreadsCappedWindowsOverTheText() {
+        TextChunker chunker = new TextChunker(4, 0, 3);
+        assertTrue(chunker.isCapped(DIGITS));
+        assertEquals(3, chunker.windowCount(DIGITS));
+        // 9 windows needed; 3 spread over starts 0..32 leave gaps between them
+        assertEquals(Arrays.asList("0123", "ghij", "wxyz"), split(chunker, DIGITS));
+
+        assertEquals(Arrays.asList("0123"), split(new TextChunker(4, 0, 1), DIGITS));
+    }
+
+    @Test
+    public void neverCutsSurrogatePairs() {
+        TextChunker chunker = new TextChunker(4, 1, 8);
+        // A window would end after the high surrogate, the next start on the low one
+        assertEquals(Arrays.asList("abc", "🙂de", "defg"), split(chunker, "abc🙂defg"));
+        assertEquals(Arrays.asList("ab🙂", "🙂cde", "defg"), split(chunker, "ab🙂cdefg"));
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            sb.append(i % 3 == 0 ? "x" : "😀");
+        }
+        for (TextChunker c : new TextChunker[] {chunker, new TextChunker(7, 2, 3), new TextChunker(5, 0, 100)}) {
+            for (String window : split(c, sb.toString())) {
+                assertFalse(window, Character.isLowSurrogate(window.charAt(0)));
+                assertFalse(window, Character.isHighSurrogate(window.charAt(window.length() - 1)));
+            }
+        }
+    }
+
+    private static List<String> split(TextChunker chunker, String text) {
+        List<String> out = new ArrayList<>();
+        int count = chunker.split(text, out);
+        assertEquals(out.size(), count);
+        assertEquals(chunker.windowCount(text), count);
+        return out;
+    }
+}
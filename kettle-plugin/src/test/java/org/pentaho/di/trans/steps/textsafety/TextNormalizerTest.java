@@ -0,0 +1,70 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TextNormalizerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void foldsFullWidthFormsAndCase() throws IOException {
+        TextNormalizer normalizer = TextNormalizer.create("");
+        assertEquals("hello,world!", normalizer.normalize("Ｈｅｌｌｏ，ＷＯＲＬＤ！"));
+        assertEquals("fi n", normalizer.normalize("\ufb01 \u207f"));
+    }
+
+    @Test
+    public void simplifiesTraditionalCharacters() throws IOException {
+        TextNormalizer normalizer = TextNormalizer.create("");
+        assertEquals("这个说法们", normalizer.normalize("這個說法們"));
+        // Not in the built-in table
+        assertEquals("丟", normalizer.normalize("丟"));
+    }
+
+    @Test
+    public void extendsTheTableFromAFile() throws IOException {
+        File file = folder.newFile("variants.txt");
+        Files.write(file.toPath(), "# extra\n丟\t丢\n鬱\t郁 鬰\n灣灣\t湾湾\n\n".getBytes(StandardCharsets.UTF_8));
+        TextNormalizer normalizer = TextNormalizer.create(file.getPath());
+        assertEquals("丢郁灣这", normalizer.normalize("丟鬱灣這"));
+    }
+
+    @Test
+    public void dropsInvisibleCharactersAndCollapsesWhitespace() throws IOException {
+        TextNormalizer normalizer = TextNormalizer.create("");
+        assertEquals("ab c", normalizer.normalize(" \ta\u200bb \u200d\n\u3000 c \r\n"));
+        assertEquals("", normalizer.normalize(" \u200b "));
+    }
+
+    @Test
+    public void replacesUrlsAddressesMentionsAndNumbers() throws IOException {
+        TextNormalizer normalizer = TextNormalizer.create("");
+        assertEquals("see <url> or <url> mail <email> ping <user> at <num> pay <num>元",
+            normalizer.normalize("See https://x.com/a?b=1 or www.y.cn/p mail A.b+c@d.co.uk ping @Bob_1 at 12:30 "
+                + "pay ３,500.25元"));
+        assertEquals("<num> <num>", normalizer.normalize("  1   2 "));
+        assertEquals("第<num>名", normalizer.normalize("第1名"));
+    }
+
+    @Test
+    public void failsOnMissingFile() {
+        String path = new File(folder.getRoot(), "missing.txt").getPath();
+        try {
+            TextNormalizer.create(path);
+            fail("Read " + path);
+        } catch (IOException expected) {
+            // missing
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package org.pentaho.di.trans.steps.textsafety;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class VerdictJournalTest {
+
+    /** Layout of a journal without per-category scores: 64-byte header, then 32-byte records. */
+    private static final int FIRST_RECORD = 64;
+    private static final int RECORD_BYTES = 32;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keepsVerdictsAcrossReopen() throws IOException {
+        String path = new File(folder.getRoot(), "journal.bin").getPath();
+        VerdictJournal journal = VerdictJournal.acquire(path, 0);
+        journal.put(VerdictJournal.textKey("a", 0.5), new SafetyResult(true, SafetyResult.SAFE_CATEGORY, 0.01));
+        journal.put(VerdictJournal.rowKey("42", 0, 0.5), new SafetyResult(false, "pi", 0.9));
+        journal.put(VerdictJournal.rowKey("42", 0, 0.5), new SafetyResult(false, "cy", 0.8));
+        VerdictJournal.release(journal);
+
+        journal = VerdictJournal.acquire(path, 0);
+        try {
+            assertEquals(2, journal.getVerdictCount());
+            SafetyResult a = journal.get(VerdictJournal.textKey("  a ", 0.5), false);
+            assertTrue(a.isSafe());
+            assertEquals(0.01, a.getRiskScore(), 0.0);
+            SafetyResult row = journal.get(VerdictJournal.rowKey("42", 0, 0.5), false);
+            assertFalse(row.isSafe());
+            assertSame("cy", row.getRiskCategory());
+            assertNull(journal.get(VerdictJournal.rowKey("42", 1, 0.5), false));
+            assertNull(journal.get(VerdictJournal.textKey("a", 0.6), false));
+        } finally {
+            VerdictJournal.release(journal);
+        }
+    }
+
+    @Test
+    public void keepsPerCategoryScores() throws IOException {
+        String path = new File(folder.getRoot(), "details.bin").getPath();
+        double[] details = new double[RiskCategories.count()];
+        details[RiskCategories.idOf("pi")] = 0.75;
+        VerdictJournal journal = VerdictJournal.acquire(path, 0);
+        journal.put(VerdictJournal.textKey("with", 0.5), new SafetyResult(false, "pi", 0.75, details));
+        journal.put(VerdictJournal.textKey("without", 0.5), new SafetyResult(false, "pi", 0.75));
+        VerdictJournal.release(journal);
+
+        journal = VerdictJournal.acquire(path, 0);
+        try {
+            SafetyResult with = journal.get(VerdictJournal.textKey("with", 0.5), true);
+            assertEquals(0.75, with.getRiskDetails()[RiskCategories.idOf("pi")], 0.0);
+            assertNull(journal.get(VerdictJournal.textKey("with", 0.5), false).getRiskDetails());
+            assertNull(journal.get(VerdictJournal.textKey("without", 0.5), true));
+            assertNotNull(journal.get(VerdictJournal.textKey("without", 0.5), false));
+        } finally {
+            VerdictJournal.release(journal);
+        }
+    }
+
+    @Test
+    public void skipsErrorResults() throws IOException {
+        String path = new File(folder.getRoot(), "errors.bin").getPath();
+        VerdictJournal journal = VerdictJournal.acquire(path, 0);
+        try {
+            journal.put(VerdictJournal.textKey("x", 0.5), SafetyResult.apiError());
+            journal.put(VerdictJournal.textKey("y", 0.5),
+                new SafetyResult(false, RiskCategories.MODEL_ERROR_CATEGORY, 1.0));
+            assertEquals(0, journal.getVerdictCount());
+        } finally {
+            VerdictJournal.release(journal);
+        }
+    }
+
+    @Test
+    public void endsAtTornRecord() throws IOException {
+        String path = new File(folder.getRoot(), "torn.bin").getPath();
+        VerdictJournal journal = VerdictJournal.acquire(path, 0);
+        for (int i = 0; i < 3; i++) {
+            journal.put(VerdictJournal.textKey("t" + i, 0.5), new SafetyResult(false, "pi", 0.5 + i / 10.0));
+        }
+        VerdictJournal.release(journal);
+        try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
+            // Flip a score byte of the second record, as a crash part way through writing it would
+            long pos = FIRST_RECORD + RECORD_BYTES + 20;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0xff);
+        }
+
+        journal = VerdictJournal.acquire(path, 0);
+        try {
+            assertEquals(1, journal.getVerdictCount());
+            assertNotNull(journal.get(VerdictJournal.textKey("t0", 0.5), false));
+            assertNull(journal.get(VerdictJournal.textKey("t1", 0.5), false));
+            assertNull(journal.get(VerdictJournal.textKey("t2", 0.5), false));
+            journal.put(VerdictJournal.textKey("t3", 0.5), new SafetyResult(true, SafetyResult.SAFE_CATEGORY, 0.0));
+        } finally {
+            VerdictJournal.release(journal);
+        }
+
+        // The stale third record was cleared, so nothing older follows the new one
+        journal = VerdictJournal.acquire(path, 0);
+        try {
+            assertEquals(2, journal.getVerdictCount());
+            assertNotNull(journal.get(VerdictJournal.textKey("t3", 0.5), false));
+            assertNull(journal.get(VerdictJournal.textKey("t2", 0.5), false));
+        } finally {
+            VerdictJournal.release(journal);
+        }
+    }
+
+    @Test
+    public void compactsSupersededRecordsOnOpen() throws IOException {
+        String path = new File(folder.getRoot(), "compact.bin").getPath();
+        int keys = 10;
+        int rounds = 12_000;
+        VerdictJournal journal = VerdictJournal.acquire(path, 0);
+        for (int round = 0; round < rounds; round++) {
+            for (int k = 0; k < keys; k++) {
+                journal.put(VerdictJournal.rowKey(Integer.toString(k), 0, 0.5),
+                    new SafetyResult(false, "pi", round / (double) rounds));
+            }
+        }
+        VerdictJournal.release(journal);
+
+        journal = VerdictJournal.acquire(path, 0);
+        try {
+            assertEquals((long) keys * rounds - keys, journal.getCompactedRecords());
+            assertEquals(keys, journal.getVerdictCount());
+            for (int k = 0; k < keys; k++) {
+                SafetyResult result = journal.get(VerdictJournal.rowKey(Integer.toString(k), 0, 0.5), false);
+                assertEquals((rounds - 1) / (double) rounds, result.getRiskScore(), 0.0);
+            }
+        } finally {
+            VerdictJournal.release(journal);
+        }
+        assertFalse(new File(path + ".compact").exists());
+
+        journal = VerdictJournal.acquire(path, 0);
+        try {
+            assertEquals(0, journal.getCompactedRecords());
+            assertEquals(keys, journal.getVerdictCount());
+        } finally {
+            VerdictJournal.release(journal);
+        }
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        File file = folder.newFile("other.bin");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(new byte[100]);
+        }
+        try {
+            VerdictJournal.release(VerdictJournal.acquire(file.getPath(), 0));
+            fail("Opened a file that is not a journal");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("not a verdict journal"));
+        }
+    }
+}
@@ -1,4 +1,4 @@
-from typing import Dict, Optional
+from typing import Dict, List, Optional
 
 from pydantic import BaseModel
 
@@ -16,3 +16,13 @@ class TextCheckResponse(BaseModel):
     risk_score: float = 0.0
     risk_details: Dict[str, float] = {}
 
+
+class TextBatchCheckRequest(BaseModel):
+    """Request body for a batch of texts checked in one call."""
+    texts: List[str]
+    threshold: Optional[float] = None
+
+
+class TextBatchCheckResponse(BaseModel):
+    """Response body for a batch check, results in the same order as the request texts."""
+    results: List[TextCheckResponse] = []
@@ -1,23 +1,43 @@
 import logging
+import time
 from contextlib import asynccontextmanager
-from typing import Optional, Tuple
+from typing import Dict, Optional, Tuple
 
 import uvicorn
-from fastapi import FastAPI
+from fastapi import FastAPI, Request, Response
 from fastapi.middleware.cors import CORSMiddleware
 
 from service_config import service_config
-from api_models import TextCheckRequest, TextCheckResponse
+from batcher import DynamicBatcher
+from api_models import (
+    TextBatchCheckRequest,
+    TextBatchCheckResponse,
+    TextCheckRequest,
+    TextCheckResponse,
+)
 from text_classifier import classifier
+import wire_format
 
 logger = logging.getLogger(__name__)
 
+# Category reported, fail-closed, for texts whose inference failed
+MODEL_ERROR_CATEGORY = "model_error"
+
+batcher = DynamicBatcher(
+    classifier.classify_batch,
+    max_batch_size=service_config.MAX_BATCH_SIZE,
+    max_wait_ms=service_config.BATCH_WAIT_MS,
+)
+
 
 @asynccontextmanager
 async def lifespan(app: FastAPI):
-    """Application lifespan — model is already loaded via text_classifier module."""
+    """Application lifespan — model is already loaded via text_classifier module;
+    the batcher's inference worker runs while the app does."""
+    batcher.start()
     logger.info("Text Safety Filter Service is ready.")
     yield
+    await batcher.stop()
 
 
 app = FastAPI(
@@ -32,8 +52,51 @@ app.add_middleware(
     allow_origins=["*"],
     allow_methods=["*"],
     allow_headers=["*"],
+    expose_headers=["X-Process-Time-Ms", "X-Wire-Formats"],
 )
 
+CHECK_PATH = "/api/check"
+CHECK_BATCH_PATH = "/api/check_batch"
+
+# Request body formats the check endpoints accept, advertised on /health
+WIRE_FORMATS = ", ".join(["application/json", wire_format.MEDIA_TYPE])
+
+
+# Declared before the timing middleware, which therefore wraps it and times binary calls too
+@app.middleware("http")
+async def binary_wire_format(request: Request, call_next):
+    """Serve check requests sent in the binary wire format; everything else goes on to the routes."""
+    content_type = request.headers.get("content-type", "").split(";")[0].strip().lower()
+    if request.method != "POST" or content_type != wire_format.MEDIA_TYPE:
+        return await call_next(request)
+    if request.url.path not in (CHECK_PATH, CHECK_BATCH_PATH):
+        return Response(status_code=415)
+    try:
+        texts, threshold, with_details = wire_format.decode_request(await request.body())
+    except wire_format.WireFormatError as e:
+        return Response(content=str(e), status_code=400, media_type="text/plain")
+    if request.url.path == CHECK_PATH and len(texts) != 1:
+        return Response(content="/api/check takes exactly one text", status_code=400, media_type="text/plain")
+
+    threshold = threshold if threshold is not None else service_config.THRESHOLD
+    verdicts = []
+    for risk_map in await batcher.classify(texts):
+        if isinstance(risk_map, BaseException):
+            verdicts.append((False, MODEL_ERROR_CATEGORY, 1.0, {}))
+        else:
+            verdicts.append((*evaluate_risk(risk_map, threshold), risk_map))
+    return Response(content=wire_format.encode_response(verdicts, with_details),
+                    media_type=wire_format.MEDIA_TYPE)
+
+
+@app.middleware("http")
+async def add_process_time_header(request: Request, call_next):
+    """Report handling time so clients can tell service time from network time."""
+    start = time.perf_counter()
+    response = await call_next(request)
+    response.headers["X-Process-Time-Ms"] = f"{(time.perf_counter() - start) * 1000:.3f}"
+    return response
+
 
 def evaluate_risk(risk_map: dict, threshold: float) -> Tuple[bool, Optional[str], float]:
     """Determine the highest-risk category and whether it exceeds the threshold.
@@ -74,39 +137,66 @@ def evaluate_risk(risk_map: dict, threshold: float) -> Tuple[bool, Optional[str]
     return True, None, max_risk_score
 
 
+def build_response(risk_map: Dict[str, float], threshold: float) -> TextCheckResponse:
+    """Turn a classifier risk map into the API response for one text."""
+    is_safe, blocked_cat, score = evaluate_risk(risk_map, threshold)
+    return TextCheckResponse(
+        is_safe=is_safe,
+        risk_category=blocked_cat,
+        risk_score=score,
+        risk_details=risk_map,
+    )
+
+
+def model_error_response() -> TextCheckResponse:
+    """Fail-closed response used when model inference raises."""
+    return TextCheckResponse(
+        is_safe=False,
+        risk_category=MODEL_ERROR_CATEGORY,
+        risk_score=1.0,
+        risk_details={},
+    )
+
+
 # ------------------------------------------------------------------
 # Endpoints
 # ------------------------------------------------------------------
 
 @app.get("/health")
-async def health():
-    """Simple health-check endpoint."""
-    return {"status": "ok"}
+async def health(response: Response):
+    """Health check, with the batcher's queue depth and batch size statistics.
 
+    The X-Wire-Formats header lists the request formats of the check endpoints,
+    from which clients pick the binary format when it is available.
+    """
+    response.headers["X-Wire-Formats"] = WIRE_FORMATS
+    return {"status": "ok", "batcher": batcher.stats()}
 
-@app.post("/api/check", response_model=TextCheckResponse)
+
+@app.post(CHECK_PATH, response_model=TextCheckResponse)
 async def check_text(request: TextCheckRequest):
     """Check a single text for safety risks."""
-    try:
-        risk_map = classifier.classify(request.text)
-    except Exception:
-        logger.exception("Model inference failed")
-        return TextCheckResponse(
-            is_safe=False,
-            risk_category="model_error",
-            risk_score=1.0,
-            risk_details={},
-        )
+    risk_map = (await batcher.classify([request.text]))[0]
+    if isinstance(risk_map, BaseException):
+        return model_error_response()
 
     threshold = request.threshold if request.threshold is not None else service_config.THRESHOLD
-    is_safe, blocked_cat, score = evaluate_risk(risk_map, threshold)
+    return build_response(risk_map, threshold)
 
-    return TextCheckResponse(
-        is_safe=is_safe,
-        risk_category=blocked_cat,
-        risk_score=score,
-        risk_details=risk_map,
-    )
+
+@app.post(CHECK_BATCH_PATH, response_model=TextBatchCheckResponse)
+async def check_text_batch(request: TextBatchCheckRequest):
+    """Check several texts; the batcher runs them in forward passes of up to MAX_BATCH_SIZE,
+    shared with the texts of concurrent requests.
+
+    Results are returned in the same order as ``request.texts``.
+    """
+    threshold = request.threshold if request.threshold is not None else service_config.THRESHOLD
+    risk_maps = await batcher.classify(request.texts)
+    return TextBatchCheckResponse(results=[
+        model_error_response() if isinstance(risk_map, BaseException) else build_response(risk_map, threshold)
+        for risk_map in risk_maps
+    ])
 
 
 if __name__ == "__main__":
@@ -0,0 +1,148 @@
+import asyncio
+import logging
+from concurrent.futures import ThreadPoolExecutor
+from typing import Callable, Dict, List, NamedTuple, Optional, Union
+
+logger = logging.getLogger(__name__)
+
+RiskMap = Dict[str, float]
+
+
+class _Pending(NamedTuple):
+    """One text waiting for the model, with the future its caller awaits."""
+    text: str
+    future: asyncio.Future
+    enqueued: float
+
+
+class DynamicBatcher:
+    """Gathers texts from concurrent requests into shared forward passes.
+
+    Handlers put their texts on a queue and await one future per text. A single
+    worker task takes the oldest text, waits until it has been queued for up to
+    ``max_wait_ms`` or ``max_batch_size`` texts are queued, and runs them as one
+    padded batch on a dedicated inference thread, so the event loop stays free
+    while the model runs. Texts that arrive during a forward pass queue up and go
+    into the next one.
+    """
+
+    def __init__(self, classify_batch: Callable[[List[str]], List[RiskMap]],
+                 max_batch_size: int, max_wait_ms: float):
+        self._classify_batch = classify_batch
+        self._max_batch_size = max(1, max_batch_size)
+        self._max_wait = max(0.0, max_wait_ms) / 1000
+        self._executor = ThreadPoolExecutor(max_workers=1, thread_name_prefix="inference")
+        self._queue: asyncio.Queue = asyncio.Queue()
+        self._worker: Optional[asyncio.Task] = None
+
+        self._batches = 0
+        self._texts = 0
+        self._failed_batches = 0
+        self._running = 0
+        self._last_batch_size = 0
+        self._largest_batch_size = 0
+        self._queue_wait_total = 0.0
+        self._inference_time_total = 0.0
+
+    def start(self) -> None:
+        """Starts the worker; call from the running event loop."""
+        self._worker = asyncio.get_running_loop().create_task(self._run())
+
+    async def stop(self) -> None:
+        """Stops the worker and the inference thread; queued callers are cancelled."""
+        if self._worker is not None:
+            self._worker.cancel()
+            try:
+                await self._worker
+            except asyncio.CancelledError:
+                pass
+        while not self._queue.empty():
+            self._queue.get_nowait().future.cancel()
+        self._executor.shutdown(wait=True)
+
+    async def classify(self, texts: List[str]) -> List[Union[RiskMap, Exception]]:
+        """Classifies texts through the shared batches.
+
+        Returns one risk map per text, in order, or the exception of the forward
+        pass the text was part of.
+        """
+        loop = asyncio.get_running_loop()
+        now = loop.time()
+        futures = []
+        for text in texts:
+            future = loop.create_future()
+            self._queue.put_nowait(_Pending(text, future, now))
+            futures.append(future)
+        return await asyncio.gather(*futures, return_exceptions=True)
+
+    def stats(self) -> dict:
+        """Queue and batch statistics for /health."""
+        batches = self._batches
+        return {
+            "queue_depth": self._queue.qsize(),
+            "running": self._running,
+            "max_batch_size": self._max_batch_size,
+            "max_wait_ms": self._max_wait * 1000,
+            "batches": batches,
+            "failed_batches": self._failed_batches,
+            "texts": self._texts,
+            "last_batch_size": self._last_batch_size,
+            "largest_batch_size": self._largest_batch_size,
+            "mean_batch_size": round(self._texts / batches, 2) if batches else 0.0,
+            "mean_queue_wait_ms": round(self._queue_wait_total * 1000 / self._texts, 3) if self._texts else 0.0,
+            "mean_inference_ms": round(self._inference_time_total * 1000 / batches, 3) if batches else 0.0,
+        }
+
+    # ------------------------------------------------------------------
+    # Internal helpers
+    # ------------------------------------------------------------------
+
+    async def _run(self) -> None:
+        loop = asyncio.get_running_loop()
+        while True:
+            first = await self._queue.get()
+            batch = [first]
+            # Wait is counted from when the oldest text was queued: texts that
+            # queued up behind a forward pass do not wait any longer
+            deadline = first.enqueued + self._max_wait
+            while len(batch) < self._max_batch_size:
+                if not self._queue.empty():
+                    batch.append(self._queue.get_nowait())
+                    continue
+                timeout = deadline - loop.time()
+                if timeout <= 0:
+                    break
+                try:
+                    batch.append(await asyncio.wait_for(self._queue.get(), timeout))
+                except asyncio.TimeoutError:
+                    break
+            # Callers that went away (client disconnect) no longer need a result
+            batch = [pending for pending in batch if not pending.future.done()]
+            if batch:
+                await self._run_batch(loop, batch)
+
+    async def _run_batch(self, loop: asyncio.AbstractEventLoop, batch: List[_Pending]) -> None:
+        start = loop.time()
+        self._running = len(batch)
+        try:
+            risk_maps = await loop.run_in_executor(
+                self._executor, self._classify_batch, [pending.text for pending in batch])
+        except Exception as e:
+            logger.exception("Batch model inference failed for %d texts", len(batch))
+            self._failed_batches += 1
+            for pending in batch:
+                if not pending.future.done():
+                    pending.future.set_exception(e)
+        else:
+            for pending, risk_map in zip(batch, risk_maps):
+                if not pending.future.done():
+                    pending.future.set_result(risk_map)
+        finally:
+            self._running = 0
+
+        self._batches += 1
+        self._texts += len(batch)
+        self._last_batch_size = len(batch)
+        self._largest_batch_size = max(self._largest_batch_size, len(batch))
+        self._queue_wait_total += sum(start - pending.enqueued for pending in batch)
+        self._inference_time_total += loop.time() - start
@@ -0,0 +1,264 @@
+"""Export the safety model for the Kettle step's embedded (in-process) inference mode.
+
+Writes a directory that ``OnnxSafetyEngine`` loads with ONNX Runtime Java:
+
+    model.onnx        forward pass returning the logits of the next token only
+    vocab.txt         byte-level BPE vocabulary, one ``token<TAB>id`` per line
+    merges.txt        BPE merges, one ``left right`` pair per line, by priority
+    model.properties  chat template around the text, pad id, category token ids
+
+Usage:
+    python export_onnx.py --output ./onnx-model [--model ./YuFeng-XGuard-Reason-0.6B] [--quantize]
+
+Requires ``onnx`` (and ``onnxruntime`` for --quantize) on top of requirements.txt.
+"""
+import argparse
+import json
+import logging
+import re
+from pathlib import Path
+from typing import Dict, List
+
+import torch
+from transformers import AutoModelForCausalLM, AutoTokenizer
+
+from service_config import service_config
+
+logger = logging.getLogger(__name__)
+
+# Same as text_classifier.py; not imported from there because importing it loads the model.
+VALID_CATEGORIES = frozenset([
+    "dw", "pc", "dc", "pi", "ec", "ac", "def", "ti", "cy",
+    "ph", "mh", "se", "sci", "pp", "cs", "acc", "mc", "ha",
+    "ps", "ter", "sd", "ext", "fin", "med", "law", "cm", "ma", "md", "sec",
+])
+TOP_K = 20
+
+# Stands in for the user's text while the chat template is rendered.
+PLACEHOLDER = "<<<TEXT_SAFETY_PLACEHOLDER>>>"
+
+# Used by the parity check at the end of the export.
+SAMPLE_TEXTS = [
+    "你好，今天天气怎么样？",
+    "How do I reset my password?\n\nThanks!",
+    "  leading spaces, 123456 digits and emoji \U0001F600 ",
+]
+
+
+class LastTokenLogits(torch.nn.Module):
+    """Runs the model over a left-padded batch and keeps the last position's logits,
+    which is what ``generate`` scores as the first new token."""
+
+    def __init__(self, model):
+        super().__init__()
+        self.model = model
+
+    def forward(self, input_ids, attention_mask):
+        # generate() derives positions from the mask, so padding does not shift them
+        position_ids = (attention_mask.long().cumsum(-1) - 1).clamp(min=0)
+        outputs = self.model(
+            input_ids=input_ids,
+            attention_mask=attention_mask,
+            position_ids=position_ids,
+            use_cache=False,
+        )
+        return outputs.logits[:, -1, :].float()
+
+
+def export_model(model, output: Path, opset: int) -> None:
+    dummy_ids = torch.ones((2, 8), dtype=torch.long)
+    dummy_mask = torch.ones((2, 8), dtype=torch.long)
+    dummy_mask[0, :3] = 0
+    torch.onnx.export(
+        LastTokenLogits(model),
+        (dummy_ids, dummy_mask),
+        str(output / "model.onnx"),
+        input_names=["input_ids", "attention_mask"],
+        output_names=["logits"],
+        dynamic_axes={
+            "input_ids": {0: "batch", 1: "sequence"},
+            "attention_mask": {0: "batch", 1: "sequence"},
+            "logits": {0: "batch"},
+        },
+        opset_version=opset,
+        do_constant_folding=True,
+    )
+
+
+def quantize_model(output: Path) -> None:
+    from onnxruntime.quantization import QuantType, quantize_dynamic
+
+    source = output / "model.onnx"
+    target = output / "model.int8.onnx"
+    quantize_dynamic(str(source), str(target), weight_type=QuantType.QInt8)
+    source.unlink()
+    target.rename(source)
+
+
+def write_vocab(tokenizer, output: Path) -> None:
+    with open(output / "vocab.txt", "w", encoding="utf-8", newline="\n") as f:
+        for token, token_id in sorted(tokenizer.get_vocab().items(), key=lambda item: item[1]):
+            if "\n" in token or "\r" in token:
+                continue
+            f.write(f"{token}\t{token_id}\n")
+
+    model_json = json.loads(tokenizer.backend_tokenizer.to_str())["model"]
+    with open(output / "merges.txt", "w", encoding="utf-8", newline="\n") as f:
+        for merge in model_json.get("merges", []):
+            # Older tokenizer.json files store "left right", newer ones [left, right]
+            f.write((merge if isinstance(merge, str) else " ".join(merge)) + "\n")
+
+
+def pretokenizer_settings(tokenizer) -> Dict[str, str]:
+    """Split regex and normalizer of the tokenizer, as the Java tokenizer expects them."""
+    config = json.loads(tokenizer.backend_tokenizer.to_str())
+    settings: Dict[str, str] = {}
+
+    def find_split(node):
+        if isinstance(node, dict):
+            if node.get("type") == "Split" and isinstance(node.get("pattern"), dict) and "Regex" in node["pattern"]:
+                return node["pattern"]["Regex"]
+            for child in node.get("pretokenizers", []):
+                found = find_split(child)
+                if found:
+                    return found
+        return None
+
+    pattern = find_split(config.get("pre_tokenizer"))
+    if pattern:
+        settings["pretokenizer.pattern"] = pattern
+    normalizer = config.get("normalizer") or {}
+    if normalizer.get("type") == "NFC":
+        settings["normalizer"] = "NFC"
+    return settings
+
+
+def split_template(tokenizer) -> Dict[str, str]:
+    """Cuts the rendered chat template around the text.
+
+    Everything up to the last special token before the text, and from the first one after
+    it, is tokenized once here; the plain text in between is tokenized by Java together
+    with the text, since BPE words may span the boundary.
+    """
+    rendered = tokenizer.apply_chat_template(
+        [{"role": "user", "content": PLACEHOLDER}], tokenize=False, add_generation_prompt=True,
+    )
+    before, after = rendered.split(PLACEHOLDER)
+    specials = sorted(tokenizer.get_added_vocab().keys(), key=len, reverse=True)
+    special_re = re.compile("|".join(re.escape(s) for s in specials))
+
+    last = None
+    for last in special_re.finditer(before):
+        pass
+    prefix_end = last.end() if last else 0
+    first = special_re.search(after)
+    suffix_start = first.start() if first else len(after)
+
+    def ids(text: str) -> List[int]:
+        return tokenizer(text, add_special_tokens=False)["input_ids"] if text else []
+
+    return {
+        "prompt.prefix_ids": ",".join(map(str, ids(before[:prefix_end]))),
+        "prompt.prefix_text": before[prefix_end:],
+        "prompt.suffix_text": after[:suffix_start],
+        "prompt.suffix_ids": ",".join(map(str, ids(after[suffix_start:]))),
+    }
+
+
+def category_token_ids(tokenizer) -> Dict[str, str]:
+    """Token ids whose decoded text is a category code, as _extract_risk_scores reads them."""
+    categories = set(VALID_CATEGORIES) | set(tokenizer.init_kwargs.get("id2risk", {}).keys())
+    ids: Dict[str, List[int]] = {}
+    for token_id in range(len(tokenizer)):
+        token = tokenizer.decode([token_id]).strip()
+        if token in categories:
+            ids.setdefault(token, []).append(token_id)
+    return {f"category.{code}": ",".join(map(str, token_ids)) for code, token_ids in sorted(ids.items())}
+
+
+def escape_property(value: str) -> str:
+    """Escapes a value for java.util.Properties, which reads ISO-8859-1."""
+    out = []
+    for i, ch in enumerate(value):
+        code = ord(ch)
+        if ch == "\\":
+            out.append("\\\\")
+        elif ch == "\n":
+            out.append("\\n")
+        elif ch == "\r":
+            out.append("\\r")
+        elif ch == "\t":
+            out.append("\\t")
+        elif ch == " " and i == 0:
+            out.append("\\ ")
+        elif ch in "=:#!":
+            out.append("\\" + ch)
+        elif 0x20 <= code < 0x7F:
+            out.append(ch)
+        else:
+            encoded = ch.encode("utf-16-be")
+            for j in range(0, len(encoded), 2):
+                out.append("\\u%04X" % int.from_bytes(encoded[j:j + 2], "big"))
+    return "".join(out)
+
+
+def write_properties(properties: Dict[str, str], output: Path) -> None:
+    with open(output / "model.properties", "w", encoding="ascii", newline="\n") as f:
+        f.write("# Written by export_onnx.py, read by OnnxSafetyEngine\n")
+        for key, value in properties.items():
+            f.write(f"{key}={escape_property(str(value))}\n")
+
+
+def check_prompt_parity(tokenizer, properties: Dict[str, str]) -> None:
+    """Warns when the split template does not tokenize exactly like the full prompt."""
+    prefix = [int(i) for i in properties["prompt.prefix_ids"].split(",") if i]
+    suffix = [int(i) for i in properties["prompt.suffix_ids"].split(",") if i]
+    for text in SAMPLE_TEXTS:
+        expected = tokenizer.apply_chat_template(
+            [{"role": "user", "content": text}], tokenize=True, add_generation_prompt=True,
+        )
+        body = tokenizer(
+            properties["prompt.prefix_text"] + text + properties["prompt.suffix_text"], add_special_tokens=False,
+        )["input_ids"]
+        if prefix + body + suffix != list(expected):
+            logger.warning("Prompt tokens differ from the chat template for %r; scores may drift", text)
+
+
+def main() -> None:
+    parser = argparse.ArgumentParser(description="Export the safety model to ONNX for embedded inference.")
+    parser.add_argument("--model", default=service_config.MODEL_PATH, help="model directory")
+    parser.add_argument("--output", required=True, help="directory to write the export to")
+    parser.add_argument("--opset", type=int, default=17)
+    parser.add_argument("--quantize", action="store_true", help="int8 dynamic quantization of the weights")
+    args = parser.parse_args()
+    logging.basicConfig(level=logging.INFO)
+
+    output = Path(args.output)
+    output.mkdir(parents=True, exist_ok=True)
+    model_path = str(Path(args.model).resolve())
+    tokenizer = AutoTokenizer.from_pretrained(model_path)
+    model = AutoModelForCausalLM.from_pretrained(model_path, torch_dtype=torch.float32).eval()
+
+    logger.info("Exporting %s to %s ...", model_path, output)
+    with torch.no_grad():
+        export_model(model, output, args.opset)
+    if args.quantize:
+        logger.info("Quantizing weights to int8 ...")
+        quantize_model(output)
+
+    write_vocab(tokenizer, output)
+    pad_id = tokenizer.pad_token_id if tokenizer.pad_token_id is not None else tokenizer.eos_token_id
+    properties: Dict[str, str] = {}
+    properties.update(split_template(tokenizer))
+    properties["pad_id"] = str(pad_id)
+    properties["max_input_tokens"] = str(getattr(model.config, "max_position_embeddings", 32768))
+    properties["top_k"] = str(TOP_K)
+    properties.update(pretokenizer_settings(tokenizer))
+    properties.update(category_token_ids(tokenizer))
+    write_properties(properties, output)
+    check_prompt_parity(tokenizer, properties)
+    logger.info("Done.")
+
+
+if __name__ == "__main__":
+    main()
@@ -15,6 +15,13 @@ class ServiceConfig(BaseSettings):
     # Safety threshold (0.0 ~ 1.0), scores above this are considered unsafe
     THRESHOLD: float = 0.5
 
+    # Largest number of texts run through the model in one forward pass; texts of
+    # concurrent requests share passes, and bigger /api/check_batch requests span several
+    MAX_BATCH_SIZE: int = 32
+
+    # How long the oldest queued text may wait for more texts to join its forward pass (ms)
+    BATCH_WAIT_MS: float = 5.0
+
     class Config:
         env_file = ".env"
 
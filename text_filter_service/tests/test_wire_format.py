@@ -0,0 +1,71 @@
+"""Tests of the binary wire format, including golden vectors shared with the Kettle plugin.
+
+Run from text_filter_service: ``python -m unittest discover -s tests``
+"""
+import math
+import struct
+import unittest
+
+import wire_format
+from wire_format import WireFormatError, decode_request, encode_response
+
+# Same bytes as GOLDEN_REQUEST / GOLDEN_RESPONSE in the plugin's SafetyBinaryCodecTest;
+# change both sides together.
+GOLDEN_REQUEST = bytes.fromhex(
+    "01013fe0000000000000000000020000000568656c6c6f0000000be4bda0e5a5bd20f09f9982")
+GOLDEN_RESPONSE = bytes.fromhex(
+    "010000000401003c4985f002043f60000002043f600000013e80000000fe3f80000000ff06637573746f6d3f000000")
+GOLDEN_VERDICTS = [
+    (True, None, 0.0123, {}),
+    (False, "pi", 0.875, {"pi": 0.875, "dw": 0.25}),
+    (False, "model_error", 1.0, {}),
+    (False, "custom", 0.5, {}),
+]
+
+
+class DecodeRequestTest(unittest.TestCase):
+
+    def test_golden_request(self):
+        self.assertEqual(decode_request(GOLDEN_REQUEST), (["hello", "你好 🙂"], 0.5, True))
+
+    def test_nan_threshold_means_default(self):
+        body = struct.pack(">BBdI", 1, 0, math.nan, 0)
+        self.assertEqual(decode_request(body), ([], None, False))
+
+    def test_rejects_malformed_requests(self):
+        bodies = [
+            b"",
+            GOLDEN_REQUEST[:13],
+            b"\x02" + GOLDEN_REQUEST[1:],
+            GOLDEN_REQUEST[:16],
+            GOLDEN_REQUEST[:-1],
+            GOLDEN_REQUEST + b"\x00",
+            struct.pack(">BBdII", 1, 0, 0.5, 1, 2) + b"\xff\xfe",
+        ]
+        for body in bodies:
+            with self.subTest(body=body.hex()):
+                with self.assertRaises(WireFormatError):
+                    decode_request(body)
+
+
+class EncodeResponseTest(unittest.TestCase):
+
+    def test_golden_response(self):
+        self.assertEqual(encode_response(GOLDEN_VERDICTS, True), GOLDEN_RESPONSE)
+
+    def test_details_left_out_unless_asked(self):
+        body = encode_response(GOLDEN_VERDICTS[1:2], False)
+        self.assertEqual(body, struct.pack(">BIBBf", 1, 1, 0, 4, 0.875))
+
+    def test_unknown_detail_codes_are_dropped(self):
+        body = encode_response([(True, None, 0.0, {"xx": 0.5})], True)
+        self.assertEqual(body, struct.pack(">BIBBf", 1, 1, 1, 0, 0.0))
+
+    def test_category_ids_follow_plugin_order(self):
+        self.assertEqual(len(wire_format.CATEGORY_CODES), 29)
+        self.assertEqual(wire_format.CATEGORY_CODES[0], "dw")
+        self.assertEqual(wire_format.CATEGORY_CODES[-1], "sec")
+
+
+if __name__ == "__main__":
+    unittest.main()
@@ -1,6 +1,6 @@
 import logging
 from pathlib import Path
-from typing import Dict
+from typing import Dict, List
 
 import torch
 from transformers import AutoModelForCausalLM, AutoTokenizer
@@ -35,6 +35,12 @@ class TextClassifier:
         ).eval()
         self.id2risk: Dict[str, str] = self.tokenizer.init_kwargs.get("id2risk", {})
 
+        # Batched generation needs left padding so every row's first new token
+        # is produced right after its own prompt.
+        self.tokenizer.padding_side = "left"
+        if self.tokenizer.pad_token is None:
+            self.tokenizer.pad_token = self.tokenizer.eos_token
+
         logger.info("Model loaded successfully.")
 
     # ------------------------------------------------------------------
@@ -43,12 +49,24 @@ class TextClassifier:
 
     def classify(self, text: str, max_new_tokens: int = 1) -> Dict[str, float]:
         """Classify a single text and return a risk-score map."""
-        messages = [{"role": "user", "content": text}]
-        rendered = self.tokenizer.apply_chat_template(
-            messages, tokenize=False, add_generation_prompt=True,
-        )
+        return self.classify_batch([text], max_new_tokens=max_new_tokens)[0]
+
+    def classify_batch(self, texts: List[str], max_new_tokens: int = 1) -> List[Dict[str, float]]:
+        """Classify several texts in one padded forward pass.
+
+        Returns one risk-score map per input text, in the same order.
+        """
+        if not texts:
+            return []
+
+        rendered = [
+            self.tokenizer.apply_chat_template(
+                [{"role": "user", "content": text}], tokenize=False, add_generation_prompt=True,
+            )
+            for text in texts
+        ]
         model_inputs = self.tokenizer(
-            [rendered], return_tensors="pt",
+            rendered, return_tensors="pt", padding=True,
         ).to(self.model.device)
 
         with torch.no_grad():
@@ -58,10 +76,11 @@ class TextClassifier:
                 do_sample=False,
                 output_scores=True,
                 return_dict_in_generate=True,
+                pad_token_id=self.tokenizer.pad_token_id,
             )
 
-        first_token_probs = outputs.scores[0][0].softmax(-1)
-        return self._extract_risk_scores(first_token_probs)
+        first_token_probs = outputs.scores[0].softmax(-1)
+        return [self._extract_risk_scores(probs) for probs in first_token_probs]
 
     # ------------------------------------------------------------------
     # Internal helpers
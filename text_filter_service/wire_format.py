@@ -0,0 +1,119 @@
+"""Compact binary wire format for /api/check and /api/check_batch.
+
+Requests and responses sent with the ``application/x-text-safety`` content type
+use length-prefixed big-endian frames instead of JSON. Category codes travel as
+small integer ids and scores as float32, and the per-category scores are only
+sent when the client asks for them.
+
+Request (both endpoints; /api/check takes exactly one text)::
+
+    u8   version (1)
+    u8   flags: bit 0 = send per-category scores
+    f64  threshold, NaN for the service default
+    u32  text count
+    per text: u32 byte length, UTF-8 bytes
+
+Response::
+
+    u8   version (1)
+    u32  result count
+    per result:
+        u8   flags: bit 0 = is_safe, bit 1 = per-category scores follow
+        u8   category: 0 = none, 1 + category id, 0xFE = model_error,
+             or 0xFF = another code, followed by u8 byte length and its UTF-8 bytes
+        f32  risk_score
+        if bit 1: u8 count, then per category: u8 1 + category id, f32 score
+
+Category ids are the positions in ``CATEGORY_CODES``, which must stay in the
+order of ``RiskCategories`` in the Kettle plugin.
+"""
+import math
+import struct
+from typing import Dict, List, Optional, Tuple
+
+MEDIA_TYPE = "application/x-text-safety"
+VERSION = 1
+
+CATEGORY_CODES = (
+    "dw", "pc", "dc", "pi", "ec", "ac", "def", "ti", "cy",
+    "ph", "mh", "se", "sci", "pp", "cs", "acc", "mc", "ha",
+    "ps", "ter", "sd", "ext", "fin", "med", "law", "cm", "ma", "md", "sec",
+)
+_CATEGORY_IDS = {code: i + 1 for i, code in enumerate(CATEGORY_CODES)}
+_MODEL_ERROR = "model_error"
+_MODEL_ERROR_ID = 0xFE
+_OTHER_CATEGORY_ID = 0xFF
+
+_FLAG_WITH_DETAILS = 0x01
+_FLAG_SAFE = 0x01
+_FLAG_HAS_DETAILS = 0x02
+
+_REQUEST_HEADER = struct.Struct(">BBdI")
+_LENGTH = struct.Struct(">I")
+_RESPONSE_HEADER = struct.Struct(">BI")
+_RESULT = struct.Struct(">BBf")
+_DETAIL = struct.Struct(">Bf")
+
+# (is_safe, risk_category or None, risk_score, risk_details)
+Verdict = Tuple[bool, Optional[str], float, Dict[str, float]]
+
+
+class WireFormatError(ValueError):
+    """The request body is not a valid binary frame."""
+
+
+def decode_request(body: bytes) -> Tuple[List[str], Optional[float], bool]:
+    """Returns the texts, the threshold (None for the default) and whether details were asked for."""
+    if len(body) < _REQUEST_HEADER.size:
+        raise WireFormatError("Request shorter than its header")
+    version, flags, threshold, count = _REQUEST_HEADER.unpack_from(body, 0)
+    if version != VERSION:
+        raise WireFormatError(f"Unsupported wire format version {version}")
+    pos = _REQUEST_HEADER.size
+    texts = []
+    for _ in range(count):
+        if pos + _LENGTH.size > len(body):
+            raise WireFormatError("Request ends inside a text length")
+        (length,) = _LENGTH.unpack_from(body, pos)
+        pos += _LENGTH.size
+        if pos + length > len(body):
+            raise WireFormatError("Request ends inside a text")
+        try:
+            texts.append(body[pos:pos + length].decode("utf-8"))
+        except UnicodeDecodeError as e:
+            raise WireFormatError(f"Text is not valid UTF-8: {e}") from e
+        pos += length
+    if pos != len(body):
+        raise WireFormatError("Trailing data after the last text")
+    return texts, None if math.isnan(threshold) else threshold, bool(flags & _FLAG_WITH_DETAILS)
+
+
+def encode_response(verdicts: List[Verdict], with_details: bool) -> bytes:
+    """Encodes one verdict per text, in request order."""
+    out = bytearray(_RESPONSE_HEADER.pack(VERSION, len(verdicts)))
+    for is_safe, category, score, details in verdicts:
+        sent = [(_CATEGORY_IDS[code], value) for code, value in details.items()
+                if code in _CATEGORY_IDS] if with_details else []
+        flags = (_FLAG_SAFE if is_safe else 0) | (_FLAG_HAS_DETAILS if sent else 0)
+        category_id = _category_id(category)
+        if category_id == _OTHER_CATEGORY_ID:
+            code = category.encode("utf-8")[:255]
+            out += struct.pack(">BB", flags, category_id)
+            out.append(len(code))
+            out += code
+            out += struct.pack(">f", score)
+        else:
+            out += _RESULT.pack(flags, category_id, score)
+        if sent:
+            out.append(len(sent))
+            for detail_id, value in sent:
+                out += _DETAIL.pack(detail_id, value)
+    return bytes(out)
+
+
+def _category_id(category: Optional[str]) -> int:
+    if category is None:
+        return 0
+    if category == _MODEL_ERROR:
+        return _MODEL_ERROR_ID
+    return _CATEGORY_IDS.get(category, _OTHER_CATEGORY_ID)